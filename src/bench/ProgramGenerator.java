@@ -0,0 +1,139 @@
+package bench;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * class ProgramGenerator - writes large PL0 programs on which to measure
+ * the compiler, e.g., with its -T report of each pass.
+ * A flat program has 50 global variables and the number of procedures
+ * asked for, each with three local variables and a body that assigns
+ * them and then has 60 statements, each a loop, a conditional, a
+ * multiple assignment or an arithmetic assignment chosen at random; its
+ * main program calls each procedure.
+ * 400 procedures make a program of about 0.9 MB, 2000 procedures one of
+ * 130,000 lines.
+ * A nested program has each procedure declared within the one before,
+ * with a local variable and a body that assigns it, makes 60 assignments
+ * to globals and calls the procedure nested in it, so that names are
+ * looked up through as many scopes as there are procedures.
+ * The statements are chosen with a generator seeded by the number of
+ * procedures, so the same program is written each time. For example,
+ * the time and allocation of parsing are reported by
+ *   java bench.ProgramGenerator 400 p400.pl0
+ *   java pl0.PL0_RD -p -T p400.pl0
+ */
+public class ProgramGenerator {
+
+    /** Number of global variables */
+    private static final int GLOBALS = 50;
+    /** Number of statements in the body of each procedure */
+    private static final int STATEMENTS = 60;
+
+    private PrintWriter out;
+    private Random random;
+
+    public ProgramGenerator( PrintWriter out, int procedures ) {
+        this.out = out;
+        this.random = new Random( procedures );
+    }
+
+    public static void usage() {
+        System.out.println(
+            "Usage: java bench.ProgramGenerator [-n] <procedures> <file>\n" +
+            "  -n  =  nest each procedure within the one before" );
+    }
+
+    public static void main( String args[] ) throws IOException {
+        boolean nested = false;
+        int i = 0;
+        if( args.length > 0 && args[0].equals( "-n" ) ) {
+            nested = true;
+            i++;
+        }
+        if( args.length != i + 2 ) {
+            usage();
+            System.exit( 1 );
+        }
+        int procedures = Integer.parseInt( args[i] );
+        PrintWriter out = new PrintWriter( new FileWriter( args[i + 1] ) );
+        try {
+            ProgramGenerator generator =
+                new ProgramGenerator( out, procedures );
+            if( nested ) {
+                generator.writeNested( procedures );
+            } else {
+                generator.writeFlat( procedures );
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Write a program with the procedures declared one after another */
+    public void writeFlat( int procedures ) {
+        writeGlobals();
+        for( int p = 0; p < procedures; p++ ) {
+            out.println( "procedure p" + p + "() =" );
+            out.println( "  var a: int; b: int; c: int;" );
+            out.println( "  begin" );
+            out.println( "    a, b, c := " + p + ", 1, 2;" );
+            for( int k = 0; k < STATEMENTS; k++ ) {
+                out.print( "    " + statement( k ) );
+                out.println( k < STATEMENTS - 1 ? ";" : "" );
+            }
+            out.println( "  end;" );
+        }
+        out.println( "begin" );
+        for( int p = 0; p < procedures; p++ ) {
+            out.println( "  call p" + p + "()" +
+                    (p < procedures - 1 ? ";" : "") );
+        }
+        out.println( "end" );
+    }
+    private String statement( int k ) {
+        int g = k % GLOBALS;
+        switch( random.nextInt( 4 ) ) {
+        case 0:
+            return "while a > " + k + " do a := a - 1";
+        case 1:
+            return "if a < b && !(c = " + k + ") then b := a + 1 " +
+                "else c := b - a";
+        case 2:
+            return "g" + g + ", a := a, g" + g + " + b * c";
+        default:
+            return "a := (b + " + k + ") * c - g" + g + " / 2";
+        }
+    }
+
+    /** Write a program with each procedure nested in the one before */
+    public void writeNested( int procedures ) {
+        writeGlobals();
+        for( int d = 1; d <= procedures; d++ ) {
+            out.println( "procedure p" + d + "() =" );
+            out.println( "  var a" + d + ": int;" );
+        }
+        for( int d = procedures; d >= 1; d-- ) {
+            out.println( "begin" );
+            out.println( "  a" + d + " := " + d + ";" );
+            for( int k = 0; k < STATEMENTS; k++ ) {
+                out.print( "  g" + (k % GLOBALS) + " := g" +
+                        ((k + 3) % GLOBALS) + " + a" + d + " + " + k );
+                out.println( k < STATEMENTS - 1 || d < procedures ? ";" : "" );
+            }
+            if( d < procedures ) {
+                out.println( "  call p" + (d + 1) + "()" );
+            }
+            out.println( "end;" );
+        }
+        out.println( "begin call p1() end" );
+    }
+
+    private void writeGlobals() {
+        out.println( "var" );
+        for( int g = 0; g < GLOBALS; g++ ) {
+            out.println( "  g" + g + ": int;" );
+        }
+    }
+}
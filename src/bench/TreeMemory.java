@@ -0,0 +1,91 @@
+package bench;
+import java.io.IOException;
+
+import parser.Parser;
+import parser.Scanner;
+import source.ErrorHandler;
+import source.Source;
+import tree.StaticChecker;
+import tree.Tree;
+
+/**
+ * class TreeMemory - measures the heap held by the abstract syntax tree of
+ * a program once it has been parsed and once it has been statically
+ * checked, as the heap in use after a full collection less that in use
+ * before the program is scanned. The bodies of blocks are held as trees,
+ * or packed into tables with -A as by the compiler's -A option.
+ * With -A the heap is that of the bodies at rest, packed; it does not
+ * show the heap while a pass runs, as a pass unpacks each body it is
+ * over into node objects.
+ * The program is parsed on one thread, so that the heap does not depend
+ * on the number of processors. For example,
+ *   java bench.ProgramGenerator 2000 g2k.pl0
+ *   java -Xmx2g bench.TreeMemory g2k.pl0
+ *   java -Xmx2g bench.TreeMemory -A g2k.pl0
+ */
+public class TreeMemory {
+
+    public static void usage() {
+        System.out.println(
+            "Usage: java bench.TreeMemory [-A] <file>\n" +
+            "  -A  =  hold the bodies of blocks packed into compact tables" );
+    }
+
+    public static void main( String args[] ) throws IOException {
+        boolean packBodies = false;
+        int i = 0;
+        if( args.length > 0 && args[0].equals( "-A" ) ) {
+            packBodies = true;
+            i++;
+        }
+        if( args.length != i + 1 ) {
+            usage();
+            System.exit( 1 );
+        }
+        Source src = new Source( args[i] );
+        ErrorHandler handler = new ErrorHandler( System.out, src );
+        long base = used();
+        long start = System.nanoTime();
+        Parser parser = new Parser( new Scanner( src ), false );
+        parser.setThreads( 1 );
+        parser.setPackBodies( packBodies );
+        Tree.ProgramNode tree = parser.parse();
+        long parsed = System.nanoTime();
+        long afterParse = used();
+        long checkStart = System.nanoTime();
+        new StaticChecker( handler ).visitProgramNode( tree );
+        long checked = System.nanoTime();
+        long afterCheck = used();
+        handler.flush();
+        if( handler.hadErrors() ) {
+            handler.errorSummary();
+            System.exit( 1 );
+        }
+        System.out.println( args[i] + (packBodies ? " -A" : "") +
+                ": heap after parse " + megabytes( afterParse - base ) +
+                " MB, after check " + megabytes( afterCheck - base ) +
+                " MB; parse " + (parsed - start) / 1000000 +
+                " ms, check " + (checked - checkStart) / 1000000 + " ms" );
+        /* Keep the tree and parser reachable until they are measured */
+        if( tree.getBlock() == null || parser.hashCode() == 0 ) {
+            System.out.println();
+        }
+    }
+
+    /** @return the bytes of heap in use after a full collection */
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 4; i++ ) {
+            System.gc();
+            try {
+                Thread.sleep( 50 );
+            } catch( InterruptedException e ) {
+                /* Measure sooner */
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    private static String megabytes( long bytes ) {
+        return String.format( "%.1f", bytes / 1e6 );
+    }
+}
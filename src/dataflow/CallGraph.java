@@ -0,0 +1,366 @@
+package dataflow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import syms.SymEntry;
+import tree.DeclNode;
+import tree.ExpNode;
+import tree.Expressions;
+import tree.StatementNode;
+import tree.StatementVisitor;
+import tree.Tree;
+
+/**
+ * class CallGraph - the procedures of a (statically checked) program, the
+ * procedures each may call, and a summary of the side effects of calling
+ * each procedure: the variables of enclosing scopes that it, or any
+ * procedure it calls directly or indirectly, may use or assign.
+ * Variables local to a procedure (including those of procedures nested
+ * within it) are not part of its summary: each call has its own frame,
+ * so the caller cannot observe them, even for a recursive call.
+ * Procedures that call each other recursively form a strongly connected
+ * component of the graph; the components are found with Tarjan's
+ * algorithm and summarised in reverse topological order (callees first),
+ * with all the procedures of a component sharing its effects, so each
+ * procedure is summarised once.
+ * Taking the address of a variable other than to use its value or to
+ * assign it (e.g., into a temporary by loop-invariant code motion)
+ * counts as both a use and an assignment of the variable, as it may be
+ * used or assigned via the address.
+ * The summaries stay valid (if conservative) as the optimisation passes
+ * transform the program, because none of them adds accesses to the
+ * variables of enclosing scopes.
+ * The variables that procedures refer to in enclosing scopes are also
+ * recorded as escaping (see FlowGraph), so a flow graph need not search
+ * the procedures nested within its block for them.
+ */
+public class CallGraph {
+    /** Procedures in the order of their declarations */
+    private List<SymEntry.ProcedureEntry> procedures;
+    /** Procedures called directly by each procedure */
+    private Map<SymEntry.ProcedureEntry, Set<SymEntry.ProcedureEntry>> callees;
+    /** Variables used by each procedure and those it calls */
+    private Map<SymEntry.ProcedureEntry, Set<SymEntry.VarEntry>> reads;
+    /** Variables assigned by each procedure and those it calls */
+    private Map<SymEntry.ProcedureEntry, Set<SymEntry.VarEntry>> writes;
+    /** Strongly connected components, callees first */
+    private List<List<SymEntry.ProcedureEntry>> components;
+    /** Component of each procedure */
+    private Map<SymEntry.ProcedureEntry, List<SymEntry.ProcedureEntry>>
+        componentOf;
+    /** Variables referred to by procedures nested within their scopes */
+    private Set<SymEntry.VarEntry> escaping;
+
+    /** Build the call graph of a program and summarise its procedures */
+    public CallGraph( Tree.ProgramNode program ) {
+        procedures = new ArrayList<SymEntry.ProcedureEntry>();
+        callees = new HashMap<SymEntry.ProcedureEntry,
+                Set<SymEntry.ProcedureEntry>>();
+        reads = new HashMap<SymEntry.ProcedureEntry, Set<SymEntry.VarEntry>>();
+        writes = new HashMap<SymEntry.ProcedureEntry, Set<SymEntry.VarEntry>>();
+        escaping = new HashSet<SymEntry.VarEntry>();
+        addProcedures( program.getBlock() );
+        findComponents();
+        summarise();
+    }
+
+    /** @return the procedures of the program */
+    public List<SymEntry.ProcedureEntry> getProcedures() {
+        return procedures;
+    }
+    /** @return the procedures called directly by proc */
+    public Set<SymEntry.ProcedureEntry> getCallees(
+            SymEntry.ProcedureEntry proc ) {
+        return callees.get( proc );
+    }
+    /** @return the variables of enclosing scopes whose values a call of
+     * proc may use */
+    public Set<SymEntry.VarEntry> getReads( SymEntry.ProcedureEntry proc ) {
+        return reads.get( proc );
+    }
+    /** @return the variables of enclosing scopes that a call of proc may
+     * assign */
+    public Set<SymEntry.VarEntry> getWrites( SymEntry.ProcedureEntry proc ) {
+        return writes.get( proc );
+    }
+    /** @return true if var is referred to directly by a procedure nested
+     * within the block that declares it */
+    public boolean isEscaping( SymEntry.VarEntry var ) {
+        return escaping.contains( var );
+    }
+    /** @return true if proc may call itself, directly or indirectly */
+    public boolean isRecursive( SymEntry.ProcedureEntry proc ) {
+        return componentOf.get( proc ).size() > 1 ||
+            callees.get( proc ).contains( proc );
+    }
+    /** @return the strongly connected components of the graph in reverse
+     * topological order, i.e., each component follows those it calls */
+    public List<List<SymEntry.ProcedureEntry>> getComponents() {
+        return components;
+    }
+
+    /*-------------------- Construction -------------------------------*/
+
+    /** Record the direct effects of the procedures declared in block */
+    private void addProcedures( Tree.BlockNode block ) {
+        for( DeclNode decl : block.getProcedures().getDeclarations() ) {
+            DeclNode.ProcedureNode proc = (DeclNode.ProcedureNode)decl;
+            SymEntry.ProcedureEntry entry = proc.getProcEntry();
+            Effects effects = new Effects();
+            proc.getBlock().getBody().accept( effects );
+            int level = entry.getLocalScope().getLevel();
+            for( SymEntry.VarEntry var : effects.reads ) {
+                if( var.getLevel() < level ) {
+                    escaping.add( var );
+                }
+            }
+            for( SymEntry.VarEntry var : effects.writes ) {
+                if( var.getLevel() < level ) {
+                    escaping.add( var );
+                }
+            }
+            procedures.add( entry );
+            callees.put( entry, effects.calls );
+            reads.put( entry, effects.reads );
+            writes.put( entry, effects.writes );
+            addProcedures( proc.getBlock() );
+        }
+    }
+
+    /** Tarjan's algorithm; the components are completed callees first */
+    private void findComponents() {
+        components = new ArrayList<List<SymEntry.ProcedureEntry>>();
+        componentOf = new HashMap<SymEntry.ProcedureEntry,
+                List<SymEntry.ProcedureEntry>>();
+        Map<SymEntry.ProcedureEntry, Integer> index =
+            new HashMap<SymEntry.ProcedureEntry, Integer>();
+        Map<SymEntry.ProcedureEntry, Integer> lowLink =
+            new HashMap<SymEntry.ProcedureEntry, Integer>();
+        List<SymEntry.ProcedureEntry> stack =
+            new ArrayList<SymEntry.ProcedureEntry>();
+        for( SymEntry.ProcedureEntry proc : procedures ) {
+            if( !index.containsKey( proc ) ) {
+                connect( proc, index, lowLink, stack );
+            }
+        }
+    }
+
+    private void connect( SymEntry.ProcedureEntry proc,
+            Map<SymEntry.ProcedureEntry, Integer> index,
+            Map<SymEntry.ProcedureEntry, Integer> lowLink,
+            List<SymEntry.ProcedureEntry> stack ) {
+        index.put( proc, index.size() );
+        lowLink.put( proc, index.get( proc ) );
+        stack.add( proc );
+        for( SymEntry.ProcedureEntry callee : callees.get( proc ) ) {
+            if( !index.containsKey( callee ) ) {
+                connect( callee, index, lowLink, stack );
+                lowLink.put( proc,
+                        Math.min( lowLink.get( proc ), lowLink.get( callee ) ) );
+            } else if( stack.contains( callee ) ) {
+                lowLink.put( proc,
+                        Math.min( lowLink.get( proc ), index.get( callee ) ) );
+            }
+        }
+        if( lowLink.get( proc ).equals( index.get( proc ) ) ) {
+            List<SymEntry.ProcedureEntry> component =
+                new ArrayList<SymEntry.ProcedureEntry>();
+            SymEntry.ProcedureEntry member;
+            do {
+                member = stack.remove( stack.size() - 1 );
+                component.add( member );
+                componentOf.put( member, component );
+            } while( member != proc );
+            components.add( component );
+        }
+    }
+
+    /** Combine the effects of each component with those of the
+     * components it calls, then keep for each procedure only the
+     * variables of its enclosing scopes. */
+    private void summarise() {
+        for( List<SymEntry.ProcedureEntry> component : components ) {
+            Set<SymEntry.VarEntry> r = new LinkedHashSet<SymEntry.VarEntry>();
+            Set<SymEntry.VarEntry> w = new LinkedHashSet<SymEntry.VarEntry>();
+            for( SymEntry.ProcedureEntry proc : component ) {
+                r.addAll( reads.get( proc ) );
+                w.addAll( writes.get( proc ) );
+                for( SymEntry.ProcedureEntry callee : callees.get( proc ) ) {
+                    if( componentOf.get( callee ) != component ) {
+                        r.addAll( reads.get( callee ) );
+                        w.addAll( writes.get( callee ) );
+                    }
+                }
+            }
+            /* Summarise the members before any component that calls them
+             * is combined */
+            for( SymEntry.ProcedureEntry proc : component ) {
+                int level = proc.getLocalScope().getLevel();
+                reads.put( proc, outer( r, level ) );
+                writes.put( proc, outer( w, level ) );
+            }
+        }
+    }
+
+    /** @return the variables of vars at levels less than level */
+    private static Set<SymEntry.VarEntry> outer( Set<SymEntry.VarEntry> vars,
+            int level ) {
+        Set<SymEntry.VarEntry> result = new LinkedHashSet<SymEntry.VarEntry>();
+        for( SymEntry.VarEntry var : vars ) {
+            if( var.getLevel() < level ) {
+                result.add( var );
+            }
+        }
+        return Collections.unmodifiableSet( result );
+    }
+
+    /*-------------------- Effects of statements ----------------------*/
+
+    /** @return the variables whose values s may use, including via the
+     * procedures it calls */
+    public Set<SymEntry.VarEntry> readsOf( StatementNode s ) {
+        Effects effects = new Effects();
+        s.accept( effects );
+        for( SymEntry.ProcedureEntry callee : effects.calls ) {
+            effects.reads.addAll( getReads( callee ) );
+        }
+        return effects.reads;
+    }
+    /** @return the variables s may assign, including via the procedures
+     * it calls */
+    public Set<SymEntry.VarEntry> writesOf( StatementNode s ) {
+        Effects effects = new Effects();
+        s.accept( effects );
+        for( SymEntry.ProcedureEntry callee : effects.calls ) {
+            effects.writes.addAll( getWrites( callee ) );
+        }
+        return effects.writes;
+    }
+
+    /** Collects the variables used and assigned directly by statements
+     * and the procedures they call. */
+    private static class Effects implements StatementVisitor {
+        Set<SymEntry.VarEntry> reads = new LinkedHashSet<SymEntry.VarEntry>();
+        Set<SymEntry.VarEntry> writes = new LinkedHashSet<SymEntry.VarEntry>();
+        Set<SymEntry.ProcedureEntry> calls =
+            new LinkedHashSet<SymEntry.ProcedureEntry>();
+
+        /** Expressions still to be walked by value, the next on top */
+        List<ExpNode> pending = new ArrayList<ExpNode>();
+
+        /** Record the variables exp uses; a variable whose address is
+         * taken (other than to use its value) may be used or assigned.
+         * The expression is walked from the pending stack (see
+         * Expressions.pushOperands), as it may be nested too deeply to
+         * recurse over. */
+        private void value( ExpNode exp ) {
+            pending.add( exp );
+            while( !pending.isEmpty() ) {
+                ExpNode next = pending.remove( pending.size() - 1 );
+                if( next instanceof ExpNode.DereferenceNode &&
+                        ((ExpNode.DereferenceNode)next).getLeftValue()
+                            instanceof ExpNode.VariableNode ) {
+                    reads.add( ((ExpNode.VariableNode)
+                            ((ExpNode.DereferenceNode)next).getLeftValue())
+                                .getVariable() );
+                } else if( next instanceof ExpNode.VariableNode ) {
+                    SymEntry.VarEntry var =
+                        ((ExpNode.VariableNode)next).getVariable();
+                    reads.add( var );
+                    writes.add( var );
+                } else {
+                    Expressions.pushOperands( next, pending );
+                }
+            }
+        }
+
+        public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        }
+        public void visitStatementListNode( StatementNode.ListNode node ) {
+            for( StatementNode s : node.getStatements() ) {
+                s.accept( this );
+            }
+        }
+        public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+            for( ExpNode exp : node.getExp() ) {
+                value( exp );
+            }
+            for( ExpNode lval : node.getVariable() ) {
+                if( lval instanceof ExpNode.VariableNode ) {
+                    writes.add( ((ExpNode.VariableNode)lval).getVariable() );
+                } else {
+                    /* Assignment via an address held in a temporary,
+                     * whose variable was recorded when its address was
+                     * taken */
+                    value( lval );
+                }
+            }
+        }
+        public void visitWriteNode( StatementNode.WriteNode node ) {
+            value( node.getExp() );
+        }
+        public void visitCallNode( StatementNode.CallNode node ) {
+            calls.add( node.getEntry() );
+        }
+        public void visitIfNode( StatementNode.IfNode node ) {
+            value( node.getCondition() );
+            node.getThenStmt().accept( this );
+            node.getElseStmt().accept( this );
+        }
+        public void visitWhileNode( StatementNode.WhileNode node ) {
+            value( node.getCondition() );
+            node.getLoopStmt().accept( this );
+        }
+        public void visitSkipNode( StatementNode.SkipNode node ) {
+        }
+        public void visitForNode( StatementNode.ForNode node ) {
+            value( node.getLowerBound() );
+            value( node.getUpperBound() );
+            writes.add( node.getEntry() );
+            writes.add( node.getBoundEntry() );
+            reads.add( node.getEntry() );
+            reads.add( node.getBoundEntry() );
+            node.getdoStmt().accept( this );
+        }
+    }
+
+    /*-------------------- Listing ------------------------------------*/
+
+    /** @return a listing of the procedures and their summaries */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder( "Call graph\n" );
+        for( SymEntry.ProcedureEntry proc : procedures ) {
+            s.append( "  " ).append( proc.getIdent() );
+            if( isRecursive( proc ) ) {
+                s.append( " (recursive)" );
+            }
+            s.append( "\n    calls:  " ).append( names( callees.get( proc ) ) );
+            s.append( "\n    reads:  " ).append( names( reads.get( proc ) ) );
+            s.append( "\n    writes: " ).append( names( writes.get( proc ) ) );
+            s.append( "\n" );
+        }
+        return s.toString();
+    }
+
+    private static String names( Set<? extends SymEntry> entries ) {
+        StringBuilder s = new StringBuilder();
+        for( SymEntry entry : entries ) {
+            if( s.length() > 0 ) {
+                s.append( ", " );
+            }
+            s.append( entry.getIdent() );
+            if( entry instanceof SymEntry.VarEntry ) {
+                s.append( "@" ).append( entry.getLevel() );
+            }
+        }
+        return s.length() == 0 ? "-" : s.toString();
+    }
+}
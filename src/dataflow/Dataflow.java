@@ -0,0 +1,135 @@
+package dataflow;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * class Dataflow - iterative solver for bit vector dataflow problems over
+ * a flow graph. A problem is given by its direction, its meet operation
+ * (union for "may" problems, intersection for "must" problems), the value
+ * at the boundary (the entry node for a forward problem, the exit node for
+ * a backward problem) and, for each node, the facts it generates and
+ * kills: the value after the node is gen | (value before & ~kill).
+ *
+ * Nodes are held on a worklist ordered by their position in reverse
+ * postorder (postorder for a backward problem), and the first node on
+ * the worklist is always processed next. The flow graphs of structured
+ * statements are reducible, and for these each node is processed at most
+ * d + 2 times, where d is the loop nesting depth, so the time taken is
+ * linear in the size of the procedure (for a given number of facts).
+ */
+public abstract class Dataflow {
+    /** Graph being analysed */
+    protected FlowGraph graph;
+    /** Value before each node (in execution order), by node index */
+    private BitSet[] in;
+    /** Value after each node (in execution order), by node index */
+    private BitSet[] out;
+    /** Number of times a node was processed, for statistics */
+    private int visits;
+
+    protected Dataflow( FlowGraph graph ) {
+        this.graph = graph;
+    }
+
+    /** @return true for a forward problem, false for a backward one */
+    protected abstract boolean isForward();
+    /** @return true if the meet is union, false if it is intersection */
+    protected abstract boolean isUnion();
+    /** @return the value at the entry (forward) or exit (backward) */
+    protected abstract BitSet boundary();
+    /** @return the facts generated by node */
+    protected abstract BitSet gen( FlowGraph.Node node );
+    /** @return the facts killed by node */
+    protected abstract BitSet kill( FlowGraph.Node node );
+    /** @return the initial value of all other nodes; the empty set for a
+     * "may" problem, and the set of all facts for a "must" problem */
+    protected abstract BitSet top();
+
+    /** Solve the problem. */
+    public void solve() {
+        int size = graph.getNodes().size();
+        in = new BitSet[size];
+        out = new BitSet[size];
+        for( FlowGraph.Node node : graph.getNodes() ) {
+            in[node.getIndex()] = top();
+            out[node.getIndex()] = top();
+        }
+        List<FlowGraph.Node> order = graph.reversePostorder();
+        int n = order.size();
+        /* Position of each node in the processing order */
+        int[] position = new int[size];
+        FlowGraph.Node[] byPosition = new FlowGraph.Node[n];
+        for( int i = 0; i < n; i++ ) {
+            FlowGraph.Node node = isForward() ? order.get( i ) :
+                order.get( n - 1 - i );
+            position[node.getIndex()] = i;
+            byPosition[i] = node;
+        }
+        /* Cache the transfer functions */
+        BitSet[] gens = new BitSet[size];
+        BitSet[] kills = new BitSet[size];
+        for( FlowGraph.Node node : order ) {
+            gens[node.getIndex()] = gen( node );
+            kills[node.getIndex()] = kill( node );
+        }
+        BitSet worklist = new BitSet( n );
+        worklist.set( 0, n );
+        visits = 0;
+        for( int i = worklist.nextSetBit( 0 ); i >= 0;
+                i = worklist.nextSetBit( 0 ) ) {
+            worklist.clear( i );
+            visits++;
+            FlowGraph.Node node = byPosition[i];
+            int index = node.getIndex();
+            /* Meet over the nodes that flow into this one */
+            List<FlowGraph.Node> sources = isForward() ?
+                node.getPredecessors() : node.getSuccessors();
+            BitSet before = sources.isEmpty() ? boundary() : null;
+            for( FlowGraph.Node source : sources ) {
+                BitSet value = isForward() ?
+                    out[source.getIndex()] : in[source.getIndex()];
+                if( before == null ) {
+                    before = (BitSet)value.clone();
+                } else if( isUnion() ) {
+                    before.or( value );
+                } else {
+                    before.and( value );
+                }
+            }
+            BitSet after = (BitSet)before.clone();
+            after.andNot( kills[index] );
+            after.or( gens[index] );
+            BitSet old;
+            if( isForward() ) {
+                in[index] = before;
+                old = out[index];
+                out[index] = after;
+            } else {
+                out[index] = before;
+                old = in[index];
+                in[index] = after;
+            }
+            if( !after.equals( old ) ) {
+                List<FlowGraph.Node> targets = isForward() ?
+                    node.getSuccessors() : node.getPredecessors();
+                for( FlowGraph.Node target : targets ) {
+                    worklist.set( position[target.getIndex()] );
+                }
+            }
+        }
+    }
+
+    /** @return the value holding before node is executed */
+    public BitSet getIn( FlowGraph.Node node ) {
+        return in[node.getIndex()];
+    }
+    /** @return the value holding after node is executed */
+    public BitSet getOut( FlowGraph.Node node ) {
+        return out[node.getIndex()];
+    }
+    /** @return the number of times nodes were processed by solve */
+    public int getVisits() {
+        return visits;
+    }
+}
@@ -0,0 +1,129 @@
+package dataflow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+import parser.Parser;
+import parser.Scanner;
+import source.ErrorHandler;
+import source.Source;
+import syms.SymEntry;
+import tree.StaticChecker;
+import tree.Tree;
+
+/**
+ * class DataflowTest - JUnit test of the definite assignment and reaching
+ * definitions analyses over the flow graph of the main program.
+ */
+public class DataflowTest extends TestCase {
+
+    private static final String PROGRAM =
+        "var x: int; y: int; n: int; e: int;\n" +
+        "procedure p() = begin e := 1 end;\n" +
+        "begin\n" +
+        "  read n;\n" +
+        "  if n > 0 then x := 1 else skip;\n" +
+        "  while n > 0 do\n" +
+        "    begin\n" +
+        "      y := x;\n" +
+        "      n := n - 1\n" +
+        "    end;\n" +
+        "  call p();\n" +
+        "  write x + e\n" +
+        "end\n";
+
+    private FlowGraph graph;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Source src = new Source( "dataflow", PROGRAM );
+        if( ErrorHandler.getErrorHandler() == null ) {
+            new ErrorHandler( new PrintStream( new ByteArrayOutputStream() ),
+                    src );
+        }
+        ErrorHandler handler = (ErrorHandler)ErrorHandler.getErrorHandler();
+        handler.reset( src );
+        Tree.ProgramNode tree = new Parser( new Scanner( src ), false ).parse();
+        new StaticChecker( handler ).visitProgramNode( tree );
+        assertFalse( handler.hadErrors() );
+        graph = new FlowGraph( tree.getBlock(), new CallGraph( tree ) );
+    }
+
+    public void testDefiniteAssignment() {
+        DefiniteAssignment assigned = new DefiniteAssignment( graph );
+        assigned.solve();
+        FlowGraph.Node copy = node( FlowGraph.Kind.ASSIGN, "y" );
+        assertFalse( assigned.isAssigned( copy, variable( "x" ) ) );
+        assertTrue( assigned.isAssigned( copy, variable( "n" ) ) );
+        assertEquals( "[x]", names( assigned.unassignedUses( copy ) ) );
+        /* e escapes to p, which assigns it, so the call assigns it */
+        FlowGraph.Node write = node( FlowGraph.Kind.WRITE, null );
+        assertTrue( assigned.isAssigned( write, variable( "e" ) ) );
+        assertEquals( "[x]", names( assigned.unassignedUses( write ) ) );
+        FlowGraph.Node call = node( FlowGraph.Kind.CALL, null );
+        assertFalse( assigned.isAssigned( call, variable( "e" ) ) );
+    }
+
+    public void testReachingDefinitions() {
+        ReachingDefinitions reaching = new ReachingDefinitions( graph );
+        reaching.solve();
+        FlowGraph.Node write = node( FlowGraph.Kind.WRITE, null );
+        /* The entry and x := 1 */
+        List<ReachingDefinitions.Definition> defs =
+            reaching.reaching( write, variable( "x" ) );
+        assertEquals( 2, defs.size() );
+        assertSame( graph.getEntry(), defs.get( 0 ).getNode() );
+        assertSame( node( FlowGraph.Kind.ASSIGN, "x" ),
+                defs.get( 1 ).getNode() );
+        /* Read n and n := n - 1, but not the entry, as read n kills it */
+        defs = reaching.reaching( node( FlowGraph.Kind.ASSIGN, "y" ),
+                variable( "n" ) );
+        assertEquals( 2, defs.size() );
+        for( ReachingDefinitions.Definition def : defs ) {
+            assertNotSame( graph.getEntry(), def.getNode() );
+        }
+        /* The entry and the call, which may assign e but does not kill
+         * the entry's definition */
+        defs = reaching.reaching( write, variable( "e" ) );
+        assertEquals( 2, defs.size() );
+        assertSame( graph.getEntry(), defs.get( 0 ).getNode() );
+        assertSame( node( FlowGraph.Kind.CALL, null ),
+                defs.get( 1 ).getNode() );
+    }
+
+    /** @return the first node of the kind that assigns the variable
+     * named, or that assigns nothing if name is null */
+    private FlowGraph.Node node( FlowGraph.Kind kind, String name ) {
+        for( FlowGraph.Node node : graph.getNodes() ) {
+            if( node.getKind() == kind && (name == null ?
+                    node.getDefs().isEmpty() :
+                    node.getDefs().get( graph.getNumber( variable( name ) ) ))) {
+                return node;
+            }
+        }
+        fail( "no " + kind + " node assigning " + name );
+        return null;
+    }
+    private SymEntry.VarEntry variable( String name ) {
+        for( int v = 0; v < graph.getVariableCount(); v++ ) {
+            if( graph.getVariable( v ).getIdent().equals( name ) ) {
+                return graph.getVariable( v );
+            }
+        }
+        fail( "no variable " + name );
+        return null;
+    }
+    private static String names( List<SymEntry.VarEntry> vars ) {
+        StringBuilder names = new StringBuilder( "[" );
+        for( SymEntry.VarEntry var : vars ) {
+            if( names.length() > 1 ) {
+                names.append( ", " );
+            }
+            names.append( var.getIdent() );
+        }
+        return names.append( "]" ).toString();
+    }
+}
@@ -0,0 +1,68 @@
+package dataflow;
+
+import java.util.BitSet;
+import java.util.List;
+
+import syms.SymEntry;
+
+/**
+ * class DefiniteAssignment - definite assignment analysis. A variable is
+ * definitely assigned at a point if it is assigned on every path from the
+ * entry to the point. This is a forward "must" problem over the variables
+ * of the graph. A call is treated as assigning the escaping variables it
+ * may assign (its clobbers), as the procedure called may assign them, so
+ * a use of an escaping variable is only reported if on some path to it
+ * the variable is neither assigned nor passed to a call that may assign
+ * it.
+ */
+public class DefiniteAssignment extends Dataflow {
+
+    public DefiniteAssignment( FlowGraph graph ) {
+        super( graph );
+    }
+
+    @Override
+    protected boolean isForward() {
+        return true;
+    }
+    @Override
+    protected boolean isUnion() {
+        return false;
+    }
+    @Override
+    protected BitSet boundary() {
+        return new BitSet();
+    }
+    @Override
+    protected BitSet top() {
+        BitSet all = new BitSet();
+        all.set( 0, graph.getVariableCount() );
+        return all;
+    }
+    @Override
+    protected BitSet gen( FlowGraph.Node node ) {
+        if( node.getClobbers().isEmpty() ) {
+            return node.getDefs();
+        }
+        BitSet assigned = (BitSet)node.getDefs().clone();
+        assigned.or( node.getClobbers() );
+        return assigned;
+    }
+    @Override
+    protected BitSet kill( FlowGraph.Node node ) {
+        return new BitSet();
+    }
+
+    /** @return true if var is definitely assigned before node */
+    public boolean isAssigned( FlowGraph.Node node, SymEntry.VarEntry var ) {
+        int number = graph.getNumber( var );
+        return number < 0 || getIn( node ).get( number );
+    }
+    /** @return the variables used by node that may not have been assigned
+     * before it */
+    public List<SymEntry.VarEntry> unassignedUses( FlowGraph.Node node ) {
+        BitSet unassigned = (BitSet)node.getUses().clone();
+        unassigned.andNot( getIn( node ) );
+        return graph.variables( unassigned );
+    }
+}
@@ -0,0 +1,476 @@
+package dataflow;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import syms.SymEntry;
+import tree.DeclNode;
+import tree.ExpNode;
+import tree.Expressions;
+import tree.StatementNode;
+import tree.StatementVisitor;
+import tree.Tree;
+
+/**
+ * class FlowGraph - the control flow graph of the body of the main program
+ * or of a procedure, built from its (statically checked) statement tree.
+ * Each node performs a single action: an assignment, a write, a call,
+ * the test of an "if" or "while" condition, or the initialisation or
+ * step of a "for" loop. The entry and exit nodes perform no action.
+ * The variables tracked are those local to the procedure (including
+ * temporaries); each is numbered so that sets of variables are BitSets.
+ * Local variables that nested procedures refer to are "escaping": a call
+ * may both use and assign them. Given a call graph, a call only uses and
+ * assigns the escaping variables in the summary of the procedure called,
+ * and the escaping variables are those the call graph records, rather
+ * than those found by searching the nested procedures, which for deeply
+ * nested procedures would search the same bodies again for each block.
+ */
+public class FlowGraph {
+    /** Kinds of flow graph nodes */
+    public enum Kind {
+        ENTRY, EXIT, ASSIGN, WRITE, CALL, CONDITION, FOR_INIT, FOR_LOOP,
+        FOR_STEP
+    }
+
+    /** A node of the flow graph */
+    public static class Node {
+        /** Index of the node within the graph */
+        private int index;
+        private Kind kind;
+        /** Statement the node belongs to (null for entry and exit) */
+        private StatementNode stmt;
+        /** Variables whose values the node uses */
+        private BitSet uses;
+        /** Variables the node always assigns */
+        private BitSet defs;
+        /** Variables the node may assign (calls only) */
+        private BitSet clobbers;
+        private List<Node> succs;
+        private List<Node> preds;
+
+        Node( int index, Kind kind, StatementNode stmt ) {
+            this.index = index;
+            this.kind = kind;
+            this.stmt = stmt;
+            this.uses = new BitSet();
+            this.defs = new BitSet();
+            this.clobbers = new BitSet();
+            this.succs = new ArrayList<Node>();
+            this.preds = new ArrayList<Node>();
+        }
+        public int getIndex() {
+            return index;
+        }
+        public Kind getKind() {
+            return kind;
+        }
+        public StatementNode getStatement() {
+            return stmt;
+        }
+        public BitSet getUses() {
+            return uses;
+        }
+        public BitSet getDefs() {
+            return defs;
+        }
+        public BitSet getClobbers() {
+            return clobbers;
+        }
+        public List<Node> getSuccessors() {
+            return succs;
+        }
+        public List<Node> getPredecessors() {
+            return preds;
+        }
+        @Override
+        public String toString() {
+            return "N" + index + " " + kind;
+        }
+    }
+
+    /** Static level of the procedure body */
+    private int level;
+    /** Nodes of the graph, indexed by their index */
+    private List<Node> nodes;
+    private Node entry, exit;
+    /** Tracked variables in order of their numbers */
+    private List<SymEntry.VarEntry> vars;
+    private Map<SymEntry.VarEntry, Integer> varNumbers;
+    /** Variables used or assigned by nested procedures */
+    private BitSet escaping;
+    /** Summaries of the procedures called, or null */
+    private CallGraph callGraph;
+    /** Expressions yet to be walked by addUses */
+    private List<ExpNode> pending;
+
+    /** Build the flow graph of the body of a block, assuming a call may
+     * use and assign every escaping variable.
+     * @param block the main program or procedure block
+     */
+    public FlowGraph( Tree.BlockNode block ) {
+        this( block, null );
+    }
+
+    /** Build the flow graph of the body of a block.
+     * @param block the main program or procedure block
+     * @param callGraph summaries of the procedures of the program, or
+     *        null if none are available
+     */
+    public FlowGraph( Tree.BlockNode block, CallGraph callGraph ) {
+        this.callGraph = callGraph;
+        this.level = block.getBlockLocals().getLevel();
+        this.nodes = new ArrayList<Node>();
+        this.vars = new ArrayList<SymEntry.VarEntry>();
+        this.varNumbers = new HashMap<SymEntry.VarEntry, Integer>();
+        this.escaping = new BitSet();
+        this.pending = new ArrayList<ExpNode>();
+        findEscaping( block );
+        entry = newNode( Kind.ENTRY, null );
+        Builder builder = new Builder();
+        builder.tails.add( entry );
+        block.getBody().accept( builder );
+        exit = newNode( Kind.EXIT, null );
+        builder.link( exit );
+    }
+
+    public Node getEntry() {
+        return entry;
+    }
+    public Node getExit() {
+        return exit;
+    }
+    public List<Node> getNodes() {
+        return nodes;
+    }
+    public int getLevel() {
+        return level;
+    }
+    /** @return the number of tracked variables */
+    public int getVariableCount() {
+        return vars.size();
+    }
+    /** @return the variable with the given number */
+    public SymEntry.VarEntry getVariable( int number ) {
+        return vars.get( number );
+    }
+    /** @return the number of a variable, or -1 if it is not tracked,
+     * i.e., it is not local to the procedure */
+    public int getNumber( SymEntry.VarEntry var ) {
+        Integer number = varNumbers.get( var );
+        return number == null ? -1 : number;
+    }
+    /** @return the variables referred to by nested procedures */
+    public BitSet getEscaping() {
+        return escaping;
+    }
+    /** @return the variables in a set of variable numbers */
+    public List<SymEntry.VarEntry> variables( BitSet set ) {
+        List<SymEntry.VarEntry> result = new ArrayList<SymEntry.VarEntry>();
+        for( int i = set.nextSetBit( 0 ); i >= 0; i = set.nextSetBit( i + 1 ) ) {
+            result.add( vars.get( i ) );
+        }
+        return result;
+    }
+
+    /** @return the nodes reachable from the entry in reverse postorder,
+     * i.e., each node precedes its successors other than along a loop's
+     * back edge. */
+    public List<Node> reversePostorder() {
+        List<Node> postorder = new ArrayList<Node>();
+        boolean[] visited = new boolean[nodes.size()];
+        /* Iterative depth first search so deeply nested statements
+         * cannot overflow the Java stack */
+        List<Node> stack = new ArrayList<Node>();
+        List<Integer> next = new ArrayList<Integer>();
+        stack.add( entry );
+        next.add( 0 );
+        visited[entry.index] = true;
+        while( !stack.isEmpty() ) {
+            int top = stack.size() - 1;
+            Node node = stack.get( top );
+            int i = next.get( top );
+            if( i < node.succs.size() ) {
+                next.set( top, i + 1 );
+                Node succ = node.succs.get( i );
+                if( !visited[succ.index] ) {
+                    visited[succ.index] = true;
+                    stack.add( succ );
+                    next.add( 0 );
+                }
+            } else {
+                postorder.add( node );
+                stack.remove( top );
+                next.remove( top );
+            }
+        }
+        List<Node> order = new ArrayList<Node>();
+        for( int i = postorder.size() - 1; i >= 0; i-- ) {
+            order.add( postorder.get( i ) );
+        }
+        return order;
+    }
+
+    /*-------------------- Construction -------------------------------*/
+
+    private Node newNode( Kind kind, StatementNode stmt ) {
+        Node node = new Node( nodes.size(), kind, stmt );
+        nodes.add( node );
+        return node;
+    }
+
+    /** @return the number of a local variable, allocating one if it has
+     * not been seen before, or -1 if var is not local */
+    private int number( SymEntry.VarEntry var ) {
+        if( var == null || var.getLevel() != level ) {
+            return -1;
+        }
+        Integer number = varNumbers.get( var );
+        if( number == null ) {
+            number = vars.size();
+            vars.add( var );
+            varNumbers.put( var, number );
+        }
+        return number;
+    }
+
+    /** Add the local variables whose values exp uses to set, numbering
+     * them as they are found. The expression is walked from the pending
+     * stack (see Expressions.pushOperands), as it may be nested too
+     * deeply to recurse over. */
+    private void addUses( ExpNode exp, BitSet set ) {
+        pending.add( exp );
+        while( !pending.isEmpty() ) {
+            ExpNode next = pending.remove( pending.size() - 1 );
+            if( next instanceof ExpNode.VariableNode ) {
+                int number =
+                    number( ((ExpNode.VariableNode)next).getVariable() );
+                if( number >= 0 ) {
+                    set.set( number );
+                }
+            } else {
+                Expressions.pushOperands( next, pending );
+            }
+        }
+    }
+
+    /** Record the local variables referred to within the procedures
+     * nested (at any depth) within block as escaping. */
+    private void findEscaping( Tree.BlockNode block ) {
+        if( callGraph != null ) {
+            for( SymEntry entry : block.getBlockLocals().getEntries() ) {
+                if( entry instanceof SymEntry.VarEntry &&
+                        callGraph.isEscaping( (SymEntry.VarEntry)entry ) ) {
+                    int number = number( (SymEntry.VarEntry)entry );
+                    if( number >= 0 ) {
+                        escaping.set( number );
+                    }
+                }
+            }
+            return;
+        }
+        searchEscaping( block );
+    }
+    private void searchEscaping( Tree.BlockNode block ) {
+        for( DeclNode decl : block.getProcedures().getDeclarations() ) {
+            Tree.BlockNode nested = ((DeclNode.ProcedureNode)decl).getBlock();
+            EscapeCollector collector = new EscapeCollector();
+            nested.getBody().accept( collector );
+            searchEscaping( nested );
+        }
+    }
+
+    /** Collects the local variables of this procedure referred to by
+     * the statements of a nested procedure */
+    private class EscapeCollector implements StatementVisitor {
+        private void add( ExpNode exp ) {
+            addUses( exp, escaping );
+        }
+        public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        }
+        public void visitStatementListNode( StatementNode.ListNode node ) {
+            for( StatementNode s : node.getStatements() ) {
+                s.accept( this );
+            }
+        }
+        public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+            for( ExpNode exp : node.getExp() ) {
+                add( exp );
+            }
+            for( ExpNode lval : node.getVariable() ) {
+                add( lval );
+            }
+        }
+        public void visitWriteNode( StatementNode.WriteNode node ) {
+            add( node.getExp() );
+        }
+        public void visitCallNode( StatementNode.CallNode node ) {
+        }
+        public void visitIfNode( StatementNode.IfNode node ) {
+            add( node.getCondition() );
+            node.getThenStmt().accept( this );
+            node.getElseStmt().accept( this );
+        }
+        public void visitWhileNode( StatementNode.WhileNode node ) {
+            add( node.getCondition() );
+            node.getLoopStmt().accept( this );
+        }
+        public void visitSkipNode( StatementNode.SkipNode node ) {
+        }
+        public void visitForNode( StatementNode.ForNode node ) {
+            add( node.getLowerBound() );
+            add( node.getUpperBound() );
+            node.getdoStmt().accept( this );
+        }
+    }
+
+    /** Builds the nodes for each statement. The tails are the nodes
+     * from which control passes to the node built next. */
+    private class Builder implements StatementVisitor {
+        private List<Node> tails = new ArrayList<Node>();
+
+        /** Add an edge from each tail to node; node becomes the only tail */
+        void link( Node node ) {
+            for( Node tail : tails ) {
+                edge( tail, node );
+            }
+            tails.clear();
+            tails.add( node );
+        }
+        private void edge( Node from, Node to ) {
+            if( !from.succs.contains( to ) ) {
+                from.succs.add( to );
+                to.preds.add( from );
+            }
+        }
+
+        public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        }
+        public void visitStatementListNode( StatementNode.ListNode node ) {
+            for( StatementNode s : node.getStatements() ) {
+                s.accept( this );
+            }
+        }
+        /** All the expressions are evaluated before any variable is
+         * assigned. An assignment via an address held in a temporary
+         * uses the temporary. */
+        public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+            Node assign = newNode( Kind.ASSIGN, node );
+            for( ExpNode exp : node.getExp() ) {
+                addUses( exp, assign.uses );
+            }
+            for( ExpNode lval : node.getVariable() ) {
+                if( lval instanceof ExpNode.VariableNode ) {
+                    int number =
+                        number( ((ExpNode.VariableNode)lval).getVariable() );
+                    if( number >= 0 ) {
+                        assign.defs.set( number );
+                    }
+                } else {
+                    addUses( lval, assign.uses );
+                }
+            }
+            link( assign );
+        }
+        public void visitWriteNode( StatementNode.WriteNode node ) {
+            Node write = newNode( Kind.WRITE, node );
+            addUses( node.getExp(), write.uses );
+            link( write );
+        }
+        /** A call may use and assign any escaping variable, or only
+         * those in the summary of the procedure if there is one */
+        public void visitCallNode( StatementNode.CallNode node ) {
+            Node call = newNode( Kind.CALL, node );
+            if( callGraph == null ) {
+                call.uses.or( escaping );
+                call.clobbers.or( escaping );
+            } else {
+                for( SymEntry.VarEntry var :
+                        callGraph.getReads( node.getEntry() ) ) {
+                    addEscaping( var, call.uses );
+                }
+                for( SymEntry.VarEntry var :
+                        callGraph.getWrites( node.getEntry() ) ) {
+                    addEscaping( var, call.clobbers );
+                }
+            }
+            link( call );
+        }
+        private void addEscaping( SymEntry.VarEntry var, BitSet set ) {
+            int number = getNumber( var );
+            if( number >= 0 && escaping.get( number ) ) {
+                set.set( number );
+            }
+        }
+        public void visitIfNode( StatementNode.IfNode node ) {
+            Node cond = newNode( Kind.CONDITION, node );
+            addUses( node.getCondition(), cond.uses );
+            link( cond );
+            node.getThenStmt().accept( this );
+            List<Node> thenTails = tails;
+            tails = new ArrayList<Node>();
+            tails.add( cond );
+            node.getElseStmt().accept( this );
+            tails.addAll( thenTails );
+        }
+        public void visitWhileNode( StatementNode.WhileNode node ) {
+            Node cond = newNode( Kind.CONDITION, node );
+            addUses( node.getCondition(), cond.uses );
+            link( cond );
+            node.getLoopStmt().accept( this );
+            link( cond );
+        }
+        public void visitSkipNode( StatementNode.SkipNode node ) {
+        }
+        /** The initialisation evaluates the bounds and assigns the control
+         * variable and the hidden upper bound, then either skips the loop
+         * or enters the body (via the FOR_LOOP node, which performs no
+         * action). The step after the body either leaves the loop or
+         * increments the control variable and repeats the body. */
+        public void visitForNode( StatementNode.ForNode node ) {
+            Node init = newNode( Kind.FOR_INIT, node );
+            addUses( node.getLowerBound(), init.uses );
+            addUses( node.getUpperBound(), init.uses );
+            int control = number( node.getEntry() );
+            int bound = number( node.getBoundEntry() );
+            if( control >= 0 ) {
+                init.defs.set( control );
+            }
+            if( bound >= 0 ) {
+                init.defs.set( bound );
+            }
+            link( init );
+            Node loop = newNode( Kind.FOR_LOOP, node );
+            link( loop );
+            node.getdoStmt().accept( this );
+            Node step = newNode( Kind.FOR_STEP, node );
+            if( control >= 0 ) {
+                step.uses.set( control );
+                step.defs.set( control );
+            }
+            if( bound >= 0 ) {
+                step.uses.set( bound );
+            }
+            link( step );
+            edge( step, loop );
+            tails.add( init );
+        }
+    }
+
+    @Override
+    public String toString() {
+        String s = "";
+        for( Node node : nodes ) {
+            s += node + " uses " + variables( node.uses ) +
+                " defs " + variables( node.defs ) + " ->";
+            for( Node succ : node.succs ) {
+                s += " N" + succ.index;
+            }
+            s += "\n";
+        }
+        return s;
+    }
+}
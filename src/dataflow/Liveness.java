@@ -0,0 +1,56 @@
+package dataflow;
+
+import java.util.BitSet;
+
+import syms.SymEntry;
+
+/**
+ * class Liveness - live variables analysis. A variable is live at a point
+ * if its current value may be used later, i.e., there is a path from the
+ * point to a use of the variable that does not assign it first.
+ * This is a backward "may" problem over the variables of the graph.
+ * The frame of a procedure is discarded when it returns, so no variable
+ * is live at the exit.
+ */
+public class Liveness extends Dataflow {
+
+    public Liveness( FlowGraph graph ) {
+        super( graph );
+    }
+
+    @Override
+    protected boolean isForward() {
+        return false;
+    }
+    @Override
+    protected boolean isUnion() {
+        return true;
+    }
+    @Override
+    protected BitSet boundary() {
+        return new BitSet();
+    }
+    @Override
+    protected BitSet top() {
+        return new BitSet();
+    }
+    @Override
+    protected BitSet gen( FlowGraph.Node node ) {
+        return node.getUses();
+    }
+    /** Only a definite assignment kills a variable */
+    @Override
+    protected BitSet kill( FlowGraph.Node node ) {
+        return node.getDefs();
+    }
+
+    /** @return the variables live after node */
+    public BitSet getLiveOut( FlowGraph.Node node ) {
+        return getOut( node );
+    }
+    /** @return true if var is live after node */
+    public boolean isLiveOut( FlowGraph.Node node, SymEntry.VarEntry var ) {
+        int number = graph.getNumber( var );
+        return number < 0 || getOut( node ).get( number );
+    }
+}
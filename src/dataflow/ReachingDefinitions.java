@@ -0,0 +1,138 @@
+package dataflow;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import syms.SymEntry;
+
+/**
+ * class ReachingDefinitions - reaching definitions analysis.
+ * A definition is a node that assigns (or, for a call, may assign) a
+ * variable. A definition reaches a point if there is a path from it to the
+ * point along which the variable is not definitely assigned again.
+ * The entry node is treated as defining every variable, so that a use
+ * reached by the entry definition may see an uninitialised value.
+ * This is a forward "may" problem over the definitions.
+ */
+public class ReachingDefinitions extends Dataflow {
+
+    /** A definition of a variable at a node */
+    public static class Definition {
+        private int index;
+        private FlowGraph.Node node;
+        private SymEntry.VarEntry var;
+
+        Definition( int index, FlowGraph.Node node, SymEntry.VarEntry var ) {
+            this.index = index;
+            this.node = node;
+            this.var = var;
+        }
+        public int getIndex() {
+            return index;
+        }
+        public FlowGraph.Node getNode() {
+            return node;
+        }
+        public SymEntry.VarEntry getVariable() {
+            return var;
+        }
+        @Override
+        public String toString() {
+            return "D" + index + " " + var.getIdent() + "@N" + node.getIndex();
+        }
+    }
+
+    /** All definitions, by index */
+    private List<Definition> defs;
+    /** Definitions made by each node, by node index */
+    private BitSet[] nodeDefs;
+    /** Definitions of each variable, by variable number */
+    private BitSet[] varDefs;
+
+    public ReachingDefinitions( FlowGraph graph ) {
+        super( graph );
+        defs = new ArrayList<Definition>();
+        nodeDefs = new BitSet[graph.getNodes().size()];
+        varDefs = new BitSet[graph.getVariableCount()];
+        for( int v = 0; v < varDefs.length; v++ ) {
+            varDefs[v] = new BitSet();
+        }
+        for( FlowGraph.Node node : graph.getNodes() ) {
+            BitSet assigned;
+            if( node == graph.getEntry() ) {
+                assigned = new BitSet();
+                assigned.set( 0, graph.getVariableCount() );
+            } else {
+                assigned = (BitSet)node.getDefs().clone();
+                assigned.or( node.getClobbers() );
+            }
+            nodeDefs[node.getIndex()] = new BitSet();
+            for( int v = assigned.nextSetBit( 0 ); v >= 0;
+                    v = assigned.nextSetBit( v + 1 ) ) {
+                Definition def = new Definition( defs.size(), node,
+                        graph.getVariable( v ) );
+                defs.add( def );
+                nodeDefs[node.getIndex()].set( def.index );
+                varDefs[v].set( def.index );
+            }
+        }
+    }
+
+    @Override
+    protected boolean isForward() {
+        return true;
+    }
+    @Override
+    protected boolean isUnion() {
+        return true;
+    }
+    @Override
+    protected BitSet boundary() {
+        return new BitSet();
+    }
+    @Override
+    protected BitSet top() {
+        return new BitSet();
+    }
+    @Override
+    protected BitSet gen( FlowGraph.Node node ) {
+        return nodeDefs[node.getIndex()];
+    }
+    /** A node that definitely assigns a variable kills all other
+     * definitions of it */
+    @Override
+    protected BitSet kill( FlowGraph.Node node ) {
+        BitSet kill = new BitSet();
+        BitSet assigned = node == graph.getEntry() ? new BitSet() :
+            node.getDefs();
+        for( int v = assigned.nextSetBit( 0 ); v >= 0;
+                v = assigned.nextSetBit( v + 1 ) ) {
+            kill.or( varDefs[v] );
+        }
+        kill.andNot( nodeDefs[node.getIndex()] );
+        return kill;
+    }
+
+    /** @return all the definitions */
+    public List<Definition> getDefinitions() {
+        return defs;
+    }
+    /** @return the definitions of var that reach node (before it is
+     * executed), or null if var is not tracked */
+    public List<Definition> reaching( FlowGraph.Node node,
+            SymEntry.VarEntry var ) {
+        int number = graph.getNumber( var );
+        if( number < 0 ) {
+            return null;
+        }
+        BitSet reach = (BitSet)getIn( node ).clone();
+        reach.and( varDefs[number] );
+        List<Definition> result = new ArrayList<Definition>();
+        for( int d = reach.nextSetBit( 0 ); d >= 0;
+                d = reach.nextSetBit( d + 1 ) ) {
+            result.add( defs.get( d ) );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,110 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * class Block - a basic block of the intermediate representation.
+ * A block starts with its Phi instructions, followed by a sequence of
+ * instructions, and ends with a single terminator (Jump, Branch or
+ * Return) that transfers control to its successors.
+ */
+public class Block {
+    /** Number of the block within its function (for printing) */
+    private int number;
+    /** Phi instructions at the start of the block; the operands of each
+     * are in the same order as the predecessors */
+    private List<Instr.Phi> phis;
+    /** Instructions other than phis and the terminator */
+    private List<Instr> instrs;
+    /** Terminator, or null while the block is being built */
+    private Instr terminator;
+    /** Blocks that may transfer control to this block */
+    private List<Block> preds;
+
+    Block( int number ) {
+        this.number = number;
+        this.phis = new ArrayList<Instr.Phi>();
+        this.instrs = new ArrayList<Instr>();
+        this.terminator = null;
+        this.preds = new ArrayList<Block>();
+    }
+    public int getNumber() {
+        return number;
+    }
+    void setNumber( int number ) {
+        this.number = number;
+    }
+    public List<Instr.Phi> getPhis() {
+        return phis;
+    }
+    public List<Instr> getInstructions() {
+        return instrs;
+    }
+    public Instr getTerminator() {
+        return terminator;
+    }
+    public List<Block> getPredecessors() {
+        return preds;
+    }
+    public List<Block> getSuccessors() {
+        return terminator == null ? new ArrayList<Block>() :
+            terminator.getSuccessors();
+    }
+    /** Append an instruction to the block.
+     * @return the instruction added */
+    public Instr add( Instr instr ) {
+        assert terminator == null;
+        instr.block = this;
+        instrs.add( instr );
+        return instr;
+    }
+    /** Insert an instruction at the start of the block (after the phis) */
+    public Instr addFirst( Instr instr ) {
+        instr.block = this;
+        instrs.add( 0, instr );
+        return instr;
+    }
+    public Instr.Phi addPhi( Instr.Phi phi ) {
+        phi.block = this;
+        phis.add( phi );
+        return phi;
+    }
+    /** Terminate the block and record it as a predecessor of each of the
+     * terminator's successors. */
+    public void terminate( Instr terminator ) {
+        assert this.terminator == null;
+        terminator.block = this;
+        this.terminator = terminator;
+        for( Block succ : terminator.getSuccessors() ) {
+            succ.preds.add( this );
+        }
+    }
+    /** Replace the terminator without changing the predecessors of its
+     * successors; the caller is responsible for keeping them consistent. */
+    void setTerminator( Instr terminator ) {
+        terminator.block = this;
+        this.terminator = terminator;
+    }
+    /** Remove the i'th predecessor along with the matching phi operands */
+    void removePredecessor( int i ) {
+        preds.remove( i );
+        for( Instr.Phi phi : phis ) {
+            phi.getOperands().remove( i );
+        }
+    }
+    /** @return all instructions of the block including its phis and
+     * terminator, in order */
+    public List<Instr> getAllInstructions() {
+        List<Instr> all = new ArrayList<Instr>( phis );
+        all.addAll( instrs );
+        if( terminator != null ) {
+            all.add( terminator );
+        }
+        return all;
+    }
+    @Override
+    public String toString() {
+        return "B" + number;
+    }
+}
@@ -0,0 +1,257 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import syms.Scope;
+import syms.SymEntry;
+
+/**
+ * class Function - the control flow graph of the intermediate
+ * representation of the main program or of a procedure.
+ */
+public class Function {
+    /** Name used for the procedure table ("<main>" for the main program) */
+    private String name;
+    /** Entry for the procedure, or null for the main program */
+    private SymEntry.ProcedureEntry proc;
+    /** Scope holding the local variables of the procedure */
+    private Scope locals;
+    /** Static level of the body of the procedure */
+    private int level;
+    /** Blocks of the function; the first is the entry block */
+    private List<Block> blocks;
+
+    public Function( String name, SymEntry.ProcedureEntry proc,
+            Scope locals ) {
+        this.name = name;
+        this.proc = proc;
+        this.locals = locals;
+        this.level = locals.getLevel();
+        this.blocks = new ArrayList<Block>();
+    }
+    public String getName() {
+        return name;
+    }
+    public SymEntry.ProcedureEntry getProc() {
+        return proc;
+    }
+    public Scope getLocals() {
+        return locals;
+    }
+    public int getLevel() {
+        return level;
+    }
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+    public Block getEntry() {
+        return blocks.get( 0 );
+    }
+    /** Create a new (empty) block in this function */
+    public Block newBlock() {
+        Block block = new Block( blocks.size() );
+        blocks.add( block );
+        return block;
+    }
+
+    /** @return the instructions that use value as an operand */
+    public List<Instr> users( Instr value ) {
+        List<Instr> users = new ArrayList<Instr>();
+        for( Block block : blocks ) {
+            for( Instr instr : block.getAllInstructions() ) {
+                if( instr.getOperands().contains( value ) ) {
+                    users.add( instr );
+                }
+            }
+        }
+        return users;
+    }
+    /** Replace all uses of value by replacement */
+    public void replaceAllUses( Instr value, Instr replacement ) {
+        for( Block block : blocks ) {
+            for( Instr instr : block.getAllInstructions() ) {
+                List<Instr> ops = instr.getOperands();
+                for( int i = 0; i < ops.size(); i++ ) {
+                    if( ops.get( i ) == value ) {
+                        ops.set( i, replacement );
+                    }
+                }
+            }
+        }
+    }
+    /** Replace all uses of each value in replacements by the value it
+     * maps to, in one pass over the function */
+    public void replaceAllUses( Map<Instr, Instr> replacements ) {
+        for( Block block : blocks ) {
+            for( Instr instr : block.getAllInstructions() ) {
+                replaceOperands( instr, replacements );
+            }
+        }
+    }
+    /** Replace each operand of instr that is in replacements */
+    public static void replaceOperands( Instr instr,
+            Map<Instr, Instr> replacements ) {
+        List<Instr> ops = instr.getOperands();
+        for( int i = 0; i < ops.size(); i++ ) {
+            Instr replacement = replacements.get( ops.get( i ) );
+            if( replacement != null ) {
+                ops.set( i, replacement );
+            }
+        }
+    }
+    /** @return the number of uses of each value in the function */
+    public Map<Instr, Integer> useCounts() {
+        Map<Instr, Integer> counts = new HashMap<Instr, Integer>();
+        for( Block block : blocks ) {
+            for( Instr instr : block.getAllInstructions() ) {
+                for( Instr op : instr.getOperands() ) {
+                    Integer count = counts.get( op );
+                    counts.put( op, count == null ? 1 : count + 1 );
+                }
+            }
+        }
+        return counts;
+    }
+
+    /** Split each edge from a block with more than one successor to a
+     * block with more than one predecessor by inserting an empty block.
+     * Afterwards the moves that implement the phis of a block can be
+     * placed at the end of its predecessors.
+     */
+    public void splitCriticalEdges() {
+        for( Block block : new ArrayList<Block>( blocks ) ) {
+            if( block.getPredecessors().size() <= 1 ) {
+                continue;
+            }
+            List<Block> preds = block.getPredecessors();
+            for( int i = 0; i < preds.size(); i++ ) {
+                Block pred = preds.get( i );
+                if( pred.getSuccessors().size() > 1 ) {
+                    Block split = newBlock();
+                    split.setTerminator( new Instr.Jump( block ) );
+                    split.getPredecessors().add( pred );
+                    pred.getTerminator().replaceSuccessor( block, split );
+                    preds.set( i, split );
+                }
+            }
+        }
+    }
+    /** Remove the blocks that cannot be reached from the entry block.
+     * @return true if any blocks were removed */
+    public boolean removeUnreachable() {
+        Set<Block> reachable = new HashSet<Block>( reversePostorder() );
+        if( reachable.size() == blocks.size() ) {
+            return false;
+        }
+        for( Block block : blocks ) {
+            if( !reachable.contains( block ) ) {
+                for( Block succ : block.getSuccessors() ) {
+                    int i;
+                    while( (i = succ.getPredecessors().indexOf( block )) >= 0 ) {
+                        succ.removePredecessor( i );
+                    }
+                }
+            }
+        }
+        blocks.retainAll( reachable );
+        renumber();
+        return true;
+    }
+    /** @return the reachable blocks in reverse postorder. The "true"
+     * successor of a branch is placed before its "false" successor so that
+     * a conditional branch usually falls through to its "true" successor.
+     */
+    public List<Block> reversePostorder() {
+        List<Block> postorder = new ArrayList<Block>();
+        depthFirst( getEntry(), new HashSet<Block>(), postorder );
+        List<Block> order = new ArrayList<Block>();
+        for( int i = postorder.size() - 1; i >= 0; i-- ) {
+            order.add( postorder.get( i ) );
+        }
+        return order;
+    }
+    /** The search is made from an explicit stack of the blocks being
+     * visited, each with its successors and the index of the next one
+     * to visit, as the operands of logical operators form chains of
+     * blocks too long to recurse over. */
+    private void depthFirst( Block entry, Set<Block> visited,
+            List<Block> postorder ) {
+        List<Block> path = new ArrayList<Block>();
+        List<List<Block>> succs = new ArrayList<List<Block>>();
+        List<Integer> next = new ArrayList<Integer>();
+        visited.add( entry );
+        path.add( entry );
+        succs.add( entry.getSuccessors() );
+        /* Visit the last successor first so the first is laid out next */
+        next.add( succs.get( 0 ).size() - 1 );
+        while( !path.isEmpty() ) {
+            int top = path.size() - 1;
+            int i = next.get( top );
+            while( i >= 0 && visited.contains( succs.get( top ).get( i ) ) ) {
+                i--;
+            }
+            if( i >= 0 ) {
+                next.set( top, i - 1 );
+                Block succ = succs.get( top ).get( i );
+                visited.add( succ );
+                path.add( succ );
+                succs.add( succ.getSuccessors() );
+                next.add( succs.get( top + 1 ).size() - 1 );
+            } else {
+                postorder.add( path.remove( top ) );
+                succs.remove( top );
+                next.remove( top );
+            }
+        }
+    }
+    /** Renumber the blocks in order */
+    public void renumber() {
+        for( int i = 0; i < blocks.size(); i++ ) {
+            blocks.get( i ).setNumber( i );
+        }
+    }
+
+    /** Names of values for printing: values are numbered in order */
+    public class Names {
+        private Map<Instr, String> names;
+
+        Names() {
+            names = new HashMap<Instr, String>();
+            for( Block block : blocks ) {
+                for( Instr instr : block.getAllInstructions() ) {
+                    if( instr.hasResult() ) {
+                        names.put( instr, "v" + names.size() );
+                    }
+                }
+            }
+        }
+        public String of( Instr value ) {
+            String name = names.get( value );
+            return name == null ? "?" : name;
+        }
+    }
+    @Override
+    public String toString() {
+        Names names = new Names();
+        String s = "function " + name + " (level " + level + ")\n";
+        for( Block block : blocks ) {
+            s += block + ":";
+            Set<Block> preds = new LinkedHashSet<Block>(
+                    block.getPredecessors() );
+            if( !preds.isEmpty() ) {
+                s += " preds " + preds;
+            }
+            s += "\n";
+            for( Instr instr : block.getAllInstructions() ) {
+                s += "    " + instr.toString( names ) + "\n";
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,448 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import syms.SymEntry;
+import tree.BinaryOperator;
+
+/**
+ * class Instr - an instruction of the intermediate representation.
+ * An instruction that has a result is also an SSA value: it is defined
+ * exactly once and its operands refer directly to the instructions
+ * that define them. Local variables of a procedure are not stored in
+ * memory; each assignment to one defines a new value, and a Phi at the
+ * start of a block merges the values that reach it from its predecessors.
+ * Accesses to non-local variables, and to local variables that nested
+ * procedures refer to, are explicit Load and Store instructions.
+ */
+public abstract class Instr {
+    /** Block containing the instruction */
+    protected Block block;
+    /** Values used by the instruction */
+    protected List<Instr> operands;
+    /** Variable this value was assigned to, if any (used to choose
+     * a frame slot for the value when it is lowered) */
+    protected SymEntry.VarEntry var;
+
+    protected Instr( Instr... operands ) {
+        this.operands = new ArrayList<Instr>( Arrays.asList( operands ) );
+        this.var = null;
+    }
+    public Block getBlock() {
+        return block;
+    }
+    public List<Instr> getOperands() {
+        return operands;
+    }
+    public Instr getOperand( int i ) {
+        return operands.get( i );
+    }
+    public void setOperand( int i, Instr value ) {
+        operands.set( i, value );
+    }
+    public SymEntry.VarEntry getVar() {
+        return var;
+    }
+    public void setVar( SymEntry.VarEntry var ) {
+        this.var = var;
+    }
+    /** @return true if the instruction defines a value */
+    public boolean hasResult() {
+        return true;
+    }
+    /** @return true if executing the instruction has an effect other than
+     * computing its result, i.e., it reads or writes memory or performs
+     * input/output */
+    public boolean hasSideEffects() {
+        return false;
+    }
+    /** @return true if executing the instruction may cause a runtime
+     * error */
+    public boolean mayFail() {
+        return false;
+    }
+    /** @return true if the instruction may be removed when its value
+     * is not used */
+    public boolean isRemovable() {
+        return hasResult() && !hasSideEffects() && !mayFail();
+    }
+    /** @return the blocks control may pass to after this instruction;
+     * only terminators have successors */
+    public List<Block> getSuccessors() {
+        return new ArrayList<Block>();
+    }
+    /** Replace the successor block old by replacement */
+    public void replaceSuccessor( Block old, Block replacement ) {
+    }
+    /** @return the name of the operation for printing */
+    public abstract String getName();
+
+    /** Print the instruction given the names of values */
+    public String toString( Function.Names names ) {
+        String s = "";
+        if( hasResult() ) {
+            s += names.of( this ) + " = ";
+        }
+        s += getName();
+        String sep = " ";
+        for( Instr op : operands ) {
+            s += sep + names.of( op );
+            sep = ", ";
+        }
+        return s;
+    }
+
+    /** Constant value */
+    public static class Const extends Instr {
+        private int value;
+
+        public Const( int value ) {
+            super();
+            this.value = value;
+        }
+        public int getValue() {
+            return value;
+        }
+        @Override
+        public String getName() {
+            return "const " + value;
+        }
+    }
+    /** Binary arithmetic or relational operation.
+     * GREATER_OP and GEQUALS_OP are represented by LESS_OP and
+     * LEQUALS_OP with their operands swapped. */
+    public static class Binary extends Instr {
+        private BinaryOperator op;
+
+        public Binary( BinaryOperator op, Instr left, Instr right ) {
+            super( left, right );
+            this.op = op;
+        }
+        public BinaryOperator getOp() {
+            return op;
+        }
+        public Instr getLeft() {
+            return operands.get( 0 );
+        }
+        public Instr getRight() {
+            return operands.get( 1 );
+        }
+        @Override
+        public boolean mayFail() {
+            return op == BinaryOperator.DIV_OP;
+        }
+        @Override
+        public String getName() {
+            return op.getName();
+        }
+    }
+    /** Arithmetic negation */
+    public static class Negate extends Instr {
+        public Negate( Instr subExp ) {
+            super( subExp );
+        }
+        @Override
+        public String getName() {
+            return "neg";
+        }
+    }
+    /** Check that a value is within the bounds of a subrange */
+    public static class Bound extends Instr {
+        private int lower, upper;
+
+        public Bound( Instr value, int lower, int upper ) {
+            super( value );
+            this.lower = lower;
+            this.upper = upper;
+        }
+        public int getLower() {
+            return lower;
+        }
+        public int getUpper() {
+            return upper;
+        }
+        @Override
+        public boolean mayFail() {
+            return true;
+        }
+        @Override
+        public String getName() {
+            return "bound [" + lower + ".." + upper + "]";
+        }
+    }
+    /** Read a value from the input */
+    public static class Read extends Instr {
+        public Read() {
+            super();
+        }
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+        @Override
+        public boolean mayFail() {
+            return true;
+        }
+        @Override
+        public String getName() {
+            return "read";
+        }
+    }
+    /** Write a value to the output */
+    public static class Write extends Instr {
+        public Write( Instr value ) {
+            super( value );
+        }
+        @Override
+        public boolean hasResult() {
+            return false;
+        }
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+        @Override
+        public String getName() {
+            return "write";
+        }
+    }
+    /** Address of a variable held in memory (relative to the frame
+     * pointer of the current procedure) */
+    public static class Address extends Instr {
+        private SymEntry.VarEntry target;
+        private int levelDiff;
+
+        public Address( SymEntry.VarEntry target, int levelDiff ) {
+            super();
+            this.target = target;
+            this.levelDiff = levelDiff;
+        }
+        /** @return the variable addressed */
+        public SymEntry.VarEntry getTarget() {
+            return target;
+        }
+        /** @return the number of static links followed to reach
+         * the frame holding the variable */
+        public int getLevelDiff() {
+            return levelDiff;
+        }
+        @Override
+        public String getName() {
+            return "address " + target.getIdent() + "@" + levelDiff;
+        }
+    }
+    /** Load the value held in memory at an address */
+    public static class Load extends Instr {
+        public Load( Instr address ) {
+            super( address );
+        }
+        public Instr getAddress() {
+            return operands.get( 0 );
+        }
+        /** A load only reads memory, so it may be removed if its
+         * value is not used */
+        @Override
+        public boolean isRemovable() {
+            return true;
+        }
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+        @Override
+        public String getName() {
+            return "load";
+        }
+    }
+    /** Store a value in memory at an address */
+    public static class Store extends Instr {
+        public Store( Instr value, Instr address ) {
+            super( value, address );
+        }
+        public Instr getValue() {
+            return operands.get( 0 );
+        }
+        public Instr getAddress() {
+            return operands.get( 1 );
+        }
+        @Override
+        public boolean hasResult() {
+            return false;
+        }
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+        @Override
+        public String getName() {
+            return "store";
+        }
+    }
+    /** Call a procedure; it may read and write any variable in memory */
+    public static class Call extends Instr {
+        private SymEntry.ProcedureEntry proc;
+        private int levelDiff;
+
+        public Call( SymEntry.ProcedureEntry proc, int levelDiff ) {
+            super();
+            this.proc = proc;
+            this.levelDiff = levelDiff;
+        }
+        public SymEntry.ProcedureEntry getProc() {
+            return proc;
+        }
+        public int getLevelDiff() {
+            return levelDiff;
+        }
+        @Override
+        public boolean hasResult() {
+            return false;
+        }
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+        @Override
+        public boolean mayFail() {
+            return true;
+        }
+        @Override
+        public String getName() {
+            return "call " + proc.getIdent();
+        }
+    }
+    /** The value of a local variable on entry to the procedure,
+     * i.e., the value of a variable used before it is assigned. */
+    public static class Entry extends Instr {
+        public Entry( SymEntry.VarEntry var ) {
+            super();
+            this.var = var;
+        }
+        @Override
+        public String getName() {
+            return "entry " + var.getIdent();
+        }
+    }
+    /** Merge of the values of a variable reaching the start of a block.
+     * The i'th operand is the value from the i'th predecessor. */
+    public static class Phi extends Instr {
+        public Phi( SymEntry.VarEntry var ) {
+            super();
+            this.var = var;
+        }
+        public void addOperand( Instr value ) {
+            operands.add( value );
+        }
+        @Override
+        public String getName() {
+            return "phi";
+        }
+        @Override
+        public String toString( Function.Names names ) {
+            String s = names.of( this ) + " = phi";
+            String sep = " ";
+            for( int i = 0; i < operands.size(); i++ ) {
+                s += sep + "[" + names.of( operands.get( i ) ) + ", " +
+                    block.getPredecessors().get( i ) + "]";
+                sep = ", ";
+            }
+            return s;
+        }
+    }
+    /** Unconditional branch: terminates a block */
+    public static class Jump extends Instr {
+        private Block target;
+
+        public Jump( Block target ) {
+            super();
+            this.target = target;
+        }
+        public Block getTarget() {
+            return target;
+        }
+        @Override
+        public boolean hasResult() {
+            return false;
+        }
+        @Override
+        public List<Block> getSuccessors() {
+            List<Block> succs = new ArrayList<Block>();
+            succs.add( target );
+            return succs;
+        }
+        @Override
+        public void replaceSuccessor( Block old, Block replacement ) {
+            if( target == old ) {
+                target = replacement;
+            }
+        }
+        @Override
+        public String getName() {
+            return "jump " + target;
+        }
+    }
+    /** Conditional branch: terminates a block */
+    public static class Branch extends Instr {
+        private Block ifTrue, ifFalse;
+
+        public Branch( Instr cond, Block ifTrue, Block ifFalse ) {
+            super( cond );
+            this.ifTrue = ifTrue;
+            this.ifFalse = ifFalse;
+        }
+        public Instr getCondition() {
+            return operands.get( 0 );
+        }
+        public Block getIfTrue() {
+            return ifTrue;
+        }
+        public Block getIfFalse() {
+            return ifFalse;
+        }
+        @Override
+        public boolean hasResult() {
+            return false;
+        }
+        @Override
+        public List<Block> getSuccessors() {
+            List<Block> succs = new ArrayList<Block>();
+            succs.add( ifTrue );
+            succs.add( ifFalse );
+            return succs;
+        }
+        @Override
+        public void replaceSuccessor( Block old, Block replacement ) {
+            if( ifTrue == old ) {
+                ifTrue = replacement;
+            }
+            if( ifFalse == old ) {
+                ifFalse = replacement;
+            }
+        }
+        @Override
+        public String getName() {
+            return "branch";
+        }
+        @Override
+        public String toString( Function.Names names ) {
+            return "branch " + names.of( getCondition() ) + ", " +
+                ifTrue + ", " + ifFalse;
+        }
+    }
+    /** Return from the procedure: terminates a block */
+    public static class Return extends Instr {
+        public Return() {
+            super();
+        }
+        @Override
+        public boolean hasResult() {
+            return false;
+        }
+        @Override
+        public String getName() {
+            return "return";
+        }
+    }
+}
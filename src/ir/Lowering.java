@@ -0,0 +1,663 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import machine.Instruction;
+import machine.Operation;
+import machine.StackMachine;
+import syms.SymEntry;
+import tree.BinaryOperator;
+import tree.Code;
+import tree.CodePass;
+import tree.CodePlusProcedures;
+import tree.Procedures;
+
+/**
+ * class Lowering - generates stack machine code from the intermediate
+ * representation.
+ * A value whose only use immediately follows the computation of its
+ * operands (as in an expression tree) is left on the stack for that use;
+ * constants are loaded where they are used. Every other value is stored
+ * in a frame slot. Slots are assigned so that values that are live at the
+ * same time never share a slot; a value assigned to a variable is given
+ * that variable's slot where possible, and otherwise a free slot or a new
+ * one added to the frame. Phis are implemented by moves at the end of
+ * each predecessor (after splitting critical edges); all the sources are
+ * loaded onto the stack before any phi slot is stored, so the moves
+ * behave as a parallel assignment.
+ * A variable's slot is therefore not kept up to date: its current value
+ * may be in another slot or on the stack, so the frame dump the machine
+ * prints after a runtime error may show older values of the variables.
+ */
+public class Lowering {
+    /** Start labels of procedures, resolved once the code is laid out */
+    private Map<SymEntry.ProcedureEntry, Instruction.Label> procLabels;
+    /** Table of procedure start and finish addresses */
+    private Procedures procStarts;
+
+    /* State for the function being lowered */
+    /** Number of uses of each value */
+    private Map<Instr, Integer> uses;
+    /** Values evaluated on the stack at their (only) use */
+    private Set<Instr> deferred;
+    /** Frame slot (offset) of each value held in the frame */
+    private Map<Instr, Integer> slots;
+    /** Labels at the start of each block */
+    private Map<Block, Instruction.Label> labels;
+    /** Blocks ending with a counted loop step, mapped to the block
+     * incrementing the control variable that FOR_STEP replaces */
+    private Map<Block, Block> steps;
+    /** Slots holding constant loop bounds, set on entry */
+    private Map<Integer, Integer> constSlots;
+    /** Optimisation applied to the code before layout, or null */
+    private CodePass codePass;
+
+    public Lowering() {
+        super();
+        codePass = null;
+    }
+
+    /** Specify an optimisation to apply to the code before it is laid
+     * out, or null for none. */
+    public void setCodePass( CodePass codePass ) {
+        this.codePass = codePass;
+    }
+
+    /** Generate the code for a program from its functions.
+     * @param functions main program first, and then the procedures in
+     * the order in which their code is to be laid out */
+    public CodePlusProcedures generateCode( List<Function> functions ) {
+        procLabels = new LinkedHashMap<SymEntry.ProcedureEntry,
+                Instruction.Label>();
+        procStarts = new Procedures();
+        Code code = new Code();
+        for( Function f : functions ) {
+            code.append( lower( f ) );
+        }
+        if( codePass != null ) {
+            codePass.run( code );
+        }
+        code.resolveBranches( StackMachine.CODE_START );
+        for( Map.Entry<SymEntry.ProcedureEntry, Instruction.Label> entry :
+                procLabels.entrySet() ) {
+            entry.getKey().setStart( entry.getValue().getAddress() );
+        }
+        return new CodePlusProcedures( code, procStarts );
+    }
+
+    /** Generate the code for a single function */
+    private Code lower( Function f ) {
+        f.removeUnreachable();
+        f.splitCriticalEdges();
+        List<Block> layout = f.reversePostorder();
+        uses = f.useCounts();
+        deferred = new HashSet<Instr>();
+        for( Block block : layout ) {
+            findDeferred( block );
+        }
+        assignSlots( f, layout );
+        steps = new HashMap<Block, Block>();
+        constSlots = new LinkedHashMap<Integer, Integer>();
+        for( Block block : layout ) {
+            findStep( f, block );
+        }
+        layout.removeAll( steps.values() );
+        labels = new HashMap<Block, Instruction.Label>();
+        for( Block block : layout ) {
+            labels.put( block, new Instruction.Label() );
+        }
+        Code code = new Code();
+        Instruction.Label start = new Instruction.Label();
+        if( f.getProc() == null ) {
+            procStarts.addProcedureStart( f.getName(), f.getLocals(), start );
+            code.genLabel( start );
+            /* Dummy static link, dynamic link and return address */
+            code.generateOp( Operation.ZERO );
+            code.generateOp( Operation.ZERO );
+            code.generateOp( Operation.ZERO );
+        } else {
+            procLabels.put( f.getProc(), start );
+            procStarts.addProcedureStart( f.getName(), f.getLocals(), start );
+            code.genLabel( start );
+        }
+        code.genAllocStack( f.getLocals().getVariableSpace() );
+        for( Map.Entry<Integer, Integer> bound : constSlots.entrySet() ) {
+            code.genLoadConstant( bound.getKey() );
+            storeSlot( code, bound.getValue() );
+        }
+        for( int i = 0; i < layout.size(); i++ ) {
+            Block next = i + 1 < layout.size() ? layout.get( i + 1 ) : null;
+            lowerBlock( code, layout.get( i ), next );
+        }
+        Instruction.Label finish = new Instruction.Label();
+        code.genLabel( finish );
+        procStarts.addProcedureFinish( finish );
+        return code;
+    }
+
+    /* -------------------- Stack allocation ---------------------------*/
+
+    /** Find the values in block that may be left on the stack for their
+     * use. A stack of candidate values is maintained: an instruction
+     * whose operands are the top values on the stack (in order) consumes
+     * them. Any other instruction is evaluated where it appears, and ends
+     * the expression tree being built, so the candidates then on the
+     * stack are stored in slots instead.
+     */
+    private void findDeferred( Block block ) {
+        List<Instr> stack = new ArrayList<Instr>();
+        /* The values on stack, and the first user of each value in the
+         * block, so that the cost is linear in the size of the block */
+        Set<Instr> onStack = new HashSet<Instr>();
+        Map<Instr, Instr> firstUsers = new HashMap<Instr, Instr>();
+        for( Instr user : block.getAllInstructions() ) {
+            for( Instr op : user.getOperands() ) {
+                if( !firstUsers.containsKey( op ) ) {
+                    firstUsers.put( op, user );
+                }
+            }
+        }
+        List<Instr> instrs = new ArrayList<Instr>( block.getInstructions() );
+        instrs.add( block.getTerminator() );
+        for( Instr instr : instrs ) {
+            if( instr instanceof Instr.Const ) {
+                continue;
+            }
+            List<Instr> consumed = new ArrayList<Instr>();
+            for( Instr op : instr.getOperands() ) {
+                if( onStack.contains( op ) ) {
+                    consumed.add( op );
+                }
+            }
+            int base = stack.size() - consumed.size();
+            if( base >= 0 && stack.subList( base, stack.size() )
+                    .equals( consumed ) ) {
+                deferred.addAll( consumed );
+                onStack.removeAll( consumed );
+                stack.subList( base, stack.size() ).clear();
+            } else {
+                stack.clear();
+                onStack.clear();
+            }
+            if( isCandidate( instr, firstUsers.get( instr ) ) ) {
+                stack.add( instr );
+                onStack.add( instr );
+            } else {
+                stack.clear();
+                onStack.clear();
+            }
+        }
+    }
+
+    /** @return true if instr has a single use later in the same block,
+     * where firstUser is its first user in the block */
+    private boolean isCandidate( Instr instr, Instr firstUser ) {
+        if( !instr.hasResult() || instr instanceof Instr.Entry ||
+                count( instr ) != 1 ) {
+            return false;
+        }
+        return firstUser != null && !(firstUser instanceof Instr.Phi);
+    }
+
+    private int count( Instr value ) {
+        Integer count = uses.get( value );
+        return count == null ? 0 : count;
+    }
+
+    /** @return true if the value is held in a frame slot */
+    private boolean needsSlot( Instr value ) {
+        return value.hasResult() && !(value instanceof Instr.Const) &&
+            !deferred.contains( value ) && count( value ) > 0;
+    }
+
+    /* -------------------- Frame slot allocation ---------------------*/
+
+    /** Assign a frame slot to each value that needs one. */
+    private void assignSlots( Function f, List<Block> layout ) {
+        Map<Instr, Set<Instr>> interferes = interference( layout );
+        /* Slots added to the frame for values; a variable's own slot
+         * only holds values of that variable, so that the variables
+         * displayed after a runtime error hold values they were given */
+        Set<Integer> pool = new LinkedHashSet<Integer>();
+        Map<Integer, List<Instr>> owners = new HashMap<Integer, List<Instr>>();
+        slots = new HashMap<Instr, Integer>();
+        for( Block block : layout ) {
+            for( Instr value : block.getAllInstructions() ) {
+                if( !needsSlot( value ) ) {
+                    continue;
+                }
+                Set<Instr> conflicts = conflicts( value, interferes );
+                Integer slot = null;
+                Integer preferred = localSlot( f, value.getVar() );
+                if( preferred != null && free( preferred, conflicts, owners ) ) {
+                    slot = preferred;
+                } else {
+                    for( Integer s : pool ) {
+                        if( free( s, conflicts, owners ) ) {
+                            slot = s;
+                            break;
+                        }
+                    }
+                }
+                if( slot == null ) {
+                    slot = f.getLocals().allocVariableSpace( 1 );
+                    pool.add( slot );
+                }
+                List<Instr> owner = owners.get( slot );
+                if( owner == null ) {
+                    owner = new ArrayList<Instr>();
+                    owners.put( slot, owner );
+                }
+                owner.add( value );
+                slots.put( value, slot );
+            }
+        }
+    }
+
+    /** @return the slot of var if it is a variable local to f, else null */
+    private Integer localSlot( Function f, SymEntry.VarEntry var ) {
+        if( var == null || var.getLevel() != f.getLevel() ) {
+            return null;
+        }
+        return var.getOffset();
+    }
+
+    private boolean free( Integer slot, Set<Instr> conflicts,
+            Map<Integer, List<Instr>> owners ) {
+        List<Instr> owner = owners.get( slot );
+        if( owner == null ) {
+            return true;
+        }
+        for( Instr value : owner ) {
+            if( conflicts.contains( value ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Compute the values held in slots that are live at the same time.
+     * Liveness is computed by iterating backwards over the blocks until
+     * no live-in set changes. The operands of a phi are live at the end
+     * of the corresponding predecessor; phis are defined at the start of
+     * their block.
+     * @return for each value held in a slot the set of values it
+     * interferes with */
+    private Map<Instr, Set<Instr>> interference( List<Block> layout ) {
+        Map<Block, Set<Instr>> liveIn = new HashMap<Block, Set<Instr>>();
+        for( Block block : layout ) {
+            liveIn.put( block, new HashSet<Instr>() );
+        }
+        Map<Instr, Set<Instr>> interferes = new HashMap<Instr, Set<Instr>>();
+        boolean changed;
+        do {
+            changed = false;
+            for( int i = layout.size() - 1; i >= 0; i-- ) {
+                Block block = layout.get( i );
+                Set<Instr> live = scanBlock( block, liveIn, null );
+                if( !live.equals( liveIn.get( block ) ) ) {
+                    liveIn.put( block, live );
+                    changed = true;
+                }
+            }
+        } while( changed );
+        for( Block block : layout ) {
+            scanBlock( block, liveIn, interferes );
+        }
+        return interferes;
+    }
+
+    /** Scan a block backwards from its live-out set.
+     * @param interferes if not null, record the interference of each value
+     * defined with the values live after its definition
+     * @return the set of values live at the start of the block, including
+     * the phis of the block that are live */
+    private Set<Instr> scanBlock( Block block, Map<Block, Set<Instr>> liveIn,
+            Map<Instr, Set<Instr>> interferes ) {
+        Set<Instr> live = new HashSet<Instr>();
+        for( Block succ : block.getSuccessors() ) {
+            int index = succ.getPredecessors().indexOf( block );
+            for( Instr value : liveIn.get( succ ) ) {
+                if( !succ.getPhis().contains( value ) ) {
+                    live.add( value );
+                }
+            }
+            for( Instr.Phi phi : succ.getPhis() ) {
+                Instr op = phi.getOperand( index );
+                if( needsSlot( phi ) && needsSlot( op ) ) {
+                    live.add( op );
+                }
+            }
+        }
+        List<Instr> instrs = new ArrayList<Instr>( block.getInstructions() );
+        instrs.add( block.getTerminator() );
+        for( int i = instrs.size() - 1; i >= 0; i-- ) {
+            Instr instr = instrs.get( i );
+            if( needsSlot( instr ) ) {
+                live.remove( instr );
+                if( interferes != null ) {
+                    interfere( instr, live, interferes );
+                }
+            }
+            for( Instr op : instr.getOperands() ) {
+                if( needsSlot( op ) ) {
+                    live.add( op );
+                }
+            }
+        }
+        /* The phis are defined together at the start of the block */
+        for( Instr.Phi phi : block.getPhis() ) {
+            if( needsSlot( phi ) ) {
+                if( interferes != null ) {
+                    Set<Instr> others = new HashSet<Instr>( live );
+                    others.remove( phi );
+                    interfere( phi, others, interferes );
+                }
+            }
+        }
+        return live;
+    }
+
+    private void interfere( Instr value, Set<Instr> live,
+            Map<Instr, Set<Instr>> interferes ) {
+        conflicts( value, interferes ).addAll( live );
+        for( Instr other : live ) {
+            conflicts( other, interferes ).add( value );
+        }
+    }
+
+    private Set<Instr> conflicts( Instr value,
+            Map<Instr, Set<Instr>> interferes ) {
+        Set<Instr> set = interferes.get( value );
+        if( set == null ) {
+            set = new HashSet<Instr>();
+            interferes.put( value, set );
+        }
+        return set;
+    }
+
+    /* -------------------- Counted loops -----------------------------*/
+
+    /** A block ending with a branch on v < bound, whose "true" successor
+     * only increments v and jumps back to a block in which the result
+     * and v share a slot, is the end of a counted loop. The comparison,
+     * increment and jump are replaced by a single FOR_STEP instruction,
+     * which requires the bound to be in a slot: a constant bound is
+     * stored in a slot of its own on entry to the function.
+     */
+    private void findStep( Function f, Block block ) {
+        if( !(block.getTerminator() instanceof Instr.Branch) ) {
+            return;
+        }
+        Instr.Branch branch = (Instr.Branch)block.getTerminator();
+        Block step = branch.getIfTrue();
+        if( !(branch.getCondition() instanceof Instr.Binary) ||
+                !deferred.contains( branch.getCondition() ) ||
+                step == branch.getIfFalse() ||
+                step.getPredecessors().size() != 1 ||
+                !step.getPhis().isEmpty() ||
+                !(step.getTerminator() instanceof Instr.Jump) ) {
+            return;
+        }
+        Instr.Binary cond = (Instr.Binary)branch.getCondition();
+        Instr control = cond.getLeft();
+        Instr bound = cond.getRight();
+        if( cond.getOp() != BinaryOperator.LESS_OP ||
+                !needsSlot( control ) ||
+                !(needsSlot( bound ) || bound instanceof Instr.Const) ) {
+            return;
+        }
+        Instr next = null;
+        for( Instr instr : step.getInstructions() ) {
+            if( instr instanceof Instr.Const ) {
+                continue;
+            }
+            if( next != null || !isIncrement( instr, control ) ) {
+                return;
+            }
+            next = instr;
+        }
+        if( next == null || !slots.get( next ).equals( slots.get( control ) ) ) {
+            return;
+        }
+        /* No other moves are needed on the edge back to the loop */
+        Block target = ((Instr.Jump)step.getTerminator()).getTarget();
+        int index = target.getPredecessors().indexOf( step );
+        for( Instr.Phi phi : target.getPhis() ) {
+            if( needsSlot( phi ) &&
+                    !slots.get( phi ).equals( slots.get( phi.getOperand( index ) ) ) ) {
+                return;
+            }
+        }
+        if( bound instanceof Instr.Const ) {
+            int value = ((Instr.Const)bound).getValue();
+            if( !constSlots.containsKey( value ) ) {
+                constSlots.put( value, f.getLocals().allocVariableSpace( 1 ) );
+            }
+        }
+        steps.put( block, step );
+    }
+
+    /** @return true if instr is control + 1 */
+    private boolean isIncrement( Instr instr, Instr control ) {
+        if( !(instr instanceof Instr.Binary) ) {
+            return false;
+        }
+        Instr.Binary add = (Instr.Binary)instr;
+        return add.getOp() == BinaryOperator.ADD_OP &&
+            add.getLeft() == control &&
+            add.getRight() instanceof Instr.Const &&
+            ((Instr.Const)add.getRight()).getValue() == 1;
+    }
+
+    /** @return the slot holding a loop bound */
+    private int boundSlot( Instr bound ) {
+        if( bound instanceof Instr.Const ) {
+            return constSlots.get( ((Instr.Const)bound).getValue() );
+        }
+        return slots.get( bound );
+    }
+
+    /* -------------------- Code generation ---------------------------*/
+
+    /** Generate the code for a block.
+     * @param next block laid out after this one, or null */
+    private void lowerBlock( Code code, Block block, Block next ) {
+        code.genLabel( labels.get( block ) );
+        for( Instr instr : block.getInstructions() ) {
+            if( instr instanceof Instr.Const || deferred.contains( instr ) ) {
+                continue;
+            }
+            if( instr instanceof Instr.Entry ) {
+                /* The value is in the variable's slot on entry */
+                Integer slot = slots.get( instr );
+                int offset = instr.getVar().getOffset();
+                if( slot != null && slot != offset ) {
+                    loadSlot( code, offset );
+                    storeSlot( code, slot );
+                }
+                continue;
+            }
+            if( instr.isRemovable() && count( instr ) == 0 ) {
+                continue;
+            }
+            genInstr( code, instr );
+            if( needsSlot( instr ) ) {
+                storeSlot( code, slots.get( instr ) );
+            } else if( instr.hasResult() ) {
+                code.generateOp( Operation.POP );
+            }
+        }
+        Instr term = block.getTerminator();
+        if( term instanceof Instr.Jump ) {
+            Block target = ((Instr.Jump)term).getTarget();
+            genMoves( code, block, target );
+            if( target != next ) {
+                code.genJumpAlways( labels.get( target ) );
+            }
+        } else if( steps.containsKey( block ) ) {
+            Instr.Branch branch = (Instr.Branch)term;
+            Instr.Binary cond = (Instr.Binary)branch.getCondition();
+            Block step = steps.get( block );
+            Block target = ((Instr.Jump)step.getTerminator()).getTarget();
+            code.genForStep( slots.get( cond.getLeft() ),
+                    boundSlot( cond.getRight() ), labels.get( target ) );
+            if( branch.getIfFalse() != next ) {
+                code.genJumpAlways( labels.get( branch.getIfFalse() ) );
+            }
+        } else if( term instanceof Instr.Branch ) {
+            Instr.Branch branch = (Instr.Branch)term;
+            genOperand( code, branch.getCondition() );
+            code.genJumpIfFalse( labels.get( branch.getIfFalse() ) );
+            if( branch.getIfTrue() != next ) {
+                code.genJumpAlways( labels.get( branch.getIfTrue() ) );
+            }
+        } else {
+            code.generateOp( Operation.RETURN );
+        }
+    }
+
+    /** Generate the moves implementing the phis of target on the edge
+     * from block. All sources are loaded before any phi is stored. */
+    private void genMoves( Code code, Block block, Block target ) {
+        int index = target.getPredecessors().indexOf( block );
+        List<Integer> stores = new ArrayList<Integer>();
+        for( Instr.Phi phi : target.getPhis() ) {
+            Instr source = phi.getOperand( index );
+            if( !needsSlot( phi ) ||
+                    slots.get( phi ).equals( slots.get( source ) ) ) {
+                continue;
+            }
+            genOperand( code, source );
+            stores.add( slots.get( phi ) );
+        }
+        for( int i = stores.size() - 1; i >= 0; i-- ) {
+            storeSlot( code, stores.get( i ) );
+        }
+    }
+
+    /** Generate the code to push the value of an operand */
+    private void genOperand( Code code, Instr value ) {
+        if( value instanceof Instr.Const ) {
+            code.genLoadConstant( ((Instr.Const)value).getValue() );
+        } else if( deferred.contains( value ) ) {
+            genInstr( code, value );
+        } else {
+            loadSlot( code, slots.get( value ) );
+        }
+    }
+
+    /** Generate the code for an instruction, leaving its value (if any)
+     * on the stack. The tree of deferred values it uses is walked from
+     * an explicit stack, as it may be nested too deeply to recurse over:
+     * an instruction is pushed below a null marker and its operands, and
+     * its operation is generated when the marker is popped. */
+    private void genInstr( Code code, Instr instr ) {
+        List<Instr> pending = new ArrayList<Instr>();
+        pushInstr( instr, pending );
+        while( !pending.isEmpty() ) {
+            Instr next = pending.remove( pending.size() - 1 );
+            if( next == null ) {
+                genOperation( code, pending.remove( pending.size() - 1 ) );
+            } else if( next instanceof Instr.Const ) {
+                code.genLoadConstant( ((Instr.Const)next).getValue() );
+            } else if( deferred.contains( next ) ) {
+                pushInstr( next, pending );
+            } else {
+                loadSlot( code, slots.get( next ) );
+            }
+        }
+    }
+    private static void pushInstr( Instr instr, List<Instr> pending ) {
+        pending.add( instr );
+        pending.add( null );
+        List<Instr> ops = instr.getOperands();
+        for( int i = ops.size() - 1; i >= 0; i-- ) {
+            pending.add( ops.get( i ) );
+        }
+    }
+
+    /** Generate the operation of an instruction; its operands are on
+     * the stack */
+    private void genOperation( Code code, Instr instr ) {
+        if( instr instanceof Instr.Binary ) {
+            genBinary( code, ((Instr.Binary)instr) );
+        } else if( instr instanceof Instr.Negate ) {
+            code.generateOp( Operation.NEGATE );
+        } else if( instr instanceof Instr.Bound ) {
+            Instr.Bound bound = (Instr.Bound)instr;
+            code.genBoundsCheck( bound.getLower(), bound.getUpper() );
+        } else if( instr instanceof Instr.Read ) {
+            code.generateOp( Operation.READ );
+        } else if( instr instanceof Instr.Write ) {
+            code.generateOp( Operation.WRITE );
+        } else if( instr instanceof Instr.Address ) {
+            Instr.Address address = (Instr.Address)instr;
+            code.genMemRef( address.getLevelDiff(),
+                    address.getTarget().getOffset() );
+        } else if( instr instanceof Instr.Load ) {
+            code.generateOp( Operation.LOAD_FRAME );
+        } else if( instr instanceof Instr.Store ) {
+            code.generateOp( Operation.STORE_FRAME );
+        } else if( instr instanceof Instr.Call ) {
+            Instr.Call call = (Instr.Call)instr;
+            code.genCall( call.getLevelDiff(), call.getProc() );
+        } else {
+            throw new IllegalStateException(
+                    "cannot generate code for " + instr.getName() );
+        }
+    }
+
+    /** Generate the operation of a binary operator; its operands are on
+     * the stack */
+    private void genBinary( Code code, Instr.Binary binary ) {
+        switch( binary.getOp() ) {
+        case ADD_OP:
+            code.generateOp( Operation.ADD );
+            break;
+        case SUB_OP:
+            code.generateOp( Operation.NEGATE );
+            code.generateOp( Operation.ADD );
+            break;
+        case MUL_OP:
+            code.generateOp( Operation.MPY );
+            break;
+        case DIV_OP:
+            code.generateOp( Operation.DIV );
+            break;
+        case EQUALS_OP:
+            code.generateOp( Operation.EQUAL );
+            break;
+        case NEQUALS_OP:
+            code.generateOp( Operation.EQUAL );
+            code.genBoolNot();
+            break;
+        case LESS_OP:
+            code.generateOp( Operation.LESS );
+            break;
+        case LEQUALS_OP:
+            code.generateOp( Operation.LESSEQ );
+            break;
+        default:
+            throw new IllegalStateException(
+                    "unexpected operator " + binary.getOp() );
+        }
+    }
+
+    private void loadSlot( Code code, int slot ) {
+        code.genMemRef( 0, slot );
+        code.generateOp( Operation.LOAD_FRAME );
+    }
+
+    private void storeSlot( Code code, int slot ) {
+        code.genMemRef( 0, slot );
+        code.generateOp( Operation.STORE_FRAME );
+    }
+}
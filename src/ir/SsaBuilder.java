@@ -0,0 +1,681 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import source.Errors;
+import source.Position;
+import source.Severity;
+import syms.SymEntry;
+import tree.BinaryOperator;
+import tree.DeclNode;
+import tree.ExpNode;
+import tree.ExpVisitor;
+import tree.Expressions;
+import tree.StatementNode;
+import tree.StatementVisitor;
+import tree.Tree;
+import tree.TreeVisitor;
+
+/**
+ * class SsaBuilder - builds the intermediate representation of a
+ * statically checked program, one Function per procedure.
+ * SSA form is constructed directly during the traversal of the tree
+ * using the algorithm of Braun et al., "Simple and Efficient Construction
+ * of Static Single Assignment Form" (CC 2013): the current value of each
+ * local variable is recorded per block, and a read of a variable in a
+ * block without a definition looks it up in the predecessors, creating
+ * a phi where control flow merges. A block is "sealed" once all its
+ * predecessors are known; until then reads create incomplete phis.
+ * Local variables that are referred to from nested procedures are kept
+ * in memory, as are all non-local variables.
+ */
+public class SsaBuilder implements TreeVisitor, StatementVisitor,
+        ExpVisitor {
+    /** Functions built, in the order the procedures' code is laid out */
+    private List<Function> functions;
+    /** Variables that are accessed from nested procedures */
+    private Set<SymEntry.VarEntry> memoryVars;
+    /** Function being built */
+    private Function function;
+    /** Block instructions are being added to */
+    private Block current;
+    /** Current value of each local variable at the end of each block */
+    private Map<Block, Map<SymEntry.VarEntry, Instr>> currentDef;
+    /** Blocks all of whose predecessors are known */
+    private Set<Block> sealed;
+    /** Phis added to blocks before they were sealed */
+    private Map<Block, List<Instr.Phi>> incompletePhis;
+    /** Phis that have been removed, mapped to the values replacing them */
+    private Map<Instr, Instr> replaced;
+    /** Values of local variables on entry to the function */
+    private Map<SymEntry.VarEntry, Instr> entryValues;
+    /** Steps still to be taken in evaluating an expression, the next
+     * last */
+    private List<Step> steps;
+    /** Values of the operands evaluated so far, the last on top */
+    private List<Instr> values;
+    /** Error message handler */
+    private Errors errors;
+
+    public SsaBuilder( Errors errors ) {
+        super();
+        this.errors = errors;
+    }
+
+    /** Build the intermediate representation of a program.
+     * @return the functions, the main program first, and then the
+     * procedures in the order their declarations are nested. */
+    public List<Function> build( Tree.ProgramNode node ) {
+        functions = new ArrayList<Function>();
+        memoryVars = new HashSet<SymEntry.VarEntry>();
+        steps = new ArrayList<Step>();
+        values = new ArrayList<Instr>();
+        visitProgramNode( node );
+        return functions;
+    }
+
+    /* -------------------- Visitor methods ----------------------------*/
+
+    public void visitProgramNode( Tree.ProgramNode node ) {
+        buildFunction( new Function( "<main>", null,
+                node.getBlock().getBlockLocals() ), node.getBlock() );
+    }
+
+    /** The procedures of a block are built as part of buildFunction */
+    public void visitBlockNode( Tree.BlockNode node ) {
+        node.getProcedures().accept( this );
+    }
+
+    public void visitDeclListNode( DeclNode.DeclListNode node ) {
+        for( DeclNode decl : node.getDeclarations() ) {
+            decl.accept( this );
+        }
+    }
+
+    public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+        SymEntry.ProcedureEntry proc = node.getProcEntry();
+        buildFunction( new Function( proc.getIdent(), proc,
+                proc.getLocalScope() ), node.getBlock() );
+    }
+
+    /** Build a function for the body of a block. The nested procedures
+     * are built first so that the variables they access non-locally are
+     * known before the body is built.
+     */
+    private void buildFunction( Function f, Tree.BlockNode block ) {
+        functions.add( f );
+        block.accept( this );
+        function = f;
+        currentDef = new HashMap<Block, Map<SymEntry.VarEntry, Instr>>();
+        sealed = new HashSet<Block>();
+        incompletePhis = new HashMap<Block, List<Instr.Phi>>();
+        entryValues = new HashMap<SymEntry.VarEntry, Instr>();
+        replaced = new HashMap<Instr, Instr>();
+        current = newSealedBlock();
+        block.getBody().accept( this );
+        current.terminate( new Instr.Return() );
+        function = null;
+    }
+
+    /* -------------------- Statements --------------------------------*/
+
+    public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+        fatal( "PL0 Internal error: SSA build for Statement Error Node",
+                node.getPosition() );
+    }
+
+    /** All expressions are evaluated (in order) before any variable is
+     * assigned; the variables are assigned in reverse order, as in the
+     * code generated from the tree. */
+    public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+        List<Instr> values = new ArrayList<Instr>();
+        for( ExpNode exp : node.getExp() ) {
+            values.add( evaluate( exp ) );
+        }
+        for( int i = values.size() - 1; i >= 0; i-- ) {
+            ExpNode lval = node.getVariable().get( i );
+            if( lval instanceof ExpNode.VariableNode ) {
+                assign( ((ExpNode.VariableNode)lval).getVariable(),
+                        values.get( i ) );
+            } else {
+                /* Assignment via an address held in a temporary */
+                Instr address = evaluate( lval );
+                current.add( new Instr.Store( values.get( i ), address ) );
+            }
+        }
+    }
+
+    public void visitWriteNode( StatementNode.WriteNode node ) {
+        current.add( new Instr.Write( evaluate( node.getExp() ) ) );
+    }
+
+    public void visitCallNode( StatementNode.CallNode node ) {
+        SymEntry.ProcedureEntry proc = node.getEntry();
+        current.add( new Instr.Call( proc,
+                function.getLevel() - proc.getLevel() ) );
+    }
+
+    public void visitStatementListNode( StatementNode.ListNode node ) {
+        for( StatementNode s : node.getStatements() ) {
+            s.accept( this );
+        }
+    }
+
+    public void visitIfNode( StatementNode.IfNode node ) {
+        Block thenBlock = function.newBlock();
+        Block elseBlock = function.newBlock();
+        branch( node.getCondition(), thenBlock, elseBlock );
+        seal( thenBlock );
+        seal( elseBlock );
+        Block join = function.newBlock();
+        current = thenBlock;
+        node.getThenStmt().accept( this );
+        current.terminate( new Instr.Jump( join ) );
+        current = elseBlock;
+        node.getElseStmt().accept( this );
+        current.terminate( new Instr.Jump( join ) );
+        seal( join );
+        current = join;
+    }
+
+    public void visitWhileNode( StatementNode.WhileNode node ) {
+        Block header = function.newBlock();
+        current.terminate( new Instr.Jump( header ) );
+        current = header;
+        Block body = function.newBlock();
+        Block exit = function.newBlock();
+        branch( node.getCondition(), body, exit );
+        seal( body );
+        current = body;
+        node.getLoopStmt().accept( this );
+        current.terminate( new Instr.Jump( header ) );
+        seal( header );
+        seal( exit );
+        current = exit;
+    }
+
+    public void visitSkipNode( StatementNode.SkipNode node ) {
+    }
+
+    /** The bounds are evaluated once. The body is entered if the lower
+     * bound is at most the upper bound; after each iteration the control
+     * variable is incremented while it is less than the upper bound, so
+     * it never overflows. */
+    public void visitForNode( StatementNode.ForNode node ) {
+        SymEntry.VarEntry control = node.getEntry();
+        Instr lower = evaluate( node.getLowerBound() );
+        Instr upper = evaluate( node.getUpperBound() );
+        if( upper.getVar() == null ) {
+            upper.setVar( node.getBoundEntry() );
+        }
+        assign( control, lower );
+        Block body = function.newBlock();
+        Block exit = function.newBlock();
+        current.terminate( new Instr.Branch( current.add( new Instr.Binary(
+                BinaryOperator.LEQUALS_OP, lower, upper ) ), body, exit ) );
+        current = body;
+        node.getdoStmt().accept( this );
+        Instr value = read( control, current );
+        Block step = function.newBlock();
+        current.terminate( new Instr.Branch( current.add( new Instr.Binary(
+                BinaryOperator.LESS_OP, value, upper ) ), step, exit ) );
+        seal( step );
+        current = step;
+        assign( control, current.add( new Instr.Binary(
+                BinaryOperator.ADD_OP, value, current.add(
+                        new Instr.Const( 1 ) ) ) ) );
+        current.terminate( new Instr.Jump( body ) );
+        seal( body );
+        seal( exit );
+        current = exit;
+    }
+
+    /* -------------------- Conditions --------------------------------*/
+
+    /** Terminate the current block with branches to ifTrue if cond holds
+     * and to ifFalse otherwise. The operands of logical operators are
+     * each evaluated in a block of their own, so evaluation stops as
+     * soon as the result is known. The caller seals ifTrue and ifFalse.
+     */
+    private void branch( ExpNode cond, Block ifTrue, Block ifFalse ) {
+        branchLater( cond, ifTrue, ifFalse );
+        run();
+    }
+
+    /** Add the steps that branch on cond, as in branch */
+    private void branchLater( ExpNode cond, Block whenTrue,
+            Block whenFalse ) {
+        while( cond instanceof ExpNode.UnaryOpNode &&
+                Expressions.isLogical( cond ) ) {
+            cond = ((ExpNode.UnaryOpNode)cond).getSubExp();
+            Block swap = whenTrue;
+            whenTrue = whenFalse;
+            whenFalse = swap;
+        }
+        final Block ifTrue = whenTrue;
+        final Block ifFalse = whenFalse;
+        if( cond instanceof ExpNode.BinaryOpNode &&
+                Expressions.isLogical( cond ) ) {
+            final ExpNode.BinaryOpNode op = (ExpNode.BinaryOpNode)cond;
+            final Block right = function.newBlock();
+            later( new Step() {
+                void take() {
+                    seal( right );
+                    current = right;
+                    branchLater( op.getRight(), ifTrue, ifFalse );
+                }
+            } );
+            if( op.getOp() == BinaryOperator.AND_OP ) {
+                later( new Step() {
+                    void take() {
+                        branchLater( op.getLeft(), right, ifFalse );
+                    }
+                } );
+            } else {
+                later( new Step() {
+                    void take() {
+                        branchLater( op.getLeft(), ifTrue, right );
+                    }
+                } );
+            }
+        } else {
+            /* Evaluating the condition may change the current block */
+            later( new Step() {
+                void take() {
+                    current.terminate( new Instr.Branch( pop(),
+                            ifTrue, ifFalse ) );
+                }
+            } );
+            evaluateLater( cond );
+        }
+    }
+
+    /** Add the steps that compute the value of a logical operation: a
+     * phi of the constants 1 and 0 assigned in the blocks reached when it
+     * holds or not */
+    private void logicalValue( ExpNode cond ) {
+        final Block ifTrue = function.newBlock();
+        final Block ifFalse = function.newBlock();
+        final Block join = function.newBlock();
+        later( new Step() {
+            void take() {
+                seal( ifTrue );
+                seal( ifFalse );
+                Instr one = ifTrue.add( new Instr.Const( 1 ) );
+                ifTrue.terminate( new Instr.Jump( join ) );
+                Instr zero = ifFalse.add( new Instr.Const( 0 ) );
+                ifFalse.terminate( new Instr.Jump( join ) );
+                seal( join );
+                current = join;
+                Instr.Phi phi = join.addPhi( new Instr.Phi( null ) );
+                for( Block pred : join.getPredecessors() ) {
+                    phi.addOperand( pred == ifTrue ? one : zero );
+                }
+                values.add( phi );
+            }
+        } );
+        branchLater( cond, ifTrue, ifFalse );
+    }
+
+    /* -------------------- Expressions -------------------------------*/
+
+    /** A step in evaluating an expression or branching on a condition.
+     * The steps are taken from an explicit stack rather than by recursion,
+     * so that deeply nested expressions cannot overflow the Java stack.
+     */
+    private abstract class Step {
+        abstract void take();
+    }
+
+    /** @return the value of exp, adding the instructions that compute
+     * it to the current block */
+    private Instr evaluate( ExpNode exp ) {
+        evaluateLater( exp );
+        run();
+        return pop();
+    }
+
+    /** Add the step that evaluates exp, leaving its value on values */
+    private void evaluateLater( final ExpNode exp ) {
+        later( new Step() {
+            void take() {
+                exp.accept( SsaBuilder.this );
+            }
+        } );
+    }
+
+    /** Add a step to be taken before those already added */
+    private void later( Step step ) {
+        steps.add( step );
+    }
+
+    /** Take the steps added, the last added first, until none are left */
+    private void run() {
+        while( !steps.isEmpty() ) {
+            steps.remove( steps.size() - 1 ).take();
+        }
+    }
+
+    /** @return the value of the operand evaluated last */
+    private Instr pop() {
+        return values.remove( values.size() - 1 );
+    }
+
+    public void visitErrorExpNode( ExpNode.ErrorNode node ) {
+        fatal( "PL0 Internal error: SSA build for ErrorExpNode",
+                node.getPosition() );
+    }
+
+    public void visitConstNode( ExpNode.ConstNode node ) {
+        values.add( current.add( new Instr.Const( node.getValue() ) ) );
+    }
+
+    public void visitIdentifierNode( ExpNode.IdentifierNode node ) {
+        fatal( "Internal error: SSA build called on IdentifierNode",
+                node.getPosition() );
+    }
+
+    /** The address of a variable is only taken for variables in memory */
+    public void visitVariableNode( ExpNode.VariableNode node ) {
+        SymEntry.VarEntry var = node.getVariable();
+        if( !inMemory( var ) ) {
+            fatal( "Internal error: SSA build of address of local variable",
+                    node.getPosition() );
+        }
+        values.add( current.add( new Instr.Address( var,
+                function.getLevel() - var.getLevel() ) ) );
+    }
+
+    public void visitReadNode( ExpNode.ReadNode node ) {
+        values.add( current.add( new Instr.Read() ) );
+    }
+
+    /** Greater-than comparisons are converted to less-than comparisons
+     * with the operands swapped; as in the code generated from the tree,
+     * their right operand is evaluated first. */
+    public void visitBinaryOpNode( final ExpNode.BinaryOpNode node ) {
+        if( Expressions.isLogical( node ) ) {
+            logicalValue( node );
+            return;
+        }
+        switch( node.getOp() ) {
+        case GREATER_OP:
+        case GEQUALS_OP:
+            later( new Step() {
+                void take() {
+                    Instr left = pop();
+                    Instr right = pop();
+                    values.add( current.add( new Instr.Binary(
+                            node.getOp() == BinaryOperator.GREATER_OP ?
+                                    BinaryOperator.LESS_OP :
+                                    BinaryOperator.LEQUALS_OP,
+                            right, left ) ) );
+                }
+            } );
+            evaluateLater( node.getLeft() );
+            evaluateLater( node.getRight() );
+            break;
+        default:
+            later( new Step() {
+                void take() {
+                    Instr right = pop();
+                    Instr left = pop();
+                    values.add( current.add( new Instr.Binary(
+                            node.getOp(), left, right ) ) );
+                }
+            } );
+            evaluateLater( node.getRight() );
+            evaluateLater( node.getLeft() );
+        }
+    }
+
+    public void visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+        if( Expressions.isLogical( node ) ) {
+            logicalValue( node );
+            return;
+        }
+        later( new Step() {
+            void take() {
+                values.add( current.add( new Instr.Negate( pop() ) ) );
+            }
+        } );
+        evaluateLater( node.getSubExp() );
+    }
+
+    public void visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+        fatal( "Internal error: SSA build of arguments",
+                node.getPosition() );
+    }
+
+    public void visitDereferenceNode( ExpNode.DereferenceNode node ) {
+        ExpNode lval = node.getLeftValue();
+        if( lval instanceof ExpNode.VariableNode &&
+                !inMemory( ((ExpNode.VariableNode)lval).getVariable() ) ) {
+            values.add( read( ((ExpNode.VariableNode)lval).getVariable(),
+                    current ) );
+        } else {
+            later( new Step() {
+                void take() {
+                    values.add( current.add( new Instr.Load( pop() ) ) );
+                }
+            } );
+            evaluateLater( lval );
+        }
+    }
+
+    public void visitNarrowSubrangeNode(
+            final ExpNode.NarrowSubrangeNode node ) {
+        later( new Step() {
+            void take() {
+                values.add( current.add( new Instr.Bound( pop(),
+                        node.getSubrangeType().getLower(),
+                        node.getSubrangeType().getUpper() ) ) );
+            }
+        } );
+        evaluateLater( node.getExp() );
+    }
+
+    public void visitWidenSubrangeNode( ExpNode.WidenSubrangeNode node ) {
+        evaluateLater( node.getExp() );
+    }
+
+    /* -------------------- SSA construction --------------------------*/
+
+    /** @return true if var is not local to the function being built or is
+     * accessed from a nested procedure, and hence is held in memory.
+     * Non-local accesses are recorded as they are found; nested
+     * procedures are built before the body of the enclosing block. */
+    private boolean inMemory( SymEntry.VarEntry var ) {
+        if( var.getLevel() != function.getLevel() ) {
+            memoryVars.add( var );
+            return true;
+        }
+        return memoryVars.contains( var );
+    }
+
+    /** Assign value to the variable var in the current block */
+    private void assign( SymEntry.VarEntry var, Instr value ) {
+        if( inMemory( var ) ) {
+            current.add( new Instr.Store( value, current.add(
+                    new Instr.Address( var,
+                            function.getLevel() - var.getLevel() ) ) ) );
+        } else {
+            if( value.getVar() == null ) {
+                value.setVar( var );
+            }
+            write( var, current, value );
+        }
+    }
+
+    private void write( SymEntry.VarEntry var, Block block, Instr value ) {
+        Map<SymEntry.VarEntry, Instr> defs = currentDef.get( block );
+        if( defs == null ) {
+            defs = new HashMap<SymEntry.VarEntry, Instr>();
+            currentDef.put( block, defs );
+        }
+        defs.put( var, value );
+    }
+
+    /** @return the value of the local variable var at the end of block.
+     * Looking up the value in the predecessors of a block may follow a
+     * long chain of blocks (as for the operands of a logical operator),
+     * so the blocks waiting for a value are held in an explicit stack,
+     * with the phi (if any) whose operands are being found. */
+    private Instr read( SymEntry.VarEntry var, Block block ) {
+        List<Block> waiting = new ArrayList<Block>();
+        List<Instr.Phi> phis = new ArrayList<Instr.Phi>();
+        Instr value;
+        while( true ) {
+            /* Find the value in block, or wait for that of a predecessor */
+            Map<SymEntry.VarEntry, Instr> defs = currentDef.get( block );
+            List<Block> preds = block.getPredecessors();
+            if( defs != null && defs.containsKey( var ) ) {
+                value = defs.get( var );
+            } else if( !sealed.contains( block ) ) {
+                Instr.Phi phi = block.addPhi( new Instr.Phi( var ) );
+                List<Instr.Phi> incomplete = incompletePhis.get( block );
+                if( incomplete == null ) {
+                    incomplete = new ArrayList<Instr.Phi>();
+                    incompletePhis.put( block, incomplete );
+                }
+                incomplete.add( phi );
+                value = define( var, block, phi );
+            } else if( preds.isEmpty() ) {
+                /* Used before being assigned */
+                value = define( var, block, entryValue( var ) );
+            } else if( preds.size() == 1 ) {
+                waiting.add( block );
+                phis.add( null );
+                block = preds.get( 0 );
+                continue;
+            } else {
+                /* Break cycles by defining the variable as the phi first */
+                Instr.Phi phi = block.addPhi( new Instr.Phi( var ) );
+                write( var, block, phi );
+                waiting.add( block );
+                phis.add( phi );
+                block = preds.get( 0 );
+                continue;
+            }
+            /* Pass the value found back to the blocks waiting for it */
+            while( !waiting.isEmpty() ) {
+                int top = waiting.size() - 1;
+                Instr.Phi phi = phis.get( top );
+                if( phi != null ) {
+                    phi.addOperand( value );
+                    List<Block> from = waiting.get( top ).getPredecessors();
+                    if( phi.getOperands().size() < from.size() ) {
+                        block = from.get( phi.getOperands().size() );
+                        break;
+                    }
+                    value = resolve( removeTrivialPhi( phi ) );
+                }
+                value = define( var, waiting.remove( top ), value );
+                phis.remove( top );
+            }
+            if( waiting.isEmpty() ) {
+                return value;
+            }
+        }
+    }
+
+    /** Record value as that of var at the end of block
+     * @return the value, or the value that replaces it if it is a phi
+     * that has been removed */
+    private Instr define( SymEntry.VarEntry var, Block block, Instr value ) {
+        /* Removing a trivial phi may in turn remove the value found */
+        value = resolve( value );
+        write( var, block, value );
+        return value;
+    }
+
+    /** @return the value that replaces value if it is a removed phi */
+    private Instr resolve( Instr value ) {
+        while( replaced.containsKey( value ) ) {
+            value = replaced.get( value );
+        }
+        return value;
+    }
+
+    private void addPhiOperands( Instr.Phi phi ) {
+        for( Block pred : phi.getBlock().getPredecessors() ) {
+            phi.addOperand( read( phi.getVar(), pred ) );
+        }
+        removeTrivialPhi( phi );
+    }
+
+    /** A phi whose operands are all the same value (or the phi itself)
+     * is replaced by that value.
+     * @return the value that replaces the phi, or the phi itself */
+    private Instr removeTrivialPhi( Instr.Phi phi ) {
+        Instr same = null;
+        for( Instr op : phi.getOperands() ) {
+            if( op == same || op == phi ) {
+                continue;
+            }
+            if( same != null ) {
+                return phi;
+            }
+            same = op;
+        }
+        if( same == null ) {
+            /* Unreachable, or only reachable from itself */
+            same = entryValue( phi.getVar() );
+        }
+        List<Instr> users = function.users( phi );
+        users.remove( phi );
+        phi.getBlock().getPhis().remove( phi );
+        replaced.put( phi, same );
+        function.replaceAllUses( phi, same );
+        for( Map<SymEntry.VarEntry, Instr> defs : currentDef.values() ) {
+            for( Map.Entry<SymEntry.VarEntry, Instr> def : defs.entrySet() ) {
+                if( def.getValue() == phi ) {
+                    def.setValue( same );
+                }
+            }
+        }
+        for( Instr user : users ) {
+            if( user instanceof Instr.Phi &&
+                    user.getBlock().getPhis().contains( user ) ) {
+                removeTrivialPhi( (Instr.Phi)user );
+            }
+        }
+        return same;
+    }
+
+    /** @return the value of var on entry to the function */
+    private Instr entryValue( SymEntry.VarEntry var ) {
+        Instr value = entryValues.get( var );
+        if( value == null ) {
+            value = function.getEntry().addFirst( new Instr.Entry( var ) );
+            entryValues.put( var, value );
+        }
+        return value;
+    }
+
+    /** All predecessors of block are known: complete its phis */
+    private void seal( Block block ) {
+        List<Instr.Phi> incomplete = incompletePhis.remove( block );
+        sealed.add( block );
+        if( incomplete != null ) {
+            for( Instr.Phi phi : incomplete ) {
+                addPhiOperands( phi );
+            }
+        }
+    }
+
+    private Block newSealedBlock() {
+        Block block = function.newBlock();
+        sealed.add( block );
+        return block;
+    }
+
+    private void fatal( String message, Position pos ) {
+        errors.errorMessage( message, Severity.FATAL, pos );
+    }
+}
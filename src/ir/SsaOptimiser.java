@@ -0,0 +1,240 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import tree.BinaryOperator;
+
+/**
+ * class SsaOptimiser - simple optimisations on the SSA form:
+ * constant folding, folding of branches on constant conditions with
+ * removal of the blocks that become unreachable, removal of phis whose
+ * operands are all the same value, and dead code elimination.
+ * Operations that may fail at runtime (division by zero, bounds checks)
+ * are only folded if they cannot fail.
+ */
+public class SsaOptimiser {
+    /** Number of instructions folded to constants */
+    private int folded;
+    /** Number of branches on constant conditions removed */
+    private int branches;
+    /** Number of unused instructions removed */
+    private int removed;
+
+    public SsaOptimiser() {
+        super();
+    }
+    public int getFolded() {
+        return folded;
+    }
+    public int getBranchesFolded() {
+        return branches;
+    }
+    public int getRemoved() {
+        return removed;
+    }
+
+    /** Optimise each function until no further changes are made */
+    public void optimise( List<Function> functions ) {
+        for( Function f : functions ) {
+            boolean changed;
+            do {
+                changed = foldConstants( f );
+                if( foldBranches( f ) ) {
+                    f.removeUnreachable();
+                    changed = true;
+                }
+                changed |= removeTrivialPhis( f );
+                changed |= removeDeadCode( f );
+            } while( changed );
+        }
+    }
+
+    /** Replace operations on constants by their result. The operands of
+     * each instruction are replaced by the constants already folded before
+     * it is evaluated, and the other uses all at once at the end, so the
+     * cost is linear in the size of the function.
+     * @return true if anything changed */
+    private boolean foldConstants( Function f ) {
+        Map<Instr, Instr> results = new HashMap<Instr, Instr>();
+        for( Block block : f.getBlocks() ) {
+            List<Instr> instrs = block.getInstructions();
+            for( int i = 0; i < instrs.size(); i++ ) {
+                Instr instr = instrs.get( i );
+                Function.replaceOperands( instr, results );
+                Integer value = evaluate( instr );
+                if( value != null ) {
+                    Instr.Const result = new Instr.Const( value );
+                    result.block = block;
+                    result.setVar( instr.getVar() );
+                    instrs.set( i, result );
+                    results.put( instr, result );
+                    folded++;
+                }
+            }
+        }
+        if( results.isEmpty() ) {
+            return false;
+        }
+        f.replaceAllUses( results );
+        return true;
+    }
+
+    /** @return the constant value of instr, or null if it is not constant
+     * or evaluating it may fail */
+    private Integer evaluate( Instr instr ) {
+        if( instr instanceof Instr.Binary ) {
+            Instr.Binary binary = (Instr.Binary)instr;
+            if( !(binary.getLeft() instanceof Instr.Const &&
+                    binary.getRight() instanceof Instr.Const) ) {
+                return null;
+            }
+            int left = ((Instr.Const)binary.getLeft()).getValue();
+            int right = ((Instr.Const)binary.getRight()).getValue();
+            return evaluate( binary.getOp(), left, right );
+        } else if( instr instanceof Instr.Negate ) {
+            Instr sub = instr.getOperand( 0 );
+            return sub instanceof Instr.Const ?
+                    -((Instr.Const)sub).getValue() : null;
+        } else if( instr instanceof Instr.Bound ) {
+            Instr.Bound bound = (Instr.Bound)instr;
+            Instr sub = bound.getOperand( 0 );
+            if( sub instanceof Instr.Const ) {
+                int value = ((Instr.Const)sub).getValue();
+                if( bound.getLower() <= value && value <= bound.getUpper() ) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Evaluate a binary operator as the stack machine does */
+    private Integer evaluate( BinaryOperator op, int left, int right ) {
+        switch( op ) {
+        case ADD_OP:
+            return left + right;
+        case SUB_OP:
+            return left + -right;
+        case MUL_OP:
+            return left * right;
+        case DIV_OP:
+            return right == 0 ? null : Integer.valueOf( left / right );
+        case EQUALS_OP:
+            return left == right ? 1 : 0;
+        case NEQUALS_OP:
+            return left != right ? 1 : 0;
+        case LESS_OP:
+            return left < right ? 1 : 0;
+        case LEQUALS_OP:
+            return left <= right ? 1 : 0;
+        default:
+            return null;
+        }
+    }
+
+    /** Replace branches on constant conditions by jumps.
+     * @return true if any branch was replaced */
+    private boolean foldBranches( Function f ) {
+        boolean changed = false;
+        for( Block block : f.getBlocks() ) {
+            if( !(block.getTerminator() instanceof Instr.Branch) ) {
+                continue;
+            }
+            Instr.Branch branch = (Instr.Branch)block.getTerminator();
+            if( !(branch.getCondition() instanceof Instr.Const) ||
+                    branch.getIfTrue() == branch.getIfFalse() ) {
+                continue;
+            }
+            boolean cond = ((Instr.Const)branch.getCondition()).getValue() != 0;
+            Block taken = cond ? branch.getIfTrue() : branch.getIfFalse();
+            Block notTaken = cond ? branch.getIfFalse() : branch.getIfTrue();
+            notTaken.removePredecessor(
+                    notTaken.getPredecessors().indexOf( block ) );
+            block.setTerminator( new Instr.Jump( taken ) );
+            branches++;
+            changed = true;
+        }
+        return changed;
+    }
+
+    /** Replace phis whose operands are all the same value (ignoring the
+     * phi itself) by that value.
+     * @return true if any phi was removed */
+    private boolean removeTrivialPhis( Function f ) {
+        boolean changed = false;
+        for( Block block : f.getBlocks() ) {
+            for( Instr.Phi phi : new ArrayList<Instr.Phi>( block.getPhis() ) ) {
+                Instr same = null;
+                boolean trivial = true;
+                for( Instr op : phi.getOperands() ) {
+                    if( op == phi || op == same ) {
+                        continue;
+                    }
+                    if( same != null ) {
+                        trivial = false;
+                        break;
+                    }
+                    same = op;
+                }
+                if( trivial && same != null ) {
+                    block.getPhis().remove( phi );
+                    f.replaceAllUses( phi, same );
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /** Remove instructions whose values are not used and that have no
+     * other effect.
+     * @return true if anything was removed */
+    private boolean removeDeadCode( Function f ) {
+        boolean changed = false;
+        boolean removedAny;
+        do {
+            removedAny = false;
+            Map<Instr, Integer> uses = f.useCounts();
+            for( Block block : f.getBlocks() ) {
+                Set<Instr> dead = new HashSet<Instr>();
+                for( Instr instr : block.getAllInstructions() ) {
+                    if( instr.isRemovable() && !isUsed( instr, uses ) ) {
+                        dead.add( instr );
+                    }
+                }
+                if( !dead.isEmpty() ) {
+                    block.getPhis().removeAll( dead );
+                    block.getInstructions().removeAll( dead );
+                    removed += dead.size();
+                    removedAny = true;
+                }
+            }
+            changed |= removedAny;
+        } while( removedAny );
+        return changed;
+    }
+
+    /** A value is used if some other instruction uses it */
+    private boolean isUsed( Instr instr, Map<Instr, Integer> uses ) {
+        Integer count = uses.get( instr );
+        if( count == null ) {
+            return false;
+        }
+        if( instr instanceof Instr.Phi ) {
+            /* A phi only used by itself is not used */
+            int self = 0;
+            for( Instr op : instr.getOperands() ) {
+                if( op == instr ) {
+                    self++;
+                }
+            }
+            return count > self;
+        }
+        return true;
+    }
+}
@@ -15,6 +15,10 @@ public class Instruction {
     public Operation getOp() {
         return op;
     }
+    /** Size of the instruction in words once loaded. */
+    public int getSize() {
+        return op.getSize();
+    }
     public void loadInstruction( StackMachine machine ) {
         machine.generateWord(op.ordinal(), op.toString() );
     }
@@ -58,4 +62,139 @@ public class Instruction {
             super.loadInstruction( machine );
         }
     }
+
+    /** A label marks a position within the generated code.
+     * It occupies no space; its address is assigned when the code
+     * is laid out (see Code.resolveBranches).
+     * Labels are numbered in the order they are created, so the name
+     * printed for a label is the same from one run to the next.
+     */
+    public static class Label extends Instruction {
+        /** Number of the next label created */
+        private static int nextNumber = 0;
+        /** Number of the label, used as its name */
+        private final int number;
+        /** Address of the label, or NO_ADDRESS until laid out */
+        private int address;
+        /** Address of a label that has not yet been laid out */
+        public static final int NO_ADDRESS = -1;
+
+        public Label() {
+            super( Operation.NO_OP );
+            number = nextNumber++;
+            address = NO_ADDRESS;
+        }
+        public int getNumber() {
+            return number;
+        }
+        @Override
+        public int getSize() {
+            return 0;
+        }
+        public int getAddress() {
+            assert address != NO_ADDRESS;
+            return address;
+        }
+        public void setAddress( int address ) {
+            this.address = address;
+        }
+        @Override
+        public void loadInstruction( StackMachine machine ) {
+            // A label generates no code
+        }
+        @Override
+        public String toString() {
+            return "L" + number + ":";
+        }
+    }
+
+    /* A branch to a label. It is loaded as a LOAD_CON of the branch 
+     * offset followed by the branch operation (BR_FALSE). The offset is
+     * relative to the address of the instruction following the branch
+     * operation and is only known once the code has been laid out.
+     */
+    public static class BranchInstruction extends Instruction {
+        /** Label of the destination */
+        protected Label target;
+        /** Offset to the target, set by the layout pass */
+        protected int offset;
+
+        public BranchInstruction( Operation op, Label target ) {
+            super( op );
+            this.target = target;
+        }
+        public Label getTarget() {
+            return target;
+        }
+        public void setTarget( Label target ) {
+            this.target = target;
+        }
+        @Override
+        public int getSize() {
+            return Operation.LOAD_CON.getSize() + op.getSize();
+        }
+        /** Resolve the offset to the target label.
+         * @param address at which this instruction is placed
+         * @requires the target label has been laid out */
+        public void resolve( int address ) {
+            offset = target.getAddress() - (address + getSize());
+        }
+        @Override
+        public void loadInstruction( StackMachine machine ) {
+            machine.generateWord( Operation.LOAD_CON.ordinal(), 
+                    Operation.LOAD_CON.toString() );
+            machine.generateWord( offset, "" );
+            super.loadInstruction( machine );
+        }
+    }
+
+    /* A FOR_INIT or FOR_STEP instruction of a counted loop. Its operands
+     * are held in the words following the operation code: the frame
+     * offsets of the control variable and of the upper bound, and the
+     * offset of the branch to the target label.
+     */
+    public static class ForInstruction extends BranchInstruction {
+        /** Frame offset of the control variable */
+        private int varOffset;
+        /** Frame offset of the upper bound */
+        private int boundOffset;
+
+        public ForInstruction( Operation op, int varOffset, int boundOffset,
+                Label target ) {
+            super( op, target );
+            this.varOffset = varOffset;
+            this.boundOffset = boundOffset;
+        }
+        @Override
+        public int getSize() {
+            return op.getSize();
+        }
+        @Override
+        public void loadInstruction( StackMachine machine ) {
+            machine.generateWord( op.ordinal(), op.toString() );
+            machine.generateWord( varOffset, "" );
+            machine.generateWord( boundOffset, "" );
+            machine.generateWord( offset, "" );
+        }
+    }
+
+    /* An unconditional jump to a label, implemented as a BR_FALSE
+     * on a pushed ZERO (false) value.
+     */
+    public static class JumpInstruction extends BranchInstruction {
+
+        public JumpInstruction( Label target ) {
+            super( Operation.BR_FALSE, target );
+        }
+        @Override
+        public int getSize() {
+            return Operation.ZERO.getSize() + super.getSize();
+        }
+        @Override
+        public void loadInstruction( StackMachine machine ) {
+            machine.generateWord( Operation.ZERO.ordinal(), 
+                    Operation.ZERO.toString() );
+            super.loadInstruction( machine );
+        }
+    }
 }
@@ -56,9 +56,16 @@ public enum Operation {
     /* Loading multiple words onto the stack */
     LOAD_MULTI(),      /* Load multiple words onto stack */
     STORE_MULTI(),     /* Store multiple words from stack */
-    STOP();            /* Halt execution */
+    STOP(),            /* Halt execution */
+    /* Counted (for) loops: the following three words are the frame offsets
+     * of the control variable and the upper bound, and a branch offset */
+    FOR_INIT( 4 ),     /* Initialise control variable and bound from the
+                          stack, branch if the loop is not entered */
+    FOR_STEP( 4 );     /* Increment control variable and branch back
+                          unless it has reached the bound */
 
-    /* Size of the instruction - LOAD_CON of size 2 */
+    /* Size of the instruction - LOAD_CON of size 2, FOR_INIT and
+     * FOR_STEP of size 4 */
     private int size;
     
     public int getSize() {
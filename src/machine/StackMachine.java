@@ -36,6 +36,8 @@ public class StackMachine {
     public final static int CODE_START = 1000;
     /** Size of memory */
     private final static int MEM_LIMIT = 10000;
+    /** Number of words available for the code */
+    public final static int CODE_LIMIT = MEM_LIMIT - CODE_START;
     /** Address outside memory */
     public final static int NULL_ADDR = MEM_LIMIT;
     
@@ -47,6 +49,9 @@ public class StackMachine {
     private boolean listing = false;
     /** Stack machine running? */
     private boolean running = false;
+    /** Does each local variable's frame slot hold its current value
+     * wherever a runtime error may occur? */
+    private boolean localsCurrent = true;
     
     /** Tracing constants (unioned together) */
     public static enum Trace {
@@ -79,6 +84,12 @@ public class StackMachine {
     private int sp = STACK_START;
     /** Top of stack limit = bottom of heap limit */
     private int limit = CODE_START;
+    /** Number of instructions executed */
+    private long executed = 0;
+    /** Number of times the BR_FALSE at each address was executed and
+     * taken, or null if branches are not being profiled */
+    private long[] branchesExecuted = null;
+    private long[] branchesTaken = null;
     /** Standard input line reader */
     private BufferedReader in =
         new BufferedReader( new InputStreamReader (System.in) );
@@ -109,6 +120,39 @@ public class StackMachine {
     public void setTracing( EnumSet<Trace> flags ) {
         tracing = flags;
     }
+    /** Specify whether the outcomes of branches are to be counted */
+    public void setBranchProfiling( boolean profile ) {
+        if( profile ) {
+            branchesExecuted = new long[MEM_LIMIT];
+            branchesTaken = new long[MEM_LIMIT];
+        } else {
+            branchesExecuted = null;
+            branchesTaken = null;
+        }
+    }
+    /** @return the number of times the BR_FALSE at address was executed,
+     * or 0 if branches are not being profiled */
+    public long getBranchesExecuted( int address ) {
+        return branchesExecuted == null ? 0 : branchesExecuted[address];
+    }
+    /** @return the number of times the BR_FALSE at address branched,
+     * or 0 if branches are not being profiled */
+    public long getBranchesTaken( int address ) {
+        return branchesTaken == null ? 0 : branchesTaken[address];
+    }
+    /** Record whether the code keeps each local variable's current value
+     * in its frame slot, so that the values traceBack shows after a
+     * runtime error are up to date. Code generated via the SSA form
+     * does not: a variable's value may be held in a temporary slot or on
+     * the stack, and stored to its own slot later or never.
+     */
+    public void setLocalsCurrent( boolean localsCurrent ) {
+        this.localsCurrent = localsCurrent;
+    }
+    /** @return the number of instructions executed so far */
+    public long getInstructionsExecuted() {
+        return executed;
+    }
     /** Begin executing the code stored in the stack machine. 
      * Runs until a STOP opcode, a return to 0, or an illegal condition 
      * e.g., popping an empty stack.
@@ -278,6 +322,11 @@ public class StackMachine {
         System.out.println( message );
         // dumpStack();
         traceBack();
+        if( !localsCurrent ) {
+            System.out.println( "Note: the code keeps the values of local " +
+                    "variables in temporaries, so the values shown may be " +
+                    "out of date" );
+        }
     }
 /********************************** Execution *******************************/
     /** Convert from integer to operation */
@@ -297,6 +346,7 @@ public class StackMachine {
         }
         Operation inst = getOperation[instWord];
         int address;
+        executed++;
         if( tracing.contains( Trace.STATE ) ) {
             System.out.print( "\n" + "PC: " + (pc-1) +
                               ": FP: " + fp +
@@ -306,6 +356,10 @@ public class StackMachine {
                               inst + " " );
             if( inst == Operation.LOAD_CON ) {
                 System.out.print( memory[pc] + " " );
+            } else if( inst == Operation.FOR_INIT || 
+                    inst == Operation.FOR_STEP ) {
+                System.out.print( memory[pc] + " " + memory[pc+1] + " " +
+                        memory[pc+2] + " " );
             }
         }
         switch (inst) {
@@ -315,6 +369,12 @@ public class StackMachine {
                 jump to the destination */
             int dest = pop();
             int test = pop();
+            if (branchesExecuted != null) {
+                branchesExecuted[pc-1]++;
+                if (test == FALSE_VALUE) {
+                    branchesTaken[pc-1]++;
+                }
+            }
             if (test == FALSE_VALUE) {
                 pc += dest;
             } else if (test != TRUE_VALUE ) {
@@ -525,6 +585,37 @@ public class StackMachine {
                 count--;
             }
             break;
+        case FOR_INIT: /* Pop the upper and lower bounds of a for loop
+                into the bound and control variable, and branch over
+                the loop if the lower bound exceeds the upper bound */
+            int varAddress = fp + memory[pc++];
+            int boundAddress = fp + memory[pc++];
+            dest = memory[pc++];
+            upper = pop();
+            lower = pop();
+            storeValue( boundAddress, upper );
+            storeValue( varAddress, lower );
+            if( lower > upper ) {
+                pc += dest;
+                if (tracing.contains(Trace.JUMPS)) {
+                    System.out.print("\n      Branch => " + pc);
+                }
+            }
+            break;
+        case FOR_STEP: /* If the control variable is less than the bound,
+                increment it and branch back to the loop body */
+            varAddress = fp + memory[pc++];
+            boundAddress = fp + memory[pc++];
+            dest = memory[pc++];
+            val = loadValue( varAddress );
+            if( val < loadValue( boundAddress ) ) {
+                storeValue( varAddress, val + 1 );
+                pc += dest;
+                if (tracing.contains(Trace.JUMPS)) {
+                    System.out.print("\n      Branch => " + pc);
+                }
+            }
+            break;
         case STOP: /* Halt */
             int exitcode = pop();
             switch( exitcode ) {
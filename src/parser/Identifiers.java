@@ -0,0 +1,175 @@
+package parser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * class Identifiers - intern table for the identifiers of a program.
+ * Each distinct identifier is given an int id, numbered from zero in the
+ * order in which the identifiers are first seen, so that the scanner only
+ * creates a String for the first occurrence of each name.
+ * Names are looked up directly from the characters of the source text (or
+ * the bytes of an ASCII source) in an open addressing hash table with linear probing; the hash codes are
+ * those String would give the names.
+ */
+public class Identifiers {
+
+    /** Initial number of slots in the hash table; a power of two */
+    private static final int INITIAL_SLOTS = 256;
+
+    /** Name of each identifier, indexed by id */
+    private String[] names;
+    /** Hash code of each identifier, indexed by id */
+    private int[] hashes;
+    /** Number of identifiers */
+    private int count;
+    /** Hash table slots, each holding 1 + the id of an identifier or 0 if
+     * the slot is empty; fewer than half the slots are used. */
+    private int[] slots;
+
+    public Identifiers() {
+        names = new String[INITIAL_SLOTS / 2];
+        hashes = new int[INITIAL_SLOTS / 2];
+        count = 0;
+        slots = new int[INITIAL_SLOTS];
+    }
+
+    /** @return the id of the identifier made up of the length characters
+     * of text from start, adding it to the table if it is new */
+    public int intern( char[] text, int start, int length ) {
+        int hash = 0;
+        for( int i = start; i < start + length; i++ ) {
+            hash = 31 * hash + text[i];
+        }
+        int mask = slots.length - 1;
+        int slot = spread( hash ) & mask;
+        while( slots[slot] != 0 ) {
+            int id = slots[slot] - 1;
+            if( hashes[id] == hash &&
+                    matches( names[id], text, start, length ) ) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int id = count++;
+        names[id] = new String( text, start, length );
+        hashes[id] = hash;
+        slots[slot] = id + 1;
+        if( 2 * count >= slots.length ) {
+            grow();
+        }
+        return id;
+    }
+
+    /** @return the id of the identifier made up of the length ASCII
+     * characters of text from index start, adding it to the table if it
+     * is new */
+    public int intern( ByteBuffer text, int start, int length ) {
+        int hash = 0;
+        for( int i = start; i < start + length; i++ ) {
+            hash = 31 * hash + text.get( i );
+        }
+        int mask = slots.length - 1;
+        int slot = spread( hash ) & mask;
+        while( slots[slot] != 0 ) {
+            int id = slots[slot] - 1;
+            if( hashes[id] == hash &&
+                    matches( names[id], text, start, length ) ) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        char[] chars = new char[length];
+        for( int i = 0; i < length; i++ ) {
+            chars[i] = (char)text.get( start + i );
+        }
+        int id = count++;
+        names[id] = new String( chars );
+        hashes[id] = hash;
+        slots[slot] = id + 1;
+        if( 2 * count >= slots.length ) {
+            grow();
+        }
+        return id;
+    }
+
+    /** @return the id of the given name, adding it if it is new */
+    public int intern( String name ) {
+        return intern( name.toCharArray(), 0, name.length() );
+    }
+
+    /** @return the id of the given name, or -1 if it is not in the table */
+    public int find( String name ) {
+        int hash = name.hashCode();
+        int mask = slots.length - 1;
+        int slot = spread( hash ) & mask;
+        while( slots[slot] != 0 ) {
+            int id = slots[slot] - 1;
+            if( hashes[id] == hash && names[id].equals( name ) ) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** @return the name of the identifier with the given id */
+    public String getName( int id ) {
+        return names[id];
+    }
+
+    /** @return the number of distinct identifiers */
+    public int size() {
+        return count;
+    }
+
+    /** Mix the high bits of the hash code into the slot index */
+    private static int spread( int hash ) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches( String name, char[] text, int start,
+            int length ) {
+        if( name.length() != length ) {
+            return false;
+        }
+        for( int i = 0; i < length; i++ ) {
+            if( name.charAt( i ) != text[start + i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches( String name, ByteBuffer text,
+            int start, int length ) {
+        if( name.length() != length ) {
+            return false;
+        }
+        for( int i = 0; i < length; i++ ) {
+            if( name.charAt( i ) != text.get( start + i ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Double the size of the table */
+    private void grow() {
+        int[] newSlots = new int[2 * slots.length];
+        int mask = newSlots.length - 1;
+        for( int id = 0; id < count; id++ ) {
+            int slot = spread( hashes[id] ) & mask;
+            while( newSlots[slot] != 0 ) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = id + 1;
+        }
+        slots = newSlots;
+        String[] newNames = new String[newSlots.length / 2];
+        System.arraycopy( names, 0, newNames, 0, count );
+        names = newNames;
+        int[] newHashes = new int[newSlots.length / 2];
+        System.arraycopy( hashes, 0, newHashes, 0, count );
+        hashes = newHashes;
+    }
+}
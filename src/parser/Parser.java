@@ -1,11 +1,16 @@
 package parser;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import source.ErrorHandler;
+import source.CompileError;
 import source.Errors;
 import source.Position;
 import source.Severity;
@@ -58,7 +63,9 @@ import tree.UnaryOperator;
  *  WriteStatement -> KW_WRITE Exp
  *  Skip -> KW_SKIP
  *  ForStatement -> KW_FOR IDENTIFIER COLON LBRACKET Condition RANGE Condition RBRACKET KW_DO Statement
- *  Condition -> Exp [ RelOp Exp ]
+ *  Condition -> Conjunction { LOG_OR Conjunction }
+ *  Conjunction -> RelCondition { LOG_AND RelCondition }
+ *  RelCondition -> LOG_NOT RelCondition | Exp [ RelOp Exp ]
  *  ConditionList -> Condition { COMMA Condition }
  *  RelOp   -> EQUALS | NEQUALS | LEQUALS | LESS | GREATER | GEQUALS
  *  Exp     -> [ PLUS | MINUS ] Term   { ( PLUS | MINUS ) Term }
@@ -109,9 +116,15 @@ public class Parser {
     /** Set of tokens that may start an Expression. */
     private final static TokenSet EXP_START_SET =
         TERM_START_SET.union( Token.PLUS, Token.MINUS );
+    /** Set of tokens that may start a RelCondition. */
+    private final static TokenSet REL_CONDITION_START_SET =
+        EXP_START_SET.union( Token.LOG_NOT );
+    /** Set of tokens that may start a Conjunction. */
+    private final static TokenSet CONJUNCTION_START_SET =
+        REL_CONDITION_START_SET;
     /** Set of tokens that may start a Condition. */
     private final static TokenSet CONDITION_START_SET =
-        EXP_START_SET;
+        CONJUNCTION_START_SET;
 
     /* Operation sets for relations, expressions, and terms */
     /** Set of tokens representing relational operators. */
@@ -126,12 +139,12 @@ public class Parser {
         new TokenSet( Token.TIMES, Token.DIVIDE );
     
     /*************************** Instance Variables ************************/
-    /** The lexical analyzer */
-    private Scanner lex;
+    /** The tokens of the program, from the lexical analyzer */
+    private TokenStream tokens;
     /** Control verbose parser debugging output */
     private boolean debugParse;
-    /** The current token */
-    private LexicalToken token;
+    /** Index of the current token in tokens */
+    private int token;
     /** Source file handler for the program to be parsed */
     private Source source;
     /** The symbol table */
@@ -140,6 +153,72 @@ public class Parser {
     private Errors errors = ErrorHandler.getErrorHandler();
     /** Track nesting depth in parsing rules */
     private int debugLevel = 0;
+    /** Maximum number of threads to parse with */
+    private int threads = 1;
+    /** Whether the bodies of blocks are held packed (see setPackBodies) */
+    private boolean packBodies = false;
+    /** While outlining, the bodies of the blocks outlined so far,
+     * otherwise null */
+    private List<Body> bodies = null;
+    /** The bodies of the blocks of the program parsed, in the order they
+     * occur, for reparsing an edited program (see reparse) */
+    private List<Body> spans = new ArrayList<Body>();
+
+    /** Number of tokens in a program above which it is outlined and the
+     * bodies of its blocks parsed in parallel, if threads allow */
+    private final static int OUTLINE_TOKENS = 1 << 16;
+
+    /** The compound statement forming the body of a block, recorded by the
+     * outline pass to be parsed later, and for every block parsed */
+    private static class Body {
+        /** Index of the KW_BEGIN token */
+        final int begin;
+        /** Index of the token following the matching KW_END token */
+        final int end;
+        /** Recovery set the body is parsed with */
+        final TokenSet recoverSet;
+        /** Block the body belongs to */
+        Tree.BlockNode block;
+
+        Body( int begin, int end, TokenSet recoverSet ) {
+            this.begin = begin;
+            this.end = end;
+            this.recoverSet = recoverSet;
+        }
+    }
+
+    /** Thrown to abandon outlining when an error is found */
+    private static class OutlineAbandoned extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Errors for outlining and reparsing: as any error abandons the
+     * outline or reparse, in favour of parsing sequentially to report it,
+     * messages are not kept */
+    private static class OutlineErrors implements Errors {
+        public void errorMessage( CompileError e ) {
+            throw new OutlineAbandoned();
+        }
+        public void errorMessage( String message, Severity severity,
+                Position pos ) {
+            throw new OutlineAbandoned();
+        }
+        public void errorMessage( String message, Severity severity ) {
+            throw new OutlineAbandoned();
+        }
+        public void errorMessage( String message ) {
+            throw new OutlineAbandoned();
+        }
+        public void listMessages() {
+        }
+        public void errorSummary() {
+        }
+        public void flush() {
+        }
+        public boolean hadErrors() {
+            return false;
+        }
+    }
     
     /****************************** Constructor ****************************/
     /** Construct a parser with the given lexer 
@@ -147,49 +226,285 @@ public class Parser {
      * @param debugParse - generate parser debugging output if true 
      * @requires lex != null;
      */
-    public Parser( Scanner lex, boolean debugParse ) throws IOException {
-        this.lex = lex;
+    public Parser( Scanner lex, boolean debugParse ) {
         this.debugParse = debugParse;
-        token = lex.getNextToken();      /* Initialise with first token */
+        tokens = lex.tokenize();
+        token = 0;                       /* Initialise with first token */
         source = lex.getSourceHandler();
         /** Set up a symbol table. 
          * The initial value includes the predefined scope.
          */
-        symtab = new SymbolTable();
+        symtab = new SymbolTable( tokens.getIdentifiers() );
     }
-    /***************************** Public Method ****************************/
+    /** Construct a parser for the bodies outlined by another parser */
+    private Parser( Parser outline ) {
+        this.debugParse = false;
+        tokens = outline.tokens;
+        source = outline.source;
+        errors = outline.errors;
+    }
+    /***************************** Public Methods ***************************/
     /** Parse the input stream. 
+     * A large program is parsed in two phases if more than one thread may
+     * be used: an outline pass parses the declarations, setting up the
+     * symbol table and scopes as usual, but only matches the begin and end
+     * of the body of each block; the bodies are then parsed in parallel.
+     * Any error abandons the outline, and the program is parsed again
+     * sequentially, so that the messages and error recovery are exactly
+     * those of the sequential parser.
      *  @return constructed tree only if the stream was parsed correctly.
      */
     public Tree.ProgramNode parse() {
+        if( threads > 1 && !debugParse && tokens.size() > OUTLINE_TOKENS ) {
+            Tree.ProgramNode root = parseOutline();
+            if( root != null ) {
+                return root;
+            }
+            /* Start again */
+            token = 0;
+            debugLevel = 0;
+            symtab = new SymbolTable( tokens.getIdentifiers() );
+            spans = new ArrayList<Body>();
+        }
         Tree.ProgramNode root =  parseProgram();
         return root;
     }
+    /** Set the maximum number of threads used to parse (see parse)
+     * @param threads the number of threads; 1 to parse sequentially */
+    public void setThreads( int threads ) {
+        this.threads = threads;
+    }
+    /** Set whether the body of each block is packed once parsed, to be
+     * held packed while not in use (see Tree.BlockNode.pack), to reduce
+     * the memory used for large programs */
+    public void setPackBodies( boolean packBodies ) {
+        this.packBodies = packBodies;
+    }
+
+    /**************************** Outline Parsing ***************************/
+    /** Parse the program in outline, then parse the outlined bodies of its
+     * blocks in parallel.
+     * @return the tree of the program, or null if an error was found
+     */
+    private Tree.ProgramNode parseOutline() {
+        Errors reporter = errors;
+        errors = new OutlineErrors();
+        bodies = new ArrayList<Body>();
+        try {
+            Tree.ProgramNode root = parseProgram();
+            parseBodies();
+            spans = bodies;
+            return root;
+        } catch( OutlineAbandoned e ) {
+            return null;
+        } finally {
+            errors = reporter;
+            bodies = null;
+        }
+    }
+    /** Record the compound statement forming the body of a block, and
+     * skip to the token after it, by matching its KW_BEGIN with its
+     * KW_END; as procedures are declared before the body of a block, any
+     * compound statements between them are nested within it.
+     * @param recoverSet - set of tokens the body is parsed with
+     * @return the body recorded
+     */
+    private Body outlineBody( TokenSet recoverSet ) {
+        if( !isMatch( Token.KW_BEGIN ) ) {
+            throw new OutlineAbandoned();
+        }
+        int end = token;
+        int depth = 0;
+        do {
+            switch( tokens.getKind( end ) ) {
+            case KW_BEGIN:
+                depth++;
+                break;
+            case KW_END:
+                depth--;
+                break;
+            case EOF:
+                throw new OutlineAbandoned();
+            default:
+                break;
+            }
+            end++;
+        } while( depth > 0 );
+        Body body = new Body( token, end, recoverSet );
+        bodies.add( body );
+        token = end;
+        return body;
+    }
+    /** Parse the outlined bodies on a pool of threads, each with a parser
+     * of its own, and place them in their blocks.
+     * @throws OutlineAbandoned if any has an error */
+    private void parseBodies() {
+        ExecutorService pool = 
+            Executors.newFixedThreadPool( Math.min( threads, bodies.size() ) );
+        try {
+            List<Future<StatementNode>> parsed = 
+                new ArrayList<Future<StatementNode>>();
+            for( final Body body : bodies ) {
+                parsed.add( pool.submit( new Callable<StatementNode>() {
+                    public StatementNode call() {
+                        return new Parser( Parser.this ).parseBody( body );
+                    }
+                } ) );
+            }
+            for( int i = 0; i < bodies.size(); i++ ) {
+                bodies.get( i ).block.setBody( parsed.get( i ).get() );
+                if( packBodies ) {
+                    bodies.get( i ).block.pack();
+                }
+            }
+        } catch( InterruptedException e ) {
+            throw new OutlineAbandoned();
+        } catch( ExecutionException e ) {
+            if( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new Error( e.getCause() );
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    /** Parse an outlined body, which must end where the outline found.
+     * @return the tree of the body */
+    private StatementNode parseBody( Body body ) {
+        token = body.begin;
+        StatementNode result = parseCompoundStatement( body.recoverSet );
+        if( token != body.end ) {
+            throw new OutlineAbandoned();
+        }
+        return result;
+    }
+
+    /************************** Incremental Parsing *************************/
+    /** Parse an edited version of the program parsed by another parser,
+     * reusing its tree and symbol table. The tokens of this parser are
+     * compared with those of the other: if those that differ all lie
+     * within the body of one block, between its KW_BEGIN and KW_END, the
+     * declarations are unchanged, and only that body is parsed again. If
+     * it parses without errors and ends at the same KW_END, it replaces
+     * the body of the block in the tree of the other parser; as the rest
+     * of the tokens are the same, the tree is as parse would give, but
+     * for the positions of the nodes reused that follow the edit.
+     * @param previous parser of the previous version of the program,
+     *     which parsed it without errors
+     * @return the blocks whose bodies were parsed again (none if the
+     *     tokens are the same), or null if the program must be parsed in
+     *     full by parse
+     */
+    public List<Tree.BlockNode> reparse( Parser previous ) {
+        TokenStream old = previous.tokens;
+        /* Names take the symbol ids of the symbol table reused */
+        tokens.rebase( old.getIdentifiers() );
+        symtab = new SymbolTable( tokens.getIdentifiers() );
+        List<Tree.BlockNode> reparsed = new ArrayList<Tree.BlockNode>();
+        int size = Math.min( tokens.size(), old.size() );
+        /* Number of tokens the same at the start and at the end */
+        int prefix = 0;
+        while( prefix < size && tokens.sameToken( prefix, old, prefix ) ) {
+            prefix++;
+        }
+        if( prefix == tokens.size() && prefix == old.size() ) {
+            spans = previous.spans;
+            symtab = previous.symtab;
+            return reparsed;
+        }
+        int suffix = 0;
+        while( suffix < size - prefix && tokens.sameToken( 
+                tokens.size() - 1 - suffix, old, old.size() - 1 - suffix ) ) {
+            suffix++;
+        }
+        /* The last body to begin before the first token changed */
+        int low = 0;
+        int high = previous.spans.size();
+        while( low < high ) {
+            int mid = (low + high) >>> 1;
+            if( previous.spans.get( mid ).begin < prefix ) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if( low == 0 ) {
+            return null;
+        }
+        int edited = low - 1;
+        Body body = previous.spans.get( edited );
+        if( old.size() - suffix >= body.end ) {
+            /* The edit extends to the KW_END or beyond */
+            return null;
+        }
+        int delta = tokens.size() - old.size();
+        Errors reporter = errors;
+        errors = new OutlineErrors();
+        StatementNode statements = null;
+        try {
+            token = body.begin;
+            statements = parseCompoundStatement( body.recoverSet );
+        } catch( OutlineAbandoned e ) {
+            /* Parse the program in full to report the errors */
+        } finally {
+            errors = reporter;
+        }
+        if( statements == null || token != body.end + delta ) {
+            token = 0;
+            debugLevel = 0;
+            return null;
+        }
+        body.block.setBody( statements );
+        body.block.release();
+        reparsed.add( body.block );
+        /* The bodies from the one edited on have moved */
+        spans = new ArrayList<Body>( previous.spans.size() );
+        for( int i = 0; i < previous.spans.size(); i++ ) {
+            Body span = previous.spans.get( i );
+            if( i >= edited ) {
+                Body moved = new Body( i == edited ? span.begin : 
+                        span.begin + delta, span.end + delta, 
+                        span.recoverSet );
+                moved.block = span.block;
+                span = moved;
+            }
+            spans.add( span );
+        }
+        symtab = previous.symtab;
+        return reparsed;
+    }
 
     /**************************** Support Methods ***************************/
-    /** Get the next token and place it in the variable token. 
-     * Declare a fatal error on IOException
+    /** Move on to the next token; the final EOF token is never passed.
      * @requires token != Token.EOF;
      */
     private void nextToken() {
-        try {
-            token = lex.getNextToken();
-        } catch( IOException e ) {
-            errors.errorMessage( "Caught IOException " + e, Severity.FATAL,
-                                Position.NO_POSITION );
-            /* Never returns, but just in case: */
-            System.exit(1);
+        if( token < tokens.size() - 1 ) {
+            token++;
         }
     }
+    /** Test if the kind of the current token matches the argument */
+    private boolean isMatch( Token kind ) {
+        return tokens.getKind( token ) == kind;
+    }
+    /** Test if the current token is contained in the given set of tokens */
+    private boolean isIn( TokenSet tokenTypes ) {
+        return tokenTypes.contains( tokens.getKind( token ) );
+    }
     /** Match if token is known to be expected, otherwise there is an error in
      * the compiler. This version used to move on to the next token and give 
      * debugging output if enabled. 
      * @param expected - token expected next in the input stream.
      */
     private void match( Token expected ) {
-        pl0_assert( token.isMatch( expected ), 
-                "Match assertion failed on " + expected );
-        debugMessage( "Matched " + tokenString( token ) );
+        /* Messages are only built when needed, as this is called for
+         * every token matched */
+        if( !isMatch( expected ) ) {
+            pl0_assert( false, "Match assertion failed on " + expected );
+        }
+        if( debugParse ) {
+            debugMessage( "Matched " + tokenString( token ) );
+        }
         nextToken();
     }
     /** Match a token equal to that expected.
@@ -205,7 +520,7 @@ public class Parser {
      * @requires follows is nonempty
      */
     private void match( Token expected, TokenSet follows ) {
-        if( token.isMatch( expected ) ) {
+        if( isMatch( expected ) ) {
             match( expected );
         } else {
             debugMessage( "Parse error, expecting '" + expected + "'" );
@@ -214,14 +529,14 @@ public class Parser {
              * treat it as though the expected token was missing and
              * do no further error recovery.
              */ 
-            if( ! token.isIn( follows ) && !token.isMatch( Token.EOF ) ) {
+            if( ! isIn( follows ) && !isMatch( Token.EOF ) ) {
                 // Skip the erroneous token
                 debugMessage( "Skipping " + tokenString( token ) );
                 nextToken();
                 /* If after skipping, the (new) token is not the expected 
                  * token we do no further error recovery (in match at least).
                  */
-                if( token.isMatch( expected ) ) {
+                if( isMatch( expected ) ) {
                     /* If after skipping the erroneous token we find 
                      * the expected token we match it
                      */
@@ -235,13 +550,13 @@ public class Parser {
      * @param follows - single token that may follow
      */
     private void match( Token expected, Token follows ) {
-        match( expected, new TokenSet( follows ) );
+        match( expected, TokenSet.of( follows ) );
     }
     /** Return token name and position as debug string */
-    private String tokenString( LexicalToken token ) {
-        return "'" + token.toString() + "'" + 
-            " at line " + source.getLineNumber( token.getPosn() ) +
-            " column " + source.offset( token.getPosn() );
+    private String tokenString( int token ) {
+        return "'" + tokens.toString( token ) + "'" + 
+            " at line " + source.getLineNumber( tokens.getPosn( token ) ) +
+            " column " + source.offset( tokens.getPosn( token ) );
     }
     /** Skip tokens until one is found which is in the parameter set find. 
      * Used for error recovery. 
@@ -249,7 +564,7 @@ public class Parser {
      * @requires find.contains( Token.EOF ); 
      */
     private void skipTo( TokenSet find ) {
-        while( ! token.isIn( find ) ) {
+        while( ! isIn( find ) ) {
             debugMessage( "Skipping " + tokenString( token ) );
             nextToken();
         }
@@ -265,13 +580,15 @@ public class Parser {
      */
     private boolean beginRule( String rule, TokenSet expected,
             TokenSet recoverSet ) {
-        debugMessage( "Begin parse " + rule + " recover on " + recoverSet );
+        if( debugParse ) {
+            debugMessage( "Begin parse " + rule + " recover on " + recoverSet );
+        }
         debugLevel++;
-        if( ! token.isIn( expected ) ) {
-            error( token + " cannot start " + rule );
-            debugMessage( token + " cannot start " + rule );
+        if( ! isIn( expected ) ) {
+            error( tokens.toString( token ) + " cannot start " + rule );
+            debugMessage( tokens.toString( token ) + " cannot start " + rule );
             skipTo( recoverSet.union( expected ) );
-            if( !token.isIn( expected ) ) {
+            if( !isIn( expected ) ) {
                 debugLevel--; /* Decrease as this beginRule failed */
                 return false;
             }
@@ -287,7 +604,7 @@ public class Parser {
      */
     private boolean beginRule( String rule, Token expected,
             TokenSet recoverSet) {
-        return beginRule( rule, new TokenSet( expected ), recoverSet );
+        return beginRule( rule, TokenSet.of( expected ), recoverSet );
     }
     /** Version of beginRule when failure indicates that there
      * is an error in the PL0 compiler.
@@ -295,10 +612,12 @@ public class Parser {
      * @param expected - set of tokens expected at start of rule
      */
     private void beginRule( String rule, TokenSet expected ) {
-        debugMessage( "Begin parse " + rule );
+        if( debugParse ) {
+            debugMessage( "Begin parse " + rule );
+        }
         debugLevel++;
-        if( ! token.isIn( expected ) ) {
-            fatal( token + " cannot start " + rule );
+        if( ! isIn( expected ) ) {
+            fatal( tokens.toString( token ) + " cannot start " + rule );
             // doesn't return from fatal error
         }
     }
@@ -309,7 +628,7 @@ public class Parser {
      * @param - expected token expected at start of rule
      */
     private void beginRule( String rule, Token expected ) {
-        beginRule( rule, new TokenSet( expected ) );
+        beginRule( rule, TokenSet.of( expected ) );
     }
     /** End a parsing rule.
      * Ensure that the current token is a member of the recovery set 
@@ -319,14 +638,16 @@ public class Parser {
      * @requires recoverSet.contains( Token.EOF);
      */
     private void endRule( String rule, TokenSet recoverSet ) {
-        if( ! token.isIn( recoverSet ) ) {
-            error( token + " cannot follow " + rule );
-            debugMessage( token + " cannot follow " + rule );
+        if( ! isIn( recoverSet ) ) {
+            error( tokens.toString( token ) + " cannot follow " + rule );
+            debugMessage( tokens.toString( token ) + " cannot follow " + rule );
             // Skipping cannot fail as recoverSet must contain end of file (EOF)
             skipTo( recoverSet );
         }
         debugLevel--;  /* Decrease debugging level at end of rule */
-        debugMessage( "End parse " + rule );
+        if( debugParse ) {
+            debugMessage( "End parse " + rule );
+        }
     }
     /** Output debugging message if debug turned on */
     private void debugMessage( String msg ) {
@@ -348,7 +669,7 @@ public class Parser {
             return null;
         }
         SymEntry.ProcedureEntry proc = 
-            symtab.addProcedure( "<Main>", token.getPosn() );
+            symtab.addProcedure( "<Main>", tokens.getPosn( token ) );
         if( proc  == null ) {
             fatal( "Could not add main program to symbol table" );
         }
@@ -366,15 +687,29 @@ public class Parser {
         DeclNode.DeclListNode procedures = new DeclNode.DeclListNode();
         if( !beginRule("Block", BLOCK_START_SET, recoverSet)) {
             return new Tree.BlockNode( procedures, 
-                    new StatementNode.ErrorNode( token.getPosn()) );
+                    new StatementNode.ErrorNode( tokens.getPosn( token )) );
         }
-        while( token.isIn( DECLARATION_START_SET ) ) {
+        while( isIn( DECLARATION_START_SET ) ) {
             procedures = parseDeclaration( procedures, 
                         recoverSet.union( BLOCK_START_SET ) );
         }
+        if( bodies != null ) {
+            /* Outlining: the body is parsed later */
+            Body body = outlineBody( recoverSet );
+            endRule( "Block", recoverSet );
+            body.block = new Tree.BlockNode( procedures, null );
+            return body.block;
+        }
+        int begin = token;
         StatementNode statements = parseCompoundStatement( recoverSet );
+        Body body = new Body( begin, token, recoverSet );
+        body.block = new Tree.BlockNode( procedures, statements );
+        if( packBodies ) {
+            body.block.pack();
+        }
+        spans.add( body );
         endRule( "Block", recoverSet );
-        return new Tree.BlockNode( procedures, statements );
+        return body.block;
     }
     /** RULE:
      *  Declaration -> ConstDefList | TypeDefList | VarDeclList | ProcedureDef 
@@ -382,17 +717,17 @@ public class Parser {
     private DeclNode.DeclListNode parseDeclaration( 
             DeclNode.DeclListNode procedures, TokenSet recoverSet ) {
         beginRule( "Declaration", DECLARATION_START_SET ); /* cannot fail */
-        if( token.isMatch( Token.KW_CONST ) ) {
+        if( isMatch( Token.KW_CONST ) ) {
             parseConstDefList( recoverSet );
-        } else if( token.isMatch( Token.KW_TYPE ) ) {
+        } else if( isMatch( Token.KW_TYPE ) ) {
             parseTypeDefList( recoverSet );
-        } else if( token.isMatch( Token.KW_VAR ) ) {
+        } else if( isMatch( Token.KW_VAR ) ) {
             parseVarDeclList( recoverSet );
-        } else if( token.isMatch( Token.KW_PROCEDURE ) ) {
+        } else if( isMatch( Token.KW_PROCEDURE ) ) {
             DeclNode.ProcedureNode proc = parseProcedureDef( recoverSet );
             procedures.addDeclaration( proc );
         } else { // cannot get here
-            fatal( "parseDeclaration", token.getPosn() );
+            fatal( "parseDeclaration", tokens.getPosn( token ) );
         }
         endRule( "Declaration", recoverSet );
         return procedures;
@@ -403,7 +738,7 @@ public class Parser {
         match( Token.KW_CONST );
         do {
             parseConstDef( recoverSet.union( Token.IDENTIFIER ) );
-        } while( token.isMatch( Token.IDENTIFIER ) );
+        } while( isMatch( Token.IDENTIFIER ) );
         endRule( "Constant Definition List", recoverSet );
     }
     /** Rule: ConstDef -> IDENTIFIER EQUALS Constant SEMICOLON */
@@ -411,15 +746,16 @@ public class Parser {
         if( !beginRule("Constant Definition", Token.IDENTIFIER, recoverSet) ) {
             return;
         }
-        LexicalToken constToken = token; /* save IDENTIFIER token */
+        int constToken = token; /* save IDENTIFIER token */
         match( Token.IDENTIFIER );       /* cannot fail */
         match( Token.EQUALS, CONSTANT_START_SET );
         ConstExp tree = 
             parseConstant( recoverSet.union( Token.SEMICOLON ) );
-        if( symtab.addConstant( constToken.getName(), constToken.getPosn(), 
-                                    tree ) == null ) {
-                error( "Constant identifier " + constToken.getName() + 
-                    " already declared in this scope", constToken.getPosn() );
+        if( symtab.addConstant( tokens.getName( constToken ), 
+                    tokens.getPosn( constToken ), tree ) == null ) {
+                error( "Constant identifier " + tokens.getName( constToken ) + 
+                    " already declared in this scope", 
+                    tokens.getPosn( constToken ) );
         }
         match( Token.SEMICOLON, recoverSet );
         endRule( "Constant Definition", recoverSet );
@@ -428,21 +764,21 @@ public class Parser {
     private ConstExp parseConstant( TokenSet recoverSet ) {
         if( !beginRule( "Constant", CONSTANT_START_SET, recoverSet ) ) {
             /* Defaults to error node on error */
-            return new ConstExp.ErrorNode( token.getPosn(), 
+            return new ConstExp.ErrorNode( tokens.getPosn( token ), 
                     symtab.getCurrentScope() );
         }
         ConstExp tree;  
-        if( token.isMatch( Token.NUMBER ) ) {
-            tree = new ConstExp.NumberNode( token.getPosn(), 
+        if( isMatch( Token.NUMBER ) ) {
+            tree = new ConstExp.NumberNode( tokens.getPosn( token ), 
                      symtab.getCurrentScope(), Type.INTEGER_TYPE, 
-                     token.getIntValue() );
+                     tokens.getIntValue( token ) );
             match( Token.NUMBER ); /* cannot fail */
-        } else if( token.isMatch( Token.IDENTIFIER ) ) {
-            tree = new ConstExp.ConstIdNode( token.getPosn(),
-                    symtab.getCurrentScope(), token.getName());
+        } else if( isMatch( Token.IDENTIFIER ) ) {
+            tree = new ConstExp.ConstIdNode( tokens.getPosn( token ),
+                    symtab.getCurrentScope(), tokens.getName( token ));
             match( Token.IDENTIFIER ); /* cannot fail */
-        } else if( token.isMatch( Token.MINUS ) ) {
-            Position pos = token.getPosn();
+        } else if( isMatch( Token.MINUS ) ) {
+            Position pos = tokens.getPosn( token );
             match( Token.MINUS ); /* cannot fail */
             tree = parseConstant( recoverSet );
             tree = new ConstExp.NegateNode( pos, 
@@ -460,7 +796,7 @@ public class Parser {
         match( Token.KW_TYPE );
         do {
             parseTypeDef( recoverSet.union( Token.IDENTIFIER ) );
-        } while( token.isMatch( Token.IDENTIFIER ) );
+        } while( isMatch( Token.IDENTIFIER ) );
         endRule( "Type Definition List", recoverSet );
     }
     /** Rule: TypeDef -> IDENTIFIER EQUALS Type SEMICOLON */
@@ -468,14 +804,15 @@ public class Parser {
         if( !beginRule("Type Definition", Token.IDENTIFIER, recoverSet ) ) {
             return;
         }
-        LexicalToken typeIdToken = token; /* save IDENTIFIER token */
+        int typeIdToken = token; /* save IDENTIFIER token */
         match( Token.IDENTIFIER );        /* cannot fail */
         match( Token.EQUALS, TYPE_START_SET );
         Type type = parseType( recoverSet.union( Token.SEMICOLON ) );
-        if( symtab.addType(typeIdToken.getName(), 
-                           typeIdToken.getPosn(), type) == null ){
-            error( "Type identifier " + typeIdToken.getName() + 
-                   " already declared in this scope", typeIdToken.getPosn() );
+        if( symtab.addType(tokens.getName( typeIdToken ), 
+                           tokens.getPosn( typeIdToken ), type) == null ){
+            error( "Type identifier " + tokens.getName( typeIdToken ) + 
+                   " already declared in this scope", 
+                   tokens.getPosn( typeIdToken ) );
         }
         match( Token.SEMICOLON, recoverSet );
         endRule( "Type Definition", recoverSet );
@@ -486,12 +823,12 @@ public class Parser {
             return Type.ERROR_TYPE;
         }
         Type type = null;
-        if( token.isMatch( Token.IDENTIFIER ) ) {
+        if( isMatch( Token.IDENTIFIER ) ) {
             type = parseTypeIdentifier( recoverSet );
-        } else if( token.isMatch( Token.LBRACKET ) ) {
+        } else if( isMatch( Token.LBRACKET ) ) {
             type = parseSubrangeType( recoverSet );
         } else {
-            fatal( "parseType", token.getPosn() );
+            fatal( "parseType", tokens.getPosn( token ) );
         }
         endRule( "Type", recoverSet );
         return type;
@@ -515,11 +852,11 @@ public class Parser {
         if( ! beginRule( "Type Identifier", Token.IDENTIFIER, recoverSet ) ) {
             return Type.ERROR_TYPE;
         }
-        LexicalToken idToken = token; /* save IDENTIFIER token */
+        int idToken = token; /* save IDENTIFIER token */
         match( Token.IDENTIFIER );    /* cannot fail */
         endRule( "Type Identifier", recoverSet );
-        return new Type.IdRefType( idToken.getName(), 
-                symtab.getCurrentScope(), idToken.getPosn() );
+        return new Type.IdRefType( tokens.getName( idToken ), 
+                symtab.getCurrentScope(), tokens.getPosn( idToken ) );
     }
     /** Rule: VarDeclList -> KW_VAR VarDecl { VarDecl }  */
     private void parseVarDeclList( TokenSet recoverSet ) {
@@ -527,7 +864,7 @@ public class Parser {
         match( Token.KW_VAR ); /* cannot fail */
         do {
             parseVarDecl( recoverSet.union( Token.IDENTIFIER ) );
-        } while( token.isMatch( Token.IDENTIFIER ) ); 
+        } while( isMatch( Token.IDENTIFIER ) ); 
         endRule( "Variable Declaration List", recoverSet );
     }
     /** Rule: VarDecl -> IDENTIFIER COLON TypeIdentifier SEMICOLON */
@@ -535,15 +872,17 @@ public class Parser {
         if(!beginRule("Variable Declaration", Token.IDENTIFIER, recoverSet)) {
             return;
         }
-        LexicalToken varToken = token; /* save IDENTIFIER token */
+        int varToken = token; /* save IDENTIFIER token */
         match( Token.IDENTIFIER );     /* cannot fail */
         match( Token.COLON, TYPE_START_SET );
         Type type = parseTypeIdentifier( recoverSet.union( Token.SEMICOLON ) );
         // The type of a variable must be a reference type
-        if( symtab.addVariable( varToken.getName(), varToken.getPosn(), 
+        if( symtab.addVariable( tokens.getName( varToken ), 
+                tokens.getPosn( varToken ), 
                 new Type.ReferenceType(type) ) == null ) {
-            error( "Variable identifier " + varToken.getName() + 
-                   " already declared in this scope", varToken.getPosn() );
+            error( "Variable identifier " + tokens.getName( varToken ) + 
+                   " already declared in this scope", 
+                   tokens.getPosn( varToken ) );
         }
         match( Token.SEMICOLON, recoverSet );
         endRule( "Variable Declaration", recoverSet );
@@ -573,18 +912,19 @@ public class Parser {
         beginRule( "Procedure Header", Token.KW_PROCEDURE ); /* cannot fail */
         SymEntry.ProcedureEntry procEntry;
         match( Token.KW_PROCEDURE );
-        if( token.isMatch( Token.IDENTIFIER ) ) {
-            procEntry = symtab.addProcedure(token.getName(),token.getPosn());
+        if( isMatch( Token.IDENTIFIER ) ) {
+            procEntry = symtab.addProcedure( tokens.getName( token ),
+                    tokens.getPosn( token ) );
             if( procEntry  == null ) {
-                procEntry = new SymEntry.ProcedureEntry( token.getName(), 
-                        token.getPosn(), symtab.getCurrentScope() );
-                error( "Procedure identifier " + token.getName() +
+                procEntry = new SymEntry.ProcedureEntry( tokens.getName( token ), 
+                        tokens.getPosn( token ), symtab.getCurrentScope() );
+                error( "Procedure identifier " + tokens.getName( token ) +
                        " already declared in this scope" );
             }
         } else {
             /* Provide dummy procedure entry (not in the symbol table) */
             procEntry = new SymEntry.ProcedureEntry( "<undefined>", 
-                    token.getPosn(), symtab.getCurrentScope() );
+                    tokens.getPosn( token ), symtab.getCurrentScope() );
         }
         match( Token.IDENTIFIER, Token.LPAREN );
         match( Token.LPAREN, Token.RPAREN );
@@ -600,7 +940,7 @@ public class Parser {
          */
         if( !beginRule( "Compound Statement", Token.KW_BEGIN, 
                    recoverSet.union( STATEMENT_START_SET ) ) ) {
-            return new StatementNode.ListNode( token.getPosn() );
+            return new StatementNode.ListNode( tokens.getPosn( token ) );
         }
         match( Token.KW_BEGIN, STATEMENT_START_SET );
         StatementNode result = 
@@ -613,7 +953,7 @@ public class Parser {
     private StatementNode parseStatementList( TokenSet recoverSet ) {
         // Initialize result to an empty list of statements
         StatementNode.ListNode result = 
-                new StatementNode.ListNode( token.getPosn() );
+                new StatementNode.ListNode( tokens.getPosn( token ) );
         if( !beginRule("Statement List",STATEMENT_START_SET,recoverSet) ) {
             return result;
         }
@@ -621,7 +961,7 @@ public class Parser {
             parseStatement( recoverSet.union( Token.SEMICOLON ) );
         result.addStatement( s );
         
-        while( token.isMatch( Token.SEMICOLON ) ) {
+        while( isMatch( Token.SEMICOLON ) ) {
             match( Token.SEMICOLON );
             s = parseStatement( recoverSet.union( Token.SEMICOLON ) );
             result.addStatement( s );
@@ -636,9 +976,9 @@ public class Parser {
     private StatementNode parseStatement( TokenSet recoverSet ) {
         StatementNode result;
         if ( !beginRule( "Statement", STATEMENT_START_SET, recoverSet ) ) {
-            return new StatementNode.ErrorNode( token.getPosn() );
+            return new StatementNode.ErrorNode( tokens.getPosn( token ) );
         }
-        switch( token.getKind() ) {
+        switch( tokens.getKind( token ) ) {
         case IDENTIFIER:
             result = parseAssignment( recoverSet ); 
             break;
@@ -668,7 +1008,7 @@ public class Parser {
         	break;
         default:
             fatal( "parse Statement " );
-            result = new StatementNode.ErrorNode( token.getPosn() );
+            result = new StatementNode.ErrorNode( tokens.getPosn( token ) );
         }
         endRule( "Statement", recoverSet );
         return result;
@@ -677,7 +1017,7 @@ public class Parser {
     /** Rule : Skip -> KW_SKIP */
     private StatementNode parseSkipStatement( TokenSet recoverSet ){
     	beginRule("Skip Statement", Token.KW_SKIP); //cannot fail
-    	Position pos = token.getPosn();
+    	Position pos = tokens.getPosn( token );
     	match(Token.KW_SKIP); //cannot fail
     	endRule("Skip Statement", recoverSet);
     	return new StatementNode.SkipNode(pos);
@@ -694,7 +1034,7 @@ public class Parser {
          */
         List<ExpNode> left = parseLValueList( 
                 recoverSet.union( Token.ASSIGN, Token.EQUALS ) );
-        Position pos = token.getPosn();
+        Position pos = tokens.getPosn( token );
         match( Token.ASSIGN, CONDITION_START_SET );
         List<ExpNode> right = parseConditionList( recoverSet );
         endRule( "Assignment", recoverSet );
@@ -712,7 +1052,7 @@ public class Parser {
         ExpNode var = parseLValue(recoverSet.union(Token.COMMA));
         result.add(var);
         
-        while(token.isMatch(Token.COMMA)){
+        while(isMatch(Token.COMMA)){
         	match(Token.COMMA);
         	var = parseLValue(recoverSet.union(Token.COMMA));
             result.add(var);
@@ -732,7 +1072,7 @@ public class Parser {
         ExpNode cond = parseCondition(recoverSet.union(Token.COMMA));
         result.add(cond);
         
-        while(token.isMatch(Token.COMMA)){
+        while(isMatch(Token.COMMA)){
         	match(Token.COMMA);
         	cond = parseCondition(recoverSet.union(Token.COMMA));
         	result.add(cond);
@@ -747,7 +1087,7 @@ public class Parser {
     /** Rule: WhileStatement -> KW_WHILE Condition KW_DO Statement */
     private StatementNode parseWhileStatement( TokenSet recoverSet ) {
         beginRule( "While Statement", Token.KW_WHILE ); // cannot fail
-        Position pos = token.getPosn();
+        Position pos = tokens.getPosn( token );
         match( Token.KW_WHILE ); /* cannot fail */
         ExpNode cond = parseCondition( recoverSet.union( Token.KW_DO ) );
         match( Token.KW_DO, STATEMENT_START_SET );
@@ -760,7 +1100,7 @@ public class Parser {
     private StatementNode parseIfStatement( TokenSet recoverSet ) {
         beginRule( "If Statement", Token.KW_IF ); /* cannot fail */
         match( Token.KW_IF ); /* cannot fail */
-        Position pos = token.getPosn();
+        Position pos = tokens.getPosn( token );
         ExpNode cond = parseCondition( recoverSet.union( Token.KW_THEN ) );
         match( Token.KW_THEN, STATEMENT_START_SET );
         StatementNode thenClause = 
@@ -777,11 +1117,13 @@ public class Parser {
     private StatementNode parseForStatement( TokenSet recoverSet ) {
         beginRule( "For Statement", Token.KW_FOR ); /* cannot fail */
         match( Token.KW_FOR ); /* cannot fail */
-        Position pos = token.getPosn();
+        Position pos = tokens.getPosn( token );
         String id;
-        if(token.isMatch(Token.IDENTIFIER)){
+        int symbol = -1;
+        if(isMatch(Token.IDENTIFIER)){
         	
-        	id = token.getName();
+        	id = tokens.getName( token );
+        	symbol = tokens.getValue( token );
         	
         } else {
         	
@@ -800,7 +1142,7 @@ public class Parser {
             parseStatement( recoverSet );
        
         endRule( "For Statement", recoverSet );
-        return new StatementNode.ForNode( pos, id, lowerBound, upperBound, doStmt  );
+        return new StatementNode.ForNode( pos, id, symbol, lowerBound, upperBound, doStmt  );
     }
     
     
@@ -808,7 +1150,7 @@ public class Parser {
     private StatementNode parseReadStatement( TokenSet recoverSet ) {
         beginRule( "Read Statement", Token.KW_READ ); /* cannot fail */
         match( Token.KW_READ ); /* cannot fail */
-        Position pos = token.getPosn();
+        Position pos = tokens.getPosn( token );
         ExpNode lval = parseLValue( recoverSet );
         List<ExpNode> left = new ArrayList<ExpNode>();
         left.add(lval);
@@ -824,7 +1166,7 @@ public class Parser {
     private StatementNode parseWriteStatement( TokenSet recoverSet ) {
         beginRule( "Write Statement", Token.KW_WRITE ); // cannot fail
         match( Token.KW_WRITE ); /* cannot fail */
-        Position pos = token.getPosn();
+        Position pos = tokens.getPosn( token );
         ExpNode exp = parseExp( recoverSet );
         endRule( "Write Statement", recoverSet );
         return new StatementNode.WriteNode( pos, exp );
@@ -833,10 +1175,12 @@ public class Parser {
     private StatementNode parseCallStatement( TokenSet recoverSet ) {
         beginRule( "Call Statement", Token.KW_CALL ); // cannot fail
         match( Token.KW_CALL ); /* cannot fail */
-        Position pos = token.getPosn();
+        Position pos = tokens.getPosn( token );
         String procId;
-        if( token.isMatch( Token.IDENTIFIER ) ) {
-            procId = token.getName();
+        int symbol = -1;
+        if( isMatch( Token.IDENTIFIER ) ) {
+            procId = tokens.getName( token );
+            symbol = tokens.getValue( token );
         } else {
             procId = "<noid>";
         }
@@ -845,31 +1189,315 @@ public class Parser {
         // actual parameters would go here
         match( Token.RPAREN, recoverSet );
         endRule( "Call Statement", recoverSet );
-        return new StatementNode.CallNode( pos, procId 
-                );
+        return new StatementNode.CallNode( pos, procId, symbol );
+    }
+    /*************************** Expression rules **************************
+     * The rules from Condition down to Factor call one another recursively,
+     * through the parenthesised Condition of a Factor and the LOG_NOT of a
+     * RelCondition, and a long expression nests as deeply as its operators
+     * or parentheses do. Rather than recursing, parseExpRule runs the rules
+     * on an explicit stack of frames, one for each rule being parsed,
+     * recording the step of the rule reached. A frame calls a rule by
+     * pushing a frame for it and continues, with the tree the rule
+     * returns, once that frame is popped. The rules begin and end, match
+     * tokens and recover from errors in the same order as they would by
+     * recursive descent, but the depth of nesting is limited only by the
+     * heap.
+     */
+    /** Rules parsed by parseExpRule */
+    private final static int CONDITION = 0;
+    private final static int CONJUNCTION = 1;
+    private final static int REL_CONDITION = 2;
+    private final static int EXP = 3;
+    private final static int TERM = 4;
+    private final static int FACTOR = 5;
+
+    /** Frame of an expression rule being parsed by parseExpRule */
+    private static class ExpFrame {
+        /** Rule being parsed */
+        int rule;
+        /** Step of the rule reached; 0 if the rule has not begun */
+        int step;
+        /** Recovery set the rule was called with */
+        TokenSet recoverSet;
+        /** Tree of the rule built so far */
+        ExpNode tree;
+        /** Position of the operator awaiting its right operand, or of a
+         * unary operator */
+        Position pos;
+        /** Relational or binary operator awaiting its right operand */
+        BinaryOperator operator;
+        /** Whether an expression began with a unary minus */
+        boolean negate;
     }
-    /** Rule: Condition -> Exp [ RelOp Exp ] */
+    /** Stack of frames used by parseExpRule; frames are reused */
+    private ExpFrame[] expFrames = new ExpFrame[16];
+
+    /** Rule: Condition -> Conjunction { LOG_OR Conjunction } */
     private ExpNode parseCondition( TokenSet recoverSet ) {
-        if( !beginRule( "Condition", CONDITION_START_SET, recoverSet ) ) {
-            return new ExpNode.ErrorNode( token.getPosn() );
+        return parseExpRule( CONDITION, recoverSet );
+    }
+    /** Rule: Exp -> [ PLUS | MINUS ] Term { ( PLUS | MINUS ) Term } */
+    private ExpNode parseExp( TokenSet recoverSet ) {
+        return parseExpRule( EXP, recoverSet );
+    }
+    /** Parse according to one of the expression rules.
+     * @param rule expression rule to parse (CONDITION or EXP)
+     * @param recoverSet set of tokens to recover at on a syntax error
+     * @return tree of the condition or expression parsed
+     */
+    private ExpNode parseExpRule( int rule, TokenSet recoverSet ) {
+        int top = 0;
+        pushExpFrame( top, rule, recoverSet );
+        /* Tree returned by the rule whose frame was popped last */
+        ExpNode result = null;
+        while( top >= 0 ) {
+            ExpFrame f = expFrames[top];
+            switch( f.rule ) {
+            case CONDITION: /* Conjunction { LOG_OR Conjunction } */
+                if( f.step == 0 ) {
+                    if( !beginRule( "Condition", CONDITION_START_SET,
+                            f.recoverSet ) ) {
+                        result = new ExpNode.ErrorNode( 
+                                tokens.getPosn( token ) );
+                        top--;
+                        break;
+                    }
+                    f.step = 1;
+                    pushExpFrame( ++top, CONJUNCTION, 
+                            f.recoverSet.union( Token.LOG_OR ) );
+                    break;
+                }
+                f.tree = f.step == 1 ? result : new ExpNode.BinaryOpNode( 
+                        f.pos, BinaryOperator.OR_OP, f.tree, result );
+                if( isMatch( Token.LOG_OR ) ) {
+                    f.pos = tokens.getPosn( token );
+                    match( Token.LOG_OR ); /* cannot fail */
+                    f.step = 2;
+                    pushExpFrame( ++top, CONJUNCTION, 
+                            f.recoverSet.union( Token.LOG_OR ) );
+                    break;
+                }
+                endRule( "Condition", f.recoverSet );
+                result = f.tree;
+                top--;
+                break;
+            case CONJUNCTION: /* RelCondition { LOG_AND RelCondition } */
+                if( f.step == 0 ) {
+                    if( !beginRule( "Conjunction", CONJUNCTION_START_SET,
+                            f.recoverSet ) ) {
+                        result = new ExpNode.ErrorNode( 
+                                tokens.getPosn( token ) );
+                        top--;
+                        break;
+                    }
+                    f.step = 1;
+                    pushExpFrame( ++top, REL_CONDITION, 
+                            f.recoverSet.union( Token.LOG_AND ) );
+                    break;
+                }
+                f.tree = f.step == 1 ? result : new ExpNode.BinaryOpNode( 
+                        f.pos, BinaryOperator.AND_OP, f.tree, result );
+                if( isMatch( Token.LOG_AND ) ) {
+                    f.pos = tokens.getPosn( token );
+                    match( Token.LOG_AND ); /* cannot fail */
+                    f.step = 2;
+                    pushExpFrame( ++top, REL_CONDITION, 
+                            f.recoverSet.union( Token.LOG_AND ) );
+                    break;
+                }
+                endRule( "Conjunction", f.recoverSet );
+                result = f.tree;
+                top--;
+                break;
+            case REL_CONDITION: /* LOG_NOT RelCondition | Exp [ RelOp Exp ] */
+                if( f.step == 0 ) {
+                    if( !beginRule( "RelCondition", REL_CONDITION_START_SET, 
+                            f.recoverSet ) ) {
+                        result = new ExpNode.ErrorNode( 
+                                tokens.getPosn( token ) );
+                        top--;
+                        break;
+                    }
+                    if( isMatch( Token.LOG_NOT ) ) {
+                        f.pos = tokens.getPosn( token );
+                        match( Token.LOG_NOT ); /* cannot fail */
+                        f.step = 1;
+                        pushExpFrame( ++top, REL_CONDITION, f.recoverSet );
+                    } else {
+                        f.step = 2;
+                        pushExpFrame( ++top, EXP, 
+                                f.recoverSet.union( REL_OPS_SET ) );
+                    }
+                    break;
+                } else if( f.step == 1 ) {
+                    f.tree = new ExpNode.UnaryOpNode( f.pos, 
+                            UnaryOperator.NOT_OP, result );
+                } else if( f.step == 2 ) {
+                    f.tree = result;
+                    if( isIn( REL_OPS_SET ) ) {
+                        f.pos = tokens.getPosn( token );
+                        f.operator = 
+                            parseRelOp( f.recoverSet.union( EXP_START_SET ) );
+                        f.step = 3;
+                        pushExpFrame( ++top, EXP, f.recoverSet );
+                        break;
+                    }
+                } else {
+                    f.tree = new ExpNode.BinaryOpNode( f.pos, f.operator, 
+                            f.tree, result );
+                }
+                endRule( "RelCondition", f.recoverSet );
+                result = f.tree;
+                top--;
+                break;
+            case EXP: /* [ PLUS | MINUS ] Term { ( PLUS | MINUS ) Term } */
+                if( f.step == 0 ) {
+                    if( !beginRule( "Expression", EXP_START_SET, 
+                            f.recoverSet ) ) {
+                        result = new ExpNode.ErrorNode( 
+                                tokens.getPosn( token ) );
+                        top--;
+                        break;
+                    }
+                    f.pos = tokens.getPosn( token );
+                    if( isMatch( Token.MINUS ) ) {
+                        f.negate = true;
+                        match( Token.MINUS ); /* cannot fail */
+                    } else if( isMatch( Token.PLUS ) ) {
+                        match( Token.PLUS ); /* cannot fail */
+                    }
+                    f.step = 1;
+                    pushExpFrame( ++top, TERM, 
+                            f.recoverSet.union( EXP_OPS_SET ) );
+                    break;
+                } else if( f.step == 1 ) {
+                    f.tree = !f.negate ? result : new ExpNode.UnaryOpNode( 
+                            f.pos, UnaryOperator.NEG_OP, result );
+                } else {
+                    f.tree = new ExpNode.BinaryOpNode( f.pos, f.operator, 
+                            f.tree, result );
+                }
+                if( isIn( EXP_OPS_SET ) ) {
+                    f.pos = tokens.getPosn( token );
+                    if ( isMatch( Token.MINUS ) ) {
+                        f.operator = BinaryOperator.SUB_OP;
+                        match( Token.MINUS ); /* cannot fail */
+                    } else if ( isMatch( Token.PLUS ) ) {
+                        f.operator = BinaryOperator.ADD_OP;
+                        match( Token.PLUS ); /* cannot fail */
+                    } else {
+                        fatal( "Unreachable branch in parseExp" );
+                    }
+                    f.step = 2;
+                    pushExpFrame( ++top, TERM, 
+                            f.recoverSet.union( EXP_OPS_SET ) );
+                    break;
+                }
+                endRule( "Expression", f.recoverSet );
+                result = f.tree;
+                top--;
+                break;
+            case TERM: /* Factor { ( TIMES | DIVIDE ) Factor } */
+                if( f.step == 0 ) {
+                    if( !beginRule( "Term", TERM_START_SET, f.recoverSet ) ) {
+                        result = new ExpNode.ErrorNode( 
+                                tokens.getPosn( token ) );
+                        top--;
+                        break;
+                    }
+                    f.step = 1;
+                    pushExpFrame( ++top, FACTOR, 
+                            f.recoverSet.union( TERM_OPS_SET ) );
+                    break;
+                }
+                f.tree = f.step == 1 ? result : new ExpNode.BinaryOpNode( 
+                        f.pos, f.operator, f.tree, result );
+                if( isIn( TERM_OPS_SET ) ) {
+                    f.pos = tokens.getPosn( token );
+                    if ( isMatch( Token.TIMES ) ) {
+                        f.operator = BinaryOperator.MUL_OP;
+                        match( Token.TIMES ); /* cannot fail */
+                    } else if ( isMatch( Token.DIVIDE ) ) {
+                        f.operator = BinaryOperator.DIV_OP;
+                        match( Token.DIVIDE ); /* cannot fail */
+                    } else {
+                        fatal( "Unreachable branch in parseTerm" );
+                    }
+                    f.step = 2;
+                    pushExpFrame( ++top, FACTOR, 
+                            f.recoverSet.union( TERM_OPS_SET ) );
+                    break;
+                }
+                endRule( "Term", f.recoverSet );
+                result = f.tree;
+                top--;
+                break;
+            case FACTOR: /* LPAREN Condition RPAREN | NUMBER | LValue */
+                if( f.step == 0 ) {
+                    if( !beginRule( "Factor", FACTOR_START_SET, 
+                            f.recoverSet ) ) {
+                        result = new ExpNode.ErrorNode( 
+                                tokens.getPosn( token ) );
+                        top--;
+                        break;
+                    }
+                    if( isMatch( Token.IDENTIFIER ) ) {
+                        f.tree = parseLValue( f.recoverSet );
+                    } else if( isMatch( Token.NUMBER ) ) {
+                        f.tree = new ExpNode.ConstNode( 
+                                tokens.getPosn( token ), Type.INTEGER_TYPE, 
+                                tokens.getIntValue( token ) );
+                        match( Token.NUMBER ); /* cannot fail */
+                    } else if( isMatch( Token.LPAREN ) ) {
+                        match( Token.LPAREN ); /* cannot fail */
+                        f.step = 1;
+                        pushExpFrame( ++top, CONDITION, 
+                                f.recoverSet.union( Token.RPAREN ) );
+                        break;
+                    } else {
+                        fatal( "Unreachable branch in Factor" );
+                    }
+                } else {
+                    f.tree = result;
+                    match( Token.RPAREN, f.recoverSet );
+                }
+                endRule( "Factor", f.recoverSet );
+                result = f.tree;
+                top--;
+                break;
+            default:
+                fatal( "Unreachable branch in parseExpRule" );
+            }
+        }
+        return result;
+    }
+    /** Set up the frame at index top of the stack of expression rules
+     * to call a rule. */
+    private void pushExpFrame( int top, int rule, TokenSet recoverSet ) {
+        if( top == expFrames.length ) {
+            ExpFrame[] larger = new ExpFrame[2 * top];
+            System.arraycopy( expFrames, 0, larger, 0, top );
+            expFrames = larger;
         }
-        ExpNode cond = parseExp( recoverSet.union( REL_OPS_SET ) );
-        if( token.isIn( REL_OPS_SET ) ) {
-            Position pos = token.getPosn();
-            BinaryOperator operatorCode = 
-                parseRelOp( recoverSet.union( EXP_START_SET ) );
-            ExpNode right = parseExp( recoverSet );
-            cond = new ExpNode.BinaryOpNode( pos, operatorCode, 
-                                           cond, right );
+        ExpFrame f = expFrames[top];
+        if( f == null ) {
+            f = new ExpFrame();
+            expFrames[top] = f;
         }
-        endRule( "Condition", recoverSet );
-        return cond;
+        f.rule = rule;
+        f.step = 0;
+        f.recoverSet = recoverSet;
+        f.tree = null;
+        f.pos = null;
+        f.operator = null;
+        f.negate = false;
     }
     /** Rule: RelOp -> EQUALS | NEQUALS | LEQUALS | LESS | GREATER | GEQUALS */
     private BinaryOperator parseRelOp( TokenSet recoverSet ) {
         beginRule( "RelOp", REL_OPS_SET ); // cannot fail
         BinaryOperator operatorCode = BinaryOperator.INVALID_OP;
-        switch( token.getKind() ) {
+        switch( tokens.getKind( token ) ) {
         case EQUALS:
             operatorCode = BinaryOperator.EQUALS_OP;
             match( Token.EQUALS ); /* cannot fail */
@@ -900,94 +1528,14 @@ public class Parser {
         endRule( "RelOp", recoverSet );
         return operatorCode;
     }
-    /** Rule: Exp -> [ PLUS | MINUS ] Term { ( PLUS | MINUS ) Term } */
-    private ExpNode parseExp( TokenSet recoverSet ) {
-        if( !beginRule( "Expression", EXP_START_SET, recoverSet ) ) {
-            return new ExpNode.ErrorNode( token.getPosn() );
-        }
-        boolean haveUnaryMinus = false;
-        Position pos = token.getPosn();
-        if( token.isMatch( Token.MINUS ) ) {
-            haveUnaryMinus = true;
-            match( Token.MINUS ); /* cannot fail */
-        } else if( token.isMatch( Token.PLUS ) ) {
-            match( Token.PLUS ); /* cannot fail */
-        }
-        ExpNode exp = parseTerm( recoverSet.union( EXP_OPS_SET ) );
-        if( haveUnaryMinus ) {
-            exp = new ExpNode.UnaryOpNode( pos, UnaryOperator.NEG_OP, exp );
-        }
-        while( token.isIn( EXP_OPS_SET ) ) {
-            BinaryOperator operatorCode = BinaryOperator.INVALID_OP;
-            pos = token.getPosn();
-            if ( token.isMatch( Token.MINUS ) ) {
-                operatorCode = BinaryOperator.SUB_OP;
-                match( Token.MINUS ); /* cannot fail */
-            } else if ( token.isMatch( Token.PLUS ) ) {
-                operatorCode = BinaryOperator.ADD_OP;
-                match( Token.PLUS ); /* cannot fail */
-            } else {
-                fatal( "Unreachable branch in parseExp" );
-            }
-            ExpNode right = parseTerm( recoverSet.union( EXP_OPS_SET ) );
-            exp = new ExpNode.BinaryOpNode( pos, operatorCode, exp, right );
-        }
-        endRule( "Expression", recoverSet );
-        return exp;
-    }
-    /** Rule: Term  -> Factor { ( TIMES | DIVIDE ) Factor }  */
-    private ExpNode parseTerm( TokenSet recoverSet ) {
-        if( !beginRule( "Term", TERM_START_SET, recoverSet ) ) {
-            return new  ExpNode.ErrorNode( token.getPosn() );
-        }
-        ExpNode term = parseFactor( recoverSet.union( TERM_OPS_SET ) );
-        while( token.isIn( TERM_OPS_SET ) ) {
-            BinaryOperator operatorCode = BinaryOperator.INVALID_OP;
-            Position pos = token.getPosn();
-            if ( token.isMatch( Token.TIMES ) ) {
-                operatorCode = BinaryOperator.MUL_OP;
-                match( Token.TIMES ); /* cannot fail */
-            } else if ( token.isMatch( Token.DIVIDE ) ) {
-                operatorCode = BinaryOperator.DIV_OP;
-                match( Token.DIVIDE ); /* cannot fail */
-            } else {
-                fatal( "Unreachable branch in parseTerm" );
-            }
-            ExpNode right = parseFactor( recoverSet.union( TERM_OPS_SET ) );
-            term = new ExpNode.BinaryOpNode( pos, operatorCode, term, right );
-        }
-        endRule( "Term", recoverSet );
-        return term;
-    }
-    /** Rule: Factor -> LPAREN Condition RPAREN | NUMBER | LValue  */
-    private ExpNode parseFactor( TokenSet recoverSet ) {
-        if( !beginRule( "Factor", FACTOR_START_SET, recoverSet ) ) {
-            return new ExpNode.ErrorNode( token.getPosn() );
-        }
-        ExpNode result = null;
-        if( token.isMatch( Token.IDENTIFIER ) ) {
-            result = parseLValue( recoverSet );
-        } else if( token.isMatch( Token.NUMBER ) ) {
-            result = new ExpNode.ConstNode( token.getPosn(), Type.INTEGER_TYPE,
-                                         token.getIntValue() );
-            match( Token.NUMBER ); /* cannot fail */
-        } else if( token.isMatch( Token.LPAREN ) ) {
-            match( Token.LPAREN ); /* cannot fail */
-            result = parseCondition( recoverSet.union( Token.RPAREN ) );
-            match( Token.RPAREN, recoverSet );
-        } else {
-            fatal( "Unreachable branch in Factor" );
-        }
-        endRule( "Factor", recoverSet );
-        return result;
-    }
     /** Rule: LValue -> IDENTIFIER */
     private ExpNode parseLValue( TokenSet recoverSet ) {
         if( !beginRule( "LValue", Token.IDENTIFIER, recoverSet ) ) {
-            return new ExpNode.ErrorNode( token.getPosn() );
+            return new ExpNode.ErrorNode( tokens.getPosn( token ) );
         }
         ExpNode result = 
-            new ExpNode.IdentifierNode( token.getPosn(), token.getName() );
+            new ExpNode.IdentifierNode( tokens.getPosn( token ), 
+                    tokens.getName( token ), tokens.getValue( token ) );
         match( Token.IDENTIFIER ); /* cannot fail */
         endRule( "LValue", recoverSet );
         return result;
@@ -1008,7 +1556,7 @@ public class Parser {
     }
     /** Signal an error at the current token position */
     private void error( String m ) {
-        error( m, token.getPosn() );
+        error( m, tokens.getPosn( token ) );
     }
     /** Signal a fatal error at the given position */
     private void fatal( String m, Position pos ) {
@@ -1016,6 +1564,6 @@ public class Parser {
     }
     /** Signal a fatal error at the current token position */
     private void fatal( String m ) {
-        fatal( m, token.getPosn() );
+        fatal( m, tokens.getPosn( token ) );
     }
 }
@@ -0,0 +1,212 @@
+package parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import machine.Instruction;
+import machine.StackMachine;
+import source.ErrorHandler;
+import source.Source;
+import tree.Code;
+import tree.CodeGenerator;
+import tree.CodePlusProcedures;
+import tree.DeclNode;
+import tree.Procedures;
+import tree.StaticChecker;
+import tree.Tree;
+
+/**
+ * class ReparseTest - JUnit test of Parser.reparse. Each version of a
+ * program is parsed again from the parser of the last, with the bodies it
+ * returns checked and their code generated again as by the incremental
+ * compiler, and the code laid out is compared with that of a full
+ * compilation of the version.
+ */
+public class ReparseTest extends TestCase {
+
+    private static final String PROGRAM =
+        "var x: int; y: int;\n" +
+        "procedure p() =\n" +
+        "  var a: int;\n" +
+        "  procedure q() =\n" +
+        "    var b: int;\n" +
+        "    begin\n" +
+        "      b := a + 1;\n" +
+        "      x := b\n" +
+        "    end;\n" +
+        "  begin\n" +
+        "    a := 2;\n" +
+        "    call q()\n" +
+        "  end;\n" +
+        "procedure r() =\n" +
+        "  var c: int;\n" +
+        "  begin\n" +
+        "    c := x;\n" +
+        "    write c\n" +
+        "  end;\n" +
+        "begin\n" +
+        "  x := 0;\n" +
+        "  call p();\n" +
+        "  call r();\n" +
+        "  write x\n" +
+        "end\n";
+
+    private ErrorHandler handler;
+    /** Parser, tree, checker and generator of the last version */
+    private Parser parser;
+    private Tree.ProgramNode tree;
+    private StaticChecker checker;
+    private CodeGenerator generator;
+    /** Code of the last version */
+    private CodePlusProcedures code;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Source src = new Source( "reparse", PROGRAM );
+        if( ErrorHandler.getErrorHandler() == null ) {
+            new ErrorHandler( new PrintStream( new ByteArrayOutputStream() ),
+                    src );
+        }
+        handler = (ErrorHandler)ErrorHandler.getErrorHandler();
+        handler.reset( src );
+        parser = new Parser( new Scanner( src ), false );
+        tree = parser.parse();
+        checker = new StaticChecker( handler );
+        checker.visitProgramNode( tree );
+        assertFalse( handler.hadErrors() );
+        generator = new CodeGenerator( handler );
+        generator.setKeepBlocks( true );
+        code = generator.generateCode( tree );
+    }
+
+    public void testUnchanged() throws IOException {
+        List<Tree.BlockNode> blocks = reparse( PROGRAM.replace( "  x := 0",
+                "     x  :=  0" ) );
+        assertNotNull( blocks );
+        assertTrue( blocks.isEmpty() );
+    }
+
+    public void testNestedBody() throws IOException {
+        String edited = PROGRAM.replace( "b := a + 1", "b := a * 3 + 1" );
+        Tree.BlockNode q = block( block( tree.getBlock(), 0 ), 0 );
+        List<Tree.BlockNode> blocks = reparse( edited );
+        assertNotNull( blocks );
+        assertEquals( 1, blocks.size() );
+        assertSame( q, blocks.get( 0 ) );
+        assertEquals( words( compile( edited ) ), words( code ) );
+    }
+
+    public void testEditAcrossEnd() throws IOException {
+        /* From within the body of q to within that of p */
+        String edited = PROGRAM.replace(
+                "      x := b\n    end;\n  begin\n    a := 2",
+                "      x := b;\n      y := 1\n    end;\n  begin\n    a := 3" );
+        assertNull( reparse( edited ) );
+    }
+
+    public void testDeclarations() throws IOException {
+        String edited = PROGRAM.replace( "var c: int;",
+                "var c: int; d: int;" );
+        assertNull( reparse( edited ) );
+    }
+
+    public void testPredefinedName() throws IOException {
+        /* The edit is the first use of true, whose symbol id in the symbol
+         * table reused is not that it would have in the new tokens alone */
+        String edited = PROGRAM.replace( "b := a + 1",
+                "if true then b := a + 1 else b := a" );
+        List<Tree.BlockNode> blocks = reparse( edited );
+        assertNotNull( blocks );
+        assertEquals( 1, blocks.size() );
+        assertEquals( words( compile( edited ) ), words( code ) );
+    }
+
+    public void testSecondEditAfterShift() throws IOException {
+        /* Lengthen the body of q, moving those of p, r and the main
+         * program, and then edit the body of r */
+        String first = PROGRAM.replace( "x := b\n",
+                "x := b;\n      y := b + b\n" );
+        List<Tree.BlockNode> blocks = reparse( first );
+        assertNotNull( blocks );
+        assertEquals( 1, blocks.size() );
+        assertEquals( words( compile( first ) ), words( code ) );
+        String second = first.replace( "c := x;", "c := x - y;" );
+        blocks = reparse( second );
+        assertNotNull( blocks );
+        assertEquals( 1, blocks.size() );
+        assertSame( block( tree.getBlock(), 1 ), blocks.get( 0 ) );
+        assertEquals( words( compile( second ) ), words( code ) );
+        /* And then the main program's body, which follows r's */
+        String third = second.replace( "  write x\n", "  write x + y\n" );
+        blocks = reparse( third );
+        assertNotNull( blocks );
+        assertEquals( 1, blocks.size() );
+        assertSame( tree.getBlock(), blocks.get( 0 ) );
+        assertEquals( words( compile( third ) ), words( code ) );
+    }
+
+    /** Parse a version again from the last, and if that succeeds check
+     * the bodies parsed and lay out the code as IncrementalCompiler does.
+     * @return the blocks reparse returns */
+    private List<Tree.BlockNode> reparse( String program )
+            throws IOException {
+        Source src = new Source( "reparse", program );
+        handler.reset( src );
+        Parser next = new Parser( new Scanner( src ), false );
+        List<Tree.BlockNode> blocks = next.reparse( parser );
+        if( blocks != null ) {
+            for( Tree.BlockNode block : blocks ) {
+                checker.recheckBody( tree, block );
+            }
+            assertFalse( handler.hadErrors() );
+            if( !blocks.isEmpty() ) {
+                code = generator.regenerateCode( tree, blocks );
+            }
+            parser = next;
+        }
+        return blocks;
+    }
+    /** @return the code of a full compilation of the program */
+    private CodePlusProcedures compile( String program )
+            throws IOException {
+        Source src = new Source( "full", program );
+        handler.reset( src );
+        Tree.ProgramNode full =
+            new Parser( new Scanner( src ), false ).parse();
+        new StaticChecker( handler ).visitProgramNode( full );
+        assertFalse( handler.hadErrors() );
+        return new CodeGenerator( handler ).generateCode( full );
+    }
+    /** @return the block of the i-th procedure declared in the block */
+    private static Tree.BlockNode block( Tree.BlockNode block, int i ) {
+        return ((DeclNode.ProcedureNode)block.getProcedures()
+                .getDeclarations().get( i )).getBlock();
+    }
+
+    /** @return the words of the code as loaded into the machine */
+    private List<Integer> words( CodePlusProcedures program ) {
+        WordRecorder recorder = new WordRecorder();
+        for( Instruction inst : program.getInstructionList() ) {
+            inst.loadInstruction( recorder );
+        }
+        return recorder.words;
+    }
+    /** Machine that records the words loaded into it */
+    private class WordRecorder extends StackMachine {
+        private List<Integer> words = new ArrayList<Integer>();
+
+        WordRecorder() {
+            super( handler, false,
+                    new CodePlusProcedures( new Code(), new Procedures() ) );
+        }
+        @Override
+        public void generateWord( int word, String name ) {
+            words.add( word );
+        }
+    }
+}
@@ -6,22 +6,63 @@ import source.Source;
 import source.Position;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * class Scanner - hand coded lexical analyzer for PL0
  * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
- * Tokenizes the requested input file or standard input. 
+ * Tokenizes the requested input file or standard input.
  * The tokens are defined in the enumeration Token.
- * Returns one token on each call to getNextToken()
+ * tokenize() scans the whole of the source text into
+ * a TokenStream, which holds the tokens in arrays rather than as objects.
+ * The scanner does not allocate anything per token: ASCII characters are classified by table look up, keywords
+ * are recognised with a perfect hash table, and identifiers are interned
+ * (see Identifiers) straight from the source text. An ASCII source file is
+ * scanned directly from its mapped bytes (see Source.getBytes), so its
+ * characters are never copied.
+ * Large sources may be split at line ends into chunks that are scanned in
+ * parallel (see setThreads), giving the same stream.
+ * For compatibility getNextToken() returns one token (object) of the
+ * stream on each call.
  */
 public class Scanner {
-      private final static Map<String, Token> keywords;
+      /* Classes of characters; letters and digits may be combined */
+      private static final int OTHER = 0;
+      private static final int LETTER = 1;
+      private static final int DIGIT = 2;
+      private static final int SPACE = 4;
+      /** Class of each ASCII character */
+      private static final byte[] charClass = new byte[128];
+
+      /** Size of the keyword hash table; a power of two */
+      private static final int KEYWORD_SLOTS = 32;
+      /** Keywords, indexed by keywordHash of their spelling */
+      private final static Token[] keywords = new Token[KEYWORD_SLOTS];
+      /** Spelling of the keywords, indexed as for keywords */
+      private final static char[][] keywordChars = new char[KEYWORD_SLOTS][];
 
       /* Static initializer */
       static {
-          keywords = new HashMap<String, Token>();
+          for( char ch = 'a'; ch <= 'z'; ch++ ) {
+              charClass[ch] = LETTER;
+          }
+          for( char ch = 'A'; ch <= 'Z'; ch++ ) {
+              charClass[ch] = LETTER;
+          }
+          for( char ch = '0'; ch <= '9'; ch++ ) {
+              charClass[ch] = DIGIT;
+          }
+          charClass[' '] = SPACE;   // blank
+          charClass['\t'] = SPACE;  // tab
+          charClass['\f'] = SPACE;  // form feed
+          charClass['\n'] = SPACE;  // newline
+          charClass['\r'] = SPACE;  // carriage return
           addKeyword( Token.KW_BEGIN );
           addKeyword( Token.KW_CALL );
           addKeyword( Token.KW_CONST );
@@ -40,23 +81,31 @@ public class Scanner {
           addKeyword( Token.KW_WRITE );
       }
 
-      /** Size of the lookahead buffer */
-      private static final int BUFFERSIZE = 16384;
+      /** Default size of the chunks of a source scanned in parallel */
+      private static final int CHUNK_SIZE = 1 << 20;
+      /** Maximum number of chunks to scan in parallel per thread */
+      private static final int CHUNKS_PER_THREAD = 4;
 
       /*************** Instance Variables *****************/
       private Source source; /* The source handler used by this lexer */
-      private char charBuffer[] = new char[BUFFERSIZE];
-      private int nextCh; /* The one character of look-ahead */
-      private int bufferPos = 0; /* Position in charBuffer */
-      private int bufferLength = 0; /* Number of characters in buffer */
-      private int currentPosition = -1; /* Character position in input file */
+      private char text[]; /* The source program, shared with source */
+      private ByteBuffer bytes; /* Or the bytes of an ASCII source file */
+      private int length; /* Number of characters in the source */
+      private TokenStream tokens; /* Tokens of the source, once scanned */
+      private int threads = 1; /* Maximum number of threads for scanning */
+      private int chunkSize = CHUNK_SIZE; /* Size of chunk scanned by one task */
+      private int nextToken = 0; /* Index of the token getNextToken returns */
 
       /****************** Constructors ********************/
       /** Basic constructor
        * @param src input source program stream */
       public Scanner( Source src ) throws IOException {
           source = src;
-          nextCh = getNextChar();
+          bytes = source.getBytes();
+          if( bytes == null ) {
+              text = source.getText();
+          }
+          length = source.length();
       }
       /** Constructor with file name argument
        * @param fileName input file containing source program */
@@ -68,185 +117,367 @@ public class Scanner {
       public Source getSourceHandler() {
           return source;
       }
-      /** Fetch the next token from the input stream. 
+      /** Fetch the next token from the token stream.
        * @return next token unless end of file is reached
        * in which case an EOF token is returned
        */
       public LexicalToken getNextToken() throws IOException {
-          Position currentPosn;
-          char ch;
-          /* Use a loop to allow multiple whitespace elements to be skipped.
-           * When a token is matched it is returned,
-           * but when a white space element is recognised 
-           * this loop repeats to search for the next token or skip more
-           * white space.
-           */
-          do {
-              currentPosn = new Position( currentPosition );
-              // Check if we've hit end of file
-              if( nextCh == -1 ) {
-                  return new LexicalToken( Token.EOF, currentPosn );
+          TokenStream stream = tokenize();
+          LexicalToken token = stream.getToken( nextToken );
+          if( nextToken < stream.size() - 1 ) {
+              nextToken++;
+          }
+          return token;
+      }
+      /** Scan the whole source program (once), splitting it into chunks
+       * scanned in parallel if more than one thread may be used and the
+       * source is larger than the chunk size (see setThreads).
+       * @return the tokens of the program, ending with an EOF token
+       */
+      public TokenStream tokenize() {
+          if( tokens != null ) {
+              return tokens;
+          }
+          List<Integer> tooLarge = new ArrayList<Integer>();
+          if( threads > 1 && length > chunkSize ) {
+              tokens = scanParallel( tooLarge );
+          } else {
+              /* Source programs average several characters per token */
+              tokens = new TokenStream( new Identifiers(), length / 4 );
+              scan( 0, length, tokens, tooLarge );
+          }
+          /* The end of file is at the last character of the source */
+          tokens.add( Token.EOF, length - 1, 0 );
+          for( int start : tooLarge ) {
+              error( "integer too large", new Position( start ) );
+          }
+          return tokens;
+      }
+
+      /** Set the number of threads that may be used to scan the source
+       * @param threads the maximum number of threads; 1 for sequential
+       *        scanning only */
+      public void setThreads( int threads ) {
+          this.threads = threads;
+      }
+      /** Set the size (in characters) of source above which it is split
+       * into chunks to scan in parallel; the chunks are about this size,
+       * but there are at most CHUNKS_PER_THREAD for each thread. */
+      void setChunkSize( int chunkSize ) {
+          this.chunkSize = chunkSize;
+      }
+
+      /** Scan the source in chunks on a pool of threads and concatenate
+       * the tokens of the chunks.
+       * As the state of the scanner is reset at the end of every line
+       * (there are no tokens spanning lines and comments end at the end
+       * of the line) the chunks end at newlines, and the result is the
+       * same as sequential scanning.
+       * @param tooLarge list to add the positions of numbers too large to
+       *        represent to, in order
+       * @return the tokens of the program, without the final EOF token
+       */
+      private TokenStream scanParallel( List<Integer> tooLarge ) {
+          int chunks = Math.max( 2, Math.min( length / chunkSize,
+                  CHUNKS_PER_THREAD * threads ) );
+          /* Chunk k starts at bounds[k] and ends at bounds[k+1] */
+          final int[] bounds = new int[chunks + 1];
+          for( int k = 1; k < chunks; k++ ) {
+              int bound = Math.max( bounds[k - 1],
+                      (int)((long)length * k / chunks) );
+              while( bound < length && charAt( bound - 1 ) != '\n' ) {
+                  bound++;
+              }
+              bounds[k] = bound;
+          }
+          bounds[chunks] = length;
+          final TokenStream[] chunkTokens = new TokenStream[chunks];
+          final List<List<Integer>> chunkTooLarge =
+              new ArrayList<List<Integer>>();
+          List<Future<?>> scans = new ArrayList<Future<?>>();
+          ExecutorService pool = Executors.newFixedThreadPool( threads );
+          try {
+              for( int k = 0; k < chunks; k++ ) {
+                  final int chunk = k;
+                  chunkTokens[chunk] = new TokenStream( new Identifiers(),
+                          (bounds[chunk + 1] - bounds[chunk]) / 4 );
+                  chunkTooLarge.add( new ArrayList<Integer>() );
+                  scans.add( pool.submit( new Runnable() {
+                      public void run() {
+                          scan( bounds[chunk], bounds[chunk + 1],
+                                  chunkTokens[chunk],
+                                  chunkTooLarge.get( chunk ) );
+                      }
+                  } ) );
+              }
+              int size = 0;
+              for( int k = 0; k < chunks; k++ ) {
+                  scans.get( k ).get();
+                  size += chunkTokens[k].size();
+              }
+              TokenStream result = 
+                  new TokenStream( new Identifiers(), size + 1 );
+              for( int k = 0; k < chunks; k++ ) {
+                  result.append( chunkTokens[k] );
+                  tooLarge.addAll( chunkTooLarge.get( k ) );
+              }
+              return result;
+          } catch( InterruptedException e ) {
+              fatal( "Lexical analysis interrupted" );
+          } catch( ExecutionException e ) {
+              fatal( "Lexical analysis failed: " + e.getCause() );
+          } finally {
+              pool.shutdown();
+          }
+          return null; /* not reached: fatal does not return */
+      }
+
+      /** Scan the source from index from up to end, which is the end of
+       * the source or of a line, adding the tokens to the given stream.
+       * @param tooLarge list to add the positions of numbers too large to
+       *        represent to
+       */
+      private void scan( int from, int end, TokenStream tokens,
+              List<Integer> tooLarge ) {
+          int pos = from;
+          while( pos < end ) {
+              int start = pos;
+              char ch = charAt( pos++ );
+              int cls = ch < 128 ? charClass[ch] : unicodeClass( ch );
+              if( cls == SPACE ) {
+                  continue;
               }
-              ch = (char)nextCh;
-              nextCh = getNextChar();
               /* If ch is a letter, read an identifier or keyword */
-              if( Character.isLetter(ch) ) {
-                  return getIdentifierToken( ch, currentPosn );
+              if( cls == LETTER ) {
+                  pos = scanIdentifier( start, end, tokens );
+                  continue;
               }
               /* if ch is a digit, read a number */
-              if( Character.isDigit(ch) ) {
-                  return getNumberToken( ch, currentPosn );
+              if( cls == DIGIT ) {
+                  pos = scanNumber( start, end, tokens, tooLarge );
+                  continue;
               }
+              /* The character after ch, or -1 at the end of the source */
+              int nextCh = pos < end ? charAt( pos ) : -1;
+              Token kind;
               switch( ch ) {
-              // Skip over whitespace
-              case ' ':   // blank
-              case '\t':  // tab
-              case '\f':  // form feed
-              case '\n':  // newline
-              case '\r':  // carriage return
-                  break;
               case '/':
                   if( nextCh == '/' ) {
                       // skip comment until end of line or end of file
-                      while( nextCh != '\n' && nextCh != -1 ) {
-                          nextCh = getNextChar();
+                      while( pos < end && charAt( pos ) != '\n' ) {
+                          pos++;
                       }
                       // newline or end of file handled by next iteration
-                      break;
-                  } else {
-                      /* We have a divide sign */
-                      return new LexicalToken( Token.DIVIDE, currentPosn );
+                      continue;
                   }
-              case '+': 
-                  return new LexicalToken( Token.PLUS, currentPosn );
+                  /* We have a divide sign */
+                  kind = Token.DIVIDE;
+                  break;
+              case '+':
+                  kind = Token.PLUS;
+                  break;
               case '-':
-                  return new LexicalToken( Token.MINUS, currentPosn );
-              case '*': 
-                  return new LexicalToken( Token.TIMES, currentPosn );
-              case '(': 
-                  return new LexicalToken( Token.LPAREN, currentPosn );
-              case ')': 
-                  return new LexicalToken( Token.RPAREN, currentPosn );
-              case ';': 
-                  return new LexicalToken( Token.SEMICOLON, currentPosn );
+                  kind = Token.MINUS;
+                  break;
+              case '*':
+                  kind = Token.TIMES;
+                  break;
+              case '(':
+                  kind = Token.LPAREN;
+                  break;
+              case ')':
+                  kind = Token.RPAREN;
+                  break;
+              case ';':
+                  kind = Token.SEMICOLON;
+                  break;
               case ':':
                   if( nextCh == '=' ) {
-                      nextCh = getNextChar();
-                      return new LexicalToken( Token.ASSIGN, currentPosn );
+                      pos++;
+                      kind = Token.ASSIGN;
+                  } else {
+                      kind = Token.COLON;
                   }
-                  return new LexicalToken( Token.COLON, currentPosn );
+                  break;
               case ',':
-                  return new LexicalToken( Token.COMMA, currentPosn );
-              case '.': 
+                  kind = Token.COMMA;
+                  break;
+              case '.':
                   if( nextCh == '.' ) {
-                      nextCh = getNextChar();
-                      return new LexicalToken( Token.RANGE, currentPosn);
+                      pos++;
+                      kind = Token.RANGE;
+                  } else {
+                      kind = Token.ILLEGAL;
                   }
-                  return new LexicalToken( Token.ILLEGAL, currentPosn );
+                  break;
               case '=':
-                  return new LexicalToken( Token.EQUALS, currentPosn );
+                  kind = Token.EQUALS;
+                  break;
               case '!':
                   if( nextCh == '=' ) {
-                      nextCh = getNextChar();
-                      return new LexicalToken( Token.NEQUALS, currentPosn );
+                      pos++;
+                      kind = Token.NEQUALS;
+                  } else {
+                      kind = Token.LOG_NOT;
                   }
-                  return new LexicalToken( Token.LOG_NOT, currentPosn );
+                  break;
               case '<':
                   if( nextCh == '=' ) {
-                      nextCh = getNextChar();
-                      return new LexicalToken( Token.LEQUALS, currentPosn );
+                      pos++;
+                      kind = Token.LEQUALS;
+                  } else {
+                      kind = Token.LESS;
                   }
-                  return new LexicalToken( Token.LESS, currentPosn );
+                  break;
               case '>':
                   if( nextCh == '=' ) {
-                      nextCh = getNextChar();
-                      return new LexicalToken( Token.GEQUALS, currentPosn );
+                      pos++;
+                      kind = Token.GEQUALS;
+                  } else {
+                      kind = Token.GREATER;
                   }
-                  return new LexicalToken( Token.GREATER, currentPosn );
+                  break;
               case '&':
                   if( nextCh == '&' ) {
-                      nextCh = getNextChar();
-                      return new LexicalToken( Token.LOG_AND, currentPosn );
+                      pos++;
+                      kind = Token.LOG_AND;
+                  } else {
+                      kind = Token.ILLEGAL;
                   }
-                  return new LexicalToken( Token.ILLEGAL, currentPosn );  
+                  break;
               case '|':
                   if( nextCh == '|' ) {
-                      nextCh = getNextChar();
-                      return new LexicalToken( Token.LOG_OR, currentPosn );
+                      pos++;
+                      kind = Token.LOG_OR;
+                  } else {
+                      kind = Token.ILLEGAL;
                   }
-                  return new LexicalToken( Token.ILLEGAL, currentPosn );
+                  break;
               case '[':
-                  return new LexicalToken( Token.LBRACKET, currentPosn );
+                  kind = Token.LBRACKET;
+                  break;
               case ']':
-                  return new LexicalToken( Token.RBRACKET, currentPosn );
+                  kind = Token.RBRACKET;
+                  break;
               default:
-                  return new LexicalToken( Token.ILLEGAL, currentPosn );
+                  kind = Token.ILLEGAL;
+                  break;
               }
-          } while ( true );                
-      }
-    
-      /** read an identifier (or keyword) starting from the given character ch,
-       * and return the resulting token */
-      private LexicalToken getIdentifierToken( char ch,Position currentPosn )
-        throws IOException {
-          StringBuffer buf = new StringBuffer();
-          buf.append( ch );
-          while( nextCh != -1 && Character.isLetterOrDigit((char)nextCh) ) {
-              buf.append( (char)nextCh );
-              nextCh = getNextChar();
-          } 
-          String word = buf.toString(); // .toLowerCase(); // Case insensitive
-          if( keywords.containsKey( word ) ) {
-              return new LexicalToken( keywords.get(word), currentPosn );
+              tokens.add( kind, start, 0 );
+          }
+      }
+
+      /** Read an identifier (or keyword) starting at index start, and add
+       * the resulting token to the stream.
+       * @return the index of the character following the identifier */
+      private int scanIdentifier( int start, int end, TokenStream tokens ) {
+          int pos = start + 1;
+          while( pos < end && isLetterOrDigit( charAt( pos ) ) ) {
+              pos++;
+          }
+          Token keyword = keyword( start, pos - start );
+          if( keyword != null ) {
+              tokens.add( keyword, start, 0 );
           } else {
-              return new IdentifierToken( Token.IDENTIFIER, currentPosn, word );
+              Identifiers ids = tokens.getIdentifiers();
+              tokens.add( Token.IDENTIFIER, start, text != null ?
+                      ids.intern( text, start, pos - start ) :
+                      ids.intern( bytes, start, pos - start ) );
           }
+          return pos;
       }
 
-      /** read a number starting from the given character ch and return the
-       * resulting token */
-      private LexicalToken getNumberToken( char ch, Position currentPosn )
-        throws IOException {
-          StringBuffer buf = new StringBuffer();
-          buf.append( ch );
-          while( nextCh != -1 && Character.isDigit((char)nextCh) ) {
-              buf.append( (char)nextCh );
-              nextCh = getNextChar();
-          }
-          int value = 0x80808080; // Nonsense value
-          try {
-              value = Integer.parseInt( buf.toString() );
-          } catch( NumberFormatException e ) { 
-              /* Can only happen if the number is too big */
-              error( "integer too large", currentPosn );
+      /** Read a number starting at index start, and add the resulting
+       * token to the stream.
+       * @return the index of the character following the number */
+      private int scanNumber( int start, int end, TokenStream tokens,
+              List<Integer> tooLarge ) {
+          long value = digit( charAt( start ) );
+          int pos = start + 1;
+          while( pos < end && isDigit( charAt( pos ) ) ) {
+              if( value <= Integer.MAX_VALUE ) {
+                  value = 10 * value + digit( charAt( pos ) );
+              }
+              pos++;
+          }
+          if( value > Integer.MAX_VALUE ) {
+              tooLarge.add( start );
+              value = 0x80808080; // Nonsense value
           }
-          return new NumberToken( Token.NUMBER, currentPosn, value );
+          tokens.add( Token.NUMBER, start, (int)value );
+          return pos;
       }
-      /* Fetch the next character from the input stream and return it, updating
-       * the current position. 
-       */
-      private int getNextChar() throws IOException {
-          if( bufferPos == bufferLength ) {
-              bufferPos = 0;
-              bufferLength = source.read( charBuffer, 0, charBuffer.length );
-              if( bufferLength == -1 ) {
-                  return -1;
+
+      /** @return the keyword spelt by the size characters of the source
+       * from start, or null if they are not a keyword */
+      private Token keyword( int start, int size ) {
+          if( size < 2 ) {
+              return null;
+          }
+          int slot = keywordHash( charAt( start ), charAt( start + 1 ),
+                  size );
+          char[] spelling = keywordChars[slot];
+          if( spelling == null || spelling.length != size ) {
+              return null;
+          }
+          for( int i = 0; i < size; i++ ) {
+              if( spelling[i] != charAt( start + i ) ) {
+                  return null;
               }
           }
-          currentPosition++;
-          return charBuffer[bufferPos++];
+          return keywords[slot];
+      }
+      /** @return the character of the source at index pos */
+      private char charAt( int pos ) {
+          return text != null ? text[pos] : (char)bytes.get( pos );
+      }
+      /** Hash function on the first two characters and the length of an
+       * identifier that is perfect (has no collisions) for the keywords.
+       * Every keyword has at least two characters. */
+      private static int keywordHash( char first, char second, int length ) {
+          return (first + 7 * second + 2 * length) & (KEYWORD_SLOTS - 1);
+      }
+
+      /** Classify a non-ASCII character as Character does */
+      private static int unicodeClass( char ch ) {
+          if( Character.isLetter( ch ) ) {
+              return LETTER;
+          }
+          if( Character.isDigit( ch ) ) {
+              return DIGIT;
+          }
+          return OTHER;
+      }
+      private static boolean isLetterOrDigit( char ch ) {
+          return ch < 128 ? (charClass[ch] & (LETTER | DIGIT)) != 0
+                  : Character.isLetterOrDigit( ch );
+      }
+      private static boolean isDigit( char ch ) {
+          return ch < 128 ? charClass[ch] == DIGIT : Character.isDigit( ch );
+      }
+      private static int digit( char ch ) {
+          return ch < 128 ? ch - '0' : Character.digit( ch, 10 );
       }
       /** Add a keyword to the keyword look up table */
       private static void addKeyword( Token keyword ) {
-          if( keywords.put( keyword.toString(), keyword ) != null) {
-              ErrorHandler.getErrorHandler().errorMessage( 
-                      "duplicate keyword in scanner", Severity.FATAL,
+          String spelling = keyword.toString();
+          int slot = keywordHash( spelling.charAt( 0 ), spelling.charAt( 1 ),
+                  spelling.length() );
+          if( keywords[slot] != null ) {
+              ErrorHandler.getErrorHandler().errorMessage(
+                      "keyword hash collision in scanner", Severity.FATAL,
                       Position.NO_POSITION );
           }
+          keywords[slot] = keyword;
+          keywordChars[slot] = spelling.toCharArray();
       }
       //* Error error message */
       private void error( String message, Position pos ) {
-          ErrorHandler.getErrorHandler().errorMessage( 
+          ErrorHandler.getErrorHandler().errorMessage(
                   message, Severity.ERROR, pos );
       }
+      private void fatal( String message ) {
+          ErrorHandler.getErrorHandler().errorMessage(
+                  message, Severity.FATAL, Position.NO_POSITION );
+      }
 }
@@ -1,6 +1,13 @@
 package parser;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Random;
+
 import junit.framework.TestCase;
+import source.ErrorHandler;
+import source.Source;
 
 /**
  * class ScannerTest - JUnit test code for scanner
@@ -94,4 +101,86 @@ public class ScannerTest extends TestCase {
             n++;
         }
     }
+
+    /* Differential tests: scanning in parallel chunks must give the same
+     * tokens as scanning sequentially. */
+
+    public void testParallelGeneratedProgram() throws Exception {
+        String[] words = { "begin", "end", "if", "then", "else", "while",
+            "do", "x", "y1", "count", "beginning", "variable", "ifx" };
+        String[] symbols = { "+", "-", "*", "/", "(", ")", "[", "]", ";",
+            ":", ":=", ",", "..", "=", "!=", "<=", "<", ">=", ">", "&&",
+            "||", "!", "&", "|", ".", "#" };
+        Random random = new Random( 43 );
+        StringBuilder program = new StringBuilder();
+        for( int line = 0; line < 2000; line++ ) {
+            int items = random.nextInt( 8 );
+            for( int i = 0; i < items; i++ ) {
+                switch( random.nextInt( 4 ) ) {
+                case 0:
+                    program.append( words[random.nextInt(words.length)] );
+                    break;
+                case 1:
+                    program.append( random.nextInt( 100000 ) );
+                    break;
+                case 2:
+                    program.append( symbols[random.nextInt(symbols.length)] );
+                    break;
+                default:
+                    program.append( "// comment " + line );
+                    i = items;
+                }
+                program.append( random.nextBoolean() ? " " : "" );
+            }
+            program.append( random.nextInt( 5 ) == 0 ? "\r\n" : "\n" );
+        }
+        assertSameTokens( "generated", program.toString(), 64 );
+        assertSameTokens( "generated", program.toString(), 1 );
+    }
+
+    public void testParallelTestPrograms() throws Exception {
+        File[] files = new File( "test-pgm" ).listFiles();
+        if( files == null ) {
+            return;
+        }
+        for( File file : files ) {
+            if( file.getName().endsWith( ".pl0" ) ) {
+                Scanner sequential = new Scanner( file.getPath() );
+                Scanner parallel = new Scanner( file.getPath() );
+                assertSameTokens( file.getName(), sequential, parallel, 16 );
+            }
+        }
+    }
+
+    private void assertSameTokens( String name, String program,
+            int chunkSize ) throws Exception {
+        assertSameTokens( name, new Scanner( new Source( name, program ) ),
+                new Scanner( new Source( name, program ) ), chunkSize );
+    }
+
+    private void assertSameTokens( String name, Scanner sequential,
+            Scanner parallel, int chunkSize ) {
+        if( ErrorHandler.getErrorHandler() == null ) {
+            /* Numbers too large are reported */
+            new ErrorHandler( new PrintStream( new ByteArrayOutputStream() ),
+                    null );
+        }
+        parallel.setThreads( 4 );
+        parallel.setChunkSize( chunkSize );
+        TokenStream expected = sequential.tokenize();
+        TokenStream actual = parallel.tokenize();
+        assertEquals( name, expected.size(), actual.size() );
+        for( int i = 0; i < expected.size(); i++ ) {
+            String token = name + " token " + i;
+            assertEquals( token, expected.getKind( i ), actual.getKind( i ) );
+            assertEquals( token, expected.getStart( i ), actual.getStart( i ) );
+            assertEquals( token, expected.getValue( i ), actual.getValue( i ) );
+        }
+        Identifiers ids = expected.getIdentifiers();
+        assertEquals( name, ids.size(), actual.getIdentifiers().size() );
+        for( int id = 0; id < ids.size(); id++ ) {
+            assertEquals( name, ids.getName( id ),
+                    actual.getIdentifiers().getName( id ) );
+        }
+    }
 }
@@ -1,56 +1,116 @@
 package parser;
 
-import java.util.EnumSet;
-
-/** 
+/**
  * class TokenSet - Provides operations on sets of Tokens
  * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
  * Provide operations to construct, union and test membership
  * of set of Tokens.
- */ 
-public class TokenSet {
+ * A set is an immutable value held as a bit mask, with bit i set if the
+ * token with ordinal i is in the set. The sets computed by union and of
+ * are cached by their bits, so the parser, which forms unions of its
+ * recovery sets in every rule, does not allocate new sets as it goes.
+ */
+public final class TokenSet {
+
+    /** Tokens indexed by ordinal */
+    private static final Token[] TOKENS = Token.values();
+    /** Number of sets cached; a power of two */
+    private static final int CACHE_SIZE = 1024;
+    /** Sets computed, indexed by the hash of their bits. An entry may be
+     * replaced by another set with the same hash; as sets are immutable,
+     * threads may share the cache without locking. */
+    private static final TokenSet[] cache = new TokenSet[CACHE_SIZE];
+
+    static {
+        if( TOKENS.length > Long.SIZE ) {
+            throw new Error( "Too many tokens for TokenSet" );
+        }
+    }
 
-    private EnumSet<Token> set;
+    private final long bits;
 
     /** Construct a new TokenSet from a list of tokens */
     public TokenSet( Token first, Token... rest ) {
-        set = EnumSet.of( first, rest );
+        long set = bit( first );
+        for( Token token : rest ) {
+            set |= bit( token );
+        }
+        bits = set;
     }
     /** Construct a new TokenSet from an existing one */
     public TokenSet( TokenSet elems ) {
-        set = EnumSet.copyOf( elems.set );
+        bits = elems.bits;
+    }
+    private TokenSet( long bits ) {
+        this.bits = bits;
+    }
+    /** @return the set of the single token */
+    public static TokenSet of( Token token ) {
+        return valueOf( bit( token ) );
     }
     /** Construct a new TokenSet from the union of this and the other */
     public TokenSet union( TokenSet other ) {
-        TokenSet result =  new TokenSet( other );
-        result.set.addAll( set );
-        return result;
+        return union( other.bits );
     }
     /** Construct a new TokenSet from this plus one more Token */
     public TokenSet union( Token other ) {
-        TokenSet result = new TokenSet( other );
-        result.set.addAll( set );
-        return result;
+        return union( bit( other ) );
+    }
+    /** Construct a new TokenSet from this plus two more Tokens */
+    public TokenSet union( Token first, Token second ) {
+        return union( bit( first ) | bit( second ) );
     }
     /** Construct a new TokenSet from this plus a list of Tokens */
     public TokenSet union( Token first, Token... rest ) {
-        TokenSet result = new TokenSet( first, rest );
-        result.set.addAll( set );
-        return result;
+        long set = bit( first );
+        for( Token token : rest ) {
+            set |= bit( token );
+        }
+        return union( set );
     }
     /** Return whether a token is contained in the set */
     public boolean contains( Token token ) {
-        return set.contains( token );
+        return (bits & bit( token )) != 0;
+    }
+    @Override
+    public boolean equals( Object o ) {
+        return o instanceof TokenSet && ((TokenSet)o).bits == bits;
+    }
+    @Override
+    public int hashCode() {
+        return (int)(bits ^ (bits >>> 32));
     }
     /** Convert set to string */
 	@Override
     public String toString() {
     	String m = "{ ";
     	String sep = "";
-    	for( Token t: set ) {
-    		m += sep + "'" + t + "'";
-    		sep = ", ";
+    	for( Token t: TOKENS ) {
+    	    if( contains( t ) ) {
+    	        m += sep + "'" + t + "'";
+    	        sep = ", ";
+    	    }
     	}
         return m + " }";
     }
+
+    private static long bit( Token token ) {
+        return 1L << token.ordinal();
+    }
+    /** @return the union of this set and the set with the given bits */
+    private TokenSet union( long other ) {
+        long set = bits | other;
+        return set == bits ? this : valueOf( set );
+    }
+    /** @return a set with the given bits, from the cache if possible */
+    private static TokenSet valueOf( long bits ) {
+        int slot = (int)((bits * 0x9E3779B97F4A7C15L) >>> 54) &
+            (CACHE_SIZE - 1);
+        TokenSet set = cache[slot];
+        if( set == null || set.bits != bits ) {
+            set = new TokenSet( bits );
+            cache[slot] = set;
+        }
+        return set;
+    }
 }
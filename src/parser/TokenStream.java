@@ -0,0 +1,178 @@
+package parser;
+
+import source.Position;
+
+/**
+ * class TokenStream - the tokens of a whole source program, as produced by
+ * Scanner.tokenize.
+ * Rather than an object per token the stream holds parallel arrays of the
+ * kind of each token, the index in the source of its first character, and
+ * its value: the int value of a NUMBER token, or the id (see Identifiers)
+ * of the name of an IDENTIFIER token.
+ * Tokens are indexed from zero; the last token of the stream of a whole
+ * program is EOF.
+ */
+public class TokenStream {
+
+    /** Token kinds indexed by ordinal */
+    private static final Token[] KINDS = Token.values();
+
+    private byte[] kinds;
+    private int[] starts;
+    private int[] values;
+    /** Number of tokens */
+    private int size;
+    /** Names of the identifiers */
+    private Identifiers identifiers;
+
+    /** Construct an empty stream
+     * @param identifiers intern table for the names of IDENTIFIER tokens
+     * @param capacity expected number of tokens */
+    public TokenStream( Identifiers identifiers, int capacity ) {
+        this.identifiers = identifiers;
+        capacity = Math.max( capacity, 16 );
+        kinds = new byte[capacity];
+        starts = new int[capacity];
+        values = new int[capacity];
+        size = 0;
+    }
+
+    /** Append a token to the stream */
+    public void add( Token kind, int start, int value ) {
+        if( size == kinds.length ) {
+            grow( 2 * size );
+        }
+        kinds[size] = (byte)kind.ordinal();
+        starts[size] = start;
+        values[size] = value;
+        size++;
+    }
+
+    /** Append the tokens of another stream. The identifiers of the other
+     * stream are interned here in the order of their ids there, so the ids
+     * are as if the tokens had been added to this stream directly. */
+    public void append( TokenStream other ) {
+        int[] ids = other.internIn( identifiers );
+        if( size + other.size > kinds.length ) {
+            grow( Math.max( 2 * size, size + other.size ) );
+        }
+        System.arraycopy( other.kinds, 0, kinds, size, other.size );
+        System.arraycopy( other.starts, 0, starts, size, other.size );
+        byte identifier = (byte)Token.IDENTIFIER.ordinal();
+        for( int i = 0; i < other.size; i++ ) {
+            values[size + i] = other.kinds[i] == identifier ?
+                ids[other.values[i]] : other.values[i];
+        }
+        size += other.size;
+    }
+
+    /** Intern the identifiers of this stream in another table, and give
+     * the IDENTIFIER tokens the ids there, so that they are the symbol ids
+     * of the names in a symbol table built with that table (see
+     * syms.SymbolTable). */
+    public void rebase( Identifiers shared ) {
+        if( shared == identifiers ) {
+            return;
+        }
+        int[] ids = internIn( shared );
+        byte identifier = (byte)Token.IDENTIFIER.ordinal();
+        for( int i = 0; i < size; i++ ) {
+            if( kinds[i] == identifier ) {
+                values[i] = ids[values[i]];
+            }
+        }
+        identifiers = shared;
+    }
+    /** @return the id in the table of each identifier of this stream,
+     * interned in the order of their ids here */
+    private int[] internIn( Identifiers table ) {
+        int[] ids = new int[identifiers.size()];
+        for( int id = 0; id < ids.length; id++ ) {
+            ids[id] = table.intern( identifiers.getName( id ) );
+        }
+        return ids;
+    }
+
+    /** @return the number of tokens, including the final EOF */
+    public int size() {
+        return size;
+    }
+    public Token getKind( int i ) {
+        return KINDS[kinds[i]];
+    }
+    /** @return the index in the source of the first character of token i */
+    public int getStart( int i ) {
+        return starts[i];
+    }
+    public Position getPosn( int i ) {
+        return new Position( starts[i] );
+    }
+    /** @return the int value of NUMBER token i, or id of IDENTIFIER token i */
+    public int getValue( int i ) {
+        return values[i];
+    }
+    public int getIntValue( int i ) {
+        assert getKind( i ) == Token.NUMBER;
+        return values[i];
+    }
+    /** @return the name of IDENTIFIER token i */
+    public String getName( int i ) {
+        assert getKind( i ) == Token.IDENTIFIER;
+        return identifiers.getName( values[i] );
+    }
+    public Identifiers getIdentifiers() {
+        return identifiers;
+    }
+    /** @return whether token i of this stream and token j of the other
+     * are the same: of the same kind, and with the same value or name.
+     * Their positions are not compared. */
+    public boolean sameToken( int i, TokenStream other, int j ) {
+        if( kinds[i] != other.kinds[j] ) {
+            return false;
+        }
+        if( KINDS[kinds[i]] == Token.IDENTIFIER &&
+                identifiers != other.identifiers ) {
+            return identifiers.getName( values[i] ).equals( 
+                    other.identifiers.getName( other.values[j] ) );
+        }
+        return values[i] == other.values[j];
+    }
+
+    /** @return a human readable representation of token i, as given by
+     * LexicalToken.toString */
+    public String toString( int i ) {
+        switch( getKind( i ) ) {
+        case IDENTIFIER:
+            return getName( i );
+        case NUMBER:
+            return Integer.toString( values[i] );
+        default:
+            return getKind( i ).toString();
+        }
+    }
+
+    /** @return token i as a LexicalToken object */
+    public LexicalToken getToken( int i ) {
+        switch( getKind( i ) ) {
+        case IDENTIFIER:
+            return new IdentifierToken( Token.IDENTIFIER, getPosn( i ),
+                    getName( i ) );
+        case NUMBER:
+            return new NumberToken( Token.NUMBER, getPosn( i ), values[i] );
+        default:
+            return new LexicalToken( getKind( i ), getPosn( i ) );
+        }
+    }
+
+    private void grow( int capacity ) {
+        byte[] newKinds = new byte[capacity];
+        System.arraycopy( kinds, 0, newKinds, 0, size );
+        kinds = newKinds;
+        int[] newStarts = new int[capacity];
+        System.arraycopy( starts, 0, newStarts, 0, size );
+        starts = newStarts;
+        int[] newValues = new int[capacity];
+        System.arraycopy( values, 0, newValues, 0, size );
+        values = newValues;
+    }
+}
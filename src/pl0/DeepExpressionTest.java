@@ -0,0 +1,130 @@
+package pl0;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+import ir.Function;
+import ir.Lowering;
+import ir.SsaBuilder;
+import ir.SsaOptimiser;
+import parser.Parser;
+import parser.Scanner;
+import source.ErrorHandler;
+import source.Source;
+import tree.CodeGenerator;
+import tree.CodePlusProcedures;
+import tree.DefiniteAssignmentChecker;
+import tree.LoopUnrolling;
+import tree.StaticChecker;
+import tree.Tree;
+
+/**
+ * class DeepExpressionTest - JUnit test that expressions nested too
+ * deeply for the passes after the static check to recurse over are
+ * compiled at each optimisation level, as by PL0_RD. The value of x is
+ * read so that the expressions are not folded to constants.
+ */
+public class DeepExpressionTest extends TestCase {
+
+    /** Number of operators in each expression */
+    private static final int SIZE = 50000;
+
+    private ErrorHandler handler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Source src = new Source( "deep", "" );
+        if( ErrorHandler.getErrorHandler() == null ) {
+            new ErrorHandler( new PrintStream( new ByteArrayOutputStream() ),
+                    src );
+        }
+        handler = (ErrorHandler)ErrorHandler.getErrorHandler();
+    }
+
+    public void testNested() throws Exception {
+        /* x - (x - (x - ... x)) */
+        StringBuilder exp = new StringBuilder();
+        for( int i = 0; i < SIZE; i++ ) {
+            exp.append( "x - (" );
+        }
+        exp.append( "x" );
+        for( int i = 0; i < SIZE; i++ ) {
+            exp.append( ")" );
+        }
+        compileAtEachLevel( program( exp.toString() ) );
+    }
+
+    public void testChain() throws Exception {
+        /* x - x - ... - x, associating to the left */
+        compileAtEachLevel( program( chain( "x", " - " ) ) );
+    }
+
+    public void testLogicalChain() throws Exception {
+        /* x < 0 && x < 0 && ... && x < 0 */
+        compileAtEachLevel( "var x: int;\n" +
+                "begin\n" +
+                "  read x;\n" +
+                "  if " + chain( "x < 0", " && " ) + "\n" +
+                "  then write x else skip\n" +
+                "end\n" );
+    }
+
+    /** @return a program that uses the value of exp in a condition and
+     * writes it */
+    private static String program( String exp ) {
+        return "var x: int;\n" +
+            "begin\n" +
+            "  read x;\n" +
+            "  while " + exp + " < 0 do x := x + 1;\n" +
+            "  write " + exp + "\n" +
+            "end\n";
+    }
+
+    /** @return SIZE + 1 copies of operand separated by op */
+    private static String chain( String operand, String op ) {
+        StringBuilder exp = new StringBuilder( operand );
+        for( int i = 0; i < SIZE; i++ ) {
+            exp.append( op ).append( operand );
+        }
+        return exp.toString();
+    }
+
+    private void compileAtEachLevel( String program ) throws Exception {
+        for( int optLevel = 0; optLevel <= 3; optLevel++ ) {
+            assertNotNull( "-O" + optLevel, compile( program, optLevel ) );
+        }
+    }
+
+    /** @return the code of the program compiled at the optimisation level,
+     * with the tree verified between the passes */
+    private CodePlusProcedures compile( String program, int optLevel )
+            throws Exception {
+        Source src = new Source( "deep", program );
+        handler.reset( src );
+        Tree.ProgramNode tree =
+            new Parser( new Scanner( src ), false ).parse();
+        new StaticChecker( handler ).visitProgramNode( tree );
+        assertFalse( handler.hadErrors() );
+        new DefiniteAssignmentChecker( handler ).visitProgramNode( tree );
+        PassManager passes = PassManager.forLevel( optLevel,
+                LoopUnrolling.DEFAULT_FACTOR, handler );
+        passes.setVerify( true );
+        passes.runTreePasses( tree );
+        assertFalse( handler.hadErrors() );
+        if( optLevel >= 3 ) {
+            List<Function> functions = new SsaBuilder( handler ).build( tree );
+            new SsaOptimiser().optimise( functions );
+            Lowering lowering = new Lowering();
+            lowering.setCodePass( passes );
+            return lowering.generateCode( functions );
+        }
+        CodeGenerator generator = new CodeGenerator( handler );
+        generator.setDuplicateOperands( optLevel >= 2 );
+        generator.setScheduleOperands( optLevel >= 1 );
+        generator.setCodePass( passes );
+        return generator.generateCode( tree );
+    }
+}
@@ -0,0 +1,130 @@
+package pl0;
+import java.io.IOException;
+import java.util.List;
+
+import parser.Parser;
+import parser.Scanner;
+import source.ErrorHandler;
+import source.Source;
+import tree.CodeGenerator;
+import tree.CodePlusProcedures;
+import tree.StaticChecker;
+import tree.Tree;
+
+/**
+ * class IncrementalCompiler - compiles successive versions of a program
+ * as it is edited, without optimisation, and without the warnings of
+ * uses of unassigned variables (see DefiniteAssignmentChecker), which
+ * need the whole program analysed again.
+ * The tree, symbol table, checker and code of the last version compiled
+ * without errors are kept. The next version is scanned in full and its
+ * tokens compared with those of the last (see Parser.reparse): if they
+ * differ only within the body of one block, only that body is parsed,
+ * checked and has its code generated again, and the code of the program
+ * is laid out anew from that of its blocks. Otherwise, or if the body
+ * does not parse, the version is compiled in full, so that its errors are
+ * reported as a compilation of it alone would.
+ * The positions of the nodes of the tree that follow an edit are those
+ * of the version they were parsed from. They are only used in error
+ * messages, and checking the body parsed again, whose positions are
+ * current, can only report errors in that body.
+ */
+public class IncrementalCompiler {
+
+    /** Handler for errors, reset for each version */
+    private ErrorHandler handler;
+    /** Parser of the last version compiled, or null if none or if it had
+     * errors */
+    private Parser parser;
+    /** Tree of the last version compiled */
+    private Tree.ProgramNode tree;
+    /** Checker of the last version compiled */
+    private StaticChecker checker;
+    /** Code generator of the last version compiled */
+    private CodeGenerator generator;
+    /** Code of the last version compiled */
+    private CodePlusProcedures code;
+
+    /** Construct an incremental compiler
+     * @param handler for errors; it is reset for each version compiled */
+    public IncrementalCompiler( ErrorHandler handler ) {
+        this.handler = handler;
+        this.parser = null;
+    }
+
+    /** Compile a version of the program
+     * @param src the program source
+     * @return generated code and procedure addresses table, or null if
+     *     there were errors
+     * @throws IOException if the source cannot be read
+     */
+    public CodePlusProcedures compile( Source src ) throws IOException {
+        handler.reset( src );
+        System.out.println( "Compiling " + src.getFileName() );
+        Scanner lex = new Scanner( src );
+        lex.setThreads( Runtime.getRuntime().availableProcessors() );
+        Parser next = new Parser( lex, false );
+        List<Tree.BlockNode> changed = null;
+        if( parser != null && !handler.hadErrors() ) {
+            changed = next.reparse( parser );
+        }
+        if( changed == null ) {
+            compileAll( next );
+        } else {
+            System.out.println( "Parsing complete" );
+            for( Tree.BlockNode block : changed ) {
+                checker.recheckBody( tree, block );
+            }
+            handler.flush();
+            System.out.println( "Static semantic analysis complete" );
+            if( handler.hadErrors() ) {
+                /* The tree has had the body replaced */
+                discard();
+            } else {
+                if( !changed.isEmpty() ) {
+                    code = generator.regenerateCode( tree, changed );
+                }
+                System.out.println( "Code generation complete: " +
+                        changed.size() + " block bodies recompiled" );
+                parser = next;
+            }
+        }
+        handler.flush();
+        handler.errorSummary();
+        return parser == null ? null : code;
+    }
+
+    /** Compile a version of the program in full, keeping what is needed
+     * to compile the next version incrementally if it has no errors. */
+    private void compileAll( Parser next ) {
+        discard();
+        next.setThreads( Runtime.getRuntime().availableProcessors() );
+        Tree.ProgramNode root = next.parse();
+        handler.flush();
+        System.out.println( "Parsing complete" );
+        StaticChecker staticSemantics = new StaticChecker( handler );
+        staticSemantics.visitProgramNode( root );
+        handler.flush();
+        System.out.println( "Static semantic analysis complete" );
+        if( handler.hadErrors() ) {
+            return;
+        }
+        CodeGenerator codeGen = new CodeGenerator( handler );
+        codeGen.setKeepBlocks( true );
+        code = codeGen.generateCode( root );
+        System.out.println( "Code generation complete" );
+        parser = next;
+        tree = root;
+        checker = staticSemantics;
+        generator = codeGen;
+    }
+
+    /** Discard the last version compiled */
+    private void discard() {
+        parser = null;
+        tree = null;
+        checker = null;
+        generator = null;
+        code = null;
+    }
+}
@@ -1,15 +1,30 @@
 package pl0;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.List;
 
+import dataflow.CallGraph;
+import ir.Function;
+import ir.Lowering;
+import ir.SsaBuilder;
+import ir.SsaOptimiser;
 import parser.Parser;
 import parser.Scanner;
 import source.ErrorHandler;
 import source.Errors;
 import source.Source;
+import tree.BranchOptimiser;
+import tree.BranchProfile;
 import tree.CodeGenerator;
 import tree.CodePlusProcedures;
+import tree.DefiniteAssignmentChecker;
+import tree.LoopUnrolling;
 import tree.StaticChecker;
 import tree.Tree;
+import tree.TreeCache;
 import machine.StackMachine;
 
 /** 
@@ -24,13 +39,49 @@ public class PL0_RD {
     public static void usage() {
         System.out.println(
             "PL0 Compiler\n" +
-            "Usage: java pl0.PL0_RD [-cdhptv] <filename>\n"+
+            "Usage: java pl0.PL0_RD [-cdhpstvAITV] [-C<file>] [-J<file>]\n" +
+            "       [-O<n>] [-P<file>] [-U<n>] <filename>\n"+
             "  -c  =  compile only (no execution)\n" +
             "  -d  =  debug parse\n" +
             "  -h  =  output this usage information\n" +
             "  -p  =  parse only (implies -c)\n" +
+            "  -s  =  report the number of instructions executed\n" +
             "  -t  =  trace execution of resulting code\n" +
             "  -v  =  verbose output of generated code\n" +
+            "  -A  =  hold the bodies of blocks packed into compact tables\n" +
+            "         while they are not in use, for large programs; each\n" +
+            "         pass over a body unpacks all of it again\n" +
+            "  -I  =  compile incrementally: compile again each time a\n" +
+            "         line is read from standard input, reusing what can\n" +
+            "         be of the last compilation (implies -c; not with\n" +
+            "         -O<n>, n >= 1, as it does not optimise)\n" +
+            "  -T  =  report the time, allocation and code size change\n" +
+            "         of each compilation pass\n" +
+            "  -V  =  verify the tree and code between optimisation passes\n" +
+            "  -C<file> = checked tree cache: if the file holds the tree\n" +
+            "        of this source it is read instead of scanning, parsing\n" +
+            "        and checking the source; otherwise the tree checked\n" +
+            "        is written to it\n" +
+            "  -J<file> = also write the error messages to the file as\n" +
+            "        JSON objects, one per line\n" +
+            "  -O<n> = optimisation level (default 0 = none)\n" +
+            "        1: range analysis (removing bounds checks that\n" +
+            "           cannot fail), loop-invariant code motion and\n" +
+            "           dead store elimination on the tree, then layout\n" +
+            "           of branches and scheduling of operands in the code\n" +
+            "        2: and unrolling of for loops (before the passes of\n" +
+            "           1), common subexpression elimination (before dead\n" +
+            "           store elimination) and evaluating identical\n" +
+            "           operands once\n" +
+            "        3: and code generation via the SSA form, in place\n" +
+            "           of operand scheduling and duplication (after a\n" +
+            "           runtime error the values of local variables shown\n" +
+            "           may be out of date)\n" +
+            "  -P<file> = branch profile: if the file exists its counts\n" +
+            "        guide the layout of branches (with -O<n>, n >= 1),\n" +
+            "        and the counts of this run are written to it\n" +
+            "  -U<n> = unroll factor for for loops whose body does not\n" +
+            "        use the control variable (default 4; < 2 for none)\n" +
             " <filename> is compiled, and if no errors the generated code" +
             " is executed unless -c or -p is given." );
     }
@@ -56,6 +107,26 @@ public class PL0_RD {
         boolean verbose = false;
         /** Debug mode for parser - quite verbose */
         boolean debugParse = false;
+        /** Optimisation level */
+        int optLevel = 0;
+        /** Report execution statistics */
+        boolean statistics = false;
+        /** File holding the branch profile, or null */
+        String profileFile = null;
+        /** Report the time taken by each compilation pass */
+        boolean timing = false;
+        /** Check the tree and code between optimisation passes */
+        boolean verifyPasses = false;
+        /** Number of copies of the body of a partially unrolled loop */
+        int unrollFactor = LoopUnrolling.DEFAULT_FACTOR;
+        /** File to write the error messages to as JSON lines, or null */
+        String jsonFile = null;
+        /** Compile again as the source is edited */
+        boolean incremental = false;
+        /** Hold the bodies of blocks packed while not in use */
+        boolean packBodies = false;
+        /** File caching the checked tree, or null */
+        String cacheFile = null;
 
         /* Parse command line */
         for( int i=0; i<args.length; i++ ) {
@@ -75,17 +146,53 @@ public class PL0_RD {
                     staticCheck = false;
                     executing = false;
                     break;
+                case 's': /* Statistics on execution */
+                    statistics = true;
+                    break;
                 case 't': /* Trace program at runtime. */
                     tracing = true;
                     break;
                 case 'v': /* Verbose output (of generated code) */
                     verbose = true;
                     break;
+                case 'O': /* Optimisation level */
+                    optLevel = args[i].length() > 2 ? 
+                            Integer.parseInt( args[i].substring(2) ) : 1;
+                    break;
+                case 'C': /* Checked tree cache */
+                    cacheFile = args[i].substring(2);
+                    break;
+                case 'J': /* Error messages as JSON lines */
+                    jsonFile = args[i].substring(2);
+                    break;
+                case 'P': /* Branch profile */
+                    profileFile = args[i].substring(2);
+                    break;
+                case 'U': /* Unroll factor */
+                    unrollFactor = Integer.parseInt( args[i].substring(2) );
+                    break;
+                case 'T': /* Timing of compilation passes */
+                    timing = true;
+                    break;
+                case 'V': /* Verify between optimisation passes */
+                    verifyPasses = true;
+                    break;
+                case 'A': /* Bodies of blocks packed */
+                    packBodies = true;
+                    break;
+                case 'I': /* Incremental compilation */
+                    incremental = true;
+                    break;
                 }
             } else { /* ( args[i].charAt(0) != '-' ) Not Option */
                 srcFile = args[i];
             }
         }
+        if( incremental && optLevel > 0 ) {
+            System.out.println( "Incremental compilation (-I) does not " +
+                    "optimise: -O" + optLevel + " cannot be given with it." );
+            System.exit( 1 );
+        }
         try {
             /* Set up the input source stream for the source file */
             if( srcFile == null ) {
@@ -94,17 +201,64 @@ public class PL0_RD {
             }
             src = new Source( srcFile );
             /* Set up the error handler reference */
-            errors = new ErrorHandler( System.out, src );
+            ErrorHandler handler = new ErrorHandler( System.out, src );
+            if( jsonFile != null ) {
+                handler.setJsonOutput( new PrintStream( jsonFile ) );
+            }
+            errors = handler;
+            if( incremental ) {
+                compileIncrementally( srcFile, handler, verbose );
+                return;
+            }
+            /* Set up the branch optimiser with any profile from a
+             * previous run */
+            BranchOptimiser branchOpt = null;
+            if( optLevel >= 1 ) {
+                BranchProfile profile = null;
+                if( profileFile != null && new File( profileFile ).exists() ) {
+                    try {
+                        profile = BranchProfile.read( profileFile );
+                    } catch( IOException e ) {
+                        System.out.println( "Branch profile " + profileFile +
+                                " not used: " + e.getMessage() );
+                    }
+                }
+                branchOpt = new BranchOptimiser( profile );
+            }
+            /* Set up the optimisation passes for the level */
+            PassManager passes = PassManager.forLevel( optLevel,
+                    unrollFactor, errors );
+            passes.setVerify( verifyPasses );
+            if( branchOpt != null ) {
+                passes.addCodePass( branchOpt );
+            }
             /* Compile the program */
-            code = compile( src, errors, verbose, staticCheck, debugParse );
+            code = compile( src, errors, verbose, staticCheck, debugParse,
+                    optLevel, passes, packBodies, cacheFile );
+            if( timing ) {
+                passes.report( System.out );
+            }
             if( code != null ) { /* run it if possible */
                 StackMachine machine;
                 machine = new StackMachine( errors, verbose, code );
+                machine.setLocalsCurrent( optLevel < 3 );
                 if( executing ) {
                     System.out.println( "Running ..." );
                     machine.setTracing( tracing ? StackMachine.TRACE_ALL 
                                      : StackMachine.TRACE_NONE );
+                    machine.setBranchProfiling( profileFile != null );
                     machine.run();
+                    if( statistics ) {
+                        System.out.println( "Instructions executed: " +
+                                machine.getInstructionsExecuted() );
+                    }
+                    if( profileFile != null && branchOpt != null ) {
+                        branchOpt.getProfile( code.getInstructionList(),
+                                StackMachine.CODE_START, machine )
+                            .write( profileFile );
+                        System.out.println( "Branch profile written to " +
+                                profileFile );
+                    }
                 }
             }
         } catch( IOException e ) {
@@ -113,6 +267,45 @@ public class PL0_RD {
         }
     }
 
+    /** Compile the program, and then compile it again each time a line
+     * is read from standard input, until its end, compiling only what has
+     * changed where possible.
+     * @param srcFile name of the program source file
+     * @param handler for errors
+     * @param verbose list the generated code
+     */
+    private static void compileIncrementally( String srcFile,
+            ErrorHandler handler, boolean verbose ) throws IOException {
+        IncrementalCompiler compiler = new IncrementalCompiler( handler );
+        BufferedReader input = 
+            new BufferedReader( new InputStreamReader( System.in ) );
+        do {
+            long start = System.nanoTime();
+            CodePlusProcedures code = compiler.compile( new Source( srcFile ) );
+            System.out.println( "Compiled in " + 
+                    (System.nanoTime() - start) / 1000000 + " ms" );
+            if( code != null && verbose ) {
+                /* List the code */
+                new StackMachine( handler, verbose, code );
+            }
+        } while( input.readLine() != null );
+    }
+
+    /** Write the checked tree to the cache file; the compilation goes on
+     * if it cannot be written */
+    private static void writeCache( String cacheFile, Source src,
+            Tree.ProgramNode tree, PassManager passes ) {
+        passes.begin( "write checked tree" );
+        try {
+            TreeCache.write( cacheFile, src, tree );
+            System.out.println( "Checked tree written to " + cacheFile );
+        } catch( IOException e ) {
+            System.out.println( "Checked tree cache " + cacheFile +
+                    " not written: " + e.getMessage() );
+        }
+        passes.end();
+    }
+
     /** Compile the program
      * 
      * @param src program source
@@ -120,10 +313,18 @@ public class PL0_RD {
      * @param verbose generate more messages during compilation
      * @param staticCheck do the static checking
      * @param debugParse debugging messages during parsing 
+     * @param optLevel level of optimisation of the tree before code
+     *        generation; 0 for none
+     * @param passes manager holding the optimisation passes to apply to
+     *        the tree and the generated code
+     * @param packBodies hold the bodies of blocks packed while not in use
+     * @param cacheFile file caching the checked tree, or null
      * @return generated code and procedure addresses table
      */
     private static CodePlusProcedures compile( Source src, Errors errors,
-            boolean verbose, boolean staticCheck, boolean debugParse ) 
+            boolean verbose, boolean staticCheck, boolean debugParse,
+            int optLevel, PassManager passes, boolean packBodies,
+            String cacheFile ) 
         throws IOException, Exception
     {
         /** Abstract syntax tree returned by parser */
@@ -134,38 +335,113 @@ public class PL0_RD {
         Tree.ProgramNode parseResult; 
         
         System.out.println( "Compiling " + src.getFileName() );
-        try {
-            /* Set up the lexical analyzer using the source program stream */
-            Scanner lex = new Scanner( src );
-            /** Recursive descent parser.
-             * Set up the parser with the lexical analyzer. */
-            Parser parser = new Parser( lex, debugParse );
-            parseResult = parser.parse();
-            /* Flush any error messages from the parse */
-            errors.flush();
-            System.out.println( "Parsing complete" );
-            if( staticCheck && parseResult instanceof Tree.ProgramNode ) {
-                tree = (Tree.ProgramNode)parseResult;
-                /* Perform the static semantics analysis */
-                StaticChecker staticSemantics = 
-                    new StaticChecker( ErrorHandler.getErrorHandler() );
-                staticSemantics.visitProgramNode( tree );           
-                /* Don't generate any code if there are any errors. */
-                if( ErrorHandler.getErrorHandler().hadErrors() ) {
-                    /* Skip code generation if there were errors */
-                    tree = null;
-                }
+        if( staticCheck && cacheFile != null && 
+                new File( cacheFile ).exists() ) {
+            /* Use the checked tree of this source from a previous run */
+            passes.begin( "read checked tree" );
+            try {
+                tree = TreeCache.read( cacheFile, src, packBodies );
+            } catch( IOException e ) {
+                System.out.println( "Checked tree cache " + cacheFile +
+                        " not used: " + e.getMessage() );
+            }
+            passes.end();
+            if( tree != null ) {
+                System.out.println( "Checked tree read from " + cacheFile );
+            }
+        }
+        if( tree == null ) {
+            try {
+                /* Set up the lexical analyzer using the source program
+                 * stream */
+                Scanner lex = new Scanner( src );
+                /* Large programs are scanned in parallel */
+                lex.setThreads( Runtime.getRuntime().availableProcessors() );
+                /** Recursive descent parser.
+                 * Set up the parser with the lexical analyzer. */
+                Parser parser = new Parser( lex, debugParse );
+                /* Large programs have their procedure bodies parsed in
+                 * parallel */
+                parser.setThreads( Runtime.getRuntime().availableProcessors() );
+                parser.setPackBodies( packBodies );
+                passes.begin( "parse" );
+                parseResult = parser.parse();
+                passes.end();
+                /* Flush any error messages from the parse */
                 errors.flush();
-                System.out.println( "Static semantic analysis complete" );
+                System.out.println( "Parsing complete" );
+                if( staticCheck && parseResult instanceof Tree.ProgramNode ) {
+                    tree = (Tree.ProgramNode)parseResult;
+                    /* Perform the static semantics analysis */
+                    StaticChecker staticSemantics = 
+                        new StaticChecker( ErrorHandler.getErrorHandler() );
+                    passes.begin( "static check" );
+                    staticSemantics.visitProgramNode( tree );           
+                    passes.end();
+                    /* Don't generate any code if there are any errors. */
+                    if( ErrorHandler.getErrorHandler().hadErrors() ) {
+                        /* Skip code generation if there were errors */
+                        tree = null;
+                    }
+                    errors.flush();
+                    System.out.println( "Static semantic analysis complete" );
+                    if( tree != null && cacheFile != null ) {
+                        writeCache( cacheFile, src, tree, passes );
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println( "Exception: " + e + "... Aborting" );
+                System.exit(1);
             }
-        } catch (IOException e) {
-            System.out.println( "Exception: " + e + "... Aborting" );
-            System.exit(1);
+        }
+        if( tree != null && verbose && optLevel >= 1 ) {
+            /* List the side effects of the procedures the optimiser uses */
+            System.out.print( new CallGraph( tree ) );
+        }
+        if( tree != null ) {
+            /* Warn of uses of variables that may not have been assigned */
+            passes.begin( "definite assignment" );
+            new DefiniteAssignmentChecker( errors ).visitProgramNode( tree );
+            passes.end();
+            errors.flush();
         }
         if( tree != null ) {
+            /* Optimise the tree */
+            passes.runTreePasses( tree );
+        }
+        if( tree != null && optLevel >= 3 ) {
+            /* Generate code via the SSA intermediate representation */
+            passes.begin( "SSA construction" );
+            List<Function> functions = new SsaBuilder( errors ).build( tree );
+            passes.end();
+            SsaOptimiser ssaOpt = new SsaOptimiser();
+            passes.begin( "SSA optimisation" );
+            ssaOpt.optimise( functions );
+            passes.end();
+            System.out.println( "Optimisation complete: " + 
+                    ssaOpt.getFolded() + " SSA values folded, " +
+                    ssaOpt.getBranchesFolded() + " branches folded, " +
+                    ssaOpt.getRemoved() + " instructions removed" );
+            if( verbose ) {
+                for( Function f : functions ) {
+                    System.out.print( f );
+                }
+            }
+            Lowering lowering = new Lowering();
+            lowering.setCodePass( passes );
+            passes.begin( "code generation" );
+            code = lowering.generateCode( functions );
+            passes.end();
+            System.out.println( "Code generation complete" );
+        } else if( tree != null ) {
             /* Generate the stack machine code */
             CodeGenerator codeGen = new CodeGenerator( errors );
+            codeGen.setDuplicateOperands( optLevel >= 2 );
+            codeGen.setScheduleOperands( optLevel >= 1 );
+            codeGen.setCodePass( passes );
+            passes.begin( "code generation" );
             code = codeGen.generateCode( tree );
+            passes.end();
             System.out.println( "Code generation complete" );
         }
         errors.flush();
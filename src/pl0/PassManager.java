@@ -0,0 +1,291 @@
+package pl0;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import machine.Instruction;
+import source.Errors;
+import source.Position;
+import source.Severity;
+import tree.Code;
+import tree.CodePass;
+import tree.CommonSubexpressions;
+import tree.DeadStoreElimination;
+import tree.LoopInvariantMotion;
+import tree.LoopUnrolling;
+import tree.RangeAnalysis;
+import tree.Tree;
+import tree.TreePass;
+import tree.TreeVerifier;
+
+/**
+ * class PassManager - runs the optimisation passes of the compiler in
+ * their configured order and measures each of them.
+ * Tree passes are run over the abstract syntax tree of a checked program
+ * (runTreePasses), and code passes over the generated code before it is
+ * laid out; the manager is itself a code pass that runs its code passes
+ * in turn, so it may be given to the code generator.
+ * The standard passes for each optimisation level are given by forLevel:
+ *   -O1: range analysis, loop-invariant code motion and dead store
+ *        elimination;
+ *   -O2: and unrolling of for loops (first) and common subexpression
+ *        elimination (before dead store elimination).
+ * The code passes (branch layout) and the code generator options
+ * depend on the level in the same way, but are set up by the caller.
+ * Other phases of the compilation may be measured with begin and end;
+ * phases may be nested.
+ * For each pass or phase the wall clock time and the bytes allocated by
+ * the compiling thread are recorded, along with the size of the code (in
+ * words) before and after each code pass. Where the JVM cannot report
+ * the bytes allocated by a thread the growth of the heap in use is
+ * recorded instead, which is less accurate.
+ * If verification is enabled the tree is checked (see TreeVerifier)
+ * before the first tree pass and after each one, and the code is checked
+ * after generation and after each code pass; a problem is reported as a
+ * fatal error naming the pass that caused it.
+ */
+public class PassManager implements CodePass {
+
+    /** Measurements of a pass or phase */
+    private static class Measurement {
+        final String name;
+        /** Nesting depth of the phase */
+        final int depth;
+        long nanos;
+        long bytes;
+        /** Code size before and after, or -1 if not a code pass */
+        int sizeBefore = -1;
+        int sizeAfter = -1;
+
+        Measurement( String name, int depth ) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    /** Handler for verification failures */
+    private Errors errors;
+    private List<TreePass> treePasses;
+    private List<CodePass> codePasses;
+    /** Check the tree and code between passes */
+    private boolean verify;
+    /** Measurements in the order the passes and phases were started */
+    private List<Measurement> measurements;
+    /** Phases started but not yet ended, with their start time and
+     * allocation */
+    private List<Measurement> open;
+    private List<long[]> openStart;
+    private ThreadMXBean threads;
+
+    public PassManager( Errors errors ) {
+        this.errors = errors;
+        treePasses = new ArrayList<TreePass>();
+        codePasses = new ArrayList<CodePass>();
+        verify = false;
+        measurements = new ArrayList<Measurement>();
+        open = new ArrayList<Measurement>();
+        openStart = new ArrayList<long[]>();
+        threads = ManagementFactory.getThreadMXBean();
+    }
+
+    /** @return a manager with the standard tree passes for the given
+     * optimisation level
+     * @param unrollFactor number of copies of the body of a partially
+     *        unrolled loop (see LoopUnrolling) */
+    public static PassManager forLevel( int optLevel, int unrollFactor,
+            Errors errors ) {
+        PassManager manager = new PassManager( errors );
+        if( optLevel >= 2 ) {
+            /* Unroll for loops with constant bounds */
+            LoopUnrolling unrolling = new LoopUnrolling();
+            unrolling.setFactor( unrollFactor );
+            manager.addTreePass( unrolling );
+        }
+        if( optLevel >= 1 ) {
+            /* Remove subrange bounds checks that can never fail */
+            manager.addTreePass( new RangeAnalysis() );
+            /* Hoist loop invariant computations out of loops */
+            manager.addTreePass( new LoopInvariantMotion() );
+        }
+        if( optLevel >= 2 ) {
+            /* Share values computed more than once within basic blocks */
+            manager.addTreePass( new CommonSubexpressions() );
+        }
+        if( optLevel >= 1 ) {
+            /* Remove dead stores and unused variables from frames */
+            manager.addTreePass( new DeadStoreElimination() );
+        }
+        return manager;
+    }
+
+    /** Add a pass to be run (after those already added) on the tree */
+    public void addTreePass( TreePass pass ) {
+        treePasses.add( pass );
+    }
+    /** Add a pass to be run (after those already added) on the code */
+    public void addCodePass( CodePass pass ) {
+        codePasses.add( pass );
+    }
+    /** Specify whether the tree and code are checked between passes */
+    public void setVerify( boolean verify ) {
+        this.verify = verify;
+    }
+
+    /*-------------------- Running the passes -------------------------*/
+
+    /** Run the tree passes in order over the tree of a checked program */
+    public void runTreePasses( Tree.ProgramNode tree ) {
+        if( verify ) {
+            verifyTree( "static checker", tree );
+        }
+        for( TreePass pass : treePasses ) {
+            start( pass.getName() );
+            pass.run( tree );
+            end();
+            System.out.println( "Optimisation complete: " +
+                    pass.getSummary() );
+            if( verify ) {
+                verifyTree( pass.getName(), tree );
+            }
+            /* Pack again any bodies held packed that the pass used */
+            tree.getBlock().releaseAll();
+        }
+    }
+
+    public String getName() {
+        return "code passes";
+    }
+
+    /** Run the code passes in order over the generated code */
+    public void run( Code code ) {
+        if( verify ) {
+            verifyCode( "code generator", code );
+        }
+        for( CodePass pass : codePasses ) {
+            Measurement m = start( pass.getName() );
+            m.sizeBefore = code.size();
+            pass.run( code );
+            end();
+            m.sizeAfter = code.size();
+            System.out.println( "Optimisation complete: " +
+                    pass.getSummary() );
+            if( verify ) {
+                verifyCode( pass.getName(), code );
+            }
+        }
+    }
+
+    public String getSummary() {
+        return codePasses.size() + " code passes run";
+    }
+
+    /*-------------------- Measurement --------------------------------*/
+
+    /** Start measuring a phase of the compilation; it ends at the
+     * matching call of end. */
+    public void begin( String name ) {
+        start( name );
+    }
+
+    private Measurement start( String name ) {
+        Measurement m = new Measurement( name, open.size() );
+        measurements.add( m );
+        open.add( m );
+        openStart.add( new long[] { System.nanoTime(), allocatedBytes() } );
+        return m;
+    }
+
+    /** End the most recently begun phase that has not ended. */
+    public void end() {
+        long now = System.nanoTime();
+        long bytes = allocatedBytes();
+        Measurement m = open.remove( open.size() - 1 );
+        long[] start = openStart.remove( openStart.size() - 1 );
+        m.nanos = now - start[0];
+        m.bytes = Math.max( 0, bytes - start[1] );
+    }
+
+    /** @return the bytes allocated so far by this thread, or if that is
+     * not available, the heap space in use */
+    private long allocatedBytes() {
+        if( threads instanceof com.sun.management.ThreadMXBean ) {
+            com.sun.management.ThreadMXBean sunThreads =
+                (com.sun.management.ThreadMXBean)threads;
+            if( sunThreads.isThreadAllocatedMemoryEnabled() ) {
+                return sunThreads.getThreadAllocatedBytes(
+                        Thread.currentThread().getId() );
+            }
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Print a table of the measurements of the passes and phases. */
+    public void report( PrintStream out ) {
+        out.println( "Pass                                 time(ms)" +
+                "      alloc(KB)  code size" );
+        for( Measurement m : measurements ) {
+            StringBuilder name = new StringBuilder();
+            for( int i = 0; i < m.depth; i++ ) {
+                name.append( "  " );
+            }
+            name.append( m.name );
+            String size = m.sizeBefore < 0 ? "" :
+                m.sizeBefore + " -> " + m.sizeAfter +
+                " (" + (m.sizeAfter - m.sizeBefore) + ")";
+            out.println( String.format( "  %-33s %10.3f %14d  %s",
+                    name, m.nanos / 1e6, m.bytes / 1024, size ) );
+        }
+    }
+
+    /*-------------------- Verification -------------------------------*/
+
+    /** Check the tree as left by the named pass */
+    private void verifyTree( String passName, Tree.ProgramNode tree ) {
+        TreeVerifier verifier = new TreeVerifier();
+        List<String> problems = verifier.verify( tree );
+        for( int i = 0; i < problems.size(); i++ ) {
+            errors.errorMessage( "after " + passName + ": " +
+                    problems.get( i ), Severity.ERROR,
+                    verifier.getPositions().get( i ) );
+        }
+        if( !problems.isEmpty() ) {
+            errors.errorMessage( "Tree verification failed after " +
+                    passName, Severity.FATAL, Position.NO_POSITION );
+        }
+    }
+
+    /** Check the code as left by the named pass: every label is placed
+     * once, and every branch is to a label that is placed. */
+    private void verifyCode( String passName, Code code ) {
+        Set<Instruction.Label> placed = new HashSet<Instruction.Label>();
+        List<String> problems = new ArrayList<String>();
+        for( Instruction inst : code ) {
+            if( inst instanceof Instruction.Label &&
+                    !placed.add( (Instruction.Label)inst ) ) {
+                problems.add( "label " + inst + " placed more than once" );
+            }
+        }
+        for( Instruction inst : code ) {
+            if( inst instanceof Instruction.BranchInstruction ) {
+                Instruction.Label target =
+                    ((Instruction.BranchInstruction)inst).getTarget();
+                if( target == null || !placed.contains( target ) ) {
+                    problems.add( "branch " + inst + " to a missing label" );
+                }
+            }
+        }
+        for( String problem : problems ) {
+            errors.errorMessage( "after " + passName + ": " + problem,
+                    Severity.ERROR, Position.NO_POSITION );
+        }
+        if( !problems.isEmpty() ) {
+            errors.errorMessage( "Code verification failed after " +
+                    passName, Severity.FATAL, Position.NO_POSITION );
+        }
+    }
+}
@@ -35,6 +35,9 @@ public class CompileError implements Comparable<CompileError> {
     public Position getPosition() {
         return position;
     }
+    public String getMessage() {
+        return message;
+    }
     public Severity getSeverity() {
         return severity;
     }
@@ -1,8 +1,4 @@
 package source;
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -11,11 +7,18 @@ import java.util.List;
 /**
  * class ErrorHandler - Handles error message generated by the compiler.
  * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ * Messages are listed with the source line they refer to, taken from the
+ * text already loaded by the Source and located with its line index. Each
+ * listing is rendered into a buffer and written to the output at once.
+ * The messages may also be written for tools as a stream of JSON objects,
+ * one per line (see setJsonOutput).
  */
 public class ErrorHandler implements Errors 
 {
     private static final int LINE_NUM_WIDTH = 6;
     private static final int MAX_ERRORS = 100;
+    private static final String LINE_SEPARATOR =
+        System.getProperty( "line.separator" );
 
     /** global handle on the singleton error handler. */
     private static ErrorHandler handler = null;
@@ -24,23 +27,47 @@ public class ErrorHandler implements Errors
     private List<CompileError> errors;
     /** Number of errors. */
     private int numberOfErrors;
+    /** Number of warnings and other messages less severe than errors;
+     * these are listed but are not counted as errors. */
+    private int numberOfWarnings;
     /** Output stream to report errors to. */
     private PrintStream output;
     /** Input source file to print lines of source with error message. */
     private Source source;
-    /** Used for accessing source file. */
-    private BufferedReader inputStream;
-    /** Index with source file. */
-    private int inputIndex;
+    /** Stream to write messages to as JSON lines, or null. */
+    private PrintStream jsonOutput;
 
     public ErrorHandler( PrintStream output, Source source ) {
         assert handler == null; // only one instance allowed
         this.errors = new ArrayList<CompileError>( MAX_ERRORS );
         this.numberOfErrors = 0;
+        this.numberOfWarnings = 0;
         this.output = output;
         this.source = source;
+        this.jsonOutput = null;
         handler = this;
     }
+    /** Also write each message listed to the given stream as a JSON
+     * object on a line of its own, with the fields
+     *   file, severity (e.g. "error"), line and column (from 1; null if
+     *   the message has no position), offset (the index of the position
+     *   in the source, or null) and message.
+     * @param json stream for the messages, or null for none
+     */
+    public void setJsonOutput( PrintStream json ) {
+        this.jsonOutput = json;
+    }
+    /** Begin handling the errors of another compilation, e.g., of an
+     * edited version of the source: any pending messages are discarded
+     * and the count of errors is reset.
+     * @param source program to be compiled
+     */
+    public void reset( Source source ) {
+        this.errors.clear();
+        this.numberOfErrors = 0;
+        this.numberOfWarnings = 0;
+        this.source = source;
+    }
     /** count errors of each severity for the program. 
     private Map<Severity, Integer> errorCounts = 
         new EnumMap<Severity, Integer>( Severity.class ); 
@@ -56,12 +83,18 @@ public class ErrorHandler implements Errors
      * but a count of the total number of errors maintained.
      * A FATAL error causes the accumulated error messages
      * to be flushed and a Java Fatal Error to be thrown.
+     * A message less severe than an ERROR, e.g., a WARNING, is counted
+     * separately, so it does not prevent code being generated.
      */
     public void errorMessage( CompileError error ) {
-        if( numberOfErrors < MAX_ERRORS ) {
+        if( numberOfErrors + numberOfWarnings < MAX_ERRORS ) {
             errors.add( error );
         }
-        numberOfErrors++;
+        if( error.getSeverity().compareTo( Severity.ERROR ) > 0 ) {
+            numberOfWarnings++;
+        } else {
+            numberOfErrors++;
+        }
         if( error.getSeverity() == Severity.FATAL ) {
             listMessages();
             errorSummary();
@@ -86,7 +119,8 @@ public class ErrorHandler implements Errors
         listMessages();
         errors.clear();
     }
-    /** errorSummary reports the number of errors detected. */
+    /** errorSummary reports the number of errors detected, and of
+     * warnings, if there were any. */
     public void errorSummary() {
         if( numberOfErrors == 0 ) {
             output.println( "No errors detected." );
@@ -95,6 +129,11 @@ public class ErrorHandler implements Errors
         } else {
             output.println( numberOfErrors + " errors detected." );
         }
+        if( numberOfWarnings == 1 ) {
+            output.println( "1 warning reported." );
+        } else if( numberOfWarnings > 1 ) {
+            output.println( numberOfWarnings + " warnings reported." );
+        }
     }
     /** hadErrors   
      * @return true if an error has been recorded.  
@@ -107,79 +146,111 @@ public class ErrorHandler implements Errors
      * relates a source line the position is indicated by an arrow.
      */      
     public void listMessages() {
-        try {
-            inputStream = new BufferedReader( 
-                    new FileReader( source.getFileName() ) );
-        } catch (FileNotFoundException e1) {
-            System.err.println( "ErrorHandler.listmessages: " +
-                    source.getFileName() + " not found");
-            System.exit(1);
-        }
-        inputIndex = 0;
+        StringBuilder text = new StringBuilder();
+        StringBuilder json = new StringBuilder();
         int previousLineNumber = -1;
         Collections.sort( errors );
         for( CompileError e : errors ) {
             int lineNumber = previousLineNumber;
+            int offset = -1;
             if( ! e.getPosition().equals( Position.NO_POSITION ) ) {
                 lineNumber = source.getLineNumber( e.getPosition() );
+                offset = source.offset( e.getPosition() );
                 if( lineNumber != previousLineNumber ) {
-                    printPaddedInteger( output, lineNumber, LINE_NUM_WIDTH );
-                    output.print( ' ' );
-                    printLine( e.getPosition() );
-                }
-                errorPad( output, LINE_NUM_WIDTH );
-                output.print( ' ' );
-                for( int i = 0; i < source.offset( e.getPosition() ); i++ ) {
-                    output.print( ' ' );
+                    pad( text, Integer.toString( lineNumber ), ' ',
+                            LINE_NUM_WIDTH );
+                    text.append( ' ' );
+                    appendLine( text, e.getPosition() );
                 }
-                output.print( "^ " );
+                pad( text, "", '*', LINE_NUM_WIDTH );
+                text.append( ' ' );
+                pad( text, "", ' ', offset );
+                text.append( "^ " );
             } else {
-                errorPad( output, LINE_NUM_WIDTH );
-                output.print( ' ' );
+                pad( text, "", '*', LINE_NUM_WIDTH );
+                text.append( ' ' );
+            }
+            text.append( e.toString() ).append( LINE_SEPARATOR );
+            if( jsonOutput != null ) {
+                appendJson( json, e, lineNumber, offset );
             }
-            output.println( e.toString() );
             previousLineNumber = lineNumber;
         }
+        output.print( text );
+        output.flush();
+        if( jsonOutput != null ) {
+            jsonOutput.print( json );
+            jsonOutput.flush();
+        }
     }
     
-    /** Print the line from source file.
+    /** Append the line from source file.
      * @param position within source file - the line containing that 
-     *        position is printed.
-     * inputIndex is updated to keep track of the current position 
-     * within the input stream of the source file.
+     *        position is appended, with its newline if it has one.
      */
-    private void printLine( Position position ) {
-        try {
-            int ch;
-            int startOfLine = source.getLineStart( position ).getIndex();
-            inputStream.skip( startOfLine - inputIndex );
-            inputIndex = startOfLine;
-            do {
-                ch = inputStream.read();
-                if( ch < 0 ) {
-                    break;
-                }
-                output.write( ch );
-                inputIndex++;
-            } while( ch != '\n' );
-        } catch( IOException e ) {
-            System.err.println( "IOException printing error messages" );
-        }
+    private void appendLine( StringBuilder text, Position position ) {
+        text.append( source.getLine( position ) );
     }
     
-    /** Print value in the number of columns given. */
-    private void printPaddedInteger( PrintStream output, int val, int cols ) {
-        String s = Integer.toString(val);
-        for (int i = s.length(); i<cols; i++ ) {
-            output.print(' ');
+    /** Append s, preceded by as many pad characters as make it up to the
+     * number of columns given. */
+    private static void pad( StringBuilder text, String s, char pad,
+            int cols ) {
+        for( int i = s.length(); i < cols; i++ ) {
+            text.append( pad );
         }
-        output.print( s );
+        text.append( s );
     }
-    
-    /** Print asterisks to width of line number column. */
-    private void errorPad( PrintStream output, int width ) {
-        for( int i = 0; i < width; i++ ) {
-            output.print( '*' );
+
+    /** Append a message as a JSON object on a line of its own */
+    private void appendJson( StringBuilder json, CompileError e,
+            int lineNumber, int offset ) {
+        boolean positioned = offset >= 0;
+        json.append( "{\"file\":" );
+        quote( json, source.getFileName() );
+        json.append( ",\"severity\":" );
+        quote( json, e.getSeverity().name().toLowerCase() );
+        json.append( ",\"line\":" )
+            .append( positioned ? Integer.toString( lineNumber ) : "null" );
+        json.append( ",\"column\":" )
+            .append( positioned ? Integer.toString( offset + 1 ) : "null" );
+        json.append( ",\"offset\":" )
+            .append( positioned ? 
+                Integer.toString( e.getPosition().getIndex() ) : "null" );
+        json.append( ",\"message\":" );
+        quote( json, e.getMessage() );
+        json.append( "}" ).append( LINE_SEPARATOR );
+    }
+
+    /** Append s as a JSON string */
+    private static void quote( StringBuilder json, String s ) {
+        json.append( '"' );
+        for( int i = 0; i < s.length(); i++ ) {
+            char ch = s.charAt( i );
+            switch( ch ) {
+            case '"':
+                json.append( "\\\"" );
+                break;
+            case '\\':
+                json.append( "\\\\" );
+                break;
+            case '\n':
+                json.append( "\\n" );
+                break;
+            case '\r':
+                json.append( "\\r" );
+                break;
+            case '\t':
+                json.append( "\\t" );
+                break;
+            default:
+                if( ch < ' ' ) {
+                    json.append( String.format( "\\u%04x", (int)ch ) );
+                } else {
+                    json.append( ch );
+                }
+            }
         }
+        json.append( '"' );
     }
 }
@@ -1,57 +1,102 @@
 package source;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
-/** 
+/**
  * class LinePositions - tracks the positions of lines within text file.
  * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
+ * The index of the end of each line is held in an int array, which is
+ * searched by bisection; as lookups tend to be for the same or following
+ * lines the line found last is tried first.
  */
 
 public class LinePositions {
 
-    private List<Position> lineEnds;
-    
+    /** Index of the end of each line; that of line 0 is -1 */
+    private int[] lineEnds;
+    /** Number of entries used in lineEnds */
+    private int count;
+    /** Line number returned by the last lookup */
+    private int lastLine;
+
     LinePositions() {
-        this.lineEnds = new ArrayList<Position>();
-        this.lineEnds.add( new Position( -1 ) );
+        this.lineEnds = new int[64];
+        this.lineEnds[0] = -1;
+        this.count = 1;
+        this.lastLine = 0;
     }
     /** Add an end-of-line position.
      * @requires the new position greater than or equal to previous last position.
      */
     void add( Position p ) {
-        assert endLast().compareTo( p ) <= 0;
+        add( p.getIndex() );
+    }
+    /** Add the index of an end of line. */
+    void add( int end ) {
+        assert lineEnds[count - 1] <= end;
         // Add line only if nonempty
-        if( endLast().compareTo( p ) != 0 ) {
-            lineEnds.add( p );
+        if( lineEnds[count - 1] != end ) {
+            if( count == lineEnds.length ) {
+                int[] larger = new int[2 * count];
+                System.arraycopy( lineEnds, 0, larger, 0, count );
+                lineEnds = larger;
+            }
+            lineEnds[count++] = end;
+        }
+    }
+    /** Add the ends of the lines of the whole of the text: each newline,
+     * and the end of the text. */
+    void addLines( char[] text ) {
+        for( int i = 0; i < text.length; i++ ) {
+            if( text[i] == '\n' ) {
+                add( i );
+            }
         }
+        add( text.length );
     }
     /** Retrieve the line number on which the given position occurs.
      * @requires the position is not greater than the end of the last line.
      */
     int getLineNumber( Position p ) {
         assert endLast().compareTo( p ) >= 0;
-        int index = Collections.binarySearch( lineEnds, p );
-        if( 0 <= index ) {
-            return index;
-        } else {
-            return -(index+1);
+        return getLineNumber( p.getIndex() );
+    }
+    /** @return the number of the first line whose end is at or after
+     * index */
+    private int getLineNumber( int index ) {
+        int line = lastLine;
+        if( line < count && index <= lineEnds[line] &&
+                (line == 0 || lineEnds[line - 1] < index) ) {
+            return line;
+        }
+        int low = 0;
+        int high = count;
+        while( low < high ) {
+            int mid = (low + high) >>> 1;
+            if( lineEnds[mid] < index ) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
+        lastLine = low;
+        return low;
     }
     /** Get the position of the start of the line that contains position p.
      */
     Position getLineStart( Position p ) {
-        Position endPrevious = lineEnds.get( getLineNumber( p ) - 1 );
-        return new Position( endPrevious.getIndex() + 1 );
+        return new Position( lineStart( getLineNumber( p ) ) );
     }
     /** Get the offset of position p from the start of the line on which
      * it occurs.
      */
     int offset( Position p ) {
-        return p.offset( getLineStart( p ) );
+        return p.getIndex() - lineStart( getLineNumber( p ) );
+    }
+    /** @return the index of the start of the given line */
+    private int lineStart( int line ) {
+        return lineEnds[line - 1] + 1;
     }
     /** Get the position of the end of the last line. */
     Position endLast() {
-        return lineEnds.get( lineEnds.size() - 1 );
+        return new Position( lineEnds[count - 1] );
     }
 }
@@ -15,6 +15,11 @@ public class Position implements Comparable<Position> {
     public Position( int pos ) {
         this.index = pos;
     }
+    /** @return the position with the given index; NO_POSITION itself for
+     * its index, so that positions held as their indices round trip */
+    public static Position valueOf( int index ) {
+        return index == NO_POSITION.index ? NO_POSITION : new Position( index );
+    }
     /** Position are ordered by their indices. */
     public int compareTo( Position that ) {
         if( this.index < that.index ) {
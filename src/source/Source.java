@@ -1,70 +1,207 @@
 package source;
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 
-/** 
+/**
  * class Source - Handles the input character-by-character.
  * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
  * To interface with JFlex this class has to extend java.io.Reader.
+ * The source file is mapped into memory rather than read through a chain
+ * of buffers. When the characters or the positions of its lines are first
+ * needed the mapped bytes are scanned once for line ends; if they are all
+ * ASCII (as PL0 programs nearly always are) they are the characters, and
+ * positions in the source are indices of the bytes. The lexical analyser
+ * scans them directly (see getBytes), and only the lines quoted in
+ * diagnostics are ever made into characters (see getLine). Otherwise the
+ * file is decoded as UTF-8 into a single array of characters, positions
+ * are indices into that array, and getText gives the lexical analyser the
+ * array itself.
+ * A source may also be given as a string, for programs not held in files.
  */
 public class Source extends java.io.Reader {
 
     /** Name of the input source file. */
     private String fileName;
-    /** Buffered reader for input source file */
-    private BufferedReader input;
+    /** Contents of the source file, mapped into memory. */
+    private ByteBuffer bytes;
+    /** Characters of the source file, or null if it is ASCII or not yet
+     * scanned. */
+    private char[] text;
+    /** Has the source been found to be ASCII, so that bytes holds its
+     * characters? */
+    private boolean ascii;
     /** Provides the positions of the end of every line. */
     private LinePositions linePositions;
-    /** Current position in the input source file. */
+    /** Position of the next character returned by read. */
     private int currentPosn;
 
-    public Source( String filename ) 
+    public Source( String filename )
             throws java.io.IOException {
         this( new FileInputStream(filename), filename );
     }
 
-    private Source( FileInputStream in, String inFile ) {
-        input = new BufferedReader( new InputStreamReader( in ) );
+    private Source( FileInputStream in, String inFile ) throws IOException {
+        try {
+            FileChannel channel = in.getChannel();
+            bytes = channel.map( FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size() );
+        } finally {
+            /* The mapping remains valid after the file is closed */
+            in.close();
+        }
         fileName = inFile;
         currentPosn = 0;
         linePositions = new LinePositions();
-    }    
+    }
+    /** Construct a source that is not read from a file
+     * @param name name by which the source is known in messages
+     * @param program text of the source program */
+    public Source( String name, String program ) {
+        fileName = name;
+        currentPosn = 0;
+        linePositions = new LinePositions();
+        text = program.toCharArray();
+        linePositions.addLines( text );
+    }
     public String getFileName() {
         return fileName;
     }
-    /* Close input stream any flush out any error messages */
+    /** Release the source file; nothing is held open once mapped */
     public void close() throws IOException {
-        input.close();
+    }
+    /** @return the characters of the source file, decoding them if it
+     * is ASCII, in which case getBytes avoids the copy; the array is shared
+     * and must not be modified. */
+    public char[] getText() {
+        scan();
+        if( text == null ) {
+            int size = bytes.limit();
+            text = new char[size];
+            for( int i = 0; i < size; i++ ) {
+                text[i] = (char)bytes.get( i );
+            }
+        }
+        return text;
+    }
+    /** @return the mapped bytes of the source file if it is ASCII, so
+     * that each byte is a character and its index is its position; or
+     * null if it is not ASCII or not held in a file. The buffer's position
+     * and limit are its own; it must be read by index only. */
+    public ByteBuffer getBytes() {
+        scan();
+        return ascii ? bytes.duplicate() : null;
+    }
+    /** @return the number of characters in the source file. */
+    public int length() {
+        scan();
+        return ascii ? bytes.limit() : text.length;
+    }
+    /** @return the line containing pos, with its newline if it has one;
+     * only the characters of that line are decoded. */
+    public String getLine( Position pos ) {
+        int start = getLineStart( pos ).getIndex();
+        int size = length();
+        int end = start;
+        if( ascii ) {
+            while( end < size && bytes.get( end ) != '\n' ) {
+                end++;
+            }
+            if( end < size ) {
+                end++; /* include the newline */
+            }
+            char[] chars = new char[end - start];
+            for( int i = start; i < end; i++ ) {
+                chars[i - start] = (char)bytes.get( i );
+            }
+            return new String( chars );
+        }
+        while( end < size && text[end] != '\n' ) {
+            end++;
+        }
+        if( end < size ) {
+            end++; /* include the newline */
+        }
+        return new String( text, start, end - start );
     }
     /** Get the line number containing pos. */
     public int getLineNumber( Position pos ) {
+        scan();
         return linePositions.getLineNumber( pos );
     }
     /** Get the position of the start of the line containing pos. */
     public Position getLineStart(Position pos) {
+        scan();
         return linePositions.getLineStart( pos );
     }
     /** Get the offset of pos from the start of the line containing it. */
     public int offset( Position pos ) {
+        scan();
         return linePositions.offset( pos );
     }
     /** Provides buffered read to JFlex.
      * getNextChar should be enough, but this is the interface JFlex wants.
      */
     public int read( char[] cbuf, int off, int len ) throws IOException {
-        int nchars = input.read( cbuf, off, len );
-        if( nchars < 0 ) {
-            linePositions.add( new Position( currentPosn ) );
-        } else {
-            for( int i = 0; i < nchars; i++ ) {
-                if( cbuf[off+i] == '\n' ) {
-                    linePositions.add( new Position( currentPosn ) );
-                }
-                currentPosn++;
-            }
+        int size = length();
+        if( currentPosn == size ) {
+            return -1;
         }
+        int nchars = Math.min( len, size - currentPosn );
+        for( int i = 0; i < nchars; i++ ) {
+            cbuf[off + i] = ascii ? (char)bytes.get( currentPosn + i )
+                    : text[currentPosn + i];
+        }
+        currentPosn += nchars;
         return nchars;
     }
+
+    /** Index the lines of the mapped file, if not already done, noting
+     * whether it is all ASCII; if it is not it is decoded (see decode). */
+    private void scan() {
+        if( text != null || ascii ) {
+            return;
+        }
+        int size = bytes.limit();
+        for( int i = 0; i < size; i++ ) {
+            byte b = bytes.get( i );
+            if( b < 0 ) { /* not ASCII */
+                linePositions = new LinePositions();
+                decode( i );
+                return;
+            }
+            if( b == '\n' ) {
+                linePositions.add( i );
+            }
+        }
+        linePositions.add( size );
+        ascii = true;
+    }
+    /** Decode the mapped file into text, and index its lines. The leading
+     * ASCII characters, up to index n, are copied directly; the rest is
+     * decoded as UTF-8, with malformed input replaced. */
+    private void decode( int n ) {
+        int size = bytes.limit();
+        char[] chars = new char[size];
+        for( int i = 0; i < n; i++ ) {
+            chars[i] = (char)bytes.get( i );
+        }
+        ByteBuffer rest = bytes.duplicate();
+        rest.position( n );
+        /* UTF-8 never gives more characters than bytes */
+        CharBuffer out = CharBuffer.wrap( chars, n, size - n );
+        CharsetDecoder decoder = Charset.forName( "UTF-8" ).newDecoder()
+            .onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        decoder.decode( rest, out, true );
+        decoder.flush( out );
+        text = Arrays.copyOf( chars, out.position() );
+        linePositions.addLines( text );
+    }
 }
@@ -0,0 +1,83 @@
+package syms;
+
+import parser.Identifiers;
+
+/**
+ * class Bindings - the symbol ids and the visible entries shared by the
+ * scopes of a symbol table.
+ * Each distinct name of an entry is interned as an int symbol id, in the
+ * Identifiers table of the tokens of the program where there is one, so
+ * the id of the name of an IDENTIFIER token is its symbol id. The
+ * entries of the scopes on the chain from the current scope of the symbol
+ * table out to the predefined scope are bound: for each symbol id there
+ * is a stack of the bound entries with that name, innermost first, each
+ * entry linking to the one it shadows. Looking up a name from the current
+ * scope then takes the top of its stack, however deeply the scope is
+ * nested. The stacks are ordered by the depth of the scopes of their
+ * entries (see Scope.getDepth), so looking up a name from a scope further
+ * out on the chain takes the first entry no deeper than it.
+ */
+class Bindings {
+
+    /** Symbol id of each name */
+    private Identifiers ids;
+    /** The innermost entry bound for each symbol id, or null */
+    private SymEntry[] visible;
+
+    Bindings( Identifiers ids ) {
+        this.ids = ids;
+        visible = new SymEntry[Math.max( 64, ids.size() )];
+    }
+
+    /** @return the symbol id of the name, interning it if it is new */
+    int intern( String name ) {
+        int id = ids.intern( name );
+        if( id >= visible.length ) {
+            SymEntry[] larger = new SymEntry[Math.max( 2 * visible.length,
+                    ids.size() )];
+            System.arraycopy( visible, 0, larger, 0, visible.length );
+            visible = larger;
+        }
+        return id;
+    }
+    /** @return the symbol id of the name, or -1 if it has none */
+    int find( String name ) {
+        return ids.find( name );
+    }
+    /** @return the innermost entry bound for the symbol id, or null */
+    SymEntry getVisible( int id ) {
+        /* Names of the program interned since have no entries */
+        return id < visible.length ? visible[id] : null;
+    }
+
+    /** Bind an entry of a scope on the chain, below any entries of deeper
+     * scopes with the same name */
+    void bind( SymEntry entry ) {
+        int depth = entry.scope.getDepth();
+        SymEntry above = null;
+        SymEntry below = visible[entry.symbol];
+        while( below != null && below.scope.getDepth() > depth ) {
+            above = below;
+            below = below.shadowed;
+        }
+        entry.shadowed = below;
+        if( above == null ) {
+            visible[entry.symbol] = entry;
+        } else {
+            above.shadowed = entry;
+        }
+    }
+    /** Unbind a bound entry; that of the innermost scope is on top */
+    void unbind( SymEntry entry ) {
+        if( visible[entry.symbol] == entry ) {
+            visible[entry.symbol] = entry.shadowed;
+        } else {
+            SymEntry above = visible[entry.symbol];
+            while( above.shadowed != entry ) {
+                above = above.shadowed;
+            }
+            above.shadowed = entry.shadowed;
+        }
+        entry.shadowed = null;
+    }
+}
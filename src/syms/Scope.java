@@ -1,10 +1,16 @@
 package syms;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import machine.StackMachine;
+import parser.Identifiers;
+import source.Position;
 import syms.SymEntry;
 
 /** A Scope represents a static scope for a procedure, main program or 
@@ -14,18 +20,37 @@ import syms.SymEntry;
  * Searching for an identifier in a scope starts at the current scope, 
  * but then if it is not found, the search proceeds to the next outer 
  * (parent) scope, and so on. 
+ * The entries are held in an array in the order they were added, with an
+ * open addressing hash table from the symbol id of each name (see
+ * Bindings) to its entry. While a scope is on the chain of the current
+ * scope of its symbol table its entries are bound, and a search from it
+ * takes the entry bound for the name rather than searching each scope
+ * in turn.
  */
 public class Scope {
     /** Parent Scope */
     private Scope parent;
     /** Static level of this scope */
     private int level;
-    /** Symbol table entries */
-    private Map<String, SymEntry> entries;
+    /** Number of scopes enclosing this one */
+    private int depth;
+    /** Symbol ids and bound entries, shared with the enclosing scopes */
+    private Bindings bindings;
+    /** Symbol table entries, in the order they were added */
+    private SymEntry[] entries;
+    private int count;
+    /** Hash table slots, each holding 1 + the index in entries of the
+     * entry with a symbol id, or 0 if the slot is empty; fewer than half
+     * the slots are used. */
+    private int[] slots;
+    /** Whether the entries are bound */
+    private boolean bound;
     /** space allocated for local variables within this scope */
     private int variableSpace;
     /** true if this is an extension of its parent scope */
     private boolean extension;
+    /** number of compiler generated temporaries added to this scope */
+    private int temporaries;
 
     /** This constructs a single scope within a symbol table
      * that is linked to the parent scope, which may be null to
@@ -34,12 +59,29 @@ public class Scope {
      * @param level of nesting of scope 
      */
     public Scope( Scope parent, int level ) {
+        this( parent, level, parent == null ?
+                new Bindings( new Identifiers() ) : parent.bindings );
+    }
+    /** Constructs the predefined scope of a symbol table, with no parent.
+     * @param identifiers table in which the names of the entries of this
+     *     scope and those nested in it are interned as their symbol ids
+     */
+    Scope( Identifiers identifiers ) {
+        this( null, 0, new Bindings( identifiers ) );
+    }
+    private Scope( Scope parent, int level, Bindings bindings ) {
         this.parent = parent;
         this.level = level;
+        this.depth = parent == null ? 0 : parent.depth + 1;
+        this.bindings = bindings;
         /* Initially empty */
-        this.entries = new HashMap<String, SymEntry>();
+        entries = new SymEntry[4];
+        count = 0;
+        slots = new int[8];
+        bound = false;
         variableSpace = 0;
         extension = false;
+        temporaries = 0;
     }
     /** Scope constructor for use in extending the current scope 
      * @param parent scope
@@ -50,15 +92,39 @@ public class Scope {
         this( parent, level );
         this.extension = extension;
     }
+    /** Constructor for a scope read back by SymbolReader, which adds its
+     * entries after.
+     * @param variableSpace space allocated to its local variables
+     * @param temporaries number of temporaries added to it
+     */
+    Scope( Scope parent, int level, boolean extension, int variableSpace,
+            int temporaries ) {
+        this( parent, level, extension );
+        this.variableSpace = variableSpace;
+        this.temporaries = temporaries;
+    }
     public Scope getParent() {
         return parent;
     }
     public int getLevel() {
         return level;
     }
-    /** @return the set of entries in this scope */
+    /** @return the number of scopes enclosing this one; unlike the level,
+     * it counts extensions */
+    int getDepth() {
+        return depth;
+    }
+    public boolean isExtension() {
+        return extension;
+    }
+    /** @return the number of temporaries added to this scope */
+    int getTemporaries() {
+        return temporaries;
+    }
+    /** @return the entries in this scope, in the order they were added */
     public Collection<SymEntry> getEntries() {
-        return entries.values();
+        return Collections.unmodifiableList( 
+                Arrays.asList( entries ).subList( 0, count ) );
     }
     /** Lookup id starting in the current scope and 
      * thence in the parent scope and so on.
@@ -66,11 +132,30 @@ public class Scope {
      * @return symbol table entry for the id, or null if not found.
      */
     public SymEntry lookup( String id ) {
-        if( entries.containsKey( id ) ) {
-            return entries.get( id );
+        return lookup( bindings.find( id ) );
+    }
+    /** Lookup by symbol id, as lookup by name.
+     * @param symbol id of the name to search for, as given by the
+     *     Identifiers table of the symbol table, or -1 for none
+     * @return symbol table entry for the name, or null if not found.
+     */
+    public SymEntry lookup( int symbol ) {
+        if( symbol < 0 ) {
+            return null;
         }
-        if( parent != null ) {
-            return parent.lookup( id );
+        if( bound ) {
+            /* The first entry bound that is not in a scope nested in this */
+            SymEntry entry = bindings.getVisible( symbol );
+            while( entry != null && entry.scope.depth > depth ) {
+                entry = entry.shadowed;
+            }
+            return entry;
+        }
+        for( Scope scope = this; scope != null; scope = scope.parent ) {
+            int index = scope.indexOf( symbol );
+            if( index >= 0 ) {
+                return scope.entries[index];
+            }
         }
         return null;
     }
@@ -79,13 +164,91 @@ public class Scope {
      * @return the entry added or null is it already exited in this scope. 
      */
     public SymEntry addEntry( SymEntry entry ) {
-        if( entries.containsKey( entry.getIdent() ) ) {
-            System.out.println("In here");
-        	return null;
-            
+        int symbol = bindings.intern( entry.getIdent() );
+        if( indexOf( symbol ) >= 0 ) {
+            return null;
+        }
+        entry.symbol = symbol;
+        if( count == entries.length ) {
+            SymEntry[] larger = new SymEntry[2 * count];
+            System.arraycopy( entries, 0, larger, 0, count );
+            entries = larger;
+        }
+        entries[count++] = entry;
+        if( 2 * count >= slots.length ) {
+            rehash( 2 * slots.length );
         } else {
-            entries.put( entry.getIdent(), entry );
-            return entry;
+            insert( count - 1 );
+        }
+        if( bound ) {
+            bindings.bind( entry );
+        }
+        return entry;
+    }
+    /** @return the index in entries of the entry with the symbol id, or
+     * -1 if there is none */
+    private int indexOf( int symbol ) {
+        int mask = slots.length - 1;
+        for( int slot = symbol & mask; slots[slot] != 0; 
+                slot = (slot + 1) & mask ) {
+            if( entries[slots[slot] - 1].symbol == symbol ) {
+                return slots[slot] - 1;
+            }
+        }
+        return -1;
+    }
+    /** Add entries[index] to the hash table */
+    private void insert( int index ) {
+        int mask = slots.length - 1;
+        int slot = entries[index].symbol & mask;
+        while( slots[slot] != 0 ) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = index + 1;
+    }
+    /** Build the hash table of the entries afresh with the given number of
+     * slots, a power of two */
+    private void rehash( int size ) {
+        slots = new int[size];
+        for( int i = 0; i < count; i++ ) {
+            insert( i );
+        }
+    }
+
+    /** Unbind the chain of scopes from one scope out, which is bound, and
+     * bind the chain from another scope out instead. Only the scopes not
+     * on both chains are changed.
+     * @param from scope whose chain is bound, or null if none is
+     * @param to scope whose chain is to be bound, or null for none
+     */
+    static void rebind( Scope from, Scope to ) {
+        /* Scopes to bind, outermost last */
+        List<Scope> binding = new ArrayList<Scope>();
+        while( from != to ) {
+            if( to == null || (from != null && from.depth >= to.depth) ) {
+                from.setBound( false );
+                from = from.parent;
+            } else {
+                binding.add( to );
+                to = to.parent;
+            }
+        }
+        for( int i = binding.size() - 1; i >= 0; i-- ) {
+            binding.get( i ).setBound( true );
+        }
+    }
+    /** Bind or unbind the entries of this scope */
+    private void setBound( boolean bind ) {
+        if( bound == bind ) {
+            return;
+        }
+        bound = bind;
+        for( int i = 0; i < count; i++ ) {
+            if( bind ) {
+                bindings.bind( entries[i] );
+            } else {
+                bindings.unbind( entries[i] );
+            }
         }
     }
     /** @return the amount of space allocated to local variables
@@ -109,11 +272,68 @@ public class Scope {
             return StackMachine.LOCALS_BASE + base;
         }
     }
+    /** Release the space allocated for local variables beyond the given
+     * amount, e.g., that of the temporaries of a body about to be checked
+     * again, so it can be allocated afresh.
+     * @param space amount of space to keep, as given by getVariableSpace
+     */
+    public void releaseVariableSpace( int space ) {
+        assert !extension && space <= variableSpace;
+        variableSpace = space;
+    }
+    /** Reallocate the space for local variables so that only the given
+     * variables (of this scope or its extensions) have space, at
+     * consecutive offsets in the order given. The entries of this scope
+     * for any other variables are removed, as they are no longer used.
+     * @param vars variables to be given space
+     */
+    public void reallocateVariables( List<SymEntry.VarEntry> vars ) {
+        assert !extension;
+        variableSpace = 0;
+        Set<SymEntry.VarEntry> kept = new HashSet<SymEntry.VarEntry>();
+        for( SymEntry.VarEntry var : vars ) {
+            var.setOffset( allocVariableSpace( 
+                    var.getType().getBaseType().getSpace() ) );
+            kept.add( var );
+        }
+        int remaining = 0;
+        for( int i = 0; i < count; i++ ) {
+            SymEntry entry = entries[i];
+            if( entry instanceof SymEntry.VarEntry && !kept.contains( entry ) ) {
+                if( bound ) {
+                    bindings.unbind( entry );
+                }
+            } else {
+                entries[remaining++] = entry;
+            }
+        }
+        Arrays.fill( entries, remaining, count, null );
+        count = remaining;
+        rehash( slots.length );
+    }
+    /** Add a compiler generated temporary variable to this scope and 
+     * allocate space for it. Temporaries are named "$t1", "$t2", ... 
+     * so they cannot clash with identifiers in the program.
+     * @param type of the value held in the temporary
+     * @return the entry for the temporary
+     */
+    public SymEntry.VarEntry newTemporary( Type type ) {
+        temporaries++;
+        SymEntry.VarEntry temp = new SymEntry.VarEntry( "$t" + temporaries,
+                Position.NO_POSITION, this, new Type.ReferenceType( type ) );
+        addEntry( temp );
+        temp.resolve();
+        return temp;
+    }
 
     // TODO The formatting produced here could be better
     @Override
     public String toString() {
-        return "\nScope " + "\n" + entries +
-            (parent == null ? "" : parent);
+        StringBuilder s = new StringBuilder( "\nScope " + "\n{" );
+        for( int i = 0; i < count; i++ ) {
+            s.append( i == 0 ? "" : ", " ).append( entries[i].getIdent() )
+                .append( '=' ).append( entries[i] );
+        }
+        return s.append( '}' ) + (parent == null ? "" : parent.toString());
     }
 }
@@ -30,6 +30,11 @@ public abstract class SymEntry {
     protected Type type;
     /** whether id has been resolved and space allocated, where necessary */
     protected boolean resolved;
+    /** symbol id of the name, given when the entry is added to a scope */
+    int symbol;
+    /** the entry of the same name this entry shadows while its scope is
+     * bound (see Bindings) */
+    SymEntry shadowed;
     /* All entries have all the above fields. */
     
     /** Only subclasses of SymEntry have public constructors. */
@@ -0,0 +1,258 @@
+package syms;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import source.Position;
+
+/**
+ * class SymbolReader - reads back the scopes, symbol table entries and
+ * types written by SymbolWriter.
+ * Objects are built as they are read, in the order they were written, so
+ * the index of each definition is that given it by the writer. The
+ * scopes, entries and types read are equivalent to those written, with
+ * the offsets and levels the checker gave them, and the predefined types
+ * are the predefined types themselves.
+ */
+public class SymbolReader {
+
+    private InputStream in;
+    /** Bytes read from the stream, from next to limit not yet taken */
+    private byte[] buffer;
+    private int next;
+    private int limit;
+    /** The scopes, entries and types read, by index */
+    private List<Object> objects;
+
+    /** @param in stream to read from; it is read through a buffer of
+     * the reader's own, so it may be read beyond the last object read */
+    public SymbolReader( InputStream in ) {
+        this.in = in;
+        this.buffer = new byte[8192];
+        this.next = 0;
+        this.limit = 0;
+        this.objects = new ArrayList<Object>();
+    }
+
+    /** Read an int written by SymbolWriter.writeInt */
+    public int readInt() throws IOException {
+        int bits = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = readByte();
+            bits |= (b & 0x7f) << shift;
+            shift += 7;
+        } while( (b & 0x80) != 0 );
+        return (bits >>> 1) ^ -(bits & 1);
+    }
+    public int readByte() throws IOException {
+        if( next == limit ) {
+            limit = in.read( buffer, 0, buffer.length );
+            next = 0;
+            if( limit <= 0 ) {
+                limit = 0;
+                throw new EOFException();
+            }
+        }
+        return buffer[next++] & 0xff;
+    }
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+    public String readString() throws IOException {
+        int length = readInt();
+        if( length < 0 ) {
+            throw new IOException( "Invalid length of name " + length );
+        }
+        StringBuilder name = new StringBuilder( length );
+        for( int i = 0; i < length; i++ ) {
+            name.append( (char)readInt() );
+        }
+        return name.toString();
+    }
+    public Position readPosition() throws IOException {
+        return Position.valueOf( readInt() );
+    }
+
+    /** Read a reference to a scope, and the scope if it is new */
+    public Scope readScope() throws IOException {
+        int code = readInt();
+        switch( code ) {
+        case SymbolWriter.NULL:
+            return null;
+        case SymbolWriter.PRELUDE:
+            readScope();
+            return readScope();
+        case SymbolWriter.DEFINITION:
+            Scope parent = readScope();
+            int level = readInt();
+            boolean extension = readBoolean();
+            int variableSpace = readInt();
+            Scope scope = new Scope( parent, level, extension, variableSpace,
+                    readInt() );
+            objects.add( scope );
+            int count = readInt();
+            for( int i = 0; i < count; i++ ) {
+                scope.addEntry( readEntry() );
+            }
+            return scope;
+        default:
+            return defined( code, Scope.class );
+        }
+    }
+
+    /** Read a reference to an entry, and the entry if it is new */
+    public SymEntry readEntry() throws IOException {
+        int code = readInt();
+        switch( code ) {
+        case SymbolWriter.NULL:
+            return null;
+        case SymbolWriter.PRELUDE:
+            readScope();
+            return readEntry();
+        case SymbolWriter.DEFINITION:
+            break;
+        default:
+            return defined( code, SymEntry.class );
+        }
+        Scope scope = readScope();
+        int kind = readByte();
+        String ident = readString();
+        Position pos = readPosition();
+        Type type = readType();
+        boolean resolved = readBoolean();
+        SymEntry entry;
+        switch( kind ) {
+        case SymbolWriter.CONSTANT_ENTRY:
+            entry = new SymEntry.ConstantEntry( ident, pos, scope, type,
+                    readInt() );
+            break;
+        case SymbolWriter.TYPE_ENTRY:
+            entry = new SymEntry.TypeEntry( ident, pos, scope, type );
+            break;
+        case SymbolWriter.VAR_ENTRY: {
+            SymEntry.VarEntry var = new SymEntry.VarEntry( ident, pos, scope,
+                    cast( type, Type.ReferenceType.class ) );
+            var.setOffset( readInt() );
+            /* Marked resolved first, so no space is allocated for it */
+            var.resolved = true;
+            var.setControlVar( readBoolean() );
+            entry = var;
+            break;
+        }
+        case SymbolWriter.PROCEDURE_ENTRY: {
+            SymEntry.ProcedureEntry proc = new SymEntry.ProcedureEntry( ident,
+                    pos, scope, cast( type, Type.ProcedureType.class ) );
+            proc.setStart( readInt() );
+            proc.setLocalScope( readScope() );
+            entry = proc;
+            break;
+        }
+        case SymbolWriter.OPERATOR_ENTRY:
+            entry = new SymEntry.OperatorEntry( ident, pos, scope, type );
+            break;
+        default:
+            throw new IOException( "Unknown kind of entry " + kind );
+        }
+        entry.resolved = resolved;
+        objects.add( entry );
+        return entry;
+    }
+
+    /** Read a reference to a type, and the type if it is new */
+    public Type readType() throws IOException {
+        int code = readInt();
+        switch( code ) {
+        case SymbolWriter.NULL:
+            return null;
+        case SymbolWriter.DEFINITION:
+            break;
+        default:
+            return defined( code, Type.class );
+        }
+        int kind = readByte();
+        Type type;
+        switch( kind ) {
+        case SymbolWriter.PREDEFINED_TYPE: {
+            int index = readInt();
+            if( index < 0 || index >= SymbolWriter.PREDEFINED.length ) {
+                throw new IOException( "Unknown predefined type " + index );
+            }
+            return SymbolWriter.PREDEFINED[index];
+        }
+        case SymbolWriter.SUBRANGE_TYPE: {
+            Type baseType = readType();
+            int lower = readInt();
+            type = new Type.SubrangeType( baseType, lower, readInt() );
+            break;
+        }
+        case SymbolWriter.SCALAR_TYPE: {
+            int size = readInt();
+            int lower = readInt();
+            type = new Type.ScalarType( size, lower, readInt() );
+            break;
+        }
+        case SymbolWriter.PRODUCT_TYPE:
+            type = new Type.ProductType( readTypes() ).resolveType(
+                    Position.NO_POSITION );
+            break;
+        case SymbolWriter.FUNCTION_TYPE: {
+            Type argType = readType();
+            type = new Type.FunctionType( argType, readType() ).resolveType(
+                    Position.NO_POSITION );
+            break;
+        }
+        case SymbolWriter.INTERSECTION_TYPE:
+            type = new Type.IntersectionType(
+                    readTypes().toArray( new Type[0] ) ).resolveType(
+                            Position.NO_POSITION );
+            break;
+        case SymbolWriter.PROCEDURE_TYPE:
+            type = new Type.ProcedureType();
+            break;
+        case SymbolWriter.REFERENCE_TYPE:
+            type = new Type.ReferenceType( readType() ).resolveType(
+                    Position.NO_POSITION );
+            break;
+        case SymbolWriter.ADDRESS_TYPE:
+            type = new Type.AddressType( readType() ).resolveType(
+                    Position.NO_POSITION );
+            break;
+        default:
+            throw new IOException( "Unknown kind of type " + kind );
+        }
+        objects.add( type );
+        return type;
+    }
+    private List<Type> readTypes() throws IOException {
+        int count = readInt();
+        List<Type> types = new LinkedList<Type>();
+        for( int i = 0; i < count; i++ ) {
+            types.add( readType() );
+        }
+        return types;
+    }
+
+    /** @return the object defined with the index given by the code of a
+     * reference to it, which must be of the given class */
+    private <T> T defined( int code, Class<T> kind ) throws IOException {
+        int index = code - SymbolWriter.FIRST;
+        if( index < 0 || index >= objects.size() ) {
+            throw new IOException( "Invalid reference " + code );
+        }
+        return cast( objects.get( index ), kind );
+    }
+    private static <T> T cast( Object object, Class<T> kind )
+            throws IOException {
+        if( object != null && !kind.isInstance( object ) ) {
+            throw new IOException( "Expected " + kind.getSimpleName() +
+                    " but found " + object );
+        }
+        return kind.cast( object );
+    }
+}
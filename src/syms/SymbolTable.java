@@ -1,6 +1,7 @@
 package syms;
 
 import machine.StackMachine;
+import parser.Identifiers;
 import syms.Type;
 import syms.Type.ReferenceType;
 import source.Position;
@@ -13,6 +14,10 @@ import tree.ConstExp;
  * scope and exit a scope. Searching for an identifier in an SymbolTable 
  * starts at the current scope, but then if it is not found, the search 
  * proceeds to the next outer (parent) scope, and so on.
+ * The entries of the current scope and the scopes enclosing it are bound
+ * (see Bindings), so a look up from the current scope takes the same time
+ * however deeply it is nested; changing the current scope binds and
+ * unbinds the entries of the scopes entered and left.
  */
 public class SymbolTable {
     /** Current scope */ 
@@ -22,7 +27,16 @@ public class SymbolTable {
      * as its initial scope.
      */
     public SymbolTable() {
-        currentScope = new Scope( null, 0 );
+        this( new Identifiers() );
+    }
+    /** Construct a symbol table whose symbol ids are those of the names
+     * in the given table, so that entries may be looked up by the ids
+     * of IDENTIFIER tokens.
+     * @param identifiers table of the names of the program
+     */
+    public SymbolTable( Identifiers identifiers ) {
+        currentScope = null;
+        enter( new Scope( identifiers ) );
         // Add predefined symbols to predefined scope
         addType( "int", Position.NO_POSITION, Type.INTEGER_TYPE );
         addType( "boolean", Position.NO_POSITION, Type.BOOLEAN_TYPE );
@@ -42,30 +56,38 @@ public class SymbolTable {
         addOperator("<", Position.NO_POSITION, Type.INT_RELATIONAL_TYPE);
         addOperator(">=", Position.NO_POSITION, Type.INT_RELATIONAL_TYPE);
         addOperator("<=", Position.NO_POSITION, Type.INT_RELATIONAL_TYPE);
+        addOperator("&&", Position.NO_POSITION, Type.LOGICAL_BINARY);
+        addOperator("||", Position.NO_POSITION, Type.LOGICAL_BINARY);
     }
     /** Enter a new scope */
     public Scope newScope() {
-        currentScope = new Scope( currentScope, currentScope.getLevel()+1 );
+        enter( new Scope( currentScope, currentScope.getLevel()+1 ) );
         return currentScope;
     }
     /** Re-enter a scope on a traversal */
     public Scope reenterScope( Scope newScope ) {
-        currentScope = newScope;
+        enter( newScope );
         return currentScope;
     }
     /** Exit scope */
     public void leaveScope() {
-        currentScope = currentScope.getParent();
+        enter( currentScope.getParent() );
     }
     /** Extend the current scope at the same level.
      * Assumes the variables have been allocated for the parent scope. */
     public Scope extendCurrentScope() {
-        currentScope = new Scope( currentScope, currentScope.getLevel(), true );
+        enter( new Scope( currentScope, currentScope.getLevel(), true ) );
         return currentScope;
     }
     /** Leave extended scope at same level */
     public void leaveExtendedScope() {
-        currentScope = currentScope.getParent();
+        enter( currentScope.getParent() );
+    }
+    /** Make a scope the current scope, binding its entries and those of
+     * the scopes enclosing it in place of those of the last */
+    private void enter( Scope scope ) {
+        Scope.rebind( currentScope, scope );
+        currentScope = scope;
     }
     /** @return the level of the current scope: predefined scope is at level 0,
      *         main program scope is at level 1, and so on. 
@@ -91,6 +113,14 @@ public class SymbolTable {
     public SymEntry lookup( String name ) {
         return currentScope.lookup( name );
     }
+    /** Look up an entry by symbol id, as lookup by name.
+     * @param symbol id of the name in the Identifiers table of the
+     *     symbol table, or -1 for none
+     * @return entry if one is found, else return null
+     */
+    public SymEntry lookup( int symbol ) {
+        return currentScope.lookup( symbol );
+    }
     /** Add an entry to the current scope
      * @return a reference to the entry unless an entry with the same 
      * name already exists in the current scope, in which case return null.
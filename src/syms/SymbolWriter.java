@@ -0,0 +1,275 @@
+package syms;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import source.Position;
+
+/**
+ * class SymbolWriter - writes the scopes, symbol table entries and types
+ * of a checked program to a binary stream, from which SymbolReader reads
+ * them back.
+ * Each scope, entry or type is written in full where it is first referred
+ * to, and by the index of that definition wherever it is referred to
+ * after, so objects shared in memory are shared once read, and a reader
+ * can build each object as it comes to it in one pass over the stream.
+ * A scope is written with all its entries, and is written after its
+ * parent; an entry is written after its scope. If the object referred to
+ * needs its scope or parent written first, the reference is preceded by
+ * a PRELUDE holding that.
+ * The predefined types are written by their index in PREDEFINED, so that
+ * they are the same objects once read, as the compiler compares some of
+ * them by identity.
+ * Numbers are written as variable length ints (see writeInt), as most
+ * are small, and names as their lengths and characters, all through a
+ * buffer of the writer's own, so no call is made to the stream written
+ * for each byte.
+ */
+public class SymbolWriter {
+
+    /* Codes of references */
+    static final int NULL = 0;
+    /** The definition of the object follows */
+    static final int DEFINITION = 1;
+    /** A scope follows, then the reference itself */
+    static final int PRELUDE = 2;
+    /** The code of a reference to the object with index i is FIRST + i */
+    static final int FIRST = 3;
+
+    /* Kinds of entries */
+    static final byte CONSTANT_ENTRY = 0;
+    static final byte TYPE_ENTRY = 1;
+    static final byte VAR_ENTRY = 2;
+    static final byte PROCEDURE_ENTRY = 3;
+    static final byte OPERATOR_ENTRY = 4;
+
+    /* Kinds of types */
+    static final byte PREDEFINED_TYPE = 0;
+    static final byte SCALAR_TYPE = 1;
+    static final byte SUBRANGE_TYPE = 2;
+    static final byte PRODUCT_TYPE = 3;
+    static final byte FUNCTION_TYPE = 4;
+    static final byte INTERSECTION_TYPE = 5;
+    static final byte PROCEDURE_TYPE = 6;
+    static final byte ADDRESS_TYPE = 7;
+    static final byte REFERENCE_TYPE = 8;
+
+    /** The predefined types, written by their index */
+    static final Type[] PREDEFINED = {
+        Type.ERROR_TYPE, Type.INTEGER_TYPE, Type.BOOLEAN_TYPE,
+        Type.PAIR_INTEGER_TYPE, Type.PAIR_BOOLEAN_TYPE,
+        Type.ARITHMETIC_BINARY, Type.INT_RELATIONAL_TYPE,
+        Type.BOOL_RELATIONAL_TYPE, Type.LOGICAL_BINARY, Type.ARITH_UNARY,
+        Type.LOGICAL_UNARY
+    };
+
+    private OutputStream out;
+    /** Bytes not yet written to the stream */
+    private byte[] buffer;
+    private int count;
+    /** Index of each scope, entry and type written */
+    private Map<Object, Integer> indices;
+
+    /** @param out stream to write to; flush writes what is buffered */
+    public SymbolWriter( OutputStream out ) {
+        this.out = out;
+        this.buffer = new byte[8192];
+        this.count = 0;
+        this.indices = new IdentityHashMap<Object, Integer>();
+    }
+
+    /** Write an int in as few bytes as its magnitude needs: zig-zag
+     * encoded, so small negative ints are short too, seven bits a byte,
+     * least significant first, the top bit set on all but the last. */
+    public void writeInt( int value ) throws IOException {
+        if( count + 5 > buffer.length ) {
+            drain();
+        }
+        int bits = (value << 1) ^ (value >> 31);
+        while( (bits & ~0x7f) != 0 ) {
+            buffer[count++] = (byte)((bits & 0x7f) | 0x80);
+            bits >>>= 7;
+        }
+        buffer[count++] = (byte)bits;
+    }
+    public void writeByte( int value ) throws IOException {
+        if( count == buffer.length ) {
+            drain();
+        }
+        buffer[count++] = (byte)value;
+    }
+    public void writeBoolean( boolean value ) throws IOException {
+        writeByte( value ? 1 : 0 );
+    }
+    public void writeString( String value ) throws IOException {
+        writeInt( value.length() );
+        for( int i = 0; i < value.length(); i++ ) {
+            writeInt( value.charAt( i ) );
+        }
+    }
+    public void writePosition( Position pos ) throws IOException {
+        writeInt( pos.getIndex() );
+    }
+    /** Write what is buffered to the stream, and flush it */
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+    private void drain() throws IOException {
+        out.write( buffer, 0, count );
+        count = 0;
+    }
+
+    /** Write a reference to a scope, and the scope if it is new */
+    public void writeScope( Scope scope ) throws IOException {
+        if( scope == null ) {
+            writeInt( NULL );
+        } else if( indices.containsKey( scope ) ) {
+            writeInt( FIRST + indices.get( scope ) );
+        } else if( scope.getParent() != null &&
+                !indices.containsKey( scope.getParent() ) ) {
+            /* The scope may be written with its parent's entries */
+            writeInt( PRELUDE );
+            writeScope( scope.getParent() );
+            writeScope( scope );
+        } else {
+            writeInt( DEFINITION );
+            writeScope( scope.getParent() );
+            writeInt( scope.getLevel() );
+            writeBoolean( scope.isExtension() );
+            /* An extension allocates its variables in its parent */
+            writeInt( scope.isExtension() ? 0 : scope.getVariableSpace() );
+            writeInt( scope.getTemporaries() );
+            define( scope );
+            writeInt( scope.getEntries().size() );
+            for( SymEntry entry : scope.getEntries() ) {
+                writeEntry( entry );
+            }
+        }
+    }
+
+    /** Write a reference to an entry, and the entry if it is new */
+    public void writeEntry( SymEntry entry ) throws IOException {
+        if( entry == null ) {
+            writeInt( NULL );
+        } else if( indices.containsKey( entry ) ) {
+            writeInt( FIRST + indices.get( entry ) );
+        } else if( entry.scope != null &&
+                !indices.containsKey( entry.scope ) ) {
+            /* The entry is written with its scope, unless the scope no
+             * longer holds it */
+            writeInt( PRELUDE );
+            writeScope( entry.scope );
+            writeEntry( entry );
+        } else {
+            writeInt( DEFINITION );
+            writeScope( entry.scope );
+            writeByte( kindOf( entry ) );
+            writeString( entry.ident );
+            writePosition( entry.pos );
+            writeType( entry.type );
+            writeBoolean( entry.resolved );
+            if( entry instanceof SymEntry.ConstantEntry ) {
+                writeInt( ((SymEntry.ConstantEntry)entry).value );
+            } else if( entry instanceof SymEntry.VarEntry ) {
+                SymEntry.VarEntry var = (SymEntry.VarEntry)entry;
+                writeInt( var.offset );
+                writeBoolean( var.isControlVar() );
+            } else if( entry instanceof SymEntry.ProcedureEntry ) {
+                SymEntry.ProcedureEntry proc = (SymEntry.ProcedureEntry)entry;
+                writeInt( proc.getStart() );
+                writeScope( proc.getLocalScope() );
+            }
+            define( entry );
+        }
+    }
+    private static byte kindOf( SymEntry entry ) throws IOException {
+        if( entry instanceof SymEntry.ConstantEntry ) {
+            return CONSTANT_ENTRY;
+        } else if( entry instanceof SymEntry.TypeEntry ) {
+            return TYPE_ENTRY;
+        } else if( entry instanceof SymEntry.VarEntry ) {
+            return VAR_ENTRY;
+        } else if( entry instanceof SymEntry.ProcedureEntry ) {
+            return PROCEDURE_ENTRY;
+        } else if( entry instanceof SymEntry.OperatorEntry ) {
+            return OPERATOR_ENTRY;
+        }
+        throw new IOException( "Cannot write entry " + entry );
+    }
+
+    /** Write a reference to a type, and the type if it is new.
+     * The types of a checked program are resolved, so a type identifier
+     * is written as the type it refers to. */
+    public void writeType( Type type ) throws IOException {
+        if( type instanceof Type.IdRefType ) {
+            type = type.resolveType( Position.NO_POSITION );
+        }
+        if( type == null ) {
+            writeInt( NULL );
+            return;
+        }
+        if( indices.containsKey( type ) ) {
+            writeInt( FIRST + indices.get( type ) );
+            return;
+        }
+        writeInt( DEFINITION );
+        for( int i = 0; i < PREDEFINED.length; i++ ) {
+            if( type == PREDEFINED[i] ) {
+                writeByte( PREDEFINED_TYPE );
+                writeInt( i );
+                return;
+            }
+        }
+        if( type instanceof Type.SubrangeType ) {
+            Type.SubrangeType subrange = (Type.SubrangeType)type;
+            writeByte( SUBRANGE_TYPE );
+            writeType( subrange.getBaseType() );
+            writeInt( subrange.getLower() );
+            writeInt( subrange.getUpper() );
+        } else if( type instanceof Type.ScalarType ) {
+            Type.ScalarType scalar = (Type.ScalarType)type;
+            writeByte( SCALAR_TYPE );
+            writeInt( scalar.space );
+            writeInt( scalar.getLower() );
+            writeInt( scalar.getUpper() );
+        } else if( type instanceof Type.ProductType ) {
+            writeByte( PRODUCT_TYPE );
+            writeTypes( ((Type.ProductType)type).getTypes() );
+        } else if( type instanceof Type.FunctionType ) {
+            Type.FunctionType function = (Type.FunctionType)type;
+            writeByte( FUNCTION_TYPE );
+            writeType( function.getArgType() );
+            writeType( function.getResultType() );
+        } else if( type instanceof Type.IntersectionType ) {
+            writeByte( INTERSECTION_TYPE );
+            writeTypes( ((Type.IntersectionType)type).getTypes() );
+        } else if( type instanceof Type.ProcedureType ) {
+            writeByte( PROCEDURE_TYPE );
+        } else if( type instanceof Type.ReferenceType ) {
+            writeByte( REFERENCE_TYPE );
+            writeType( ((Type.ReferenceType)type).getBaseType() );
+        } else if( type instanceof Type.AddressType ) {
+            writeByte( ADDRESS_TYPE );
+            writeType( ((Type.AddressType)type).getBaseType() );
+        } else {
+            throw new IOException( "Cannot write type " + type );
+        }
+        /* Types are not recursive, so none refers to itself */
+        define( type );
+    }
+    private void writeTypes( List<Type> types ) throws IOException {
+        writeInt( types.size() );
+        for( Type t : types ) {
+            writeType( t );
+        }
+    }
+
+    /** Give the object written the next index */
+    private void define( Object object ) {
+        indices.put( object, indices.size() );
+    }
+}
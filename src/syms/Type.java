@@ -192,6 +192,9 @@ public abstract class Type
     public static final FunctionType BOOL_RELATIONAL_TYPE =
         new FunctionType( PAIR_BOOLEAN_TYPE, BOOLEAN_TYPE );
     
+    public static final FunctionType LOGICAL_BINARY =
+        new FunctionType( PAIR_BOOLEAN_TYPE, BOOLEAN_TYPE );
+    
     public static final FunctionType ARITH_UNARY =
         new FunctionType( INTEGER_TYPE, INTEGER_TYPE );
             
@@ -292,6 +295,15 @@ public abstract class Type
             this.lowerExp = lowerExp;
             this.upperExp = upperExp;
         }
+        /** Constructor for a subrange type already resolved, as read back
+         * by SymbolReader */
+        SubrangeType( Type baseType, int lower, int upper ) {
+            super( StackMachine.SIZE_OF_INT );
+            this.baseType = baseType;
+            this.lower = lower;
+            this.upper = upper;
+            this.resolved = true;
+        }
         public Type getBaseType() {
             return baseType;
         }
@@ -15,6 +15,8 @@ public enum BinaryOperator {
     LESS_OP( "<" ),
     LEQUALS_OP( "<=" ),
     GEQUALS_OP( ">=" ),
+    AND_OP( "&&" ),
+    OR_OP( "||" ),
 
     INVALID_OP( "INVALID" );
     
@@ -0,0 +1,584 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import machine.Instruction;
+import machine.Operation;
+import machine.StackMachine;
+
+/**
+ * class BranchOptimiser - optimises the branches of the generated code
+ * before it is laid out:
+ * - a branch to an unconditional jump is retargeted to the destination of
+ *   the jump (jump threading);
+ * - the jump at the end of a while loop back to its condition is replaced
+ *   by a copy of the (short) condition and a branch back to the body if
+ *   the condition holds, so each iteration executes one branch not two;
+ * - a conditional branch over an unconditional jump is replaced by a
+ *   branch to the jump's destination on the inverted condition;
+ * - jumps to the next instruction and the instructions that cannot be
+ *   reached after a jump are removed.
+ * On this machine a conditional branch that is not taken costs as much
+ * as one that is, and an unconditional jump costs more, so the aim is
+ * to avoid executing jumps on the frequent paths. Without profile data
+ * loops are assumed to iterate and both outcomes of other conditions
+ * are assumed equally likely. With a profile from a previous run (see
+ * BranchProfile) the branch inversions are decided by the recorded
+ * counts, and the "then" and "else" parts of an if statement are
+ * exchanged if the "then" part (which ends with a jump) is executed more
+ * often, while loops that are never entered are not rotated.
+ * A condition is inverted by changing the instructions that compute it:
+ * LESS and LESSEQ are exchanged and their operands swapped, a trailing
+ * logical negation is removed, and otherwise a negation is added.
+ */
+public class BranchOptimiser implements CodePass {
+    /** Longest condition (in instructions) that is copied to rotate a loop */
+    private static final int MAX_ROTATED_CONDITION = 16;
+    /** Instructions executed by a conditional branch (LOAD_CON, BR_FALSE) */
+    private static final int BRANCH_COST = 2;
+    /** Instructions executed by a jump (ZERO, LOAD_CON, BR_FALSE) */
+    private static final int JUMP_COST = 3;
+
+    /** The site of a conditional branch in the code as generated, and
+     * whether the branch's condition has been inverted since. */
+    private static class Site {
+        int id;
+        boolean inverted;
+
+        Site( int id, boolean inverted ) {
+            this.id = id;
+            this.inverted = inverted;
+        }
+    }
+
+    /** Profile from a previous run, or null */
+    private BranchProfile profile;
+    /** True if a profile was given that does not match the code */
+    private boolean profileIgnored;
+    /** Site of each conditional branch */
+    private Map<Instruction, Site> sites;
+    /** Number of conditional branches in the code as generated */
+    private int siteCount;
+    /** Labels that were branch targets in the code as generated */
+    private Set<Instruction.Label> targets;
+    /* Statistics */
+    private int threaded, inverted, rotated, swapped, removed;
+
+    /** @param profile branch profile from a previous run, or null */
+    public BranchOptimiser( BranchProfile profile ) {
+        this.profile = profile;
+        this.profileIgnored = false;
+    }
+
+    /** @return the number of branches retargeted past jumps */
+    public int getThreaded() {
+        return threaded;
+    }
+    /** @return the number of branches over jumps inverted */
+    public int getInverted() {
+        return inverted;
+    }
+    /** @return the number of loops rotated */
+    public int getRotated() {
+        return rotated;
+    }
+    /** @return the number of if statements whose parts were exchanged */
+    public int getSwapped() {
+        return swapped;
+    }
+    /** @return the number of jumps and unreachable instructions removed */
+    public int getRemoved() {
+        return removed;
+    }
+    /** @return true if the profile given does not match the code */
+    public boolean isProfileIgnored() {
+        return profileIgnored;
+    }
+
+    public String getName() {
+        return "branch layout";
+    }
+    public void run( Code code ) {
+        optimise( code );
+    }
+    public String getSummary() {
+        return threaded + " jumps threaded, " +
+            inverted + " branches inverted, " +
+            rotated + " loops rotated, " +
+            swapped + " if statements reordered, " +
+            removed + " instructions removed" +
+            (profileIgnored ? " (branch profile does not match the " +
+                    "program and was ignored)" : "");
+    }
+
+    /** Optimise the branches of code, which must not yet be laid out. */
+    public void optimise( Code code ) {
+        List<Instruction> list = code.getCode();
+        threaded = inverted = rotated = swapped = removed = 0;
+        sites = new HashMap<Instruction, Site>();
+        targets = new HashSet<Instruction.Label>();
+        siteCount = 0;
+        for( Instruction inst : list ) {
+            if( inst instanceof Instruction.BranchInstruction ) {
+                targets.add( ((Instruction.BranchInstruction)inst).getTarget() );
+            }
+            if( isConditional( inst ) ) {
+                sites.put( inst, new Site( siteCount++, false ) );
+            }
+        }
+        if( profile != null && profile.getSites() != siteCount ) {
+            profile = null;
+            profileIgnored = true;
+        }
+        if( profile != null ) {
+            list = swapArms( list );
+        }
+        list = rotateLoops( list );
+        int changes;
+        do {
+            changes = threaded + inverted + removed;
+            list = thread( list );
+            list = invertBranches( list );
+            list = removeJumpsToNext( list );
+            list = removeUnreachable( list );
+        } while( changes != threaded + inverted + removed );
+        code.setCode( list );
+    }
+
+    /** Collect the branch profile of a run of the optimised code.
+     * @param code the optimised code, laid out from address start
+     * @param start address of the code
+     * @param machine which has run the code with branch profiling on
+     * @return the profile in terms of the branch sites
+     */
+    public BranchProfile getProfile( Code code, int start,
+            StackMachine machine ) {
+        BranchProfile result = new BranchProfile( siteCount );
+        int address = start;
+        for( Instruction inst : code ) {
+            Site site = sites.get( inst );
+            if( site != null ) {
+                /* The branch is loaded as LOAD_CON offset, BR_FALSE */
+                int pc = address + Operation.LOAD_CON.getSize();
+                long executed = machine.getBranchesExecuted( pc );
+                long taken = machine.getBranchesTaken( pc );
+                result.add( site.id, executed,
+                        site.inverted ? executed - taken : taken );
+            }
+            address += inst.getSize();
+        }
+        return result;
+    }
+
+    /*-------------------- Transformations ----------------------------*/
+
+    /** Exchange the parts of an if statement,
+     *     cond; BR_FALSE Le; then; JUMP Lend; Le: else; Lend:
+     * to give
+     *     !cond; BR_FALSE Lt; Le: else; JUMP Lend; Lt: then; Lend:
+     * if the profile shows that to be cheaper. */
+    private List<Instruction> swapArms( List<Instruction> list ) {
+        List<Instruction> out = new ArrayList<Instruction>();
+        emitSwapped( list, 0, list.size(), labelIndex( list ), out );
+        return out;
+    }
+    /** Append the instructions list[lo..hi-1] to out, exchanging the
+     * parts of the if statements within them where worthwhile. */
+    private void emitSwapped( List<Instruction> list, int lo, int hi,
+            Map<Instruction.Label, Integer> index, List<Instruction> out ) {
+        int i = lo;
+        while( i < hi ) {
+            Instruction inst = list.get( i );
+            if( isConditional( inst ) ) {
+                Instruction.BranchInstruction branch =
+                    (Instruction.BranchInstruction)inst;
+                Integer elseStart = index.get( branch.getTarget() );
+                if( elseStart != null && i + 1 < elseStart &&
+                        elseStart < hi &&
+                        isJump( list.get( elseStart - 1 ) ) ) {
+                    Instruction.JumpInstruction jump =
+                        (Instruction.JumpInstruction)list.get( elseStart - 1 );
+                    Integer end = index.get( jump.getTarget() );
+                    if( end != null && elseStart < end && end < hi &&
+                            shouldSwap( branch, out ) ) {
+                        Instruction.Label thenLabel = new Instruction.Label();
+                        invert( out, branch );
+                        branch.setTarget( thenLabel );
+                        out.add( branch );
+                        emitSwapped( list, elseStart, end, index, out );
+                        out.add( jump );
+                        out.add( thenLabel );
+                        emitSwapped( list, i + 1, elseStart - 1, index, out );
+                        swapped++;
+                        i = end;
+                        continue;
+                    }
+                }
+            }
+            out.add( inst );
+            i++;
+        }
+    }
+    /** The "then" part costs a branch and a jump, the "else" part only
+     * a branch; exchanging them also costs inverting the condition. */
+    private boolean shouldSwap( Instruction.BranchInstruction branch,
+            List<Instruction> out ) {
+        long executed = executed( branch );
+        long elseCount = taken( branch );
+        long thenCount = executed - elseCount;
+        int inversion = inversionCost( out, out.size() );
+        long before = thenCount * (BRANCH_COST + JUMP_COST) +
+            elseCount * BRANCH_COST;
+        long after = thenCount * (inversion + BRANCH_COST) +
+            elseCount * (inversion + BRANCH_COST + JUMP_COST);
+        return after < before;
+    }
+
+    /** Rotate while loops,
+     *     Lc: cond; BR_FALSE Lx; body; JUMP Lc; Lx:
+     * to give
+     *     Lc: cond; BR_FALSE Lx; Lb: body; !cond; BR_FALSE Lb; Lx:
+     * provided the condition is short and has no branches or labels. */
+    private List<Instruction> rotateLoops( List<Instruction> list ) {
+        Map<Instruction.Label, Integer> index = labelIndex( list );
+        /* Code replacing each jump back to a condition */
+        Map<Instruction, List<Instruction>> replacements =
+            new HashMap<Instruction, List<Instruction>>();
+        /* Label of the loop body following each loop condition's branch */
+        Map<Instruction, Instruction.Label> bodies =
+            new HashMap<Instruction, Instruction.Label>();
+        for( int k = 0; k < list.size(); k++ ) {
+            if( !isJump( list.get( k ) ) ) {
+                continue;
+            }
+            Instruction.JumpInstruction jump =
+                (Instruction.JumpInstruction)list.get( k );
+            Integer head = index.get( jump.getTarget() );
+            if( head == null || head >= k ) {
+                continue;
+            }
+            int start = head;
+            while( start < k && list.get( start ) instanceof Instruction.Label ) {
+                start++;
+            }
+            int test = start;
+            while( test < k && isPlain( list.get( test ) ) ) {
+                test++;
+            }
+            if( test == start || test >= k ||
+                    test - start > MAX_ROTATED_CONDITION ||
+                    !isConditional( list.get( test ) ) ) {
+                continue;
+            }
+            Instruction.BranchInstruction exit =
+                (Instruction.BranchInstruction)list.get( test );
+            if( !isFollowedBy( list, k, exit.getTarget() ) ||
+                    !shouldRotate( exit ) ) {
+                continue;
+            }
+            Instruction.Label body = bodies.get( exit );
+            if( body == null ) {
+                body = new Instruction.Label();
+                bodies.put( exit, body );
+            }
+            List<Instruction> bottom =
+                new ArrayList<Instruction>( list.subList( start, test ) );
+            Instruction.BranchInstruction back =
+                new Instruction.BranchInstruction( Operation.BR_FALSE, body );
+            Site site = sites.get( exit );
+            sites.put( back, new Site( site.id, site.inverted ) );
+            invert( bottom, back );
+            bottom.add( back );
+            replacements.put( jump, bottom );
+            rotated++;
+        }
+        if( replacements.isEmpty() ) {
+            return list;
+        }
+        List<Instruction> out = new ArrayList<Instruction>();
+        for( Instruction inst : list ) {
+            List<Instruction> replacement = replacements.get( inst );
+            if( replacement != null ) {
+                out.addAll( replacement );
+            } else {
+                out.add( inst );
+            }
+            Instruction.Label body = bodies.get( inst );
+            if( body != null ) {
+                out.add( body );
+            }
+        }
+        return out;
+    }
+    /** A rotated loop executes one jump fewer per iteration at the cost
+     * of a larger loop, so a loop whose body the profile shows is never
+     * executed is not rotated. */
+    private boolean shouldRotate( Instruction.BranchInstruction exit ) {
+        if( profile == null ) {
+            return true;
+        }
+        return executed( exit ) - taken( exit ) > 0;
+    }
+
+    /** Retarget each branch to a label followed by a jump to the final
+     * destination of the chain of jumps. */
+    private List<Instruction> thread( List<Instruction> list ) {
+        Map<Instruction.Label, Integer> index = labelIndex( list );
+        for( Instruction inst : list ) {
+            if( !(inst instanceof Instruction.BranchInstruction) ) {
+                continue;
+            }
+            Instruction.BranchInstruction branch =
+                (Instruction.BranchInstruction)inst;
+            Instruction.Label target = branch.getTarget();
+            Set<Instruction.Label> visited = new HashSet<Instruction.Label>();
+            while( visited.add( target ) ) {
+                Integer at = index.get( target );
+                if( at == null ) {
+                    break;
+                }
+                int next = at;
+                while( next < list.size() &&
+                        list.get( next ) instanceof Instruction.Label ) {
+                    next++;
+                }
+                if( next == list.size() || !isJump( list.get( next ) ) ) {
+                    break;
+                }
+                target = ((Instruction.JumpInstruction)list.get( next ))
+                    .getTarget();
+            }
+            if( target != branch.getTarget() ) {
+                branch.setTarget( target );
+                threaded++;
+            }
+        }
+        return list;
+    }
+
+    /** Replace a conditional branch over a jump,
+     *     cond; BR_FALSE L1; JUMP L2; L1:
+     * by
+     *     !cond; BR_FALSE L2; L1:
+     * when that is expected to be cheaper. */
+    private List<Instruction> invertBranches( List<Instruction> list ) {
+        List<Instruction> out = new ArrayList<Instruction>();
+        for( int k = 0; k < list.size(); k++ ) {
+            Instruction inst = list.get( k );
+            if( isConditional( inst ) && k + 1 < list.size() &&
+                    isJump( list.get( k + 1 ) ) ) {
+                Instruction.BranchInstruction branch =
+                    (Instruction.BranchInstruction)inst;
+                Instruction.JumpInstruction jump =
+                    (Instruction.JumpInstruction)list.get( k + 1 );
+                if( isFollowedBy( list, k + 1, branch.getTarget() ) &&
+                        shouldInvert( branch, out ) ) {
+                    invert( out, branch );
+                    branch.setTarget( jump.getTarget() );
+                    out.add( branch );
+                    inverted++;
+                    k++;
+                    continue;
+                }
+            }
+            out.add( inst );
+        }
+        return out;
+    }
+    /** When the condition holds the original code executes both the branch
+     * and the jump, otherwise only the branch. */
+    private boolean shouldInvert( Instruction.BranchInstruction branch,
+            List<Instruction> out ) {
+        long falseCount = 1;
+        long trueCount = 1;
+        if( profile != null && executed( branch ) > 0 ) {
+            falseCount = taken( branch );
+            trueCount = executed( branch ) - falseCount;
+        }
+        int inversion = inversionCost( out, out.size() );
+        long before = trueCount * (BRANCH_COST + JUMP_COST) +
+            falseCount * BRANCH_COST;
+        long after = (trueCount + falseCount) * (inversion + BRANCH_COST);
+        return after < before;
+    }
+
+    /** Remove jumps to the next instruction; a conditional branch to the
+     * next instruction only needs to discard its condition. */
+    private List<Instruction> removeJumpsToNext( List<Instruction> list ) {
+        List<Instruction> out = new ArrayList<Instruction>();
+        for( int k = 0; k < list.size(); k++ ) {
+            Instruction inst = list.get( k );
+            if( isJump( inst ) || isConditional( inst ) ) {
+                Instruction.BranchInstruction branch =
+                    (Instruction.BranchInstruction)inst;
+                if( isFollowedBy( list, k, branch.getTarget() ) ) {
+                    if( isConditional( inst ) ) {
+                        out.add( new Instruction( Operation.POP ) );
+                    }
+                    removed++;
+                    continue;
+                }
+            }
+            out.add( inst );
+        }
+        return out;
+    }
+
+    /** Remove the instructions following a jump up to the next label that
+     * may be branched to. Labels that were branch targets but are no
+     * longer referenced are passed over, but not labels that were never
+     * branch targets, such as the start of a procedure. A RETURN is
+     * always kept. */
+    private List<Instruction> removeUnreachable( List<Instruction> list ) {
+        Set<Instruction.Label> referenced = new HashSet<Instruction.Label>();
+        for( Instruction inst : list ) {
+            if( inst instanceof Instruction.BranchInstruction ) {
+                referenced.add( ((Instruction.BranchInstruction)inst).getTarget() );
+            }
+        }
+        List<Instruction> out = new ArrayList<Instruction>();
+        boolean unreachable = false;
+        for( Instruction inst : list ) {
+            if( inst instanceof Instruction.Label ) {
+                if( referenced.contains( inst ) || !targets.contains( inst ) ) {
+                    unreachable = false;
+                }
+            } else if( unreachable && inst.getOp() != Operation.RETURN ) {
+                removed++;
+                continue;
+            } else {
+                unreachable = isJump( inst );
+            }
+            out.add( inst );
+        }
+        return out;
+    }
+
+    /*-------------------- Inverting conditions -----------------------*/
+
+    /** @return the change in the number of instructions executed when the
+     * condition computed by the instructions ending before list[end] is
+     * inverted */
+    private int inversionCost( List<Instruction> list, int end ) {
+        if( endsWith( list, end, Operation.NEGATE, Operation.ONE,
+                Operation.ADD ) ) {
+            return -3;
+        } else if( endsWith( list, end, Operation.SWAP, Operation.LESS ) ||
+                endsWith( list, end, Operation.SWAP, Operation.LESSEQ ) ) {
+            return -1;
+        } else if( endsWith( list, end, Operation.LESS ) ||
+                endsWith( list, end, Operation.LESSEQ ) ) {
+            return 1;
+        }
+        return 3;
+    }
+    /** Invert the condition computed by the instructions at the end of
+     * code, which is about to be tested by branch.
+     *     a < b   is inverted to  b <= a   (SWAP, LESSEQ)
+     *     a <= b  is inverted to  b < a    (SWAP, LESS)
+     *     not c   is inverted to  c
+     * and any other condition c to not c (NEGATE, ONE, ADD).
+     */
+    private void invert( List<Instruction> code,
+            Instruction.BranchInstruction branch ) {
+        int end = code.size();
+        if( endsWith( code, end, Operation.NEGATE, Operation.ONE,
+                Operation.ADD ) ) {
+            truncate( code, end - 3 );
+        } else if( endsWith( code, end, Operation.SWAP, Operation.LESS ) ) {
+            truncate( code, end - 2 );
+            code.add( new Instruction( Operation.LESSEQ ) );
+        } else if( endsWith( code, end, Operation.SWAP, Operation.LESSEQ ) ) {
+            truncate( code, end - 2 );
+            code.add( new Instruction( Operation.LESS ) );
+        } else if( endsWith( code, end, Operation.LESS ) ) {
+            truncate( code, end - 1 );
+            code.add( new Instruction( Operation.SWAP ) );
+            code.add( new Instruction( Operation.LESSEQ ) );
+        } else if( endsWith( code, end, Operation.LESSEQ ) ) {
+            truncate( code, end - 1 );
+            code.add( new Instruction( Operation.SWAP ) );
+            code.add( new Instruction( Operation.LESS ) );
+        } else {
+            code.add( new Instruction( Operation.NEGATE ) );
+            code.add( new Instruction( Operation.ONE ) );
+            code.add( new Instruction( Operation.ADD ) );
+        }
+        Site site = sites.get( branch );
+        site.inverted = !site.inverted;
+    }
+    /** @return true if the instructions ending before list[end] are plain
+     * instructions with the given operations */
+    private boolean endsWith( List<Instruction> list, int end,
+            Operation... ops ) {
+        if( end < ops.length ) {
+            return false;
+        }
+        for( int i = 0; i < ops.length; i++ ) {
+            Instruction inst = list.get( end - ops.length + i );
+            if( !isPlain( inst ) || inst.getOp() != ops[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+    private void truncate( List<Instruction> list, int size ) {
+        list.subList( size, list.size() ).clear();
+    }
+
+    /*-------------------- Utilities ----------------------------------*/
+
+    /** @return the number of times a branch was executed in the profile */
+    private long executed( Instruction.BranchInstruction branch ) {
+        return profile.getExecuted( sites.get( branch ).id );
+    }
+    /** @return the number of times a branch (as it currently is) was
+     * taken in the profile */
+    private long taken( Instruction.BranchInstruction branch ) {
+        Site site = sites.get( branch );
+        long taken = profile.getTaken( site.id );
+        return site.inverted ? profile.getExecuted( site.id ) - taken : taken;
+    }
+    /** @return true if inst is a conditional branch */
+    private static boolean isConditional( Instruction inst ) {
+        return inst.getClass() == Instruction.BranchInstruction.class;
+    }
+    /** @return true if inst is an unconditional jump */
+    private static boolean isJump( Instruction inst ) {
+        return inst instanceof Instruction.JumpInstruction;
+    }
+    /** @return true if inst is neither a label nor a branch */
+    private static boolean isPlain( Instruction inst ) {
+        return !(inst instanceof Instruction.Label) &&
+            !(inst instanceof Instruction.BranchInstruction);
+    }
+    /** @return true if label is placed between list[k] and the next
+     * instruction that is not a label */
+    private static boolean isFollowedBy( List<Instruction> list, int k,
+            Instruction.Label label ) {
+        for( int i = k + 1; i < list.size() &&
+                list.get( i ) instanceof Instruction.Label; i++ ) {
+            if( list.get( i ) == label ) {
+                return true;
+            }
+        }
+        return false;
+    }
+    /** @return the position of each label within list */
+    private static Map<Instruction.Label, Integer> labelIndex(
+            List<Instruction> list ) {
+        Map<Instruction.Label, Integer> index =
+            new HashMap<Instruction.Label, Integer>();
+        for( int i = 0; i < list.size(); i++ ) {
+            if( list.get( i ) instanceof Instruction.Label ) {
+                index.put( (Instruction.Label)list.get( i ), i );
+            }
+        }
+        return index;
+    }
+}
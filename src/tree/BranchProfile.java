@@ -0,0 +1,104 @@
+package tree;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * class BranchProfile - the number of times each conditional branch of a
+ * program was executed, and the number of times it was taken, in a run
+ * of the program. Branches are identified by their site: their position
+ * among the conditional branches of the code as generated, before any
+ * branch optimisation (see BranchOptimiser), so a profile recorded
+ * from one compilation may be used by a later compilation of the same
+ * program with the same options. The "taken" count is with respect to
+ * the branch as generated, i.e., the number of times its condition was
+ * false.
+ * A profile is stored as a text file: a line "branches <n>" giving the
+ * number of sites, followed by a line "<site> <executed> <taken>" for
+ * each site that was executed.
+ */
+public class BranchProfile {
+    /** Number of times each site was executed */
+    private long[] executed;
+    /** Number of times each site's branch was taken */
+    private long[] taken;
+
+    public BranchProfile( int sites ) {
+        this.executed = new long[sites];
+        this.taken = new long[sites];
+    }
+    /** @return the number of branch sites */
+    public int getSites() {
+        return executed.length;
+    }
+    public long getExecuted( int site ) {
+        return executed[site];
+    }
+    public long getTaken( int site ) {
+        return taken[site];
+    }
+    /** Add counts for a site */
+    public void add( int site, long executed, long taken ) {
+        this.executed[site] += executed;
+        this.taken[site] += taken;
+    }
+
+    /** Read a profile from a file.
+     * @throws IOException if the file cannot be read or is not a profile
+     */
+    public static BranchProfile read( String fileName ) throws IOException {
+        BufferedReader in = new BufferedReader( new FileReader( fileName ) );
+        try {
+            String header = in.readLine();
+            if( header == null || !header.startsWith( "branches " ) ) {
+                throw new IOException( fileName + " is not a branch profile" );
+            }
+            BranchProfile profile = new BranchProfile(
+                    (int)parse( header.substring( "branches ".length() ) ) );
+            String line;
+            while( (line = in.readLine()) != null ) {
+                String[] fields = line.trim().split( "\\s+" );
+                if( fields.length != 3 ) {
+                    throw new IOException( "Invalid line in " + fileName +
+                            ": " + line );
+                }
+                long site = parse( fields[0] );
+                if( site < 0 || site >= profile.getSites() ) {
+                    throw new IOException( "Invalid site in " + fileName +
+                            ": " + line );
+                }
+                profile.add( (int)site, parse( fields[1] ), parse( fields[2] ) );
+            }
+            return profile;
+        } finally {
+            in.close();
+        }
+    }
+    private static long parse( String field ) throws IOException {
+        try {
+            return Long.parseLong( field.trim() );
+        } catch( NumberFormatException e ) {
+            throw new IOException( "Invalid number in branch profile: " +
+                    field );
+        }
+    }
+
+    /** Write the profile to a file */
+    public void write( String fileName ) throws IOException {
+        PrintWriter out = new PrintWriter( new FileWriter( fileName ) );
+        try {
+            out.println( "branches " + executed.length );
+            for( int site = 0; site < executed.length; site++ ) {
+                if( executed[site] != 0 ) {
+                    out.println( site + " " + executed[site] + " " +
+                            taken[site] );
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
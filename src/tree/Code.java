@@ -1,7 +1,9 @@
 package tree;
 
-import java.util.List;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import machine.Instruction;
 import machine.Operation;
@@ -9,12 +11,27 @@ import syms.SymEntry;
 
 /**
  * class Code - store sequence of instructions
+ * Branches within the code refer to labels rather than explicit offsets.
+ * The offsets are only calculated once all the code for the program has
+ * been generated by calling resolveBranches (the layout pass).
+ * The instructions are held in a singly linked chain so that appending
+ * one code sequence to another takes constant time.
  * @version $Revision: 14 $  $Date: 2013-05-08 10:40:38 +1000 (Wed, 08 May 2013) $
  */
 
-public class Code {
-    /** List of instructions generated */
-    private List<Instruction> code;
+public class Code implements Iterable<Instruction> {
+    /** A link in the chain of instructions */
+    private static class Link {
+        Instruction inst;
+        Link next;
+
+        Link( Instruction inst ) {
+            this.inst = inst;
+            this.next = null;
+        }
+    }
+    /** First and last links of the chain of instructions generated */
+    private Link first, last;
     /** Size of the instructions in words.
      * This is not just the length of the list. */
     private int size;
@@ -22,44 +39,125 @@ public class Code {
     /** Code array is initially empty */
     public Code() {
         super();
-        code = new ArrayList<Instruction>();
+        first = null;
+        last = null;
         size = 0;
     }
+    /** @return a copy of the sequence of instructions as a list */
     public List<Instruction> getCode() {
+        List<Instruction> code = new ArrayList<Instruction>();
+        for( Instruction inst : this ) {
+            code.add( inst );
+        }
         return code;
     }
+    /** Replace the instructions of this code sequence.
+     * @param code the new sequence of instructions
+     */
+    public void setCode( List<Instruction> code ) {
+        first = null;
+        last = null;
+        size = 0;
+        for( Instruction inst : code ) {
+            add( inst );
+        }
+    }
     public int size() {
         return size;
     }
+    /** Iterate over the instructions in order */
+    public Iterator<Instruction> iterator() {
+        return new Iterator<Instruction>() {
+            private Link current = first;
+
+            public boolean hasNext() {
+                return current != null;
+            }
+            public Instruction next() {
+                if( current == null ) {
+                    throw new NoSuchElementException();
+                }
+                Instruction inst = current.inst;
+                current = current.next;
+                return inst;
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    /** Layout pass: assign addresses to all labels assuming the code is
+     * placed starting at address start, and then resolve the offsets
+     * of all branches to labels.
+     * @param start address at which the code will be loaded
+     * @requires every label branched to has been placed in this code.
+     */
+    public void resolveBranches( int start ) {
+        int address = start;
+        for( Instruction inst : this ) {
+            if( inst instanceof Instruction.Label ) {
+                ((Instruction.Label)inst).setAddress( address );
+            }
+            address += inst.getSize();
+        }
+        address = start;
+        for( Instruction inst : this ) {
+            if( inst instanceof Instruction.BranchInstruction ) {
+                ((Instruction.BranchInstruction)inst).resolve( address );
+            }
+            address += inst.getSize();
+        }
+    }
     /*---------------------------------------------------------------*/
     /*--------------- Utility Code Generation Methods ---------------*/
     /*---------------------------------------------------------------*/
     /** Append the code sequence newCode to this code sequence.
+     * The instructions are moved rather than copied, so this takes
+     * constant time, but it leaves newCode empty.
      * @param newCode sequence to be appended
      */
     public void append( Code newCode ) {
-        code.addAll( newCode.code );
-        size += newCode.size();
+        if( newCode.first == null ) {
+            return;
+        }
+        if( first == null ) {
+            first = newCode.first;
+        } else {
+            last.next = newCode.first;
+        }
+        last = newCode.last;
+        size += newCode.size;
+        newCode.first = null;
+        newCode.last = null;
+        newCode.size = 0;
+    }
+    /** Append a single instruction to the code sequence. */
+    public void add( Instruction inst ) {
+        Link link = new Link( inst );
+        if( first == null ) {
+            first = link;
+        } else {
+            last.next = link;
+        }
+        last = link;
+        size += inst.getSize();
     }
     /** Append instruction to code sequence.
      * @param opcode of the generated instruction.
      */
     public void generateOp( Operation opcode ) {
-        code.add( new Instruction( opcode ) );
-        size += opcode.getSize();
+        add( new Instruction( opcode ) );
     }
     /** Generate a LoadConstant instruction at the current location.
      * @param word the value of the constant
      * @result location of the constant for later patching
      */ 
     public void genLoadConstant( int value ) {
-        code.add( new Instruction.LoadConInstruction( value ) );
-        size += Operation.LOAD_CON.getSize();
+        add( new Instruction.LoadConInstruction( value ) );
     }
     /** Generate a procedure call reference instruction */
     public void genProcCallRef( SymEntry.ProcedureEntry proc ) {
-        code.add( new Instruction.ProcRefInstruction( proc ) );
-        size += Operation.LOAD_CON.getSize();
+        add( new Instruction.ProcRefInstruction( proc ) );
     }
     
     /** Generate code to perform a logical negation.
@@ -129,23 +227,39 @@ public class Code {
             generateOp( Operation.LOAD_ABS );
         }
     }
-    /** Size of instructions implementing jump_if_false */ 
-    static final int SIZE_JUMP_IF_FALSE = 
-            Operation.BR_FALSE.getSize() + Operation.LOAD_CON.getSize();
-    /** Generate a JumpIf False to location dest. The branch address
-     * is relative to the address of the instruction following the
-     * BR_FALSE instruction. */
-    public void genJumpIfFalse( int offset ) {
-        genLoadConstant( offset );  
-        generateOp( Operation.BR_FALSE );
-    }
-    /** Size of instructions implementing jump_always */ 
-    static final int SIZE_JUMP_ALWAYS = 
-            SIZE_JUMP_IF_FALSE + Operation.ZERO.getSize();
-    /** Generate an unconditional branch. */
-    public void genJumpAlways( int offset ) {
-        generateOp( Operation.ZERO );
-        genJumpIfFalse( offset );
+    /** Place a label at the current location. */
+    public void genLabel( Instruction.Label label ) {
+        add( label );
+    }
+    /** Generate a JumpIfFalse to the given label. 
+     * The offset is resolved by resolveBranches. */
+    public void genJumpIfFalse( Instruction.Label target ) {
+        add( new Instruction.BranchInstruction( Operation.BR_FALSE, target ) );
+    }
+    /** Generate an unconditional branch to the given label. */
+    public void genJumpAlways( Instruction.Label target ) {
+        add( new Instruction.JumpInstruction( target ) );
+    }
+    /** Generate the initialisation of a counted loop. The lower and upper
+     * bounds are on the stack.
+     * @param varOffset frame offset of the control variable
+     * @param boundOffset frame offset of the variable holding the bound
+     * @param exit label following the loop
+     */
+    public void genForInit( int varOffset, int boundOffset, 
+            Instruction.Label exit ) {
+        add( new Instruction.ForInstruction( Operation.FOR_INIT, 
+                varOffset, boundOffset, exit ) );
+    }
+    /** Generate the step at the end of a counted loop.
+     * @param varOffset frame offset of the control variable
+     * @param boundOffset frame offset of the variable holding the bound
+     * @param body label at the start of the loop body
+     */
+    public void genForStep( int varOffset, int boundOffset, 
+            Instruction.Label body ) {
+        add( new Instruction.ForInstruction( Operation.FOR_STEP, 
+                varOffset, boundOffset, body ) );
     }
     /** Generate a bounds check instruction. Assumes the value to check is
      * already on the stack */
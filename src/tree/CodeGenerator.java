@@ -1,10 +1,18 @@
 package tree;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
+import machine.Instruction;
 import machine.Operation;
 import machine.StackMachine;
 import source.Errors;
@@ -25,16 +33,92 @@ implements TreeTransform<Code>, StatementTransform<Code>,
 ExpTransform<Code> {
 	/** Current static level of nesting into procedures. */
 	private int staticLevel;
-	/** Current code location for tracking start addresses of procedures */
-	private int start;
+	/** Start labels of procedures, resolved once the code is laid out */
+	private Map<SymEntry.ProcedureEntry, Instruction.Label> procLabels;
 	/** Table of procedure start and finish addresses */
 	private Procedures procStarts;
 	/** Error message handler */
 	Errors errors;
+	/** Whether identical operands of a binary operator are evaluated
+	 * once and duplicated */
+	private boolean duplicateOperands;
+	/** Whether the operands of binary operators are evaluated in the
+	 * order that needs the fewest stack words */
+	private boolean scheduleOperands;
+	/** Optimisation applied to the code before layout, or null */
+	private CodePass codePass;
+	/* Properties of the nodes of the expression being generated, used to
+	 * duplicate and schedule operands; they are found bottom up once for
+	 * each expression (see analyse) rather than by recursing on each
+	 * operand. */
+	/** Key (see Expressions.keys) of each pure node */
+	private Map<ExpNode, String> keys;
+	/** Nodes that may fail */
+	private Set<ExpNode> failing;
+	/** Nodes that contain a read */
+	private Set<ExpNode> reads;
+	/** Number of stack words needed to evaluate each node */
+	private Map<ExpNode, Integer> needs;
+	/** Whether the code of each block is kept (see regenerateCode) */
+	private boolean keepBlocks;
+	/** If kept, the code of each block in the order it is laid out */
+	private List<BlockCode> blockCodes;
+	/** If kept, the code of each block by block */
+	private Map<BlockNode, BlockCode> blockCode;
+
+	/** The code of a block kept so that it can be laid out again with
+	 * the code of one of the other blocks regenerated */
+	private static class BlockCode {
+		/** Static level of the block */
+		final int level;
+		/** Code before that of the block: the start label and for the main
+		 * program its dummy links */
+		List<Instruction> head;
+		/** Code of the block from allocating its variables to its return */
+		List<Instruction> body;
+		/** Label marking the finish of the block */
+		Instruction.Label finish;
+
+		BlockCode( int level ) {
+			this.level = level;
+		}
+	}
 
 	public CodeGenerator(Errors errors) {
 		super();
 		this.errors = errors;
+		this.duplicateOperands = false;
+		this.scheduleOperands = false;
+		this.codePass = null;
+		this.keepBlocks = false;
+		this.needs = new IdentityHashMap<ExpNode, Integer>();
+	}
+
+	/** Specify whether a binary operator with identical pure operands,
+	 * e.g., x*x, should evaluate the operand once and duplicate it. */
+	public void setDuplicateOperands( boolean duplicateOperands ) {
+		this.duplicateOperands = duplicateOperands;
+	}
+
+	/** Specify whether the operand of a binary operator that needs more
+	 * stack words to evaluate should be evaluated first. */
+	public void setScheduleOperands( boolean scheduleOperands ) {
+		this.scheduleOperands = scheduleOperands;
+	}
+
+	/** Specify an optimisation to apply to the code before it is laid
+	 * out, or null for none. */
+	public void setCodePass( CodePass codePass ) {
+		this.codePass = codePass;
+	}
+
+	/** Specify whether the code of each block is kept when the code for
+	 * a program is generated, so that the code for a block can later be
+	 * regenerated on its own (see regenerateCode). As an optimisation of
+	 * the code applies to the program as a whole, it is only kept if no
+	 * code pass is applied. */
+	public void setKeepBlocks( boolean keepBlocks ) {
+		this.keepBlocks = keepBlocks;
 	}
 
 	/*-------------------- Main Method to start code generation --------*/
@@ -43,9 +127,64 @@ ExpTransform<Code> {
 	public CodePlusProcedures generateCode( ProgramNode node ) {
 		/* Main program is at static level 1. */
 		staticLevel = 1;
-		start  = StackMachine.CODE_START;
+		procLabels = new LinkedHashMap<SymEntry.ProcedureEntry, 
+				Instruction.Label>();
 		procStarts = new Procedures();
+		if( keepBlocks && codePass == null ) {
+			blockCodes = new ArrayList<BlockCode>();
+			blockCode = new HashMap<BlockNode, BlockCode>();
+		} else {
+			blockCodes = null;
+			blockCode = null;
+		}
 		Code code = this.visitProgramNode( node );
+		if( codePass != null ) {
+			codePass.run( code );
+		}
+		return layOut( code );
+	}
+
+	/** Regenerate the code for a program whose code has been generated,
+	 * with its blocks kept, after the bodies of some of its blocks have
+	 * been replaced and checked. The code of the other blocks, their
+	 * labels, and the procedure start and finish entries are reused; the
+	 * code is laid out again as the sizes of the blocks may differ.
+	 * @param node program whose code was generated by generateCode
+	 * @param changed blocks of the program whose bodies were replaced
+	 * @return the code for the program and its procedures
+	 */
+	public CodePlusProcedures regenerateCode( ProgramNode node, 
+			List<BlockNode> changed ) {
+		if( blockCodes == null ) {
+			fatal( "PL0 Internal error: code of blocks not kept", 
+					Position.NO_POSITION );
+		}
+		for( BlockNode block : changed ) {
+			BlockCode own = blockCode.get( block );
+			staticLevel = own.level;
+			own.body = genBlockBody( block ).getCode();
+		}
+		Code code = new Code();
+		for( BlockCode own : blockCodes ) {
+			for( Instruction inst : own.head ) {
+				code.add( inst );
+			}
+			for( Instruction inst : own.body ) {
+				code.add( inst );
+			}
+			code.genLabel( own.finish );
+		}
+		return layOut( code );
+	}
+
+	/** Lay out the code: fix label addresses and branch offsets, and the
+	 * start addresses of procedures. */
+	private CodePlusProcedures layOut( Code code ) {
+		code.resolveBranches( StackMachine.CODE_START );
+		for( Map.Entry<SymEntry.ProcedureEntry, Instruction.Label> entry :
+				procLabels.entrySet() ) {
+			entry.getKey().setStart( entry.getValue().getAddress() );
+		}
 		return new CodePlusProcedures( code, procStarts );
 	}
 
@@ -54,8 +193,10 @@ ExpTransform<Code> {
 	/** Generate the code for the main program. */
 	public Code visitProgramNode( ProgramNode node ) {
 		Code code = new Code();
+		Instruction.Label mainStart = new Instruction.Label();
 		procStarts.addProcedureStart( "<main>", 
-				node.getBlock().getBlockLocals(), start );
+				node.getBlock().getBlockLocals(), mainStart );
+		code.genLabel( mainStart );
 		/* Place dummy static and dynamic links on stack.
 		 * The stack machine begins execution with the frame pointer
 		 * equal to the stack pointer (both 0).
@@ -66,8 +207,9 @@ ExpTransform<Code> {
 		/* place return address from main program on stack:
 		 * a return address of 0 will terminate stack machine execution. */
 		code.generateOp( Operation.ZERO );
-		/* Update the current location in code generation */
-		start += code.size(); 
+		if( blockCodes != null ) {
+			keepHead( node.getBlock(), code );
+		}
 		/* generate code for body of program */
 		code.append( node.getBlock().accept( this ) );
 		return code;
@@ -75,17 +217,16 @@ ExpTransform<Code> {
 
 	/** Generate code for a block. */
 	public Code visitBlockNode( BlockNode node ) {
-		/** Generate code to allocate space for local variables on
-		 * procedure entry.
-		 */
-		Code code = new Code();
-		code.genAllocStack( node.getBlockLocals().getVariableSpace() );
-		/* Generate the code for the body */
-		code.append( node.getBody().genCode( this ) );
-		code.generateOp( Operation.RETURN );
-		/* Save finish address of procedure */
-		start += code.size();
-		procStarts.addProcedureFinish( start );
+		Code code = genBlockBody( node );
+		/* Mark finish address of procedure */
+		Instruction.Label finish = new Instruction.Label();
+		if( blockCodes != null ) {
+			BlockCode own = blockCode.get( node );
+			own.body = code.getCode();
+			own.finish = finish;
+		}
+		code.genLabel( finish );
+		procStarts.addProcedureFinish( finish );
 		/** Generate code for local procedures. */
 		/* Static level is one greater for the procedures. */
 		staticLevel++;
@@ -95,6 +236,26 @@ ExpTransform<Code> {
 	}
 
 
+	/** Generate the code of a block from allocating space for its local
+	 * variables on procedure entry to its return. */
+	private Code genBlockBody( BlockNode node ) {
+		Code code = new Code();
+		code.genAllocStack( node.getBlockLocals().getVariableSpace() );
+		/* Generate the code for the body */
+		code.append( node.getBody().genCode( this ) );
+		node.release();
+		code.generateOp( Operation.RETURN );
+		return code;
+	}
+	/** Keep the code before that of a block, as the first code of the
+	 * block in the order laid out. */
+	private void keepHead( BlockNode node, Code head ) {
+		BlockCode own = new BlockCode( staticLevel );
+		own.head = head.getCode();
+		blockCodes.add( own );
+		blockCode.put( node, own );
+	}
+
 	/** Code generation for a declaration list */
 	public Code visitDeclListNode( DeclNode.DeclListNode node ) {
 		Code code = new Code();
@@ -107,12 +268,19 @@ ExpTransform<Code> {
 	/** Generate code for a single procedure. */
 	public Code visitProcedureNode( DeclNode.ProcedureNode node ) {
 		SymEntry.ProcedureEntry proc = node.getProcEntry();
-		/* Save start address of procedure */
-		proc.setStart( start );
+		/* Mark start address of procedure; it is resolved after layout */
+		Instruction.Label start = new Instruction.Label();
+		procLabels.put( proc, start );
 		procStarts.addProcedureStart( proc.getIdent(), 
 				proc.getLocalScope(), start );
+		Code code = new Code();
+		code.genLabel( start );
+		if( blockCodes != null ) {
+			keepHead( node.getBlock(), code );
+		}
 		// Generate code for the block
-		return node.getBlock().accept( this );
+		code.append( node.getBlock().accept( this ) );
+		return code;
 	}
 	/*************************************************
 	 *  Statement node code generation visit methods
@@ -200,98 +368,336 @@ ExpTransform<Code> {
 
 	/** Generate code for an "if" statement. */
 	public Code visitIfNode(StatementNode.IfNode node) {
-		/* Generate code to evaluate the condition and then and else parts */
-		Code code = node.getCondition().genCode( this );
+		Instruction.Label elseLabel = new Instruction.Label();
+		Instruction.Label endLabel = new Instruction.Label();
+		/* Generate code to evaluate the condition, branching to the
+		 * else part if it is false, and the then and else parts */
+		Code code = genJumpIfFalse( node.getCondition(), elseLabel );
 		Code thenCode = node.getThenStmt().genCode( this );
 		Code elseCode = node.getElseStmt().genCode( this );
-		/* Append a branch over then part to else part code */
-		code.genJumpIfFalse( thenCode.size() + Code.SIZE_JUMP_ALWAYS );
 		/* Next append the code for the then part */
 		code.append( thenCode );
 		/* Append branch over the else part */
-		code.genJumpAlways( elseCode.size() );
+		code.genJumpAlways( endLabel );
 		/* Finally append the code for the else part */
+		code.genLabel( elseLabel );
 		code.append( elseCode );
+		code.genLabel( endLabel );
 		return code;
 	}
 
 	/** Generate code for a "while" statement. */
 	public Code visitWhileNode(StatementNode.WhileNode node) {
-		/* Generate the code to evaluate the condition. */
-		Code code = node.getCondition().genCode( this );
-		/* Generate the code for the loop body */
-		Code bodyCode = node.getLoopStmt().genCode( this );
-		/* Add a branch over the loop body on false.
-		 * The offset is the size of the loop body code plus 
-		 * the size of the branch to follow the body.
-		 */
-		code.genJumpIfFalse( bodyCode.size() + Code.SIZE_JUMP_ALWAYS );
-		/* Append the code for the body */
-		code.append( bodyCode );
-		/* Add a branch back to the condition.
-		 * The offset is the total size of the current code plus the
-		 * size of a Jump Always (being generated).
-		 */
-		code.genJumpAlways( -(code.size() + Code.SIZE_JUMP_ALWAYS) );
+		Instruction.Label condLabel = new Instruction.Label();
+		Instruction.Label exitLabel = new Instruction.Label();
+		Code code = new Code();
+		code.genLabel( condLabel );
+		/* Generate the code to evaluate the condition, with a branch
+		 * over the loop body on false. */
+		code.append( genJumpIfFalse( node.getCondition(), exitLabel ) );
+		/* Append the code for the loop body */
+		code.append( node.getLoopStmt().genCode( this ) );
+		/* Add a branch back to the condition. */
+		code.genJumpAlways( condLabel );
+		code.genLabel( exitLabel );
 		return code;
 	}
 
 
+	/** Generate code for a "for" statement.
+	 * The control variable and the upper bound are held in the (current)
+	 * frame. FOR_INIT stores the bounds and skips the loop if it is empty;
+	 * FOR_STEP increments the control variable and branches back to the
+	 * body while it is less than the upper bound.
+	 */
 	@Override
 	public Code visitForNode(StatementNode.ForNode node) {
 
-		Code code = new Code();
-
 		SymEntry.VarEntry varEntry = node.getEntry();
-		
-		
-		//the initial code to be run once at the start of the for loop
-		Code initial = new Code();
-		initial.append(node.getLowerBound().genCode(this));
-		initial.genMemRef(staticLevel - varEntry.getLevel(), varEntry.getOffset());
-		initial.generateOp(Operation.STORE_FRAME);
-		initial.append(node.getUpperBound().genCode(this));
-		
-		
-		//body code //pop is added for execution of nested for loops
-		Code bodyCode = node.getdoStmt().genCode(this);
-		if(node.getdoStmt() instanceof StatementNode.ForNode)
-			bodyCode.generateOp(Operation.POP);
-
-
-		//code to increment and save the value of control var
-		//will be appended after body
-		Code increment = new Code();
-		increment.genMemRef(staticLevel - varEntry.getLevel(), varEntry.getOffset());
-		increment.generateOp(Operation.LOAD_FRAME);
-		increment.genLoadConstant(1);
-		increment.generateOp(Operation.ADD);
-		increment.genMemRef(staticLevel - varEntry.getLevel(), varEntry.getOffset());
-		increment.generateOp(Operation.STORE_FRAME);
-		
-		//append the initial code and duplicate the value of the upper bound
-		//so that it is always there on the stack
-		code.append(initial);
-		code.generateOp(Operation.DUP);
-
-		//getting the value of the control var to compare with upper bound
-		code.genMemRef(staticLevel - varEntry.getLevel(), varEntry.getOffset());
-		code.generateOp(Operation.LOAD_FRAME);
-
-		//swapping the top two values on stack and comparing
-		code.generateOp(Operation.SWAP);
-		code.generateOp(Operation.LESSEQ);
-
-		//jump if false over the body statement and the save value statement
-		code.genLoadConstant(bodyCode.size() + increment.size() + Code.SIZE_JUMP_ALWAYS);
-		code.generateOp(Operation.BR_FALSE);
-		code.append(bodyCode);
-		code.append(increment);
-		code.genJumpAlways(-(code.size() + Code.SIZE_JUMP_ALWAYS) + initial.size()  );
-		
+		SymEntry.VarEntry boundEntry = node.getBoundEntry();
+		Instruction.Label bodyLabel = new Instruction.Label();
+		Instruction.Label exitLabel = new Instruction.Label();
+
+		//the bounds are evaluated once, lower bound first
+		Code code = node.getLowerBound().genCode(this);
+		code.append(node.getUpperBound().genCode(this));
+		code.genForInit(varEntry.getOffset(), boundEntry.getOffset(), 
+				exitLabel);
+
+		code.genLabel(bodyLabel);
+		code.append(node.getdoStmt().genCode(this));
+		code.genForStep(varEntry.getOffset(), boundEntry.getOffset(), 
+				bodyLabel);
+		code.genLabel(exitLabel);
+
 		return code;
 	}
 
+	/*************************************************
+	 *  Expressions and conditions
+	 *************************************************/
+	/* The operators of an expression may be nested arbitrarily deeply,
+	 * so rather than recursing on the tree its code is generated from an
+	 * explicit stack of tasks. The code of an expression is that of its
+	 * operands and operators in sequence: a task either appends code
+	 * directly or is expanded into a sequence of further tasks, which
+	 * are done in order before the task that follows it. The depth of
+	 * nesting is thus limited only by the heap.
+	 */
+	/** A step in generating the code of an expression */
+	private static class Task {
+		/** Generate the value of exp */
+		static final int VALUE = 0;
+		/** Evaluate the condition exp and branch to label if false */
+		static final int JUMP_IF_FALSE = 1;
+		/** Evaluate the condition exp and branch to label if true */
+		static final int JUMP_IF_TRUE = 2;
+		/** Generate the operation op */
+		static final int OPERATION = 3;
+		/** Negate the boolean on top of the stack */
+		static final int BOOL_NOT = 4;
+		/** Check the bounds of the subrange exp narrows to */
+		static final int BOUNDS_CHECK = 5;
+		/** Place label */
+		static final int LABEL = 6;
+		/** Branch to label if the top of the stack is false */
+		static final int BRANCH_FALSE = 7;
+		/** Branch to label */
+		static final int BRANCH = 8;
+
+		final int kind;
+		final ExpNode exp;
+		final Instruction.Label label;
+		final Operation op;
+
+		private Task( int kind, ExpNode exp, Instruction.Label label,
+				Operation op ) {
+			this.kind = kind;
+			this.exp = exp;
+			this.label = label;
+			this.op = op;
+		}
+		static Task value( ExpNode exp ) {
+			return new Task( VALUE, exp, null, null );
+		}
+		static Task jumpIfFalse( ExpNode cond, Instruction.Label target ) {
+			return new Task( JUMP_IF_FALSE, cond, target, null );
+		}
+		static Task jumpIfTrue( ExpNode cond, Instruction.Label target ) {
+			return new Task( JUMP_IF_TRUE, cond, target, null );
+		}
+		static Task operation( Operation op ) {
+			return new Task( OPERATION, null, null, op );
+		}
+		static Task boolNot() {
+			return new Task( BOOL_NOT, null, null, null );
+		}
+		static Task boundsCheck( ExpNode.NarrowSubrangeNode exp ) {
+			return new Task( BOUNDS_CHECK, exp, null, null );
+		}
+		static Task place( Instruction.Label label ) {
+			return new Task( LABEL, null, label, null );
+		}
+		static Task branchFalse( Instruction.Label target ) {
+			return new Task( BRANCH_FALSE, null, target, null );
+		}
+		static Task branch( Instruction.Label target ) {
+			return new Task( BRANCH, null, target, null );
+		}
+	}
+	/** Generate the code of a task, and of the tasks it expands into */
+	private Code generate( Task task ) {
+		if( (duplicateOperands || scheduleOperands) &&
+				!needs.containsKey( task.exp ) ) {
+			analyse( task.exp );
+		}
+		Code code = new Code();
+		List<Task> stack = new ArrayList<Task>();
+		/* Tasks a task expands into, in the order they are done */
+		List<Task> expansion = new ArrayList<Task>();
+		stack.add( task );
+		while( !stack.isEmpty() ) {
+			Task next = stack.remove( stack.size() - 1 );
+			switch( next.kind ) {
+			case Task.VALUE:
+				expandValue( next.exp, code, expansion );
+				break;
+			case Task.JUMP_IF_FALSE:
+				expandJumpIfFalse( next.exp, next.label, expansion );
+				break;
+			case Task.JUMP_IF_TRUE:
+				expandJumpIfTrue( next.exp, next.label, expansion );
+				break;
+			case Task.OPERATION:
+				code.generateOp( next.op );
+				break;
+			case Task.BOOL_NOT:
+				code.genBoolNot();
+				break;
+			case Task.BOUNDS_CHECK:
+				SubrangeType subrange = 
+					((ExpNode.NarrowSubrangeNode)next.exp).getSubrangeType();
+				code.genBoundsCheck( subrange.getLower(), subrange.getUpper() );
+				break;
+			case Task.LABEL:
+				code.genLabel( next.label );
+				break;
+			case Task.BRANCH_FALSE:
+				code.genJumpIfFalse( next.label );
+				break;
+			case Task.BRANCH:
+				code.genJumpAlways( next.label );
+				break;
+			default:
+				fatal( "PL0 Internal error: Unknown code generation task",
+						null );
+			}
+			for( int i = expansion.size() - 1; 0 <= i; i-- ) {
+				stack.add( expansion.get( i ) );
+			}
+			expansion.clear();
+		}
+		return code;
+	}
+	/** Generate the code for the value of an expression, expanding the
+	 * operators and coercions whose operands may be nested. */
+	private void expandValue( ExpNode exp, Code code, List<Task> expansion ) {
+		if( Expressions.isLogical( exp ) ) {
+			expandLogicalValue( exp, expansion );
+		} else if( exp instanceof ExpNode.BinaryOpNode ) {
+			ExpNode.BinaryOpNode node = (ExpNode.BinaryOpNode)exp;
+			genBinary( node, node.getOp(), expansion );
+		} else if( exp instanceof ExpNode.UnaryOpNode ) {
+			ExpNode.UnaryOpNode node = (ExpNode.UnaryOpNode)exp;
+			expansion.add( Task.value( node.getSubExp() ) );
+			switch ( node.getOp() ) {
+			case NEG_OP:
+				expansion.add( Task.operation( Operation.NEGATE ) );
+				break;
+			default:
+				fatal("Internal error: unknown unary operator " + node.getOp(),
+						node.getPosition() );
+			}
+		} else if( exp instanceof ExpNode.NarrowSubrangeNode ) {
+			/* Perform a bounds check on the subrange */
+			expansion.add( Task.value( 
+					((ExpNode.NarrowSubrangeNode)exp).getExp() ) );
+			expansion.add( Task.boundsCheck( 
+					(ExpNode.NarrowSubrangeNode)exp ) );
+		} else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+			// Widening doesn't require anything extra
+			expansion.add( Task.value( 
+					((ExpNode.WidenSubrangeNode)exp).getExp() ) );
+		} else {
+			code.append( exp.genCode( this ) );
+		}
+	}
+	/** Generate code to evaluate a condition and branch to the label
+	 * target if it is false, otherwise continue with the following code.
+	 * The operands of logical operators are evaluated only as far as
+	 * needed to determine the result, and no boolean values are
+	 * computed for them. */
+	private Code genJumpIfFalse( ExpNode cond, Instruction.Label target ) {
+		return generate( Task.jumpIfFalse( cond, target ) );
+	}
+	/** Expand a branch to target if cond is false. */
+	private void expandJumpIfFalse( ExpNode cond, Instruction.Label target,
+			List<Task> expansion ) {
+		if( cond instanceof ExpNode.UnaryOpNode && Expressions.isLogical( cond ) ) {
+			expansion.add( Task.jumpIfTrue( 
+					((ExpNode.UnaryOpNode)cond).getSubExp(), target ) );
+		} else if( cond instanceof ExpNode.BinaryOpNode && Expressions.isLogical( cond ) ) {
+			ExpNode.BinaryOpNode op = (ExpNode.BinaryOpNode)cond;
+			if( op.getOp() == BinaryOperator.AND_OP ) {
+				expansion.add( Task.jumpIfFalse( 
+						op.getLeft(), target ) );
+				expansion.add( Task.jumpIfFalse( 
+						op.getRight(), target ) );
+			} else {
+				/* OR_OP */
+				Instruction.Label holds = new Instruction.Label();
+				expansion.add( Task.jumpIfTrue( 
+						op.getLeft(), holds ) );
+				expansion.add( Task.jumpIfFalse( 
+						op.getRight(), target ) );
+				expansion.add( Task.place( holds ) );
+			}
+		} else {
+			expansion.add( Task.value( cond ) );
+			expansion.add( Task.branchFalse( target ) );
+		}
+	}
+	/** Expand a branch to target if cond is true.
+	 * A comparison is replaced by its complement, e.g., x < y by x >= y,
+	 * and any other condition is negated, before a BR_FALSE. */
+	private void expandJumpIfTrue( ExpNode cond, Instruction.Label target,
+			List<Task> expansion ) {
+		if( cond instanceof ExpNode.UnaryOpNode && Expressions.isLogical( cond ) ) {
+			expansion.add( Task.jumpIfFalse( 
+					((ExpNode.UnaryOpNode)cond).getSubExp(), target ) );
+		} else if( cond instanceof ExpNode.BinaryOpNode && Expressions.isLogical( cond ) ) {
+			ExpNode.BinaryOpNode op = (ExpNode.BinaryOpNode)cond;
+			if( op.getOp() == BinaryOperator.OR_OP ) {
+				expansion.add( Task.jumpIfTrue( 
+						op.getLeft(), target ) );
+				expansion.add( Task.jumpIfTrue( 
+						op.getRight(), target ) );
+			} else {
+				/* AND_OP */
+				Instruction.Label fails = new Instruction.Label();
+				expansion.add( Task.jumpIfFalse( 
+						op.getLeft(), fails ) );
+				expansion.add( Task.jumpIfTrue( 
+						op.getRight(), target ) );
+				expansion.add( Task.place( fails ) );
+			}
+		} else {
+			BinaryOperator complement = null;
+			if( cond instanceof ExpNode.BinaryOpNode ) {
+				complement = complement( ((ExpNode.BinaryOpNode)cond).getOp() );
+			}
+			if( complement != null ) {
+				genBinary( (ExpNode.BinaryOpNode)cond, complement, expansion );
+			} else {
+				expansion.add( Task.value( cond ) );
+				expansion.add( Task.boolNot() );
+			}
+			expansion.add( Task.branchFalse( target ) );
+		}
+	}
+	/** @return the relational operator that holds exactly when op does
+	 * not, or null if op is not relational */
+	private static BinaryOperator complement( BinaryOperator op ) {
+		switch( op ) {
+		case EQUALS_OP:
+			return BinaryOperator.NEQUALS_OP;
+		case NEQUALS_OP:
+			return BinaryOperator.EQUALS_OP;
+		case LESS_OP:
+			return BinaryOperator.GEQUALS_OP;
+		case GEQUALS_OP:
+			return BinaryOperator.LESS_OP;
+		case GREATER_OP:
+			return BinaryOperator.LEQUALS_OP;
+		case LEQUALS_OP:
+			return BinaryOperator.GREATER_OP;
+		default:
+			return null;
+		}
+	}
+	/** Expand the value of a logical operation, left on the stack
+	 * using the branches of the condition. */
+	private void expandLogicalValue( ExpNode cond, List<Task> expansion ) {
+		Instruction.Label isFalse = new Instruction.Label();
+		Instruction.Label end = new Instruction.Label();
+		expansion.add( Task.jumpIfFalse( cond, isFalse ) );
+		expansion.add( Task.operation( Operation.ONE ) );
+		expansion.add( Task.branch( end ) );
+		expansion.add( Task.place( isFalse ) );
+		expansion.add( Task.operation( Operation.ZERO ) );
+		expansion.add( Task.place( end ) );
+	}
+
 	/*************************************************
 	 *  Expression node code generation visit methods
 	 *************************************************/
@@ -316,72 +722,236 @@ ExpTransform<Code> {
 		return code;
 	}
 	/** Generate binary operator code with operands loaded in order */
-	private Code genBinaryInOrder( ExpNode.BinaryOpNode node ) {
-		Code code = node.getLeft().genCode( this );
-		code.append( node.getRight().genCode( this ) );
-		return code;
+	private void genBinaryInOrder( ExpNode.BinaryOpNode node, 
+			List<Task> expansion ) {
+		expansion.add( Task.value( node.getLeft() ) );
+		if( sameOperands( node ) ) {
+			expansion.add( Task.operation( Operation.DUP ) );
+		} else {
+			expansion.add( Task.value( node.getRight() ) );
+		}
 	}
 	/** Generate binary operator operands in reverse order */
-	private Code genBinaryInReverse( ExpNode.BinaryOpNode node ) {
-		Code code = node.getRight().genCode( this );
-		code.append( node.getLeft().genCode( this ) );
-		return code;
+	private void genBinaryInReverse( ExpNode.BinaryOpNode node, 
+			List<Task> expansion ) {
+		expansion.add( Task.value( node.getRight() ) );
+		if( sameOperands( node ) ) {
+			expansion.add( Task.operation( Operation.DUP ) );
+		} else {
+			expansion.add( Task.value( node.getLeft() ) );
+		}
+	}
+	/** @return true if the operands may be evaluated once and duplicated */
+	private boolean sameOperands( ExpNode.BinaryOpNode node ) {
+		if( !duplicateOperands ) {
+			return false;
+		}
+		String key = keys.get( node.getLeft() );
+		return key != null && key.equals( keys.get( node.getRight() ) );
+	}
+
+	/** @return true if the right operand should be evaluated before
+	 * the left rather than in the usual order for the operator.
+	 * Evaluating first the operand that needs more stack words
+	 * minimises the depth of the stack (Sethi-Ullman ordering).
+	 * The order is only changed if the evaluation of one of the
+	 * operands can have no observable effect, or neither reads.
+	 * @param reverse true if the usual order for the operator is to
+	 * evaluate the right operand first */
+	private boolean swapOperands( ExpNode.BinaryOpNode node, boolean reverse ) {
+		if( !scheduleOperands || sameOperands( node ) ) {
+			return false;
+		}
+		ExpNode first = reverse ? node.getRight() : node.getLeft();
+		ExpNode second = reverse ? node.getLeft() : node.getRight();
+		if( needs.get( second ) <= needs.get( first ) ) {
+			return false;
+		}
+		return isInert( first ) || isInert( second ) ||
+			( !reads.contains( first ) && !reads.contains( second ) );
+	}
+	/** @return true if evaluating exp has no effect and cannot fail */
+	private boolean isInert( ExpNode exp ) {
+		return keys.containsKey( exp ) && !failing.contains( exp );
+	}
+	/** Find the keys, the stack words needed and whether they may fail or
+	 * read of the nodes of exp, each from those of its operands */
+	private void analyse( ExpNode exp ) {
+		keys = Expressions.keys( exp, new HashMap<String, Integer>() );
+		failing = Collections.newSetFromMap(
+				new IdentityHashMap<ExpNode, Boolean>() );
+		reads = Collections.newSetFromMap(
+				new IdentityHashMap<ExpNode, Boolean>() );
+		needs = new IdentityHashMap<ExpNode, Integer>();
+		List<ExpNode> operands = new ArrayList<ExpNode>();
+		for( ExpNode node : Expressions.postOrder( exp ) ) {
+			operands.clear();
+			Expressions.pushOperands( node, operands );
+			boolean mayFail = node instanceof ExpNode.NarrowSubrangeNode ||
+				node instanceof ExpNode.BinaryOpNode &&
+				((ExpNode.BinaryOpNode)node).getOp() == BinaryOperator.DIV_OP;
+			boolean read = node instanceof ExpNode.ReadNode;
+			for( ExpNode operand : operands ) {
+				mayFail |= failing.contains( operand );
+				read |= reads.contains( operand );
+			}
+			if( mayFail ) {
+				failing.add( node );
+			}
+			if( read ) {
+				reads.add( node );
+			}
+			needs.put( node, stackNeed( node ) );
+		}
+	}
+	/** @return the number of stack words needed to evaluate exp, given
+	 * those needed by its operands, assuming that when operands are
+	 * scheduled they are evaluated in the best order */
+	private int stackNeed( ExpNode exp ) {
+		if( Expressions.isLogical( exp ) ) {
+			/* Each operand is tested in turn by a branch */
+			int need = 2;
+			if( exp instanceof ExpNode.BinaryOpNode ) {
+				ExpNode.BinaryOpNode op = (ExpNode.BinaryOpNode)exp;
+				need = Math.max( need, Math.max( needs.get( op.getLeft() ),
+						needs.get( op.getRight() ) ) );
+			} else {
+				need = Math.max( need,
+						needs.get( ((ExpNode.UnaryOpNode)exp).getSubExp() ) );
+			}
+			return need;
+		} else if( exp instanceof ExpNode.BinaryOpNode ) {
+			ExpNode.BinaryOpNode op = (ExpNode.BinaryOpNode)exp;
+			if( sameOperands( op ) ) {
+				return Math.max( needs.get( op.getLeft() ), 2 );
+			}
+			int left = needs.get( op.getLeft() );
+			int right = needs.get( op.getRight() );
+			if( scheduleOperands ) {
+				/* The operand needing more is evaluated first */
+				return Math.max( Math.max( left, right ),
+						Math.min( left, right ) + 1 );
+			}
+			boolean reverse = op.getOp() == BinaryOperator.GREATER_OP ||
+				op.getOp() == BinaryOperator.GEQUALS_OP;
+			return reverse ? Math.max( right, left + 1 ) :
+				Math.max( left, right + 1 );
+		} else if( exp instanceof ExpNode.UnaryOpNode ) {
+			return needs.get( ((ExpNode.UnaryOpNode)exp).getSubExp() );
+		} else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+			return needs.get( ((ExpNode.WidenSubrangeNode)exp).getExp() );
+		} else if( exp instanceof ExpNode.NarrowSubrangeNode ) {
+			/* The bounds are loaded above the value */
+			return Math.max(
+				needs.get( ((ExpNode.NarrowSubrangeNode)exp).getExp() ), 3 );
+		} else if( exp instanceof ExpNode.DereferenceNode ) {
+			ExpNode.DereferenceNode deref = (ExpNode.DereferenceNode)exp;
+			int space = deref.getType().getSpace();
+			return Math.max( needs.get( deref.getLeftValue() ),
+					space == 1 ? 1 : space );
+		} else if( exp instanceof ExpNode.VariableNode ) {
+			SymEntry.VarEntry var = ((ExpNode.VariableNode)exp).getVariable();
+			/* A non-local address is a frame address plus an offset */
+			return var.getLevel() == staticLevel ? 1 : 2;
+		}
+		return 1;
+	}
+	/** Generate the operands of a commutative operator, the one needing
+	 * more stack words first. */
+	private void genCommutative( ExpNode.BinaryOpNode node, 
+			List<Task> expansion ) {
+		if( swapOperands( node, false ) ) {
+			genBinaryInReverse( node, expansion );
+		} else {
+			genBinaryInOrder( node, expansion );
+		}
+	}
+	/** Generate the operands of a non-commutative operator, the one
+	 * needing more stack words first, leaving them on the stack in the
+	 * given order; if they are not evaluated in that order they are
+	 * exchanged by a SWAP.
+	 * @param reverse true if the right operand is to be left below the
+	 * left operand on the stack */
+	private void genOrdered( ExpNode.BinaryOpNode node, boolean reverse,
+			List<Task> expansion ) {
+		if( swapOperands( node, reverse ) ) {
+			if( reverse ) {
+				genBinaryInOrder( node, expansion );
+			} else {
+				genBinaryInReverse( node, expansion );
+			}
+			expansion.add( Task.operation( Operation.SWAP ) );
+		} else if( reverse ) {
+			genBinaryInReverse( node, expansion );
+		} else {
+			genBinaryInOrder( node, expansion );
+		}
 	}
 
 	/** Generate code for a binary expression. */
 	public Code visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
-		Code code;
-		switch ( node.getOp() ) {
+		return generate( Task.value( node ) );
+	}
+	/** Generate the tasks to apply op, rather than the operator of node,
+	 * to the operands of node. */
+	private void genBinary( ExpNode.BinaryOpNode node, BinaryOperator op,
+			List<Task> expansion ) {
+		switch ( op ) {
 		case ADD_OP:
-			code = genBinaryInOrder( node );
-			code.generateOp(Operation.ADD);
+			genCommutative( node, expansion );
+			expansion.add( Task.operation( Operation.ADD ) );
 			break;
 		case SUB_OP:
-			code = genBinaryInOrder( node );
-			code.generateOp(Operation.NEGATE);
-			code.generateOp(Operation.ADD);
+			if( swapOperands( node, false ) ) {
+				/* -right + left */
+				expansion.add( Task.value( node.getRight() ) );
+				expansion.add( Task.operation( Operation.NEGATE ) );
+				expansion.add( Task.value( node.getLeft() ) );
+			} else {
+				genBinaryInOrder( node, expansion );
+				expansion.add( Task.operation( Operation.NEGATE ) );
+			}
+			expansion.add( Task.operation( Operation.ADD ) );
 			break;
 		case MUL_OP:
-			code = genBinaryInOrder( node );
-			code.generateOp(Operation.MPY);
+			genCommutative( node, expansion );
+			expansion.add( Task.operation( Operation.MPY ) );
 			break;
 		case DIV_OP:
-			code = genBinaryInOrder( node );
-			code.generateOp(Operation.DIV);
+			genOrdered( node, false, expansion );
+			expansion.add( Task.operation( Operation.DIV ) );
 			break;
 		case EQUALS_OP:
-			code = genBinaryInOrder( node );
-			code.generateOp(Operation.EQUAL);
+			genCommutative( node, expansion );
+			expansion.add( Task.operation( Operation.EQUAL ) );
 			break;
 		case LESS_OP:
-			code = genBinaryInOrder( node );
-			code.generateOp(Operation.LESS);
+			genOrdered( node, false, expansion );
+			expansion.add( Task.operation( Operation.LESS ) );
 			break;
 		case NEQUALS_OP:
-			code = genBinaryInOrder( node );
-			code.generateOp(Operation.EQUAL);
-			code.genBoolNot();
+			genCommutative( node, expansion );
+			expansion.add( Task.operation( Operation.EQUAL ) );
+			expansion.add( Task.boolNot() );
 			break;
 		case LEQUALS_OP:
-			code = genBinaryInOrder( node );
-			code.generateOp(Operation.LESSEQ);
+			genOrdered( node, false, expansion );
+			expansion.add( Task.operation( Operation.LESSEQ ) );
 			break;
 		case GREATER_OP:
 			/* Generate argument values in reverse order and use LESS */
-			code = genBinaryInReverse( node );
-			code.generateOp(Operation.LESS);
+			genOrdered( node, true, expansion );
+			expansion.add( Task.operation( Operation.LESS ) );
 			break;
 		case GEQUALS_OP:
 			/* Generate argument values in reverse order and use LESSEQ */
-			code = genBinaryInReverse( node );
-			code.generateOp(Operation.LESSEQ);
+			genOrdered( node, true, expansion );
+			expansion.add( Task.operation( Operation.LESSEQ ) );
 			break;
 		default:
 			fatal("PL0 Internal error: Unknown binary operator",
 					node.getPosition() );
-			code = null;
 		}
-		return code;
 	}
 	/** Generate the code to load arguments (in order) */
 	public Code visitArgumentsNode( ExpNode.ArgumentsNode node ) {
@@ -403,17 +973,7 @@ ExpTransform<Code> {
 
 	/** Generate code for a unary expression. */
 	public Code visitUnaryOpNode(ExpNode.UnaryOpNode node) {
-		Code code = node.getSubExp().genCode( this );
-		switch ( node.getOp() ) {
-		case NEG_OP:
-			code.generateOp(Operation.NEGATE);
-			break;
-		default:
-			fatal("Internal error: unknown unary operator " + node.getOp(),
-					node.getPosition() );
-			code = null;
-		}
-		return code;
+		return generate( Task.value( node ) );
 	}
 
 	/** Generate code to dereference an RValue. */
@@ -445,16 +1005,12 @@ ExpTransform<Code> {
 	}
 	/** Generate code to perform a bounds check on a subrange. */
 	public Code visitNarrowSubrangeNode(ExpNode.NarrowSubrangeNode node) {
-		Code code = node.getExp().genCode( this );
-		code.genBoundsCheck(node.getSubrangeType().getLower(), 
-				node.getSubrangeType().getUpper());
-		return code;
+		return generate( Task.value( node ) );
 	}
 
 	/** Generate code to widen a subrange to an integer. */
 	public Code visitWidenSubrangeNode(ExpNode.WidenSubrangeNode node) {
-		// Widening doesn't require anything extra
-		return node.getExp().genCode( this );
+		return generate( Task.value( node ) );
 	}
 
 	private void fatal( String message, Position pos ) {
@@ -0,0 +1,17 @@
+package tree;
+
+/**
+ * interface CodePass - an optimisation pass over the generated code of a
+ * program, run before the code is laid out, i.e., while branches still
+ * refer to labels (see Code.resolveBranches).
+ */
+public interface CodePass {
+    /** @return the name of the pass, as used in reports */
+    String getName();
+
+    /** Transform the code of the program. */
+    void run( Code code );
+
+    /** @return a one line summary of the changes made by the last run */
+    String getSummary();
+}
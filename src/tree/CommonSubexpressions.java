@@ -0,0 +1,514 @@
+package tree;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import dataflow.CallGraph;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+import tree.Tree.*;
+
+/** class CommonSubexpressions - optimisation pass that eliminates common
+ * subexpressions within basic blocks using local value numbering.
+ * It is applied to the abstract syntax tree after static checking.
+ * A basic block is a maximal sequence of assignment, write and call
+ * statements, optionally ending with the condition of an "if" statement
+ * or the bounds of a "for" statement. Two pure expressions in a block have the same
+ * value number (key) if they apply the same operators to the same
+ * variables, and no assignment to any of those variables comes between
+ * them. An assignment to a variable invalidates all values that depend
+ * upon it, and a call invalidates the values that depend upon the
+ * variables the procedure, or those it calls, may assign (see
+ * dataflow.CallGraph), along with any value loaded via an address held
+ * in a temporary. A read is never shared, because
+ * each read gives a new value.
+ * If a value is computed more than once, it is computed into a temporary
+ * just before the statement containing its first occurrence, and all
+ * occurrences are replaced by the temporary.
+ * Within one binary operator with identical operands, e.g., x*x, the
+ * code generator can instead duplicate the value on the stack; see
+ * CodeGenerator.setDuplicateOperands.
+ */
+public class CommonSubexpressions implements TreePass, TreeVisitor,
+StatementTransform<StatementNode> {
+
+	/** Scope of the block being optimised; temporaries are allocated here */
+	private Scope blockScope;
+	/** Call graph of the program, giving the variables that may be
+	 * assigned by a call to each procedure. */
+	private CallGraph callGraph;
+	/** Number of expression evaluations eliminated */
+	private int eliminated;
+
+	public CommonSubexpressions() {
+		super();
+	}
+
+	/** @return the number of expression evaluations eliminated */
+	public int getEliminated() {
+		return eliminated;
+	}
+
+	public String getName() {
+		return "common subexpressions";
+	}
+	public void run( ProgramNode tree ) {
+		visitProgramNode( tree );
+	}
+	public String getSummary() {
+		return getEliminated() + " common subexpressions eliminated";
+	}
+
+	/*-------------------- Main Method to start optimisation ----------*/
+
+	public void visitProgramNode( ProgramNode node ) {
+		eliminated = 0;
+		callGraph = new CallGraph( node );
+		node.getBlock().accept( this );
+	}
+
+	public void visitBlockNode( BlockNode node ) {
+		Scope outerScope = blockScope;
+		blockScope = node.getBlockLocals();
+		node.setBody( node.getBody().transform( this ) );
+		node.getProcedures().accept( this );
+		blockScope = outerScope;
+	}
+
+	public void visitDeclListNode( DeclNode.DeclListNode node ) {
+		for( DeclNode decl : node.getDeclarations() ) {
+			decl.accept( this );
+		}
+	}
+
+	public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+		node.getBlock().accept( this );
+	}
+
+	/*************************************************
+	 *  Statement node visit methods
+	 *  Each returns the statement to replace it in the tree, which is
+	 *  a list if assignments to temporaries have been added before it.
+	 *************************************************/
+	public StatementNode visitStatementErrorNode( StatementNode.ErrorNode node ) {
+		return node;
+	}
+
+	public StatementNode visitStatementListNode( StatementNode.ListNode node ) {
+		List<StatementNode> result = new ArrayList<StatementNode>();
+		BasicBlock block = new BasicBlock();
+		for( StatementNode s : node.getStatements() ) {
+			block = optimise( s, block, result );
+		}
+		block.flushInto( result );
+		node.getStatements().clear();
+		node.getStatements().addAll( result );
+		return node;
+	}
+
+	public StatementNode visitAssignmentNode( StatementNode.AssignmentNode node ) {
+		return optimiseSingle( node );
+	}
+
+	public StatementNode visitWriteNode( StatementNode.WriteNode node ) {
+		return optimiseSingle( node );
+	}
+
+	public StatementNode visitCallNode( StatementNode.CallNode node ) {
+		return node;
+	}
+
+	public StatementNode visitIfNode( StatementNode.IfNode node ) {
+		return optimiseSingle( node );
+	}
+
+	public StatementNode visitWhileNode( StatementNode.WhileNode node ) {
+		node.setLoopStmt( node.getLoopStmt().transform( this ) );
+		return node;
+	}
+
+	public StatementNode visitSkipNode( StatementNode.SkipNode node ) {
+		return node;
+	}
+
+	public StatementNode visitForNode( StatementNode.ForNode node ) {
+		return optimiseSingle( node );
+	}
+
+	/** Optimise a statement that is not part of a statement list. */
+	private StatementNode optimiseSingle( StatementNode s ) {
+		List<StatementNode> result = new ArrayList<StatementNode>();
+		optimise( s, new BasicBlock(), result ).flushInto( result );
+		if( result.size() == 1 ) {
+			return result.get( 0 );
+		}
+		StatementNode.ListNode list =
+			new StatementNode.ListNode( s.getPosition() );
+		for( StatementNode stmt : result ) {
+			list.addStatement( stmt );
+		}
+		return list;
+	}
+
+	/** Add statement s to the current basic block.
+	 * @param s statement to add
+	 * @param block current basic block
+	 * @param result list of optimised statements
+	 * @return the basic block following s
+	 */
+	private BasicBlock optimise( StatementNode s, BasicBlock block,
+			List<StatementNode> result ) {
+		if( s instanceof StatementNode.AssignmentNode ||
+				s instanceof StatementNode.WriteNode ||
+				s instanceof StatementNode.CallNode ) {
+			block.add( s );
+			return block;
+		} else if( s instanceof StatementNode.SkipNode ) {
+			return block;
+		} else if( s instanceof StatementNode.ListNode ) {
+			for( StatementNode stmt :
+					((StatementNode.ListNode)s).getStatements() ) {
+				block = optimise( stmt, block, result );
+			}
+			return block;
+		} else if( s instanceof StatementNode.IfNode ) {
+			/* The condition ends the block */
+			StatementNode.IfNode ifNode = (StatementNode.IfNode)s;
+			block.add( s );
+			block.flushInto( result );
+			ifNode.setThenStmt( ifNode.getThenStmt().transform( this ) );
+			ifNode.setElseStmt( ifNode.getElseStmt().transform( this ) );
+			return new BasicBlock();
+		} else if( s instanceof StatementNode.ForNode ) {
+			/* The bounds end the block */
+			StatementNode.ForNode forNode = (StatementNode.ForNode)s;
+			block.add( s );
+			block.flushInto( result );
+			forNode.setDoStmt( forNode.getdoStmt().transform( this ) );
+			return new BasicBlock();
+		} else {
+			/* While loops and erroneous statements */
+			block.flushInto( result );
+			result.add( s.transform( this ) );
+			return new BasicBlock();
+		}
+	}
+
+	/** A value computed within a basic block */
+	private static class Value {
+		/** First occurrence of the value, evaluated into the temporary */
+		ExpNode first;
+		/** Variables the value depends on */
+		Set<SymEntry.VarEntry> uses;
+		/** Number of later occurrences of the value */
+		int reuses;
+		/** Temporary holding the value if it is reused */
+		SymEntry.VarEntry temp;
+
+		Value( ExpNode first, Set<SymEntry.VarEntry> uses ) {
+			this.first = first;
+			this.uses = uses;
+			this.reuses = 0;
+			this.temp = null;
+		}
+	}
+
+	/** A basic block being optimised. The statements are numbered as
+	 * they are added, then rewritten when the block is flushed, once
+	 * it is known which values are reused.
+	 * As expressions may be nested too deeply to recurse over, they are
+	 * numbered and rewritten from explicit stacks, and the properties of
+	 * the nodes of each expression numbered are found bottom up before
+	 * it is numbered, so that the cost is linear in its size. */
+	private class BasicBlock implements StatementVisitor {
+		/** Statements in the block */
+		private List<StatementNode> statements;
+		/** Values available at the current point in the block, by key
+		 * (see Expressions.keys) */
+		private Map<String, Value> available;
+		/** Ids of the keys of the values in the block */
+		private Map<String, Integer> keyIds;
+		/** Keys of the pure nodes of the expression being numbered */
+		private Map<ExpNode, String> keys;
+		/** Variables used by each pure node of the expression being
+		 * numbered that only accesses variables directly */
+		private Map<ExpNode, Set<SymEntry.VarEntry>> uses;
+		/** Nodes of the expression being numbered that may fail */
+		private Set<ExpNode> failing;
+		/** First and later occurrences of values within the block */
+		private Map<ExpNode, Value> firsts, reuses;
+		/** Whether an expression that may fail may be moved before the
+		 * statement that contains it */
+		private boolean moveFailing;
+		/** Whether the statements are being rewritten (after numbering) */
+		private boolean rewriting;
+		/** Assignments to temporaries to precede the current statement */
+		private List<StatementNode> before;
+
+		BasicBlock() {
+			statements = new ArrayList<StatementNode>();
+			available = new HashMap<String, Value>();
+			keyIds = new HashMap<String, Integer>();
+			firsts = new IdentityHashMap<ExpNode, Value>();
+			reuses = new IdentityHashMap<ExpNode, Value>();
+			rewriting = false;
+		}
+
+		/** Number the values computed by s then invalidate those
+		 * depending on variables it assigns. */
+		void add( StatementNode s ) {
+			statements.add( s );
+			s.accept( this );
+			if( s instanceof StatementNode.AssignmentNode ) {
+				for( ExpNode lval :
+						((StatementNode.AssignmentNode)s).getVariable() ) {
+					if( lval instanceof ExpNode.VariableNode ) {
+						kill( ((ExpNode.VariableNode)lval).getVariable() );
+					} else {
+						/* Assignment via an address held in a temporary */
+						available.clear();
+					}
+				}
+			} else if( s instanceof StatementNode.CallNode ) {
+				for( SymEntry.VarEntry var : callGraph.getWrites(
+						((StatementNode.CallNode)s).getEntry() ) ) {
+					kill( var );
+				}
+				killIndirect();
+			}
+		}
+
+		/** Invalidate the values loaded via an address held in a
+		 * temporary, as the variable it refers to is not known */
+		private void killIndirect() {
+			Iterator<Value> values = available.values().iterator();
+			while( values.hasNext() ) {
+				for( SymEntry.VarEntry var : values.next().uses ) {
+					if( var.getType().getBaseType()
+							instanceof Type.ReferenceType ) {
+						values.remove();
+						break;
+					}
+				}
+			}
+		}
+
+		private void kill( SymEntry.VarEntry var ) {
+			Iterator<Value> values = available.values().iterator();
+			while( values.hasNext() ) {
+				if( values.next().uses.contains( var ) ) {
+					values.remove();
+				}
+			}
+		}
+
+		/** Rewrite the statements using temporaries for reused values
+		 * and append them to result. */
+		void flushInto( List<StatementNode> result ) {
+			rewriting = true;
+			for( StatementNode s : statements ) {
+				before = new ArrayList<StatementNode>();
+				s.accept( this );
+				result.addAll( before );
+				result.add( s );
+			}
+			statements.clear();
+		}
+
+		/** Number (or rewrite) the expression exp within a statement
+		 * @return the rewritten expression */
+		private ExpNode visit( ExpNode exp ) {
+			return rewriting ? rewrite( exp ) : number( exp );
+		}
+
+		/** Number the values of exp in pre-order: a reuse of an available
+		 * value is recorded and its operands are not numbered. */
+		private ExpNode number( ExpNode exp ) {
+			classify( exp );
+			/* Nodes to number, with whether an expression that may fail
+			 * may be moved before the statement from each */
+			List<ExpNode> pending = new ArrayList<ExpNode>();
+			List<Boolean> pendingMove = new ArrayList<Boolean>();
+			pending.add( exp );
+			pendingMove.add( moveFailing );
+			while( !pending.isEmpty() ) {
+				ExpNode node = pending.remove( pending.size() - 1 );
+				boolean move = pendingMove.remove( pendingMove.size() - 1 );
+				if( isCandidate( node, move ) ) {
+					String key = keys.get( node );
+					Value value = available.get( key );
+					if( value != null ) {
+						value.reuses++;
+						reuses.put( node, value );
+						continue;
+					}
+					value = new Value( node, uses.get( node ) );
+					available.put( key, value );
+					firsts.put( node, value );
+				}
+				int first = pending.size();
+				Expressions.pushOperands( node, pending );
+				/* The right operand of && or || (pushed first) may be
+				 * skipped, so its values may only be computed in advance
+				 * if they cannot fail */
+				for( int i = first; i < pending.size(); i++ ) {
+					pendingMove.add( move &&
+						!(i == first && Expressions.isLogical( node )) );
+				}
+			}
+			return exp;
+		}
+
+		/** Rewrite exp in post-order: a reuse of a value is replaced by
+		 * its temporary, and the first occurrence of a reused value is
+		 * computed into the temporary before the statement. */
+		private ExpNode rewrite( ExpNode exp ) {
+			/* Nodes to rewrite; a node is followed by null once its
+			 * operands have been pushed above it */
+			List<ExpNode> pending = new ArrayList<ExpNode>();
+			/* Rewritten operands, the last on top */
+			List<ExpNode> done = new ArrayList<ExpNode>();
+			pending.add( exp );
+			while( !pending.isEmpty() ) {
+				ExpNode next = pending.remove( pending.size() - 1 );
+				if( next == null ) {
+					ExpNode node = pending.remove( pending.size() - 1 );
+					Expressions.popOperands( node, done );
+					Value value = firsts.get( node );
+					if( value != null && value.reuses > 0 ) {
+						value.temp = blockScope.newTemporary( node.getType() );
+						before.add( Expressions.assignment( value.temp, node ) );
+						node = Expressions.valueOf( value.temp, node );
+					}
+					done.add( node );
+					continue;
+				}
+				Value value = reuses.get( next );
+				if( value != null ) {
+					eliminated++;
+					done.add( Expressions.valueOf( value.temp, next ) );
+					continue;
+				}
+				pending.add( next );
+				pending.add( null );
+				Expressions.pushOperands( next, pending );
+			}
+			return done.get( 0 );
+		}
+
+		/** A candidate for sharing is a pure non-trivial single word
+		 * expression that only accesses variables directly.
+		 * @param move whether exp may be moved if it may fail */
+		private boolean isCandidate( ExpNode exp, boolean move ) {
+			return !(exp instanceof ExpNode.VariableNode) &&
+				uses.containsKey( exp ) &&
+				!Expressions.isTrivial( exp, blockScope.getLevel() ) &&
+				exp.getType().getSpace() == 1 &&
+				( move || !failing.contains( exp ) );
+		}
+
+		/** Find the keys of the pure nodes of exp, the variables used by
+		 * those that only access variables directly, and the nodes that
+		 * may fail, each from those of its operands. */
+		private void classify( ExpNode exp ) {
+			keys = Expressions.keys( exp, keyIds );
+			uses = new IdentityHashMap<ExpNode, Set<SymEntry.VarEntry>>();
+			failing = Collections.newSetFromMap(
+					new IdentityHashMap<ExpNode, Boolean>() );
+			List<ExpNode> operands = new ArrayList<ExpNode>();
+			for( ExpNode node : Expressions.postOrder( exp ) ) {
+				operands.clear();
+				Expressions.pushOperands( node, operands );
+				boolean mayFail = node instanceof ExpNode.NarrowSubrangeNode ||
+					node instanceof ExpNode.BinaryOpNode &&
+					((ExpNode.BinaryOpNode)node).getOp() ==
+						BinaryOperator.DIV_OP;
+				for( ExpNode operand : operands ) {
+					mayFail |= failing.contains( operand );
+				}
+				if( mayFail ) {
+					failing.add( node );
+				}
+				if( !keys.containsKey( node ) ) {
+					continue;
+				}
+				/* A dereference is direct if it is of a variable */
+				Set<SymEntry.VarEntry> used;
+				if( node instanceof ExpNode.VariableNode ) {
+					used = new HashSet<SymEntry.VarEntry>();
+					used.add( ((ExpNode.VariableNode)node).getVariable() );
+				} else if( node instanceof ExpNode.DereferenceNode &&
+						!(operands.get( 0 ) instanceof ExpNode.VariableNode) ) {
+					continue;
+				} else if( operands.isEmpty() ) {
+					used = new HashSet<SymEntry.VarEntry>();
+				} else {
+					/* Share the operand's set where it holds them all */
+					used = uses.get( operands.get( 0 ) );
+					for( ExpNode operand : operands ) {
+						Set<SymEntry.VarEntry> more = uses.get( operand );
+						if( used == null || more == null ) {
+							used = null;
+							break;
+						}
+						if( !used.containsAll( more ) ) {
+							used = new HashSet<SymEntry.VarEntry>( used );
+							used.addAll( more );
+						}
+					}
+					if( used == null ) {
+						continue;
+					}
+				}
+				uses.put( node, used );
+			}
+		}
+
+		/* Statements: only expressions evaluated before any of the
+		 * statement's effects belong to the block. Expressions that may
+		 * fail are not moved before a read in the same statement. */
+		public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+		}
+		public void visitStatementListNode( StatementNode.ListNode node ) {
+		}
+		public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+			moveFailing = true;
+			for( ExpNode exp : node.getExp() ) {
+				moveFailing &= !Expressions.containsRead( exp );
+			}
+			List<ExpNode> exps = new ArrayList<ExpNode>();
+			for( ExpNode exp : node.getExp() ) {
+				exps.add( visit( exp ) );
+			}
+			node.setExp( exps );
+		}
+		public void visitWriteNode( StatementNode.WriteNode node ) {
+			moveFailing = !Expressions.containsRead( node.getExp() );
+			node.setExp( visit( node.getExp() ) );
+		}
+		public void visitCallNode( StatementNode.CallNode node ) {
+		}
+		public void visitIfNode( StatementNode.IfNode node ) {
+			moveFailing = !Expressions.containsRead( node.getCondition() );
+			node.setCondition( visit( node.getCondition() ) );
+		}
+		public void visitWhileNode( StatementNode.WhileNode node ) {
+		}
+		public void visitSkipNode( StatementNode.SkipNode node ) {
+		}
+		public void visitForNode( StatementNode.ForNode node ) {
+			moveFailing =
+				!Expressions.containsRead( node.getLowerBound() ) &&
+				!Expressions.containsRead( node.getUpperBound() );
+			node.setLowerBound( visit( node.getLowerBound() ) );
+			node.setUpperBound( visit( node.getUpperBound() ) );
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package tree;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import dataflow.CallGraph;
+import dataflow.FlowGraph;
+import dataflow.Liveness;
+import syms.Scope;
+import syms.SymEntry;
+import tree.Tree.*;
+
+/** class DeadStoreElimination - optimisation pass that removes
+ * assignments to local variables whose values are never used, and then
+ * removes the variables that are no longer referenced from the frame
+ * of their procedure.
+ * It is applied to the abstract syntax tree after the other tree passes.
+ * An assignment is dead if its variable is not live after it (see
+ * dataflow.Liveness). Its expression is only removed with it if
+ * evaluating the expression has no effect and cannot fail. Removing
+ * an assignment may make the assignments that computed the values it
+ * used dead, so the analysis is repeated until nothing more is removed.
+ * The remaining local variables (including temporaries) are given
+ * consecutive offsets in their original order, and the frame size
+ * is reduced accordingly.
+ */
+public class DeadStoreElimination implements TreePass, TreeVisitor,
+StatementTransform<StatementNode> {
+
+	/** Call graph of the program, summarising the variables each
+	 * procedure may use and assign */
+	private CallGraph callGraph;
+	/** Flow graph of the block being optimised */
+	private FlowGraph graph;
+	/** Live variables analysis of the block being optimised */
+	private Liveness liveness;
+	/** Flow graph node of each assignment of the block */
+	private Map<StatementNode.AssignmentNode, FlowGraph.Node> assignments;
+	/** Number of assignments removed in the current round */
+	private int removedThisRound;
+	/** Number of assignments (of single variables) removed */
+	private int stores;
+	/** Number of variables removed from frames */
+	private int variables;
+
+	public DeadStoreElimination() {
+		super();
+	}
+
+	/** @return the number of assignments removed */
+	public int getStoresRemoved() {
+		return stores;
+	}
+	/** @return the number of variables removed from frames */
+	public int getVariablesRemoved() {
+		return variables;
+	}
+
+	public String getName() {
+		return "dead store elimination";
+	}
+	public void run( ProgramNode tree ) {
+		visitProgramNode( tree );
+	}
+	public String getSummary() {
+		return getStoresRemoved() + " dead stores removed, " +
+			getVariablesRemoved() + " variables removed from frames";
+	}
+
+	/*-------------------- Main Method to start optimisation ----------*/
+
+	public void visitProgramNode( ProgramNode node ) {
+		stores = 0;
+		variables = 0;
+		callGraph = new CallGraph( node );
+		node.getBlock().accept( this );
+	}
+
+	public void visitBlockNode( BlockNode node ) {
+		do {
+			graph = new FlowGraph( node, callGraph );
+			liveness = new Liveness( graph );
+			liveness.solve();
+			assignments =
+				new HashMap<StatementNode.AssignmentNode, FlowGraph.Node>();
+			for( FlowGraph.Node flow : graph.getNodes() ) {
+				if( flow.getKind() == FlowGraph.Kind.ASSIGN ) {
+					assignments.put(
+							(StatementNode.AssignmentNode)flow.getStatement(),
+							flow );
+				}
+			}
+			removedThisRound = 0;
+			node.setBody( node.getBody().transform( this ) );
+		} while( removedThisRound > 0 );
+		compactFrame( node );
+		node.getProcedures().accept( this );
+	}
+
+	public void visitDeclListNode( DeclNode.DeclListNode node ) {
+		for( DeclNode decl : node.getDeclarations() ) {
+			decl.accept( this );
+		}
+	}
+
+	public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+		node.getBlock().accept( this );
+	}
+
+	/*************************************************
+	 *  Statement node visit methods
+	 *************************************************/
+	public StatementNode visitStatementErrorNode( StatementNode.ErrorNode node ) {
+		return node;
+	}
+
+	public StatementNode visitStatementListNode( StatementNode.ListNode node ) {
+		List<StatementNode> statements = node.getStatements();
+		for( int i = 0; i < statements.size(); i++ ) {
+			statements.set( i, statements.get(i).transform( this ) );
+		}
+		return node;
+	}
+
+	/** Remove each variable assigned by the statement that is not live
+	 * after it, along with its expression, provided evaluating the
+	 * expression has no effect. If no variables remain the statement is
+	 * replaced by a skip. */
+	public StatementNode visitAssignmentNode( StatementNode.AssignmentNode node ) {
+		FlowGraph.Node flow = assignments.get( node );
+		if( flow == null ) {
+			return node;
+		}
+		BitSet live = liveness.getLiveOut( flow );
+		List<ExpNode> lvals = new ArrayList<ExpNode>();
+		List<ExpNode> exps = new ArrayList<ExpNode>();
+		for( int i = 0; i < node.getVariable().size(); i++ ) {
+			ExpNode lval = node.getVariable().get( i );
+			ExpNode exp = node.getExp().get( i );
+			if( lval instanceof ExpNode.VariableNode &&
+					Expressions.isPure( exp ) && !Expressions.mayFail( exp ) ) {
+				int var = graph.getNumber(
+						((ExpNode.VariableNode)lval).getVariable() );
+				if( var >= 0 && !live.get( var ) ) {
+					removedThisRound++;
+					stores++;
+					continue;
+				}
+			}
+			lvals.add( lval );
+			exps.add( exp );
+		}
+		if( lvals.isEmpty() ) {
+			return new StatementNode.SkipNode( node.getPosition() );
+		}
+		node.setVariable( lvals );
+		node.setExp( exps );
+		return node;
+	}
+
+	public StatementNode visitWriteNode( StatementNode.WriteNode node ) {
+		return node;
+	}
+
+	public StatementNode visitCallNode( StatementNode.CallNode node ) {
+		return node;
+	}
+
+	public StatementNode visitIfNode( StatementNode.IfNode node ) {
+		node.setThenStmt( node.getThenStmt().transform( this ) );
+		node.setElseStmt( node.getElseStmt().transform( this ) );
+		return node;
+	}
+
+	public StatementNode visitSkipNode( StatementNode.SkipNode node ) {
+		return node;
+	}
+
+	public StatementNode visitWhileNode( StatementNode.WhileNode node ) {
+		node.setLoopStmt( node.getLoopStmt().transform( this ) );
+		return node;
+	}
+
+	public StatementNode visitForNode( StatementNode.ForNode node ) {
+		node.setDoStmt( node.getdoStmt().transform( this ) );
+		return node;
+	}
+
+	/*************************************************
+	 *  Frame compaction
+	 *************************************************/
+
+	/** Reallocate the frame of a block so that only the local variables
+	 * referred to by the block or the procedures nested within it have
+	 * space. */
+	private void compactFrame( BlockNode node ) {
+		Scope locals = node.getBlockLocals();
+		ReferenceCollector collector =
+			new ReferenceCollector( locals.getLevel() );
+		collector.collect( node );
+		Set<SymEntry.VarEntry> declared = new LinkedHashSet<SymEntry.VarEntry>();
+		for( SymEntry entry : locals.getEntries() ) {
+			if( entry instanceof SymEntry.VarEntry ) {
+				declared.add( (SymEntry.VarEntry)entry );
+			}
+		}
+		declared.addAll( collector.vars );
+		List<SymEntry.VarEntry> kept =
+			new ArrayList<SymEntry.VarEntry>( collector.vars );
+		if( kept.size() == declared.size() ) {
+			return;
+		}
+		variables += declared.size() - kept.size();
+		/* Keep the variables in their original order */
+		Collections.sort( kept, new Comparator<SymEntry.VarEntry>() {
+			public int compare( SymEntry.VarEntry v1, SymEntry.VarEntry v2 ) {
+				return v1.getOffset() - v2.getOffset();
+			}
+		} );
+		locals.reallocateVariables( kept );
+	}
+
+	/** Collects the variables at a given level referred to within a
+	 * block and the procedures nested within it. */
+	private static class ReferenceCollector implements StatementVisitor {
+		private int level;
+		Set<SymEntry.VarEntry> vars = new LinkedHashSet<SymEntry.VarEntry>();
+
+		ReferenceCollector( int level ) {
+			this.level = level;
+		}
+		void collect( BlockNode block ) {
+			block.getBody().accept( this );
+			for( DeclNode decl : block.getProcedures().getDeclarations() ) {
+				collect( ((DeclNode.ProcedureNode)decl).getBlock() );
+			}
+		}
+		private void add( SymEntry.VarEntry var ) {
+			if( var != null && var.getLevel() == level ) {
+				vars.add( var );
+			}
+		}
+		private void add( ExpNode exp ) {
+			Set<SymEntry.VarEntry> used = new LinkedHashSet<SymEntry.VarEntry>();
+			Expressions.variablesUsed( exp, used );
+			for( SymEntry.VarEntry var : used ) {
+				add( var );
+			}
+		}
+		public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+		}
+		public void visitStatementListNode( StatementNode.ListNode node ) {
+			for( StatementNode s : node.getStatements() ) {
+				s.accept( this );
+			}
+		}
+		public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+			for( ExpNode exp : node.getExp() ) {
+				add( exp );
+			}
+			for( ExpNode lval : node.getVariable() ) {
+				add( lval );
+			}
+		}
+		public void visitWriteNode( StatementNode.WriteNode node ) {
+			add( node.getExp() );
+		}
+		public void visitCallNode( StatementNode.CallNode node ) {
+		}
+		public void visitIfNode( StatementNode.IfNode node ) {
+			add( node.getCondition() );
+			node.getThenStmt().accept( this );
+			node.getElseStmt().accept( this );
+		}
+		public void visitWhileNode( StatementNode.WhileNode node ) {
+			add( node.getCondition() );
+			node.getLoopStmt().accept( this );
+		}
+		public void visitSkipNode( StatementNode.SkipNode node ) {
+		}
+		public void visitForNode( StatementNode.ForNode node ) {
+			add( node.getEntry() );
+			add( node.getBoundEntry() );
+			add( node.getLowerBound() );
+			add( node.getUpperBound() );
+			node.getdoStmt().accept( this );
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package tree;
+import java.util.ArrayList;
+import java.util.List;
+
+import dataflow.CallGraph;
+import dataflow.DefiniteAssignment;
+import dataflow.FlowGraph;
+import source.Errors;
+import source.Position;
+import source.Severity;
+import syms.SymEntry;
+import tree.Tree.*;
+
+/** class DefiniteAssignmentChecker - reports a warning for each use of a
+ * local variable that may not have been assigned a value before it (see
+ * dataflow.DefiniteAssignment), in the main program and each procedure.
+ * It is applied to the abstract syntax tree of a program once it has been
+ * statically checked without errors. A call counts as assigning the
+ * variables the procedure called may assign (see dataflow.CallGraph), but
+ * the variables it may use are not reported, as the summary of the
+ * procedure does not tell whether it uses them before it assigns them.
+ */
+public class DefiniteAssignmentChecker implements TreeVisitor {
+
+	/** Warnings are reported through the error handler. */
+	private Errors errors;
+	/** Call graph of the program, summarising the variables each
+	 * procedure may use and assign */
+	private CallGraph callGraph;
+	/** Number of warnings reported */
+	private int warnings;
+
+	public DefiniteAssignmentChecker( Errors errors ) {
+		super();
+		this.errors = errors;
+	}
+
+	/** @return the number of uses reported */
+	public int getWarnings() {
+		return warnings;
+	}
+
+	public void visitProgramNode( ProgramNode node ) {
+		warnings = 0;
+		callGraph = new CallGraph( node );
+		node.getBlock().accept( this );
+	}
+
+	public void visitBlockNode( BlockNode node ) {
+		FlowGraph graph = new FlowGraph( node, callGraph );
+		DefiniteAssignment assigned = new DefiniteAssignment( graph );
+		assigned.solve();
+		for( FlowGraph.Node flow : graph.reversePostorder() ) {
+			if( flow.getKind() == FlowGraph.Kind.CALL ) {
+				continue;
+			}
+			for( SymEntry.VarEntry var : assigned.unassignedUses( flow ) ) {
+				errors.errorMessage( "variable " + var.getIdent() +
+						" may be used before it is assigned",
+						Severity.WARNING, useOf( flow, var ) );
+				warnings++;
+			}
+		}
+		node.release();
+		node.getProcedures().accept( this );
+	}
+
+	public void visitDeclListNode( DeclNode.DeclListNode node ) {
+		for( DeclNode decl : node.getDeclarations() ) {
+			decl.accept( this );
+		}
+	}
+
+	public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+		node.getBlock().accept( this );
+	}
+
+	/** @return the position of the use of var by the flow graph node:
+	 * that of the variable within the expressions of its statement, or
+	 * that of the statement if the use is implicit */
+	private Position useOf( FlowGraph.Node flow, SymEntry.VarEntry var ) {
+		StatementNode stmt = flow.getStatement();
+		List<ExpNode> exps = new ArrayList<ExpNode>();
+		if( stmt instanceof StatementNode.AssignmentNode ) {
+			exps.addAll( ((StatementNode.AssignmentNode)stmt).getExp() );
+			exps.addAll( ((StatementNode.AssignmentNode)stmt).getVariable() );
+		} else if( stmt instanceof StatementNode.WriteNode ) {
+			exps.add( ((StatementNode.WriteNode)stmt).getExp() );
+		} else if( stmt instanceof StatementNode.IfNode ) {
+			exps.add( ((StatementNode.IfNode)stmt).getCondition() );
+		} else if( stmt instanceof StatementNode.WhileNode ) {
+			exps.add( ((StatementNode.WhileNode)stmt).getCondition() );
+		} else if( stmt instanceof StatementNode.ForNode ) {
+			exps.add( ((StatementNode.ForNode)stmt).getLowerBound() );
+			exps.add( ((StatementNode.ForNode)stmt).getUpperBound() );
+		}
+		for( ExpNode exp : exps ) {
+			ExpNode.VariableNode use = Expressions.findVariable( exp, var );
+			if( use != null ) {
+				return use.getPosition();
+			}
+		}
+		return stmt.getPosition();
+	}
+}
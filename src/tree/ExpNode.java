@@ -12,17 +12,21 @@ import syms.Type;
  * @version $Revision: 17 $  $Date: 2013-05-13 08:25:39 +1000 (Mon, 13 May 2013) $
  * Abstract class representing expressions.
  * The classes defined within ExpNode extend it.
- * All expression nodes have a position and a type.
+ * All expression nodes have a position and a type. The position is held
+ * as its index in the source, rather than as a Position object per node.
  */
 public abstract class ExpNode {
-    /** Position in the source code of the expression */
-    protected Position pos;
+    /** Index held for a node constructed without a position */
+    private static final int NO_POSITION = 
+        Position.NO_POSITION.getIndex();
+    /** Index of the position in the source code of the expression */
+    private int pos;
     /** Type of the expression (determined by static checker) */
     protected Type type;
     
     /** Constructor when type is known */
     protected ExpNode( Position pos, Type type) {
-        this.pos = pos;
+        this.pos = pos == null ? NO_POSITION : pos.getIndex();
         this.type = type;
     }
     /** Constructor when type as yet unknown */
@@ -35,7 +39,13 @@ public abstract class ExpNode {
     public void setType( Type type ) {
         this.type = type;
     }
+    /** @return the position, created on each call as only its index is
+     * held; a caller that uses it more than once holds on to it */
     public Position getPosition() {
+        return Position.valueOf( pos );
+    }
+    /** @return the index of the position in the source */
+    int getPositionIndex() {
         return pos;
     }
     
@@ -122,10 +132,16 @@ public abstract class ExpNode {
      */
     public static class IdentifierNode extends ExpNode {
         private String id;
+        /** Symbol id of the name (see SymbolTable.lookup), or -1 */
+        private int symbol;
         
         public IdentifierNode( Position pos, String id ) {
+            this( pos, id, -1 );
+        }
+        public IdentifierNode( Position pos, String id, int symbol ) {
             super( pos );
             this.id = id;
+            this.symbol = symbol;
         }
         @Override
         public ExpNode transform( ExpTransform<ExpNode> visitor ) {
@@ -142,6 +158,9 @@ public abstract class ExpNode {
         public String getId() {
             return id;
         }
+        public int getSymbol() {
+            return symbol;
+        }
         @Override
         public String toString() {
             return id;
@@ -406,6 +425,9 @@ public abstract class ExpNode {
         public ExpNode getExp() {
             return exp;
         }
+        public void setExp( ExpNode exp ) {
+            this.exp = exp;
+        }
         @Override
         public String toString() {
             return "NarrowSubrange(" + exp + ":" + getType() + ")";
@@ -440,6 +462,9 @@ public abstract class ExpNode {
         public ExpNode getExp() {
             return exp;
         }
+        public void setExp( ExpNode exp ) {
+            this.exp = exp;
+        }
         @Override
         public String toString() {
             return "WidenSubrange(" + exp + ":" + getType() + ")";
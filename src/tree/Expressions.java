@@ -0,0 +1,423 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import syms.SymEntry;
+
+/**
+ * class Expressions - properties of (statically checked) expression trees
+ * used by the optimisation passes.
+ * Expressions built only from constants, variables, dereferences and
+ * the arithmetic and relational operators are "pure": evaluating them
+ * has no side effects, and evaluating them twice with the same variable
+ * values gives the same result.
+ */
+public class Expressions {
+
+    private Expressions() {
+        super();
+    }
+
+    /** A key that identifies the value of a pure expression.
+     * Two pure expressions with the same key evaluate to the same value
+     * given the same values of the variables they refer to.
+     * The key is built in post-order from an explicit stack, as exp may be
+     * nested too deeply to recurse over.
+     * @return the key, or null if exp is not pure
+     */
+    public static String key( ExpNode exp ) {
+        /* Nodes to key; a node is followed by null once its operands have
+         * been pushed above it */
+        List<ExpNode> pending = new ArrayList<ExpNode>();
+        /* Keys of the operands, the last on top */
+        List<String> keys = new ArrayList<String>();
+        pending.add( exp );
+        while( !pending.isEmpty() ) {
+            ExpNode next = pending.remove( pending.size() - 1 );
+            if( next == null ) {
+                ExpNode node = pending.remove( pending.size() - 1 );
+                String sub = keys.remove( keys.size() - 1 );
+                if( node instanceof ExpNode.DereferenceNode ) {
+                    sub = "*" + sub;
+                } else if( node instanceof ExpNode.BinaryOpNode ) {
+                    String left = keys.remove( keys.size() - 1 );
+                    sub = ((ExpNode.BinaryOpNode)node).getOp() +
+                        "(" + left + "," + sub + ")";
+                } else if( node instanceof ExpNode.UnaryOpNode ) {
+                    sub = ((ExpNode.UnaryOpNode)node).getOp() +
+                        "(" + sub + ")";
+                } else if( node instanceof ExpNode.NarrowSubrangeNode ) {
+                    sub = "narrow" + node.getType() + "(" + sub + ")";
+                } else {
+                    sub = "widen" + node.getType() + "(" + sub + ")";
+                }
+                keys.add( sub );
+            } else if( next instanceof ExpNode.ConstNode ) {
+                keys.add( "#" + ((ExpNode.ConstNode)next).getValue() );
+            } else if( next instanceof ExpNode.VariableNode ) {
+                SymEntry.VarEntry var =
+                    ((ExpNode.VariableNode)next).getVariable();
+                keys.add( "&" + var.getIdent() + "@" + var.getLevel() +
+                    "." + var.getOffset() );
+            } else if( next instanceof ExpNode.DereferenceNode ||
+                    next instanceof ExpNode.BinaryOpNode ||
+                    next instanceof ExpNode.UnaryOpNode ||
+                    next instanceof ExpNode.NarrowSubrangeNode ||
+                    next instanceof ExpNode.WidenSubrangeNode ) {
+                pending.add( next );
+                pending.add( null );
+                pushOperands( next, pending );
+            } else {
+                /* read, arguments, etc. */
+                return null;
+            }
+        }
+        return keys.get( 0 );
+    }
+
+    /** Find the keys of all the pure subexpressions of exp at once, bottom
+     * up, in time linear in the size of exp. Rather than spelling out its
+     * operands as key does, the key of an operator refers to those of its
+     * operands by the ids they are given in ids, so two pure
+     * subexpressions have the same key here exactly when they have the
+     * same key. Keys found with the same ids may be compared.
+     * @param ids id of each key found so far, to which new keys are added
+     * @return the key of each pure node of exp
+     */
+    public static Map<ExpNode, String> keys( ExpNode exp,
+            Map<String, Integer> ids ) {
+        Map<ExpNode, String> keys = new IdentityHashMap<ExpNode, String>();
+        List<ExpNode> operands = new ArrayList<ExpNode>();
+        for( ExpNode node : postOrder( exp ) ) {
+            String key;
+            if( node instanceof ExpNode.ConstNode ||
+                    node instanceof ExpNode.VariableNode ) {
+                key = key( node );
+            } else if( node instanceof ExpNode.DereferenceNode ||
+                    node instanceof ExpNode.BinaryOpNode ||
+                    node instanceof ExpNode.UnaryOpNode ||
+                    node instanceof ExpNode.NarrowSubrangeNode ||
+                    node instanceof ExpNode.WidenSubrangeNode ) {
+                operands.clear();
+                pushOperands( node, operands );
+                /* The operands are pushed last first */
+                String last = id( keys.get( operands.get( 0 ) ), ids );
+                String first = id( keys.get(
+                        operands.get( operands.size() - 1 ) ), ids );
+                if( last == null || first == null ) {
+                    continue;
+                } else if( node instanceof ExpNode.DereferenceNode ) {
+                    key = "*" + last;
+                } else if( node instanceof ExpNode.BinaryOpNode ) {
+                    key = ((ExpNode.BinaryOpNode)node).getOp() +
+                        "(" + first + "," + last + ")";
+                } else if( node instanceof ExpNode.UnaryOpNode ) {
+                    key = ((ExpNode.UnaryOpNode)node).getOp() +
+                        "(" + last + ")";
+                } else if( node instanceof ExpNode.NarrowSubrangeNode ) {
+                    key = "narrow" + node.getType() + "(" + last + ")";
+                } else {
+                    key = "widen" + node.getType() + "(" + last + ")";
+                }
+            } else {
+                /* read, arguments, etc. */
+                continue;
+            }
+            keys.put( node, key );
+        }
+        return keys;
+    }
+    /** @return the id of key in ids, added if it is new, or null if key
+     * is null */
+    private static String id( String key, Map<String, Integer> ids ) {
+        if( key == null ) {
+            return null;
+        }
+        Integer id = ids.get( key );
+        if( id == null ) {
+            id = ids.size();
+            ids.put( key, id );
+        }
+        return id.toString();
+    }
+
+    /** @return true if exp is pure, i.e., it has no side effects */
+    public static boolean isPure( ExpNode exp ) {
+        List<ExpNode> stack = new ArrayList<ExpNode>();
+        stack.add( exp );
+        while( !stack.isEmpty() ) {
+            ExpNode next = stack.remove( stack.size() - 1 );
+            if( next instanceof ExpNode.DereferenceNode ||
+                    next instanceof ExpNode.BinaryOpNode ||
+                    next instanceof ExpNode.UnaryOpNode ||
+                    next instanceof ExpNode.NarrowSubrangeNode ||
+                    next instanceof ExpNode.WidenSubrangeNode ) {
+                pushOperands( next, stack );
+            } else if( !(next instanceof ExpNode.ConstNode ||
+                    next instanceof ExpNode.VariableNode) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** An expression is trivial if it is no cheaper to load its value from
+     * a temporary, i.e., it is a constant or a local variable (or its
+     * address).
+     * @param level static level at which exp is evaluated
+     */
+    public static boolean isTrivial( ExpNode exp, int level ) {
+        while( exp instanceof ExpNode.DereferenceNode ||
+                exp instanceof ExpNode.WidenSubrangeNode ) {
+            exp = exp instanceof ExpNode.DereferenceNode ?
+                ((ExpNode.DereferenceNode)exp).getLeftValue() :
+                ((ExpNode.WidenSubrangeNode)exp).getExp();
+        }
+        if( exp instanceof ExpNode.ConstNode ) {
+            return true;
+        } else if( exp instanceof ExpNode.VariableNode ) {
+            return ((ExpNode.VariableNode)exp).getVariable().getLevel()
+                == level;
+        }
+        return false;
+    }
+
+    /** @return true if evaluating exp may cause a runtime error */
+    public static boolean mayFail( ExpNode exp ) {
+        List<ExpNode> stack = new ArrayList<ExpNode>();
+        stack.add( exp );
+        while( !stack.isEmpty() ) {
+            ExpNode next = stack.remove( stack.size() - 1 );
+            if( next instanceof ExpNode.NarrowSubrangeNode ||
+                    next instanceof ExpNode.BinaryOpNode &&
+                    ((ExpNode.BinaryOpNode)next).getOp() ==
+                        BinaryOperator.DIV_OP ) {
+                return true;
+            }
+            pushOperands( next, stack );
+        }
+        return false;
+    }
+
+    /** @return true if exp is a logical operation (&&, || or !), whose
+     * operands are only evaluated as far as needed to determine its
+     * value; the right operand of && or || may not be evaluated */
+    public static boolean isLogical( ExpNode exp ) {
+        if( exp instanceof ExpNode.BinaryOpNode ) {
+            BinaryOperator op = ((ExpNode.BinaryOpNode)exp).getOp();
+            return op == BinaryOperator.AND_OP || op == BinaryOperator.OR_OP;
+        }
+        return exp instanceof ExpNode.UnaryOpNode &&
+            ((ExpNode.UnaryOpNode)exp).getOp() == UnaryOperator.NOT_OP;
+    }
+
+    /** @return true if exp contains a read */
+    public static boolean containsRead( ExpNode exp ) {
+        List<ExpNode> stack = new ArrayList<ExpNode>();
+        stack.add( exp );
+        while( !stack.isEmpty() ) {
+            ExpNode next = stack.remove( stack.size() - 1 );
+            if( next instanceof ExpNode.ReadNode ) {
+                return true;
+            }
+            pushOperands( next, stack );
+        }
+        return false;
+    }
+
+    /** Add the variables whose values exp depends upon to vars. */
+    public static void variablesUsed( ExpNode exp,
+            Set<SymEntry.VarEntry> vars ) {
+        List<ExpNode> stack = new ArrayList<ExpNode>();
+        stack.add( exp );
+        while( !stack.isEmpty() ) {
+            ExpNode next = stack.remove( stack.size() - 1 );
+            if( next instanceof ExpNode.VariableNode ) {
+                vars.add( ((ExpNode.VariableNode)next).getVariable() );
+            } else {
+                pushOperands( next, stack );
+            }
+        }
+    }
+
+    /** Push the operands of exp, the expressions it evaluates directly,
+     * onto stack, last first, so that popping them visits them in the
+     * order they are evaluated. Expressions nested too deeply to recurse
+     * over are walked this way from an explicit stack.
+     */
+    public static void pushOperands( ExpNode exp, List<ExpNode> stack ) {
+        if( exp instanceof ExpNode.DereferenceNode ) {
+            stack.add( ((ExpNode.DereferenceNode)exp).getLeftValue() );
+        } else if( exp instanceof ExpNode.BinaryOpNode ) {
+            ExpNode.BinaryOpNode op = (ExpNode.BinaryOpNode)exp;
+            stack.add( op.getRight() );
+            stack.add( op.getLeft() );
+        } else if( exp instanceof ExpNode.UnaryOpNode ) {
+            stack.add( ((ExpNode.UnaryOpNode)exp).getSubExp() );
+        } else if( exp instanceof ExpNode.NarrowSubrangeNode ) {
+            stack.add( ((ExpNode.NarrowSubrangeNode)exp).getExp() );
+        } else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+            stack.add( ((ExpNode.WidenSubrangeNode)exp).getExp() );
+        } else if( exp instanceof ExpNode.ArgumentsNode ) {
+            List<ExpNode> args = ((ExpNode.ArgumentsNode)exp).getArgs();
+            for( int i = args.size() - 1; i >= 0; i-- ) {
+                stack.add( args.get( i ) );
+            }
+        }
+    }
+
+    /** Replace the operands of exp by the expressions on top of stack,
+     * the last operand on top, popping them; the reverse of pushing the
+     * operands and then the result of each in turn. */
+    public static void popOperands( ExpNode exp, List<ExpNode> stack ) {
+        if( exp instanceof ExpNode.DereferenceNode ) {
+            ((ExpNode.DereferenceNode)exp).setLeftValue( pop( stack ) );
+        } else if( exp instanceof ExpNode.BinaryOpNode ) {
+            ExpNode.BinaryOpNode op = (ExpNode.BinaryOpNode)exp;
+            op.setRight( pop( stack ) );
+            op.setLeft( pop( stack ) );
+        } else if( exp instanceof ExpNode.UnaryOpNode ) {
+            ((ExpNode.UnaryOpNode)exp).setSubExp( pop( stack ) );
+        } else if( exp instanceof ExpNode.NarrowSubrangeNode ) {
+            ((ExpNode.NarrowSubrangeNode)exp).setExp( pop( stack ) );
+        } else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+            ((ExpNode.WidenSubrangeNode)exp).setExp( pop( stack ) );
+        } else if( exp instanceof ExpNode.ArgumentsNode ) {
+            int n = ((ExpNode.ArgumentsNode)exp).getArgs().size();
+            List<ExpNode> top = stack.subList( stack.size() - n,
+                    stack.size() );
+            ((ExpNode.ArgumentsNode)exp).setArgs(
+                    new ArrayList<ExpNode>( top ) );
+            top.clear();
+        }
+    }
+    private static ExpNode pop( List<ExpNode> stack ) {
+        return stack.remove( stack.size() - 1 );
+    }
+
+    /** Transform exp bottom up from an explicit stack, as it may be
+     * nested too deeply to recurse over: the operands of each node are
+     * transformed, and replaced by the results, before the node itself is
+     * transformed. The visit methods of visitor therefore see operands
+     * already transformed, and must not transform them again.
+     * @return the transformed expression
+     */
+    public static ExpNode transformBottomUp( ExpNode exp,
+            ExpTransform<ExpNode> visitor ) {
+        /* Nodes to transform; a node is followed by null once its
+         * operands have been pushed above it */
+        List<ExpNode> pending = new ArrayList<ExpNode>();
+        /* Transformed operands, the last on top */
+        List<ExpNode> done = new ArrayList<ExpNode>();
+        pending.add( exp );
+        while( !pending.isEmpty() ) {
+            ExpNode next = pending.remove( pending.size() - 1 );
+            if( next == null ) {
+                ExpNode node = pending.remove( pending.size() - 1 );
+                popOperands( node, done );
+                done.add( node.transform( visitor ) );
+            } else {
+                pending.add( next );
+                pending.add( null );
+                pushOperands( next, pending );
+            }
+        }
+        return done.get( 0 );
+    }
+
+    /** Transform exp top down from an explicit stack, as it may be nested
+     * too deeply to recurse over: each node is transformed before its
+     * operands, which are then transformed in turn and replace those of
+     * the node it was transformed into. The visit methods of visitor
+     * therefore see their original operands, and return a node whose
+     * operands are still to be transformed (such as a copy of the node
+     * that shares them).
+     * @return the transformed expression
+     */
+    public static ExpNode transformTopDown( ExpNode exp,
+            ExpTransform<ExpNode> visitor ) {
+        ExpNode result = exp.transform( visitor );
+        List<ExpNode> pending = new ArrayList<ExpNode>();
+        List<ExpNode> operands = new ArrayList<ExpNode>();
+        pending.add( result );
+        while( !pending.isEmpty() ) {
+            ExpNode node = pending.remove( pending.size() - 1 );
+            /* The operands are pushed last first, and popped last first */
+            pushOperands( node, operands );
+            Collections.reverse( operands );
+            for( int i = 0; i < operands.size(); i++ ) {
+                operands.set( i, operands.get( i ).transform( visitor ) );
+            }
+            popOperands( node, operands );
+            pushOperands( node, pending );
+        }
+        return result;
+    }
+
+    /** @return the nodes of exp in post-order, each after its operands
+     * (in the order they are evaluated), collected from an explicit stack
+     * as exp may be nested too deeply to recurse over */
+    public static List<ExpNode> postOrder( ExpNode exp ) {
+        List<ExpNode> nodes = new ArrayList<ExpNode>();
+        /* Nodes to collect; a node is followed by null once its operands
+         * have been pushed above it */
+        List<ExpNode> pending = new ArrayList<ExpNode>();
+        pending.add( exp );
+        while( !pending.isEmpty() ) {
+            ExpNode next = pending.remove( pending.size() - 1 );
+            if( next == null ) {
+                nodes.add( pending.remove( pending.size() - 1 ) );
+            } else {
+                pending.add( next );
+                pending.add( null );
+                pushOperands( next, pending );
+            }
+        }
+        return nodes;
+    }
+
+    /** @return the first reference within exp to the variable var, in
+     * the order variablesUsed visits them, or null if there is none */
+    public static ExpNode.VariableNode findVariable( ExpNode exp,
+            SymEntry.VarEntry var ) {
+        List<ExpNode> stack = new ArrayList<ExpNode>();
+        stack.add( exp );
+        while( !stack.isEmpty() ) {
+            ExpNode next = stack.remove( stack.size() - 1 );
+            if( next instanceof ExpNode.VariableNode ) {
+                if( ((ExpNode.VariableNode)next).getVariable() == var ) {
+                    return (ExpNode.VariableNode)next;
+                }
+            } else {
+                pushOperands( next, stack );
+            }
+        }
+        return null;
+    }
+
+    /** Create a reference to the value of a temporary (or variable).
+     * @param temp whose value is referenced
+     * @param exp expression the reference replaces (for its position)
+     */
+    public static ExpNode.DereferenceNode valueOf( SymEntry.VarEntry temp,
+            ExpNode exp ) {
+        return new ExpNode.DereferenceNode( temp.getType().getBaseType(),
+                new ExpNode.VariableNode( exp.getPosition(), temp ) );
+    }
+
+    /** Create an assignment of value to a temporary (or variable). */
+    public static StatementNode.AssignmentNode assignment(
+            SymEntry.VarEntry temp, ExpNode value ) {
+        List<ExpNode> lvals = new ArrayList<ExpNode>();
+        lvals.add( new ExpNode.VariableNode( value.getPosition(), temp ) );
+        List<ExpNode> exps = new ArrayList<ExpNode>();
+        exps.add( value );
+        return new StatementNode.AssignmentNode( value.getPosition(),
+                lvals, exps );
+    }
+}
@@ -0,0 +1,476 @@
+package tree;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import dataflow.CallGraph;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+import tree.Tree.*;
+
+/** class LoopInvariantMotion - optimisation pass that hoists loop-invariant
+ * computations out of "while" and "for" loops.
+ * It is applied to the abstract syntax tree after static checking.
+ * An expression is invariant within a loop if it only refers to
+ * variables that are not assigned within the loop, either directly
+ * or by a procedure called (directly or indirectly) from the loop
+ * (see dataflow.CallGraph).
+ * Such an expression is evaluated once into a temporary before the loop
+ * and the loop refers to the temporary instead.
+ * The address of a non-local variable is invariant within any loop
+ * (the frames on the static chain do not change while the loop executes)
+ * so the walk of the static chain is also hoisted out of the loop.
+ * Expressions that may cause a runtime error (division and narrowing
+ * a subrange) are only hoisted from a while loop condition, as that is
+ * evaluated at least once; hoisting them from a loop body could cause
+ * an error in a program that does not execute the body.
+ */
+public class LoopInvariantMotion implements TreePass, TreeVisitor,
+StatementTransform<StatementNode> {
+
+	/** Call graph of the program, giving the variables that may be
+	 * assigned by a call to each procedure. */
+	private CallGraph callGraph;
+	/** Temporaries holding the address of a variable, mapped to the
+	 * variable. An assignment via the temporary writes the variable. */
+	private Map<SymEntry.VarEntry, SymEntry.VarEntry> addressTemps;
+	/** Scope of the block being optimised; temporaries are allocated here */
+	private Scope blockScope;
+	/** Number of expressions hoisted out of loops */
+	private int hoisted;
+
+	public LoopInvariantMotion() {
+		super();
+	}
+
+	/** @return the number of expressions hoisted out of loops */
+	public int getHoisted() {
+		return hoisted;
+	}
+
+	public String getName() {
+		return "loop-invariant code motion";
+	}
+	public void run( ProgramNode tree ) {
+		visitProgramNode( tree );
+	}
+	public String getSummary() {
+		return getHoisted() + " loop invariants hoisted";
+	}
+
+	/*-------------------- Main Method to start optimisation ----------*/
+
+	public void visitProgramNode( ProgramNode node ) {
+		callGraph = new CallGraph( node );
+		addressTemps = new HashMap<SymEntry.VarEntry, SymEntry.VarEntry>();
+		hoisted = 0;
+		node.getBlock().accept( this );
+	}
+
+	public void visitBlockNode( BlockNode node ) {
+		Scope outerScope = blockScope;
+		blockScope = node.getBlockLocals();
+		node.setBody( node.getBody().transform( this ) );
+		node.getProcedures().accept( this );
+		blockScope = outerScope;
+	}
+
+	public void visitDeclListNode( DeclNode.DeclListNode node ) {
+		for( DeclNode decl : node.getDeclarations() ) {
+			decl.accept( this );
+		}
+	}
+
+	public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+		node.getBlock().accept( this );
+	}
+
+	/*************************************************
+	 *  Statement node visit methods
+	 *  Nested loops are optimised before their enclosing loop so that
+	 *  invariants can be hoisted outwards through several loops.
+	 *************************************************/
+	public StatementNode visitStatementErrorNode( StatementNode.ErrorNode node ) {
+		return node;
+	}
+
+	public StatementNode visitStatementListNode( StatementNode.ListNode node ) {
+		List<StatementNode> statements = node.getStatements();
+		for( int i = 0; i < statements.size(); i++ ) {
+			statements.set( i, statements.get(i).transform( this ) );
+		}
+		return node;
+	}
+
+	public StatementNode visitAssignmentNode( StatementNode.AssignmentNode node ) {
+		return node;
+	}
+
+	public StatementNode visitWriteNode( StatementNode.WriteNode node ) {
+		return node;
+	}
+
+	public StatementNode visitCallNode( StatementNode.CallNode node ) {
+		return node;
+	}
+
+	public StatementNode visitIfNode( StatementNode.IfNode node ) {
+		node.setThenStmt( node.getThenStmt().transform( this ) );
+		node.setElseStmt( node.getElseStmt().transform( this ) );
+		return node;
+	}
+
+	public StatementNode visitSkipNode( StatementNode.SkipNode node ) {
+		return node;
+	}
+
+	/** The condition of a while loop is evaluated at least once,
+	 * before the body, so it is safe to hoist expressions which may
+	 * fail from it, provided it does not also read input. */
+	public StatementNode visitWhileNode( StatementNode.WhileNode node ) {
+		node.setLoopStmt( node.getLoopStmt().transform( this ) );
+		Hoister hoister = new Hoister( loopWrites( node ) );
+		ExpNode cond = node.getCondition();
+		node.setCondition( 
+				hoister.rewrite( cond, !Expressions.containsRead( cond ) ) );
+		node.getLoopStmt().accept( hoister );
+		return hoister.placeBefore( node );
+	}
+
+	/** The bounds of a for loop are only evaluated once already,
+	 * so only its body is considered. */
+	public StatementNode visitForNode( StatementNode.ForNode node ) {
+		node.setDoStmt( node.getdoStmt().transform( this ) );
+		Hoister hoister = new Hoister( loopWrites( node ) );
+		node.getdoStmt().accept( hoister );
+		return hoister.placeBefore( node );
+	}
+
+	/*************************************************
+	 *  Write sets of loops and procedures
+	 *************************************************/
+
+	/** Collect the variables assigned directly within a statement
+	 * and the procedures it calls. */
+	private class WriteCollector implements StatementVisitor {
+		Set<SymEntry.VarEntry> writes = new HashSet<SymEntry.VarEntry>();
+		Set<SymEntry.ProcedureEntry> calls =
+			new HashSet<SymEntry.ProcedureEntry>();
+
+		public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+		}
+		public void visitStatementListNode( StatementNode.ListNode node ) {
+			for( StatementNode s : node.getStatements() ) {
+				s.accept( this );
+			}
+		}
+		public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+			for( ExpNode lval : node.getVariable() ) {
+				if( lval instanceof ExpNode.VariableNode ) {
+					writes.add( ((ExpNode.VariableNode)lval).getVariable() );
+				} else if( lval instanceof ExpNode.DereferenceNode ) {
+					/* Assignment via a hoisted address temporary */
+					ExpNode temp =
+						((ExpNode.DereferenceNode)lval).getLeftValue();
+					writes.add( addressTemps.get(
+							((ExpNode.VariableNode)temp).getVariable() ) );
+				}
+			}
+		}
+		public void visitWriteNode( StatementNode.WriteNode node ) {
+		}
+		public void visitCallNode( StatementNode.CallNode node ) {
+			calls.add( node.getEntry() );
+		}
+		public void visitIfNode( StatementNode.IfNode node ) {
+			node.getThenStmt().accept( this );
+			node.getElseStmt().accept( this );
+		}
+		public void visitWhileNode( StatementNode.WhileNode node ) {
+			node.getLoopStmt().accept( this );
+		}
+		public void visitSkipNode( StatementNode.SkipNode node ) {
+		}
+		public void visitForNode( StatementNode.ForNode node ) {
+			writes.add( node.getEntry() );
+			node.getdoStmt().accept( this );
+		}
+	}
+
+	/** @return the set of variables that may be assigned while
+	 * executing the loop. */
+	private Set<SymEntry.VarEntry> loopWrites( StatementNode loop ) {
+		WriteCollector collector = new WriteCollector();
+		loop.accept( collector );
+		for( SymEntry.ProcedureEntry callee : collector.calls ) {
+			collector.writes.addAll( callGraph.getWrites( callee ) );
+		}
+		return collector.writes;
+	}
+
+	/*************************************************
+	 *  Hoisting invariant expressions out of a loop
+	 *************************************************/
+
+	/** Rewrites the expressions within a loop replacing invariant
+	 * expressions by temporaries which are assigned before the loop.
+	 * As expressions may be nested too deeply to recurse over, the nodes
+	 * of each are first classified bottom up, and then rewritten top down
+	 * from an explicit stack. */
+	private class Hoister implements StatementVisitor, ExpTransform<ExpNode> {
+		/** Variables that may be assigned within the loop */
+		private Set<SymEntry.VarEntry> writes;
+		/** Nodes of the expression being rewritten that are invariant */
+		private Set<ExpNode> invariant;
+		/** Nodes of the expression being rewritten that may fail */
+		private Set<ExpNode> failing;
+		/** Temporaries already holding hoisted expressions, by expression */
+		private Map<String, SymEntry.VarEntry> temps;
+		/** Assignments to the temporaries to be placed before the loop */
+		private List<StatementNode> preheader;
+
+		Hoister( Set<SymEntry.VarEntry> writes ) {
+			this.writes = writes;
+			this.temps = new HashMap<String, SymEntry.VarEntry>();
+			this.preheader = new ArrayList<StatementNode>();
+		}
+
+		/** Rewrite an expression within the loop.
+		 * @param hoistFailing true if the expression is evaluated on loop
+		 *   entry before anything else in the loop
+		 */
+		ExpNode rewrite( ExpNode exp, boolean hoistFailing ) {
+			classify( exp );
+			/* Nodes to rewrite, in pre-order, with whether expressions
+			 * that may fail may be hoisted from each; a node whose
+			 * operands are being rewritten is followed by null */
+			List<ExpNode> pending = new ArrayList<ExpNode>();
+			List<Boolean> pendingFailing = new ArrayList<Boolean>();
+			/* Rewritten operands, the last on top */
+			List<ExpNode> done = new ArrayList<ExpNode>();
+			pending.add( exp );
+			pendingFailing.add( hoistFailing );
+			while( !pending.isEmpty() ) {
+				ExpNode next = pending.remove( pending.size() - 1 );
+				boolean mayFail =
+					pendingFailing.remove( pendingFailing.size() - 1 );
+				if( next == null ) {
+					ExpNode node = pending.remove( pending.size() - 1 );
+					pendingFailing.remove( pendingFailing.size() - 1 );
+					Expressions.popOperands( node, done );
+					done.add( node );
+					continue;
+				}
+				ExpNode result = rewriteNode( next, mayFail );
+				if( result != next ) {
+					done.add( result );
+					continue;
+				}
+				pending.add( next );
+				pendingFailing.add( mayFail );
+				pending.add( null );
+				pendingFailing.add( mayFail );
+				int first = pending.size();
+				Expressions.pushOperands( next, pending );
+				/* The right operand of && or || (pushed first) may be
+				 * skipped */
+				for( int i = first; i < pending.size(); i++ ) {
+					pendingFailing.add( mayFail &&
+						!(i == first && Expressions.isLogical( next )) );
+				}
+			}
+			return done.get( 0 );
+		}
+
+		/** @return exp replaced by a temporary if it is worth hoisting,
+		 * otherwise exp, with its operands still to be rewritten
+		 * @param hoistFailing whether exp may be hoisted if it may fail */
+		private ExpNode rewriteNode( ExpNode exp, boolean hoistFailing ) {
+			/* Variable (address) nodes are handled by visitVariableNode */
+			if( !(exp instanceof ExpNode.VariableNode) &&
+					invariant.contains( exp ) && 
+					!Expressions.isTrivial( exp, blockScope.getLevel() ) &&
+					exp.getType().getSpace() == 1 &&
+					( hoistFailing || !failing.contains( exp ) ) ) {
+				return hoist( exp, exp.getType(), exp );
+			}
+			return exp.transform( this );
+		}
+
+		/** Replace exp by a reference to a temporary holding value.
+		 * @param value expression assigned to the temporary before the loop
+		 * @param type of value
+		 * @param exp expression being replaced (for its position)
+		 */
+		private ExpNode hoist( ExpNode value, Type type, ExpNode exp ) {
+			String key = Expressions.key( value );
+			SymEntry.VarEntry temp = temps.get( key );
+			if( temp == null ) {
+				temp = blockScope.newTemporary( type );
+				temps.put( key, temp );
+				preheader.add( Expressions.assignment( temp, value ) );
+				hoisted++;
+			}
+			return Expressions.valueOf( temp, exp );
+		}
+
+		/** @return loop preceded by the assignments to the temporaries */
+		StatementNode placeBefore( StatementNode loop ) {
+			if( preheader.isEmpty() ) {
+				return loop;
+			}
+			StatementNode.ListNode list =
+				new StatementNode.ListNode( loop.getPosition() );
+			for( StatementNode assign : preheader ) {
+				list.addStatement( assign );
+			}
+			list.addStatement( loop );
+			return list;
+		}
+
+		/** Find the nodes of exp that are invariant, i.e., only depend
+		 * on constants and variables not assigned within the loop, and
+		 * those that may fail, each from those of its operands. */
+		private void classify( ExpNode exp ) {
+			invariant = Collections.newSetFromMap(
+					new IdentityHashMap<ExpNode, Boolean>() );
+			failing = Collections.newSetFromMap(
+					new IdentityHashMap<ExpNode, Boolean>() );
+			List<ExpNode> operands = new ArrayList<ExpNode>();
+			for( ExpNode node : Expressions.postOrder( exp ) ) {
+				operands.clear();
+				Expressions.pushOperands( node, operands );
+				boolean isInvariant;
+				if( node instanceof ExpNode.ConstNode ) {
+					isInvariant = true;
+				} else if( node instanceof ExpNode.VariableNode ) {
+					isInvariant = !writes.contains(
+							((ExpNode.VariableNode)node).getVariable() );
+				} else {
+					/* read, arguments, etc. are not invariant */
+					isInvariant = node instanceof ExpNode.DereferenceNode ||
+						node instanceof ExpNode.BinaryOpNode ||
+						node instanceof ExpNode.UnaryOpNode ||
+						node instanceof ExpNode.NarrowSubrangeNode ||
+						node instanceof ExpNode.WidenSubrangeNode;
+				}
+				boolean mayFail = node instanceof ExpNode.NarrowSubrangeNode ||
+					node instanceof ExpNode.BinaryOpNode &&
+					((ExpNode.BinaryOpNode)node).getOp() ==
+						BinaryOperator.DIV_OP;
+				for( ExpNode operand : operands ) {
+					isInvariant &= invariant.contains( operand );
+					mayFail |= failing.contains( operand );
+				}
+				if( isInvariant ) {
+					invariant.add( node );
+				}
+				if( mayFail ) {
+					failing.add( node );
+				}
+			}
+		}
+
+		private int levelDiff( ExpNode.VariableNode var ) {
+			return blockScope.getLevel() - var.getVariable().getLevel();
+		}
+
+		/* Statements within the loop: their expressions may be skipped
+		 * so only those that cannot fail are hoisted. */
+		public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+		}
+		public void visitStatementListNode( StatementNode.ListNode node ) {
+			for( StatementNode s : node.getStatements() ) {
+				s.accept( this );
+			}
+		}
+		public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+			List<ExpNode> exps = new ArrayList<ExpNode>();
+			for( ExpNode exp : node.getExp() ) {
+				exps.add( rewrite( exp, false ) );
+			}
+			node.setExp( exps );
+			List<ExpNode> lvals = new ArrayList<ExpNode>();
+			for( ExpNode lval : node.getVariable() ) {
+				lvals.add( rewrite( lval, false ) );
+			}
+			node.setVariable( lvals );
+		}
+		public void visitWriteNode( StatementNode.WriteNode node ) {
+			node.setExp( rewrite( node.getExp(), false ) );
+		}
+		public void visitCallNode( StatementNode.CallNode node ) {
+		}
+		public void visitIfNode( StatementNode.IfNode node ) {
+			node.setCondition( rewrite( node.getCondition(), false ) );
+			node.getThenStmt().accept( this );
+			node.getElseStmt().accept( this );
+		}
+		public void visitWhileNode( StatementNode.WhileNode node ) {
+			node.setCondition( rewrite( node.getCondition(), false ) );
+			node.getLoopStmt().accept( this );
+		}
+		public void visitSkipNode( StatementNode.SkipNode node ) {
+		}
+		public void visitForNode( StatementNode.ForNode node ) {
+			node.setLowerBound( rewrite( node.getLowerBound(), false ) );
+			node.setUpperBound( rewrite( node.getUpperBound(), false ) );
+			node.getdoStmt().accept( this );
+		}
+
+		/* Expressions that are not invariant: their operands are rewritten
+		 * by rewrite. */
+		public ExpNode visitErrorExpNode( ExpNode.ErrorNode node ) {
+			return node;
+		}
+		public ExpNode visitConstNode( ExpNode.ConstNode node ) {
+			return node;
+		}
+		public ExpNode visitIdentifierNode( ExpNode.IdentifierNode node ) {
+			return node;
+		}
+		/** The address of a non-local variable is invariant even if
+		 * the variable is assigned within the loop. */
+		public ExpNode visitVariableNode( ExpNode.VariableNode node ) {
+			if( levelDiff( node ) == 0 ) {
+				return node;
+			}
+			SymEntry.VarEntry var = node.getVariable();
+			ExpNode address = hoist( node, var.getType(), node );
+			SymEntry.VarEntry temp =
+				((ExpNode.VariableNode)((ExpNode.DereferenceNode)address)
+						.getLeftValue()).getVariable();
+			addressTemps.put( temp, var );
+			return address;
+		}
+		public ExpNode visitReadNode( ExpNode.ReadNode node ) {
+			return node;
+		}
+		public ExpNode visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+			return node;
+		}
+		public ExpNode visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+			return node;
+		}
+		public ExpNode visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+			return node;
+		}
+		public ExpNode visitDereferenceNode( ExpNode.DereferenceNode node ) {
+			return node;
+		}
+		public ExpNode visitNarrowSubrangeNode(
+				ExpNode.NarrowSubrangeNode node ) {
+			return node;
+		}
+		public ExpNode visitWidenSubrangeNode(
+				ExpNode.WidenSubrangeNode node ) {
+			return node;
+		}
+	}
+}
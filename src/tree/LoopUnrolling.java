@@ -0,0 +1,532 @@
+package tree;
+import java.util.ArrayList;
+import java.util.List;
+
+import machine.StackMachine;
+import syms.SymEntry;
+import tree.Tree.*;
+
+/** class LoopUnrolling - optimisation pass that unrolls "for" loops whose
+ * bounds are compile-time constants.
+ * It is applied to the abstract syntax tree after static checking and
+ * before the other tree passes, so that they can make use of the
+ * constants it introduces.
+ * A loop with a small trip count and body is fully unrolled: it is
+ * replaced by a copy of its body for each value of the control variable,
+ * in which each use of the control variable is replaced by its value in
+ * that iteration. The control variable cannot be assigned within the
+ * body and it is not in scope after the loop, so every value the program
+ * can observe is kept.
+ * Otherwise, if the body does not use the control variable, the loop is
+ * partially unrolled: its body is repeated "factor" times, the loop
+ * iterates a factor times fewer, and the remaining iterations follow the
+ * loop. When the body does use the control variable, the increments that
+ * would be needed between the copies cost more than the single FOR_STEP
+ * instruction they would save, so such loops are left as they are.
+ * Loops are unrolled from the outside in, so that a nested loop whose
+ * bounds depend on the control variable of an unrolled loop can itself
+ * be unrolled in each copy.
+ * The growth of the code is limited for each loop and for the program
+ * as a whole, where it is kept well within the code region of the
+ * stack machine. Code size is estimated as two words (e.g., a LOAD_CON
+ * and its operand) for each node of the tree.
+ */
+public class LoopUnrolling implements TreePass, TreeVisitor,
+StatementTransform<StatementNode> {
+
+	/** Default number of copies of the body of a partially unrolled loop */
+	public final static int DEFAULT_FACTOR = 4;
+	/** Default largest trip count of a fully unrolled loop */
+	public final static int DEFAULT_FULL_LIMIT = 16;
+	/** Default largest estimated size (in words) of the statements
+	 * replacing a loop */
+	public final static int DEFAULT_LOOP_SIZE = 256;
+	/** Estimated words of code per tree node */
+	private final static int NODE_SIZE = 2;
+
+	/** Number of copies of the body of a partially unrolled loop */
+	private int factor;
+	/** Largest trip count of a loop that is fully unrolled */
+	private int fullLimit;
+	/** Largest estimated size of the statements replacing a loop */
+	private int loopSize;
+	/** Estimated number of words by which the program may still grow */
+	private int budget;
+	/** Number of loops fully unrolled */
+	private int unrolled;
+	/** Number of loops partially unrolled */
+	private int partial;
+
+	public LoopUnrolling() {
+		super();
+		factor = DEFAULT_FACTOR;
+		fullLimit = DEFAULT_FULL_LIMIT;
+		loopSize = DEFAULT_LOOP_SIZE;
+	}
+
+	/** Specify the number of copies of the body of a partially unrolled
+	 * loop; a factor less than 2 disables partial unrolling. */
+	public void setFactor( int factor ) {
+		this.factor = factor;
+	}
+	/** Specify the largest trip count of a loop that is fully unrolled;
+	 * 0 disables full unrolling. */
+	public void setFullLimit( int fullLimit ) {
+		this.fullLimit = fullLimit;
+	}
+	/** @return the number of loops fully unrolled */
+	public int getUnrolled() {
+		return unrolled;
+	}
+	/** @return the number of loops partially unrolled */
+	public int getPartiallyUnrolled() {
+		return partial;
+	}
+
+	public String getName() {
+		return "loop unrolling";
+	}
+	public void run( ProgramNode tree ) {
+		visitProgramNode( tree );
+	}
+	public String getSummary() {
+		return getUnrolled() + " for loops fully unrolled, " +
+			getPartiallyUnrolled() + " partially unrolled";
+	}
+
+	/*-------------------- Main Method to start optimisation ----------*/
+
+	public void visitProgramNode( ProgramNode node ) {
+		unrolled = 0;
+		partial = 0;
+		/* Leave a wide margin for the inaccuracy of the estimates */
+		budget = StackMachine.CODE_LIMIT / 4 - size( node.getBlock() );
+		node.getBlock().accept( this );
+	}
+
+	public void visitBlockNode( BlockNode node ) {
+		node.setBody( node.getBody().transform( this ) );
+		node.getProcedures().accept( this );
+	}
+
+	public void visitDeclListNode( DeclNode.DeclListNode node ) {
+		for( DeclNode decl : node.getDeclarations() ) {
+			decl.accept( this );
+		}
+	}
+
+	public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+		node.getBlock().accept( this );
+	}
+
+	/*************************************************
+	 *  Statement node visit methods
+	 *************************************************/
+	public StatementNode visitStatementErrorNode( StatementNode.ErrorNode node ) {
+		return node;
+	}
+
+	public StatementNode visitStatementListNode( StatementNode.ListNode node ) {
+		List<StatementNode> statements = node.getStatements();
+		for( int i = 0; i < statements.size(); i++ ) {
+			statements.set( i, statements.get(i).transform( this ) );
+		}
+		return node;
+	}
+
+	public StatementNode visitAssignmentNode( StatementNode.AssignmentNode node ) {
+		return node;
+	}
+
+	public StatementNode visitWriteNode( StatementNode.WriteNode node ) {
+		return node;
+	}
+
+	public StatementNode visitCallNode( StatementNode.CallNode node ) {
+		return node;
+	}
+
+	public StatementNode visitIfNode( StatementNode.IfNode node ) {
+		node.setThenStmt( node.getThenStmt().transform( this ) );
+		node.setElseStmt( node.getElseStmt().transform( this ) );
+		return node;
+	}
+
+	public StatementNode visitSkipNode( StatementNode.SkipNode node ) {
+		return node;
+	}
+
+	public StatementNode visitWhileNode( StatementNode.WhileNode node ) {
+		node.setLoopStmt( node.getLoopStmt().transform( this ) );
+		return node;
+	}
+
+	/** Unroll the loop if its bounds are constant and the result is
+	 * small enough, then unroll the loops nested within it. */
+	public StatementNode visitForNode( StatementNode.ForNode node ) {
+		Integer lower = constantValue( node.getLowerBound() );
+		Integer upper = constantValue( node.getUpperBound() );
+		if( lower != null && upper != null ) {
+			long trips = (long)upper - lower + 1;
+			if( trips <= 0 ) {
+				/* The body is never executed */
+				unrolled++;
+				return new StatementNode.SkipNode( node.getPosition() );
+			}
+			Estimate body = new Estimate( node.getEntry() );
+			node.getdoStmt().accept( body );
+			if( trips <= fullLimit && !body.addressed &&
+					trips * body.size <= loopSize &&
+					(trips - 1) * body.size <= budget ) {
+				budget -= (trips - 1) * body.size;
+				unrolled++;
+				StatementNode.ListNode copies =
+					new StatementNode.ListNode( node.getPosition() );
+				for( int i = 0; i < trips; i++ ) {
+					copies.addStatement( new Copier( node.getEntry(),
+							lower + i ).copy( node.getdoStmt() ) );
+				}
+				return copies.transform( this );
+			}
+			long rest = trips % factor;
+			if( factor > 1 && trips >= 2 * factor && body.uses == 0 &&
+					!body.addressed && factor * body.size <= loopSize &&
+					(factor - 1 + rest) * body.size <= budget ) {
+				budget -= (factor - 1 + rest) * body.size;
+				partial++;
+				return partiallyUnroll( node, lower, trips / factor,
+						(int)rest );
+			}
+		}
+		node.setDoStmt( node.getdoStmt().transform( this ) );
+		return node;
+	}
+
+	/** Replace a loop whose body does not use its control variable by a
+	 * loop that executes "factor" copies of the body in each of its
+	 * iterations, followed by the remaining iterations.
+	 * @param lower the lower bound of the loop
+	 * @param iterations the number of iterations of the unrolled loop
+	 * @param rest the number of iterations following it
+	 */
+	private StatementNode partiallyUnroll( StatementNode.ForNode node,
+			int lower, long iterations, int rest ) {
+		StatementNode body = node.getdoStmt();
+		StatementNode.ListNode copies =
+			new StatementNode.ListNode( body.getPosition() );
+		for( int i = 0; i < factor; i++ ) {
+			copies.addStatement( new Copier( null, 0 ).copy( body ) );
+		}
+		node.setDoStmt( copies.transform( this ) );
+		/* The new upper bound lies between the old bounds, so it is a
+		 * value of the type of the control variable */
+		node.setUpperBound( new ExpNode.ConstNode(
+				node.getUpperBound().getPosition(),
+				node.getUpperBound().getType(),
+				(int)(lower + iterations - 1) ) );
+		StatementNode.ListNode result =
+			new StatementNode.ListNode( node.getPosition() );
+		result.addStatement( node );
+		for( int i = 0; i < rest; i++ ) {
+			result.addStatement(
+					new Copier( null, 0 ).copy( body ).transform( this ) );
+		}
+		return result;
+	}
+
+	/** @return the value of a constant expression, or null if exp is
+	 * not a constant */
+	private static Integer constantValue( ExpNode exp ) {
+		while( exp instanceof ExpNode.WidenSubrangeNode ) {
+			exp = ((ExpNode.WidenSubrangeNode)exp).getExp();
+		}
+		if( exp instanceof ExpNode.ConstNode ) {
+			return ((ExpNode.ConstNode)exp).getValue();
+		}
+		return null;
+	}
+
+	/** @return the estimated size of the code of a block, including its
+	 * procedures */
+	private static int size( BlockNode block ) {
+		Estimate estimate = new Estimate( null );
+		block.getBody().accept( estimate );
+		int size = estimate.size;
+		for( DeclNode decl : block.getProcedures().getDeclarations() ) {
+			size += size( ((DeclNode.ProcedureNode)decl).getBlock() );
+		}
+		return size;
+	}
+
+	/*************************************************
+	 *  Size estimates
+	 *************************************************/
+
+	/** Estimates the size of the code of a statement, and records how
+	 * it refers to a control variable.
+	 * Expressions are walked from an explicit stack, as they may be
+	 * nested too deeply to recurse over: the visit method of each node
+	 * pushes those of its operands to be estimated. */
+	private static class Estimate implements StatementVisitor, ExpVisitor {
+		/** Control variable, or null */
+		private SymEntry.VarEntry var;
+		/** Expressions still to be estimated */
+		private List<ExpNode> pending = new ArrayList<ExpNode>();
+		/** Estimated size in words */
+		int size = 0;
+		/** Number of uses of the value of the control variable */
+		int uses = 0;
+		/** Whether the control variable is referred to other than for
+		 * its value (which static checking does not allow) */
+		boolean addressed = false;
+
+		Estimate( SymEntry.VarEntry var ) {
+			this.var = var;
+		}
+
+		/** Add the estimated size of exp */
+		private void estimate( ExpNode exp ) {
+			pending.add( exp );
+			while( !pending.isEmpty() ) {
+				pending.remove( pending.size() - 1 ).accept( this );
+			}
+		}
+
+		public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+			size += NODE_SIZE;
+		}
+		public void visitStatementListNode( StatementNode.ListNode node ) {
+			for( StatementNode s : node.getStatements() ) {
+				s.accept( this );
+			}
+		}
+		public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+			size += NODE_SIZE;
+			for( ExpNode exp : node.getExp() ) {
+				estimate( exp );
+			}
+			for( ExpNode lval : node.getVariable() ) {
+				estimate( lval );
+			}
+		}
+		public void visitWriteNode( StatementNode.WriteNode node ) {
+			size += NODE_SIZE;
+			estimate( node.getExp() );
+		}
+		public void visitCallNode( StatementNode.CallNode node ) {
+			size += 2 * NODE_SIZE;
+		}
+		public void visitIfNode( StatementNode.IfNode node ) {
+			size += 2 * NODE_SIZE;
+			estimate( node.getCondition() );
+			node.getThenStmt().accept( this );
+			node.getElseStmt().accept( this );
+		}
+		public void visitWhileNode( StatementNode.WhileNode node ) {
+			size += 2 * NODE_SIZE;
+			estimate( node.getCondition() );
+			node.getLoopStmt().accept( this );
+		}
+		public void visitSkipNode( StatementNode.SkipNode node ) {
+		}
+		public void visitForNode( StatementNode.ForNode node ) {
+			size += 4 * NODE_SIZE;
+			estimate( node.getLowerBound() );
+			estimate( node.getUpperBound() );
+			node.getdoStmt().accept( this );
+		}
+
+		public void visitErrorExpNode( ExpNode.ErrorNode node ) {
+			size += NODE_SIZE;
+		}
+		public void visitConstNode( ExpNode.ConstNode node ) {
+			size += NODE_SIZE;
+		}
+		public void visitIdentifierNode( ExpNode.IdentifierNode node ) {
+			size += NODE_SIZE;
+		}
+		public void visitVariableNode( ExpNode.VariableNode node ) {
+			size += NODE_SIZE;
+			if( var != null && node.getVariable() == var ) {
+				addressed = true;
+			}
+		}
+		public void visitReadNode( ExpNode.ReadNode node ) {
+			size += NODE_SIZE;
+		}
+		public void visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+			size += NODE_SIZE;
+			Expressions.pushOperands( node, pending );
+		}
+		public void visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+			size += NODE_SIZE;
+			pending.add( node.getSubExp() );
+		}
+		public void visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+			Expressions.pushOperands( node, pending );
+		}
+		public void visitDereferenceNode( ExpNode.DereferenceNode node ) {
+			size += NODE_SIZE;
+			ExpNode lval = node.getLeftValue();
+			if( var != null && lval instanceof ExpNode.VariableNode &&
+					((ExpNode.VariableNode)lval).getVariable() == var ) {
+				uses++;
+			} else {
+				pending.add( lval );
+			}
+		}
+		public void visitNarrowSubrangeNode( ExpNode.NarrowSubrangeNode node ) {
+			size += 2 * NODE_SIZE;
+			pending.add( node.getExp() );
+		}
+		public void visitWidenSubrangeNode( ExpNode.WidenSubrangeNode node ) {
+			pending.add( node.getExp() );
+		}
+	}
+
+	/*************************************************
+	 *  Copying loop bodies
+	 *************************************************/
+
+	/** Makes a copy of a statement that shares no nodes with the
+	 * original (the other passes update nodes in place), in which each
+	 * use of the value of a control variable is replaced by a constant.
+	 * Expressions are copied top down from an explicit stack (see
+	 * Expressions.transformTopDown): the visit method of each node makes
+	 * a copy sharing its operands, which are then copied in turn. */
+	private static class Copier implements StatementTransform<StatementNode>,
+	ExpTransform<ExpNode> {
+		/** Control variable to replace, or null */
+		private SymEntry.VarEntry var;
+		/** Value of the control variable */
+		private int value;
+
+		Copier( SymEntry.VarEntry var, int value ) {
+			this.var = var;
+			this.value = value;
+		}
+
+		StatementNode copy( StatementNode s ) {
+			return s.transform( this );
+		}
+		private ExpNode copy( ExpNode exp ) {
+			return Expressions.transformTopDown( exp, this );
+		}
+		private List<ExpNode> copy( List<ExpNode> exps ) {
+			List<ExpNode> copies = new ArrayList<ExpNode>();
+			for( ExpNode exp : exps ) {
+				copies.add( copy( exp ) );
+			}
+			return copies;
+		}
+		private ExpNode typed( ExpNode copy, ExpNode original ) {
+			copy.setType( original.getType() );
+			return copy;
+		}
+
+		public StatementNode visitStatementErrorNode(
+				StatementNode.ErrorNode node ) {
+			return new StatementNode.ErrorNode( node.getPosition() );
+		}
+		public StatementNode visitStatementListNode(
+				StatementNode.ListNode node ) {
+			StatementNode.ListNode list =
+				new StatementNode.ListNode( node.getPosition() );
+			for( StatementNode s : node.getStatements() ) {
+				list.addStatement( s.transform( this ) );
+			}
+			return list;
+		}
+		public StatementNode visitAssignmentNode(
+				StatementNode.AssignmentNode node ) {
+			return new StatementNode.AssignmentNode( node.getPosition(),
+					copy( node.getVariable() ), copy( node.getExp() ) );
+		}
+		public StatementNode visitWriteNode( StatementNode.WriteNode node ) {
+			return new StatementNode.WriteNode( node.getPosition(),
+					copy( node.getExp() ) );
+		}
+		public StatementNode visitCallNode( StatementNode.CallNode node ) {
+			StatementNode.CallNode call =
+				new StatementNode.CallNode( node.getPosition(), node.getId(),
+						node.getSymbol() );
+			call.setEntry( node.getEntry() );
+			return call;
+		}
+		public StatementNode visitIfNode( StatementNode.IfNode node ) {
+			return new StatementNode.IfNode( node.getPosition(),
+					copy( node.getCondition() ),
+					node.getThenStmt().transform( this ),
+					node.getElseStmt().transform( this ) );
+		}
+		public StatementNode visitWhileNode( StatementNode.WhileNode node ) {
+			return new StatementNode.WhileNode( node.getPosition(),
+					copy( node.getCondition() ),
+					node.getLoopStmt().transform( this ) );
+		}
+		public StatementNode visitSkipNode( StatementNode.SkipNode node ) {
+			return new StatementNode.SkipNode( node.getPosition() );
+		}
+		public StatementNode visitForNode( StatementNode.ForNode node ) {
+			StatementNode.ForNode loop = new StatementNode.ForNode(
+					node.getPosition(), node.getId(), node.getSymbol(),
+					copy( node.getLowerBound() ),
+					copy( node.getUpperBound() ),
+					node.getdoStmt().transform( this ) );
+			loop.setEntry( node.getEntry() );
+			loop.setBoundEntry( node.getBoundEntry() );
+			return loop;
+		}
+
+		public ExpNode visitErrorExpNode( ExpNode.ErrorNode node ) {
+			return typed( new ExpNode.ErrorNode( node.getPosition() ), node );
+		}
+		public ExpNode visitConstNode( ExpNode.ConstNode node ) {
+			return new ExpNode.ConstNode( node.getPosition(), node.getType(),
+					node.getValue() );
+		}
+		public ExpNode visitIdentifierNode( ExpNode.IdentifierNode node ) {
+			return typed( new ExpNode.IdentifierNode( node.getPosition(),
+					node.getId(), node.getSymbol() ), node );
+		}
+		public ExpNode visitVariableNode( ExpNode.VariableNode node ) {
+			return new ExpNode.VariableNode( node.getPosition(),
+					node.getVariable() );
+		}
+		public ExpNode visitReadNode( ExpNode.ReadNode node ) {
+			return typed( new ExpNode.ReadNode( node.getPosition() ), node );
+		}
+		public ExpNode visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+			return typed( new ExpNode.BinaryOpNode( node.getPosition(),
+					node.getOp(), node.getLeft(), node.getRight() ), node );
+		}
+		public ExpNode visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+			return typed( new ExpNode.UnaryOpNode( node.getPosition(),
+					node.getOp(), node.getSubExp() ), node );
+		}
+		public ExpNode visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+			return typed( new ExpNode.ArgumentsNode( node.getPosition(),
+					new ArrayList<ExpNode>( node.getArgs() ) ), node );
+		}
+		public ExpNode visitDereferenceNode( ExpNode.DereferenceNode node ) {
+			ExpNode lval = node.getLeftValue();
+			if( var != null && lval instanceof ExpNode.VariableNode &&
+					((ExpNode.VariableNode)lval).getVariable() == var ) {
+				return new ExpNode.ConstNode( node.getPosition(),
+						node.getType(), value );
+			}
+			return typed( new ExpNode.DereferenceNode( node.getPosition(),
+					lval ), node );
+		}
+		public ExpNode visitNarrowSubrangeNode(
+				ExpNode.NarrowSubrangeNode node ) {
+			return new ExpNode.NarrowSubrangeNode( node.getPosition(),
+					node.getSubrangeType(), node.getExp() );
+		}
+		public ExpNode visitWidenSubrangeNode(
+				ExpNode.WidenSubrangeNode node ) {
+			return new ExpNode.WidenSubrangeNode( node.getPosition(),
+					node.getType(), node.getExp() );
+		}
+	}
+}
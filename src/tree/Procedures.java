@@ -3,6 +3,7 @@ package tree;
 import java.util.LinkedList;
 import java.util.List;
 
+import machine.Instruction;
 import source.ErrorHandler;
 import source.Severity;
 import syms.Scope;
@@ -11,6 +12,9 @@ import syms.Scope;
  * class Procedures - code for each procedure and start and finish
  * addresses. Handles a stack trace back for the stack machine
  * in the event of a runtime error.
+ * The start and finish of each procedure are recorded as labels within
+ * the generated code, so their addresses are only available after the
+ * code has been laid out.
  * @version $Revision: 17 $  $Date: 2013-05-13 08:25:39 +1000 (Mon, 13 May 2013) $
  */
 public class Procedures {
@@ -18,9 +22,10 @@ public class Procedures {
     public class ProcedureStart {
         String procName;
         Scope locals;
-        int start, finish;
+        Instruction.Label start, finish;
         
-        ProcedureStart( String procName, Scope locals, int start ) {
+        ProcedureStart( String procName, Scope locals, 
+                Instruction.Label start ) {
             super();
             this.procName = procName;
             this.locals = locals;
@@ -29,9 +34,15 @@ public class Procedures {
         public Scope getLocals() {
             return locals;
         }
+        public int getStart() {
+            return start.getAddress();
+        }
+        public int getFinish() {
+            return finish.getAddress();
+        }
         @Override
         public String toString() {
-            return procName + " " + start + " : " + finish;
+            return procName + " " + getStart() + " : " + getFinish();
         }
     }
     private List<ProcedureStart> procStarts;
@@ -39,27 +50,29 @@ public class Procedures {
     public Procedures() {
         procStarts = new LinkedList<ProcedureStart>();
     }
-    public void addProcedureStart( String procName, Scope locals, int start ) {
+    /** Procedures must be added in the order their code is laid out. */
+    public void addProcedureStart( String procName, Scope locals, 
+            Instruction.Label start ) {
         if( ! procStarts.isEmpty() ) {
-            /* check last finish location is current location */
+            /* check last procedure has been finished */
             ProcedureStart previous = procStarts.get( procStarts.size() - 1 );
-            assert previous.finish == start;
+            assert previous.finish != null;
         }
         procStarts.add( new ProcedureStart( procName, locals, start ) );
     }
-    public void addProcedureFinish( int finish ) {
-        assert ! procStarts.isEmpty() &&
-            procStarts.get( procStarts.size() - 1 ).start <= finish;
+    public void addProcedureFinish( Instruction.Label finish ) {
+        assert ! procStarts.isEmpty();
         procStarts.get( procStarts.size() -1 ).finish = finish;
     }
+    /** @requires the code has been laid out */
     public ProcedureStart getProcedure( int pc ) {
-        if( pc < procStarts.get(0).start ||
-            procStarts.get(procStarts.size()-1).finish <= pc ) {
+        if( pc < procStarts.get(0).getStart() ||
+            procStarts.get(procStarts.size()-1).getFinish() <= pc ) {
             // Must be in main program setup or finalization code
             return null;
         }
         for( ProcedureStart ps : procStarts ) {
-            if( pc < ps.finish ) {
+            if( pc < ps.getFinish() ) {
                 return ps;
             }
         }
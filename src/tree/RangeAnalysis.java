@@ -0,0 +1,340 @@
+package tree;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import syms.SymEntry;
+import syms.Type;
+import tree.Tree.*;
+
+/** class RangeAnalysis - optimisation pass that removes redundant
+ * subrange bounds checks using interval analysis.
+ * It is applied to the abstract syntax tree after static checking.
+ * The interval of values of each expression is computed bottom up:
+ * a constant has a single value, a variable of a scalar (or subrange)
+ * type has the bounds of its type, the control variable of a "for" loop
+ * ranges from the least value of the lower bound to the greatest value
+ * of the upper bound, and arithmetic on intervals gives the interval of
+ * the result, unless it may overflow.
+ * A NarrowSubrangeNode whose expression's interval lies within the
+ * subrange can never fail its check, and it is removed from the tree.
+ * Expressions are transformed bottom up from an explicit stack (see
+ * Expressions.transformBottomUp), as they may be nested too deeply to
+ * recurse over; the interval of each node is computed as it is visited,
+ * from those of its operands.
+ */
+public class RangeAnalysis implements TreePass, TreeVisitor,
+StatementVisitor, ExpTransform<ExpNode> {
+
+	/** An interval of integer values. Bounds are held as long values
+	 * so that the results of arithmetic on int bounds are exact. */
+	private static class Interval {
+		long lower, upper;
+
+		Interval( long lower, long upper ) {
+			this.lower = lower;
+			this.upper = upper;
+		}
+		/** @return true if every value in this is within [lower..upper] */
+		boolean within( long lower, long upper ) {
+			return lower <= this.lower && this.upper <= upper;
+		}
+	}
+	/** Interval of all values of type int */
+	private static final Interval ALL =
+		new Interval( Integer.MIN_VALUE, Integer.MAX_VALUE );
+	/** Interval of the boolean values */
+	private static final Interval BOOLEAN =
+		new Interval( Type.BOOLEAN_TYPE.getLower(),
+				Type.BOOLEAN_TYPE.getUpper() );
+
+	/** Known intervals of the control variables of enclosing for loops */
+	private Map<SymEntry.VarEntry, Interval> controlVars;
+	/** Intervals of the nodes of the expression being analysed */
+	private Map<ExpNode, Interval> intervals;
+	/** Number of bounds checks removed */
+	private int removed;
+	/** Number of bounds checks that could not be shown to be redundant */
+	private int kept;
+
+	public RangeAnalysis() {
+		super();
+	}
+
+	/** @return the number of bounds checks removed */
+	public int getRemoved() {
+		return removed;
+	}
+	/** @return the number of bounds checks kept */
+	public int getKept() {
+		return kept;
+	}
+
+	public String getName() {
+		return "range analysis";
+	}
+	public void run( ProgramNode tree ) {
+		visitProgramNode( tree );
+	}
+	public String getSummary() {
+		return getRemoved() + " bounds checks removed, " +
+			getKept() + " kept";
+	}
+
+	/*-------------------- Main Method to start optimisation ----------*/
+
+	public void visitProgramNode( ProgramNode node ) {
+		controlVars = new HashMap<SymEntry.VarEntry, Interval>();
+		intervals = new IdentityHashMap<ExpNode, Interval>();
+		removed = 0;
+		kept = 0;
+		node.getBlock().accept( this );
+	}
+
+	public void visitBlockNode( BlockNode node ) {
+		node.getBody().accept( this );
+		node.getProcedures().accept( this );
+	}
+
+	public void visitDeclListNode( DeclNode.DeclListNode node ) {
+		for( DeclNode decl : node.getDeclarations() ) {
+			decl.accept( this );
+		}
+	}
+
+	public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+		node.getBlock().accept( this );
+	}
+
+	/*************************************************
+	 *  Statement node visit methods
+	 *************************************************/
+	public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+	}
+
+	public void visitStatementListNode( StatementNode.ListNode node ) {
+		for( StatementNode s : node.getStatements() ) {
+			s.accept( this );
+		}
+	}
+
+	public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+		List<ExpNode> exps = new ArrayList<ExpNode>();
+		for( ExpNode exp : node.getExp() ) {
+			exps.add( analyse( exp ) );
+		}
+		node.setExp( exps );
+	}
+
+	public void visitWriteNode( StatementNode.WriteNode node ) {
+		node.setExp( analyse( node.getExp() ) );
+	}
+
+	public void visitCallNode( StatementNode.CallNode node ) {
+	}
+
+	public void visitIfNode( StatementNode.IfNode node ) {
+		node.setCondition( analyse( node.getCondition() ) );
+		node.getThenStmt().accept( this );
+		node.getElseStmt().accept( this );
+	}
+
+	public void visitWhileNode( StatementNode.WhileNode node ) {
+		node.setCondition( analyse( node.getCondition() ) );
+		node.getLoopStmt().accept( this );
+	}
+
+	public void visitSkipNode( StatementNode.SkipNode node ) {
+	}
+
+	/** Within the body the control variable lies between the least
+	 * value of the lower bound and the greatest value of the upper bound.
+	 */
+	public void visitForNode( StatementNode.ForNode node ) {
+		node.setLowerBound( analyse( node.getLowerBound() ) );
+		long lower = interval( node.getLowerBound() ).lower;
+		node.setUpperBound( analyse( node.getUpperBound() ) );
+		Interval control = new Interval( lower,
+				interval( node.getUpperBound() ).upper );
+		controlVars.put( node.getEntry(), control );
+		node.getdoStmt().accept( this );
+		controlVars.remove( node.getEntry() );
+	}
+
+	/*************************************************
+	 *  Expression node visit methods
+	 *  Each is given a node whose operands have been transformed, and
+	 *  records its interval.
+	 *************************************************/
+
+	/** Transform exp bottom up, recording the interval of each node */
+	private ExpNode analyse( ExpNode exp ) {
+		intervals.clear();
+		return Expressions.transformBottomUp( exp, this );
+	}
+
+	public ExpNode visitErrorExpNode( ExpNode.ErrorNode node ) {
+		return record( node );
+	}
+
+	public ExpNode visitConstNode( ExpNode.ConstNode node ) {
+		return record( node );
+	}
+
+	public ExpNode visitIdentifierNode( ExpNode.IdentifierNode node ) {
+		return record( node );
+	}
+
+	public ExpNode visitVariableNode( ExpNode.VariableNode node ) {
+		return record( node );
+	}
+
+	public ExpNode visitReadNode( ExpNode.ReadNode node ) {
+		return record( node );
+	}
+
+	public ExpNode visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+		return record( node );
+	}
+
+	public ExpNode visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+		return record( node );
+	}
+
+	public ExpNode visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+		return record( node );
+	}
+
+	public ExpNode visitDereferenceNode( ExpNode.DereferenceNode node ) {
+		return record( node );
+	}
+
+	/** Remove the narrowing if its check can never fail. */
+	public ExpNode visitNarrowSubrangeNode( ExpNode.NarrowSubrangeNode node ) {
+		ExpNode exp = node.getExp();
+		Type.SubrangeType subrange = node.getSubrangeType();
+		if( interval( exp ).within( subrange.getLower(),
+				subrange.getUpper() ) ) {
+			removed++;
+			return exp;
+		}
+		kept++;
+		return record( node );
+	}
+
+	public ExpNode visitWidenSubrangeNode( ExpNode.WidenSubrangeNode node ) {
+		return record( node );
+	}
+
+	/*************************************************
+	 *  Intervals of expressions
+	 *************************************************/
+
+	/** @return the interval containing all values of exp, which has been
+	 * visited */
+	private Interval interval( ExpNode exp ) {
+		return intervals.get( exp );
+	}
+
+	/** Record the interval containing all values of exp, given those of
+	 * its operands.
+	 * @return exp */
+	private ExpNode record( ExpNode exp ) {
+		Interval result = typeInterval( exp );
+		if( exp instanceof ExpNode.ConstNode ) {
+			int value = ((ExpNode.ConstNode)exp).getValue();
+			result = new Interval( value, value );
+		} else if( exp instanceof ExpNode.DereferenceNode ) {
+			ExpNode lval = ((ExpNode.DereferenceNode)exp).getLeftValue();
+			if( lval instanceof ExpNode.VariableNode ) {
+				Interval control = controlVars.get(
+						((ExpNode.VariableNode)lval).getVariable() );
+				if( control != null ) {
+					result = meet( control, result );
+				}
+			}
+		} else if( exp instanceof ExpNode.BinaryOpNode ) {
+			ExpNode.BinaryOpNode op = (ExpNode.BinaryOpNode)exp;
+			result = meet( binary( op.getOp(), interval( op.getLeft() ),
+					interval( op.getRight() ) ), result );
+		} else if( exp instanceof ExpNode.UnaryOpNode ) {
+			if( Expressions.isLogical( exp ) ) {
+				result = BOOLEAN;
+			} else {
+				Interval sub =
+					interval( ((ExpNode.UnaryOpNode)exp).getSubExp() );
+				result = checked( -sub.upper, -sub.lower );
+			}
+		} else if( exp instanceof ExpNode.NarrowSubrangeNode ) {
+			/* After a successful check the value is within the subrange */
+			ExpNode.NarrowSubrangeNode narrow = (ExpNode.NarrowSubrangeNode)exp;
+			result = meet( interval( narrow.getExp() ), result );
+		} else if( exp instanceof ExpNode.WidenSubrangeNode ) {
+			result = interval( ((ExpNode.WidenSubrangeNode)exp).getExp() );
+		}
+		intervals.put( exp, result );
+		return exp;
+	}
+
+	/** @return the interval of values of the type of exp */
+	private Interval typeInterval( ExpNode exp ) {
+		Type type = exp.getType();
+		if( type instanceof Type.ScalarType ) {
+			Type.ScalarType scalar = (Type.ScalarType)type;
+			return new Interval( scalar.getLower(), scalar.getUpper() );
+		}
+		return ALL;
+	}
+
+	/** @return the interval of the result of op applied to values in
+	 * the intervals left and right. */
+	private Interval binary( BinaryOperator op, Interval left,
+			Interval right ) {
+		switch( op ) {
+		case ADD_OP:
+			return checked( left.lower + right.lower,
+					left.upper + right.upper );
+		case SUB_OP:
+			return checked( left.lower - right.upper,
+					left.upper - right.lower );
+		case MUL_OP:
+			return corners( left.lower * right.lower,
+					left.lower * right.upper, left.upper * right.lower,
+					left.upper * right.upper );
+		case DIV_OP:
+			if( right.lower <= 0 && 0 <= right.upper ) {
+				/* A zero divisor fails at runtime; a divisor of 1 or -1
+				 * may be any value */
+				return ALL;
+			}
+			return corners( left.lower / right.lower,
+					left.lower / right.upper, left.upper / right.lower,
+					left.upper / right.upper );
+		default:
+			/* Relational and logical operators */
+			return BOOLEAN;
+		}
+	}
+
+	private Interval corners( long a, long b, long c, long d ) {
+		return checked( Math.min( Math.min( a, b ), Math.min( c, d ) ),
+				Math.max( Math.max( a, b ), Math.max( c, d ) ) );
+	}
+
+	/** @return the interval [lower..upper] if it does not overflow the
+	 * range of int, otherwise all integers as the result wraps around. */
+	private Interval checked( long lower, long upper ) {
+		if( ALL.lower <= lower && upper <= ALL.upper ) {
+			return new Interval( lower, upper );
+		}
+		return ALL;
+	}
+
+	/** @return the intersection of two intervals */
+	private Interval meet( Interval a, Interval b ) {
+		return new Interval( Math.max( a.lower, b.lower ),
+				Math.min( a.upper, b.upper ) );
+	}
+}
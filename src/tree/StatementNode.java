@@ -17,17 +17,27 @@ import syms.Type;
  * class StatementNode - Abstract syntax tree representation of statements. 
  * @version $Revision: 17 $  $Date: 2013-05-13 08:25:39 +1000 (Mon, 13 May 2013) $
  * Classes defined within StatementNode extend it.
- * All statements have a position within the original source code.
+ * All statements have a position within the original source code, held
+ * as its index in the source.
  */
 public abstract class StatementNode {
-    /** Position in the input source program */
-    private Position pos;
+    /** Index held for a node constructed without a position */
+    private static final int NO_POSITION = 
+        Position.NO_POSITION.getIndex();
+    /** Index of the position in the input source program */
+    private int pos;
 
     /** Constructor */
     protected StatementNode( Position pos ) {
-        this.pos = pos;
+        this.pos = pos == null ? NO_POSITION : pos.getIndex();
     }
-    protected Position getPosition() {
+    /** @return the position, created on each call as only its index is
+     * held; a caller that uses it more than once holds on to it */
+    public Position getPosition() {
+        return Position.valueOf( pos );
+    }
+    /** @return the index of the position in the source */
+    int getPositionIndex() {
         return pos;
     }
     /** All statement nodes provide an accept method to implement the visitor
@@ -41,6 +51,14 @@ public abstract class StatementNode {
      * @param visitor class implementing the code generation
      */
     public abstract Code genCode( StatementTransform<Code> visitor );
+    /** All statement nodes provide a transform method to implement the
+     * visitor pattern for traversals that rewrite the tree, such as
+     * the optimisation passes. 
+     * @param visitor class implementing the transformation
+     * @return the statement to replace this one in the tree
+     */
+    public abstract StatementNode transform( 
+            StatementTransform<StatementNode> visitor );
 
     /** Statement node representing an erroneous statement. */
     public static class ErrorNode extends StatementNode {
@@ -56,6 +74,11 @@ public abstract class StatementNode {
             return visitor.visitStatementErrorNode( this );
         }
         @Override
+        public StatementNode transform( 
+                StatementTransform<StatementNode> visitor ) {
+            return visitor.visitStatementErrorNode( this );
+        }
+        @Override
         public String toString() {
             return "ERROR";
         }
@@ -77,6 +100,11 @@ public abstract class StatementNode {
             return visitor.visitSkipNode( this );
         }
         @Override
+        public StatementNode transform( 
+                StatementTransform<StatementNode> visitor ) {
+            return visitor.visitSkipNode( this );
+        }
+        @Override
         public String toString() {
             return "Skip";
         }
@@ -106,6 +134,11 @@ public abstract class StatementNode {
         public Code genCode( StatementTransform<Code> visitor ) {
             return visitor.visitAssignmentNode( this );
         }
+        @Override
+        public StatementNode transform( 
+                StatementTransform<StatementNode> visitor ) {
+            return visitor.visitAssignmentNode( this );
+        }
         public List<ExpNode> getVariable() {
             return variable;
         }
@@ -176,6 +209,11 @@ public abstract class StatementNode {
         public Code genCode( StatementTransform<Code> visitor ) {
             return visitor.visitWriteNode( this );
         }
+        @Override
+        public StatementNode transform( 
+                StatementTransform<StatementNode> visitor ) {
+            return visitor.visitWriteNode( this );
+        }
         public ExpNode getExp() {
             return exp;
         }
@@ -191,11 +229,17 @@ public abstract class StatementNode {
     /** Tree node representing a "call" statement. */
     public static class CallNode extends StatementNode {
         private String id;
+        /** Symbol id of the name (see SymbolTable.lookup), or -1 */
+        private int symbol;
         private SymEntry.ProcedureEntry procEntry;
 
         public CallNode( Position pos, String id ) {
+            this( pos, id, -1 );
+        }
+        public CallNode( Position pos, String id, int symbol ) {
             super( pos );
             this.id = id;
+            this.symbol = symbol;
         }
         @Override
         public void accept( StatementVisitor visitor ) {
@@ -205,9 +249,17 @@ public abstract class StatementNode {
         public Code genCode( StatementTransform<Code> visitor ) {
             return visitor.visitCallNode( this );
         }
+        @Override
+        public StatementNode transform( 
+                StatementTransform<StatementNode> visitor ) {
+            return visitor.visitCallNode( this );
+        }
         public String getId() {
             return id;
         }
+        public int getSymbol() {
+            return symbol;
+        }
         public SymEntry.ProcedureEntry getEntry() {
             return procEntry;
         }
@@ -239,6 +291,11 @@ public abstract class StatementNode {
         public Code genCode( StatementTransform<Code> visitor ) {
             return visitor.visitStatementListNode( this );
         }
+        @Override
+        public StatementNode transform( 
+                StatementTransform<StatementNode> visitor ) {
+            return visitor.visitStatementListNode( this );
+        }
         public List<StatementNode> getStatements() {
             return statements;
         }
@@ -274,6 +331,11 @@ public abstract class StatementNode {
         public Code genCode( StatementTransform<Code> visitor ) {
             return visitor.visitIfNode( this );
         }
+        @Override
+        public StatementNode transform( 
+                StatementTransform<StatementNode> visitor ) {
+            return visitor.visitIfNode( this );
+        }
         public ExpNode getCondition() {
             return condition;
         }
@@ -283,9 +345,15 @@ public abstract class StatementNode {
         public StatementNode getThenStmt() {
             return thenStmt;
         }
+        public void setThenStmt( StatementNode thenStmt ) {
+            this.thenStmt = thenStmt;
+        }
         public StatementNode getElseStmt() {
             return elseStmt;
         }
+        public void setElseStmt( StatementNode elseStmt ) {
+            this.elseStmt = elseStmt;
+        }
         @Override
         public String toString( ) {
             return "IF " + condition.toString() + " THEN " + thenStmt +
@@ -296,15 +364,25 @@ public abstract class StatementNode {
     /** Tree node representing a "for" statement. */
     public static class ForNode extends StatementNode {
     	private String id;
+        /** Symbol id of the name (see SymbolTable.lookup), or -1 */
+        private int symbol;
     	private ExpNode lowerBound;
         private ExpNode upperBound;
         private StatementNode doStmt;
         private SymEntry.VarEntry varEntry;
+        /** Hidden variable holding the value of the upper bound */
+        private SymEntry.VarEntry boundEntry;
 
         public ForNode( Position pos, String id,  ExpNode lowerBound, 
                 ExpNode upperBound, StatementNode doStmt ) {
+            this( pos, id, -1, lowerBound, upperBound, doStmt );
+        }
+        public ForNode( Position pos, String id, int symbol,
+                ExpNode lowerBound, ExpNode upperBound,
+                StatementNode doStmt ) {
             super( pos );
             this.id = id;
+            this.symbol = symbol;
             this.lowerBound = lowerBound;
             this.upperBound = upperBound;
             this.doStmt = doStmt;
@@ -317,9 +395,17 @@ public abstract class StatementNode {
         public Code genCode( StatementTransform<Code> visitor ) {
             return visitor.visitForNode( this );
         }
+        @Override
+        public StatementNode transform( 
+                StatementTransform<StatementNode> visitor ) {
+            return visitor.visitForNode( this );
+        }
         public String getId() {
             return id;
         }
+        public int getSymbol() {
+            return symbol;
+        }
         public ExpNode getLowerBound() {
             return lowerBound;
         }
@@ -336,12 +422,21 @@ public abstract class StatementNode {
         public StatementNode getdoStmt() {
             return doStmt;
         }
+        public void setDoStmt( StatementNode doStmt ) {
+            this.doStmt = doStmt;
+        }
         public SymEntry.VarEntry getEntry() {
             return varEntry;
         }
         public void setEntry(SymEntry.VarEntry entry) {
             this.varEntry = entry;
         }
+        public SymEntry.VarEntry getBoundEntry() {
+            return boundEntry;
+        }
+        public void setBoundEntry(SymEntry.VarEntry boundEntry) {
+            this.boundEntry = boundEntry;
+        }
         @Override
         public String toString( ) {
             return "for " + varEntry.getIdent() + ": [" + lowerBound.toString() 
@@ -368,6 +463,11 @@ public abstract class StatementNode {
         public Code genCode( StatementTransform<Code> visitor ) {
             return visitor.visitWhileNode( this );
         }
+        @Override
+        public StatementNode transform( 
+                StatementTransform<StatementNode> visitor ) {
+            return visitor.visitWhileNode( this );
+        }
         public ExpNode getCondition() {
             return condition;
         }
@@ -377,6 +477,9 @@ public abstract class StatementNode {
         public StatementNode getLoopStmt() {
             return loopStmt;
         }
+        public void setLoopStmt( StatementNode loopStmt ) {
+            this.loopStmt = loopStmt;
+        }
         @Override
         public String toString( ) {
             return "WHILE " + condition.toString() + " DO " +
@@ -1,9 +1,11 @@
 package tree;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import machine.StackMachine;
@@ -38,6 +40,11 @@ ExpTransform<ExpNode> {
 	private SymbolTable symtab;
 	/** Errors are reported through the error handler. */
 	private Errors errors;
+	/** Space allocated to the variables of each block checked before its
+	 * body was checked; that allocated after is for temporaries of the
+	 * body. */
+	private Map<BlockNode, Integer> bodySpace = 
+			new HashMap<BlockNode, Integer>();
 
 	/** Construct a static checker for PL0.
 	 * @param errors is the error message handler.
@@ -67,8 +74,26 @@ ExpTransform<ExpNode> {
 	public void visitBlockNode(BlockNode node) {
 		// Check the procedures, if any.
 		node.getProcedures().accept( this );
+		bodySpace.put( node, node.getBlockLocals().getVariableSpace() );
 		// Check the body of the block.
 		node.getBody().accept( this );
+		node.release();
+	}
+	/** Check the body of a block of a program already checked, after the
+	 * body has been replaced, e.g., by parsing an edited version of it.
+	 * The space for the temporaries of the previous body is released
+	 * first, so the space allocated is as if the whole program were
+	 * checked.
+	 * @param program checked by visitProgramNode
+	 * @param block of the program whose body has been replaced
+	 */
+	public void recheckBody( ProgramNode program, BlockNode block ) {
+		symtab = program.getBaseSymbolTable();
+		block.getBlockLocals().releaseVariableSpace( bodySpace.get( block ) );
+		symtab.reenterScope( block.getBlockLocals() );
+		block.getBody().accept( this );
+		block.release();
+		symtab.leaveScope();
 	}
 	public void visitDeclListNode(DeclListNode node) {
 		for( DeclNode declaration : node.getDeclarations() ) {
@@ -195,7 +220,7 @@ ExpTransform<ExpNode> {
 		SymEntry.ProcedureEntry procEntry;
 		Type.ProcedureType procType;
 		// Look up the symbol table entry for the procedure.
-		SymEntry entry = symtab.lookup( node.getId() );
+		SymEntry entry = lookup( node.getId(), node.getSymbol() );
 		if( entry instanceof SymEntry.ProcedureEntry ) {
 			procEntry = (SymEntry.ProcedureEntry)entry;
 			node.setEntry( procEntry );
@@ -246,6 +271,10 @@ ExpTransform<ExpNode> {
 
 			controlVar.setControlVar(true);
 
+			//the upper bound is evaluated once and kept in a hidden variable
+			node.setBoundEntry(
+					symtab.getCurrentScope().newTemporary(baseType));
+
 			node.getdoStmt().accept(this);
 			node.setEntry(controlVar);
 
@@ -302,10 +331,54 @@ ExpTransform<ExpNode> {
 	}
 
 	public ExpNode visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
-		/* Check arguments and determine their types */
-		ExpNode left = node.getLeft().transform( this );
+		return checkOperators( node );
+	}
+	/** Check an expression whose operators may be nested arbitrarily
+	 * deeply. Rather than recursing, the binary and unary operators are
+	 * checked in post-order from an explicit stack, each once its
+	 * operands have been checked, so the depth of nesting is limited only
+	 * by the heap. Other nodes are checked by transforming them.
+	 */
+	private ExpNode checkOperators( ExpNode exp ) {
+		/* Nodes to check; an operator is followed by null once its
+		 * operands have been pushed above it */
+		ArrayList<ExpNode> pending = new ArrayList<ExpNode>();
+		/* Checked operands, the rightmost on top */
+		ArrayList<ExpNode> checked = new ArrayList<ExpNode>();
+		pending.add( exp );
+		while( !pending.isEmpty() ) {
+			ExpNode next = pending.remove( pending.size() - 1 );
+			if( next == null ) {
+				ExpNode op = pending.remove( pending.size() - 1 );
+				ExpNode last = checked.remove( checked.size() - 1 );
+				if( op instanceof ExpNode.BinaryOpNode ) {
+					ExpNode first = checked.remove( checked.size() - 1 );
+					checked.add( checkBinaryOp( (ExpNode.BinaryOpNode)op, 
+							first, last ) );
+				} else {
+					checked.add( checkUnaryOp( (ExpNode.UnaryOpNode)op, 
+							last ) );
+				}
+			} else if( next instanceof ExpNode.BinaryOpNode ) {
+				pending.add( next );
+				pending.add( null );
+				pending.add( ((ExpNode.BinaryOpNode)next).getRight() );
+				pending.add( ((ExpNode.BinaryOpNode)next).getLeft() );
+			} else if( next instanceof ExpNode.UnaryOpNode ) {
+				pending.add( next );
+				pending.add( null );
+				pending.add( ((ExpNode.UnaryOpNode)next).getSubExp() );
+			} else {
+				checked.add( next.transform( this ) );
+			}
+		}
+		return checked.get( 0 );
+	}
+	/** Check a binary operator given its checked operands */
+	private ExpNode checkBinaryOp( ExpNode.BinaryOpNode node, ExpNode left,
+			ExpNode right ) {
+		/* The arguments have been checked and their types determined */
 		node.setLeft( left );
-		ExpNode right = node.getRight().transform( this );
 		node.setRight( right );
 		BinaryOperator op = node.getOp();
 		SymEntry.OperatorEntry opEntry = symtab.lookupOperator( op.getName() );
@@ -359,8 +432,12 @@ ExpTransform<ExpNode> {
 		return node;
 	}
 	public ExpNode visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+		return checkOperators( node );
+	}
+	/** Check a unary operator given its checked operand, e.g., an
+	 * identifier transformed into a constant */
+	private ExpNode checkUnaryOp( ExpNode.UnaryOpNode node, ExpNode subExp ) {
 		/* Unary operators aren't overloaded */
-		ExpNode subExp = node.getSubExp().transform( this );//transforms the subexp, for eg identifier into constant
 		Type.FunctionType fType = 
 				(Type.FunctionType)node.getOp().getType(); //checks the type of the operator 
 		node.setSubExp( fType.getArgType().coerceExp( subExp ) );//coerces subexp to operator, for eg subrange to int
@@ -400,7 +477,7 @@ ExpTransform<ExpNode> {
 	public ExpNode visitIdentifierNode(ExpNode.IdentifierNode node) {
 		// First we look up the identifier in the symbol table.
 		ExpNode newNode;
-		SymEntry entry = symtab.lookup( node.getId() );
+		SymEntry entry = lookup( node.getId(), node.getSymbol() );
 		if( entry instanceof SymEntry.ConstantEntry ) {
 			// Set up a new node which is a constant.
 			SymEntry.ConstantEntry constEntry = 
@@ -438,6 +515,11 @@ ExpTransform<ExpNode> {
 	}
 
 
+	/** Look up a name by the symbol id the parser gave it, or by the
+	 * name itself for a node without one (symbol -1). */
+	private SymEntry lookup(String id, int symbol) {
+		return symbol >= 0 ? symtab.lookup( symbol ) : symtab.lookup( id );
+	}
 	/** Report a (semantic) error. */
 	private void error(String message, Position pos) {
 		errors.errorMessage( message, Severity.ERROR, pos );
@@ -46,6 +46,10 @@ public abstract class Tree {
         protected DeclNode.DeclListNode procedures;
         protected StatementNode body;
         protected Scope blockLocals;
+        /** Whether the body is held packed while not in use (see pack) */
+        private boolean packing;
+        /** The body packed, or null if it is held as node objects */
+        private TreeArena packed;
 
         /** Constructor for a block within a procedure */
         public BlockNode(DeclNode.DeclListNode procedures, StatementNode body) {
@@ -61,9 +65,60 @@ public abstract class Tree {
         public DeclNode.DeclListNode getProcedures() {
             return procedures;
         }
+        /** @return the body, unpacked if it is packed */
         public StatementNode getBody() {
+            if( packed != null ) {
+                body = packed.unpack();
+                packed = null;
+            }
             return body;
         }
+        public void setBody( StatementNode body ) {
+            this.body = body;
+            this.packed = null;
+        }
+        /** Hold the body packed into a TreeArena while it is not in use,
+         * which takes much less memory than its node objects. getBody
+         * unpacks it for use, as a new tree of node objects, and release
+         * packs it again once the pass using it is done with it. Packing
+         * saves memory only at rest: each pass over the body unpacks all
+         * of it, so a body in use takes the memory of its node objects.
+         */
+        public void pack() {
+            packing = true;
+            release();
+        }
+        /** A pass is done with the body: if the body is held packed it is
+         * packed again; otherwise nothing is done. */
+        public void release() {
+            if( packing && packed == null && body != null ) {
+                packed = new TreeArena( body );
+                body = null;
+            }
+        }
+        /** @return the body packed: as held, or packed now if it is held
+         * as node objects */
+        TreeArena packedBody() {
+            return packed != null ? packed : new TreeArena( body );
+        }
+        /** Replace the body by one packed, e.g., as read by TreeCache,
+         * which is unpacked when it is first used.
+         * @param packing whether the body is packed again once a pass is
+         *     done with it */
+        void setPackedBody( TreeArena packed, boolean packing ) {
+            this.body = null;
+            this.packed = packed;
+            this.packing = packing;
+        }
+        /** Release the bodies of this block and the blocks nested in it */
+        public void releaseAll() {
+            release();
+            for( DeclNode decl : procedures.getDeclarations() ) {
+                if( decl instanceof DeclNode.ProcedureNode ) {
+                    ((DeclNode.ProcedureNode)decl).getBlock().releaseAll();
+                }
+            }
+        }
         public Scope getBlockLocals() {
             return blockLocals;
         }
@@ -72,7 +127,7 @@ public abstract class Tree {
         }
         @Override
         public String toString() {
-            return "BLOCK " + getProcedures() + " BEGIN" + body + " END";
+            return "BLOCK " + getProcedures() + " BEGIN" + getBody() + " END";
         }
     }
 
@@ -0,0 +1,638 @@
+package tree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import source.Position;
+import syms.SymEntry;
+import syms.SymbolReader;
+import syms.SymbolWriter;
+import syms.Type;
+
+/**
+ * class TreeArena - a statement tree packed into tables.
+ * Rather than an object per node, with List objects for its children, the
+ * nodes are held in parallel arrays (struct of arrays): the kind of each
+ * node, the index of its position in the source, and two ints whose
+ * meaning depends on the kind: a value, a number of children, or the
+ * index of a type, name, operator or symbol table entry in a table of the
+ * distinct objects of the tree.
+ * The nodes are packed in post-order, and the number of children of each
+ * node is given by its kind or its ints, so no child indices are held:
+ * the tree is unpacked in one pass over the tables, each node taking its
+ * children from the top of a stack of the nodes unpacked, without
+ * recursion however deep the tree. An absent child is packed as a node of
+ * its own. As the passes over the tree never share a node between two
+ * parents, a tree unpacked is equivalent to the one packed, with every
+ * field the static checker or the optimisation passes set.
+ * The tables are a representation for bodies at rest only. No pass reads
+ * them: the visitors work on the node objects, so a body is unpacked in
+ * full, as a new tree of node objects, for each pass over it (see
+ * Tree.BlockNode.pack). The memory saved is that of the bodies no pass is
+ * using at the time; while a pass runs over a body, that body takes as
+ * much memory as if it had never been packed, and more while the tables
+ * are built again.
+ */
+public class TreeArena {
+
+    /* Kinds of nodes */
+    private static final byte ABSENT = 0;
+    private static final byte STATEMENT_ERROR = 1;
+    private static final byte SKIP = 2;
+    private static final byte ASSIGNMENT = 3;
+    private static final byte WRITE = 4;
+    private static final byte CALL = 5;
+    private static final byte STATEMENT_LIST = 6;
+    private static final byte IF = 7;
+    private static final byte WHILE = 8;
+    private static final byte FOR = 9;
+    private static final byte EXP_ERROR = 10;
+    private static final byte CONST = 11;
+    private static final byte IDENTIFIER = 12;
+    private static final byte VARIABLE = 13;
+    private static final byte READ = 14;
+    private static final byte BINARY = 15;
+    private static final byte UNARY = 16;
+    private static final byte ARGUMENTS = 17;
+    private static final byte DEREFERENCE = 18;
+    private static final byte NARROW = 19;
+    private static final byte WIDEN = 20;
+
+    /* Kinds of objects in the table, as written to a stream */
+    private static final byte NO_OBJECT = 0;
+    private static final byte NAME = 1;
+    private static final byte TYPE = 2;
+    private static final byte ENTRY = 3;
+    private static final byte BINARY_OPERATOR = 4;
+    private static final byte UNARY_OPERATOR = 5;
+    private static final byte LOOP = 6;
+
+    /** Number of children given for a list that is absent (null) */
+    private static final int NO_LIST = -1;
+
+    /** Kind of each node */
+    private byte[] kinds;
+    /** Index of the position of each node in the source */
+    private int[] positions;
+    /** The two ints of each node. For an expression the first is the
+     * index of its type; the second is, by kind, the value of a constant,
+     * the index of a name, entry or operator, or a number of children. */
+    private int[] first;
+    private int[] second;
+    /** Number of nodes */
+    private int size;
+    /** The distinct types, names, operators and entries of the tree */
+    private Object[] objects;
+    /** The symbol id (see SymbolTable.lookup) of each object that is a
+     * name, or holds that of a for loop, as the parser gave it; -1 for
+     * the rest. It is not written: a tree read back has none. */
+    private int[] symbols;
+
+    /** Pack a statement tree
+     * @param root of the tree to pack, which is not changed
+     */
+    public TreeArena( StatementNode root ) {
+        kinds = new byte[64];
+        positions = new int[64];
+        first = new int[64];
+        second = new int[64];
+        symbols = new int[16];
+        objects = new Packer().pack( root );
+        symbols = copyOf( symbols, objects.length );
+        kinds = copyOf( kinds, size );
+        positions = copyOf( positions, size );
+        first = copyOf( first, size );
+        second = copyOf( second, size );
+    }
+
+    /** Read a tree written by write
+     * @param in reader of the stream, and of the types and entries the
+     *     tree refers to
+     * @throws IOException if the stream cannot be read or is invalid
+     */
+    TreeArena( SymbolReader in ) throws IOException {
+        size = in.readInt();
+        if( size <= 0 ) {
+            throw new IOException( "Invalid number of nodes " + size );
+        }
+        kinds = new byte[size];
+        positions = new int[size];
+        first = new int[size];
+        second = new int[size];
+        int pos = 0;
+        for( int i = 0; i < size; i++ ) {
+            kinds[i] = (byte)in.readByte();
+            pos += in.readInt();
+            positions[i] = pos;
+            first[i] = in.readInt();
+            second[i] = in.readInt();
+        }
+        objects = new Object[in.readInt()];
+        for( int j = 0; j < objects.length; j++ ) {
+            objects[j] = readObject( in );
+        }
+        symbols = new int[objects.length];
+        Arrays.fill( symbols, -1 );
+    }
+    /** Write the tables to a stream. The position of each node is written
+     * as its difference from that of the node before, which is small, as
+     * the nodes are in about the order of their positions.
+     * @param out writer of the stream, and of the types and entries the
+     *     tree refers to
+     */
+    void write( SymbolWriter out ) throws IOException {
+        out.writeInt( size );
+        int pos = 0;
+        for( int i = 0; i < size; i++ ) {
+            out.writeByte( kinds[i] );
+            out.writeInt( positions[i] - pos );
+            pos = positions[i];
+            out.writeInt( first[i] );
+            out.writeInt( second[i] );
+        }
+        out.writeInt( objects.length );
+        for( Object object : objects ) {
+            writeObject( out, object );
+        }
+    }
+    private static void writeObject( SymbolWriter out, Object object )
+            throws IOException {
+        if( object == null ) {
+            out.writeByte( NO_OBJECT );
+        } else if( object instanceof String ) {
+            out.writeByte( NAME );
+            out.writeString( (String)object );
+        } else if( object instanceof Type ) {
+            out.writeByte( TYPE );
+            out.writeType( (Type)object );
+        } else if( object instanceof SymEntry ) {
+            out.writeByte( ENTRY );
+            out.writeEntry( (SymEntry)object );
+        } else if( object instanceof BinaryOperator ) {
+            out.writeByte( BINARY_OPERATOR );
+            out.writeInt( ((BinaryOperator)object).ordinal() );
+        } else if( object instanceof UnaryOperator ) {
+            out.writeByte( UNARY_OPERATOR );
+            out.writeInt( ((UnaryOperator)object).ordinal() );
+        } else {
+            /* The name and the entries of a loop */
+            Object[] loopObjects = (Object[])object;
+            out.writeByte( LOOP );
+            for( Object loopObject : loopObjects ) {
+                writeObject( out, loopObject );
+            }
+        }
+    }
+    private static Object readObject( SymbolReader in ) throws IOException {
+        int kind = in.readByte();
+        switch( kind ) {
+        case NO_OBJECT:
+            return null;
+        case NAME:
+            return in.readString();
+        case TYPE:
+            return in.readType();
+        case ENTRY:
+            return in.readEntry();
+        case BINARY_OPERATOR:
+            return BinaryOperator.values()[in.readInt()];
+        case UNARY_OPERATOR:
+            return UnaryOperator.values()[in.readInt()];
+        case LOOP:
+            return new Object[] { readObject( in ), readObject( in ),
+                    readObject( in ) };
+        default:
+            throw new IOException( "Unknown kind of object " + kind );
+        }
+    }
+
+    /** @return the number of nodes packed */
+    public int size() {
+        return size;
+    }
+
+    /** Unpack the tree into new node objects
+     * @return the root of the tree packed
+     */
+    public StatementNode unpack() {
+        Object[] stack = new Object[size];
+        int top = 0;
+        for( int i = 0; i < size; i++ ) {
+            int children = children( i );
+            top -= children;
+            stack[top] = unpackNode( i, stack, top );
+            /* Release the children taken */
+            for( int j = top + 1; j < top + children; j++ ) {
+                stack[j] = null;
+            }
+            top++;
+        }
+        assert top == 1;
+        return (StatementNode)stack[0];
+    }
+
+    /** @return the number of children of node i */
+    private int children( int i ) {
+        switch( kinds[i] ) {
+        case ASSIGNMENT:
+            return Math.max( first[i], 0 ) + Math.max( second[i], 0 );
+        case STATEMENT_LIST:
+            return first[i];
+        case ARGUMENTS:
+            return Math.max( second[i], 0 );
+        case IF:
+        case FOR:
+            return 3;
+        case WHILE:
+        case BINARY:
+            return 2;
+        case WRITE:
+        case UNARY:
+        case DEREFERENCE:
+        case NARROW:
+        case WIDEN:
+            return 1;
+        default:
+            return 0;
+        }
+    }
+
+    /** @return node i, whose children are at stack[at] on */
+    private Object unpackNode( int i, Object[] stack, int at ) {
+        Position pos = Position.valueOf( positions[i] );
+        switch( kinds[i] ) {
+        case ABSENT:
+            return null;
+        case STATEMENT_ERROR:
+            return new StatementNode.ErrorNode( pos );
+        case SKIP:
+            return new StatementNode.SkipNode( pos );
+        case ASSIGNMENT: {
+            List<ExpNode> variables = expList( stack, at, first[i] );
+            return new StatementNode.AssignmentNode( pos, variables,
+                    expList( stack, at + Math.max( first[i], 0 ),
+                            second[i] ) );
+        }
+        case WRITE:
+            return new StatementNode.WriteNode( pos, (ExpNode)stack[at] );
+        case CALL: {
+            StatementNode.CallNode call = new StatementNode.CallNode( pos,
+                    (String)objects[first[i]], symbols[first[i]] );
+            call.setEntry( (SymEntry.ProcedureEntry)objects[second[i]] );
+            return call;
+        }
+        case STATEMENT_LIST: {
+            StatementNode.ListNode list = new StatementNode.ListNode( pos );
+            for( int j = 0; j < first[i]; j++ ) {
+                list.addStatement( (StatementNode)stack[at + j] );
+            }
+            return list;
+        }
+        case IF:
+            return new StatementNode.IfNode( pos, (ExpNode)stack[at],
+                    (StatementNode)stack[at + 1],
+                    (StatementNode)stack[at + 2] );
+        case WHILE:
+            return new StatementNode.WhileNode( pos, (ExpNode)stack[at],
+                    (StatementNode)stack[at + 1] );
+        case FOR: {
+            /* The name and the entries of the loop are held together */
+            Object[] loopObjects = (Object[])objects[first[i]];
+            StatementNode.ForNode loop = new StatementNode.ForNode( pos,
+                    (String)loopObjects[0], symbols[first[i]],
+                    (ExpNode)stack[at],
+                    (ExpNode)stack[at + 1], (StatementNode)stack[at + 2] );
+            loop.setEntry( (SymEntry.VarEntry)loopObjects[1] );
+            loop.setBoundEntry( (SymEntry.VarEntry)loopObjects[2] );
+            return loop;
+        }
+        default:
+            Type type = (Type)objects[first[i]];
+            ExpNode exp = unpackExp( i, pos, type, stack, at );
+            exp.setType( type );
+            return exp;
+        }
+    }
+    /** @return expression node i, whose type is type */
+    private ExpNode unpackExp( int i, Position pos, Type type,
+            Object[] stack, int at ) {
+        switch( kinds[i] ) {
+        case EXP_ERROR:
+            return new ExpNode.ErrorNode( pos, type );
+        case CONST:
+            return new ExpNode.ConstNode( pos, type, second[i] );
+        case IDENTIFIER:
+            return new ExpNode.IdentifierNode( pos,
+                    (String)objects[second[i]], symbols[second[i]] );
+        case VARIABLE:
+            return new ExpNode.VariableNode( pos,
+                    (SymEntry.VarEntry)objects[second[i]] );
+        case READ:
+            return new ExpNode.ReadNode( pos );
+        case BINARY:
+            return new ExpNode.BinaryOpNode( pos,
+                    (BinaryOperator)objects[second[i]],
+                    (ExpNode)stack[at], (ExpNode)stack[at + 1] );
+        case UNARY:
+            return new ExpNode.UnaryOpNode( pos,
+                    (UnaryOperator)objects[second[i]], (ExpNode)stack[at] );
+        case ARGUMENTS:
+            return new ExpNode.ArgumentsNode( pos,
+                    expList( stack, at, second[i] ) );
+        case DEREFERENCE:
+            return new ExpNode.DereferenceNode( pos, (ExpNode)stack[at] );
+        case NARROW:
+            return new ExpNode.NarrowSubrangeNode( pos,
+                    (Type.SubrangeType)type, (ExpNode)stack[at] );
+        case WIDEN:
+            return new ExpNode.WidenSubrangeNode( pos, type,
+                    (ExpNode)stack[at] );
+        default:
+            throw new Error( "Unknown kind of node " + kinds[i] );
+        }
+    }
+    /** @return a list of the count expressions at stack[at] on, or null
+     * if the count is NO_LIST */
+    private static List<ExpNode> expList( Object[] stack, int at,
+            int count ) {
+        if( count == NO_LIST ) {
+            return null;
+        }
+        List<ExpNode> exps = new ArrayList<ExpNode>( count );
+        for( int j = 0; j < count; j++ ) {
+            exps.add( (ExpNode)stack[at + j] );
+        }
+        return exps;
+    }
+
+    /** Add a node to the tables */
+    private void addNode( byte kind, int pos, int a, int b ) {
+        if( size == kinds.length ) {
+            int capacity = 2 * size;
+            kinds = copyOf( kinds, capacity );
+            positions = copyOf( positions, capacity );
+            first = copyOf( first, capacity );
+            second = copyOf( second, capacity );
+        }
+        kinds[size] = kind;
+        positions[size] = pos;
+        first[size] = a;
+        second[size] = b;
+        size++;
+    }
+    private static byte[] copyOf( byte[] array, int length ) {
+        byte[] copy = new byte[length];
+        System.arraycopy( array, 0, copy, 0, Math.min( length, array.length ) );
+        return copy;
+    }
+    private static int[] copyOf( int[] array, int length ) {
+        int[] copy = new int[length];
+        System.arraycopy( array, 0, copy, 0, Math.min( length, array.length ) );
+        return copy;
+    }
+
+    /** Packs the nodes of a tree in post-order with an explicit stack.
+     * Each node is visited twice: first to push its children, then, once
+     * they are all packed, to pack the node. */
+    private class Packer implements StatementVisitor, ExpVisitor {
+        /** Nodes to be visited, and whether each has been expanded */
+        private Object[] stack = new Object[64];
+        private boolean[] expanded = new boolean[64];
+        private int top = 0;
+        /** Whether the node visited is being expanded or packed */
+        private boolean expanding;
+        /** Index of each distinct object in the table */
+        private Map<Object, Integer> indices =
+            new IdentityHashMap<Object, Integer>();
+        /** The table of distinct objects */
+        private List<Object> table = new ArrayList<Object>();
+
+        /** Pack the tree
+         * @return the table of its distinct objects */
+        Object[] pack( StatementNode root ) {
+            push( root );
+            while( top > 0 ) {
+                Object node = stack[top - 1];
+                if( node == null ) {
+                    top--;
+                    addNode( ABSENT, 0, 0, 0 );
+                } else if( !expanded[top - 1] ) {
+                    expanded[top - 1] = true;
+                    expanding = true;
+                    accept( node );
+                } else {
+                    stack[--top] = null;
+                    expanding = false;
+                    accept( node );
+                }
+            }
+            return table.toArray();
+        }
+        private void accept( Object node ) {
+            if( node instanceof StatementNode ) {
+                ((StatementNode)node).accept( this );
+            } else {
+                ((ExpNode)node).accept( this );
+            }
+        }
+        /** Push a child, or null for an absent child, to be packed */
+        private void push( Object child ) {
+            if( top == stack.length ) {
+                Object[] larger = new Object[2 * top];
+                System.arraycopy( stack, 0, larger, 0, top );
+                stack = larger;
+                boolean[] flags = new boolean[2 * top];
+                System.arraycopy( expanded, 0, flags, 0, top );
+                expanded = flags;
+            }
+            stack[top] = child;
+            expanded[top] = false;
+            top++;
+        }
+        /** Push the children in reverse, so they are packed in order */
+        private void pushAll( List<?> children ) {
+            if( children != null ) {
+                for( int i = children.size() - 1; i >= 0; i-- ) {
+                    push( children.get( i ) );
+                }
+            }
+        }
+        /** @return the number of children in the list, or NO_LIST */
+        private int count( List<?> children ) {
+            return children == null ? NO_LIST : children.size();
+        }
+        /** @return the index of the object in the table, added if new */
+        private int object( Object object ) {
+            Integer index = indices.get( object );
+            if( index == null ) {
+                index = table.size();
+                table.add( object );
+                indices.put( object, index );
+                if( index == symbols.length ) {
+                    symbols = copyOf( symbols, 2 * index );
+                }
+                symbols[index] = -1;
+            }
+            return index;
+        }
+        /** @return the index of the name or loop objects in the table,
+         * added if new, with the symbol id of the name */
+        private int name( Object object, int symbol ) {
+            int index = object( object );
+            if( symbol >= 0 ) {
+                symbols[index] = symbol;
+            }
+            return index;
+        }
+        private void addExp( ExpNode node, byte kind, int b ) {
+            addNode( kind, node.getPositionIndex(),
+                    object( node.getType() ), b );
+        }
+
+        public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+            if( !expanding ) {
+                addNode( STATEMENT_ERROR, node.getPositionIndex(), 0, 0 );
+            }
+        }
+        public void visitSkipNode( StatementNode.SkipNode node ) {
+            if( !expanding ) {
+                addNode( SKIP, node.getPositionIndex(), 0, 0 );
+            }
+        }
+        public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+            if( expanding ) {
+                pushAll( node.getExp() );
+                pushAll( node.getVariable() );
+            } else {
+                addNode( ASSIGNMENT, node.getPositionIndex(),
+                        count( node.getVariable() ), count( node.getExp() ) );
+            }
+        }
+        public void visitWriteNode( StatementNode.WriteNode node ) {
+            if( expanding ) {
+                push( node.getExp() );
+            } else {
+                addNode( WRITE, node.getPositionIndex(), 0, 0 );
+            }
+        }
+        public void visitCallNode( StatementNode.CallNode node ) {
+            if( !expanding ) {
+                addNode( CALL, node.getPositionIndex(),
+                        name( node.getId(), node.getSymbol() ),
+                        object( node.getEntry() ) );
+            }
+        }
+        public void visitStatementListNode( StatementNode.ListNode node ) {
+            if( expanding ) {
+                pushAll( node.getStatements() );
+            } else {
+                addNode( STATEMENT_LIST, node.getPositionIndex(),
+                        node.getStatements().size(), 0 );
+            }
+        }
+        public void visitIfNode( StatementNode.IfNode node ) {
+            if( expanding ) {
+                push( node.getElseStmt() );
+                push( node.getThenStmt() );
+                push( node.getCondition() );
+            } else {
+                addNode( IF, node.getPositionIndex(), 0, 0 );
+            }
+        }
+        public void visitWhileNode( StatementNode.WhileNode node ) {
+            if( expanding ) {
+                push( node.getLoopStmt() );
+                push( node.getCondition() );
+            } else {
+                addNode( WHILE, node.getPositionIndex(), 0, 0 );
+            }
+        }
+        public void visitForNode( StatementNode.ForNode node ) {
+            if( expanding ) {
+                push( node.getdoStmt() );
+                push( node.getUpperBound() );
+                push( node.getLowerBound() );
+            } else {
+                Object[] loopObjects = { node.getId(), node.getEntry(),
+                        node.getBoundEntry() };
+                addNode( FOR, node.getPositionIndex(),
+                        name( loopObjects, node.getSymbol() ), 0 );
+            }
+        }
+
+        public void visitErrorExpNode( ExpNode.ErrorNode node ) {
+            if( !expanding ) {
+                addExp( node, EXP_ERROR, 0 );
+            }
+        }
+        public void visitConstNode( ExpNode.ConstNode node ) {
+            if( !expanding ) {
+                addExp( node, CONST, node.getValue() );
+            }
+        }
+        public void visitIdentifierNode( ExpNode.IdentifierNode node ) {
+            if( !expanding ) {
+                addExp( node, IDENTIFIER,
+                        name( node.getId(), node.getSymbol() ) );
+            }
+        }
+        public void visitVariableNode( ExpNode.VariableNode node ) {
+            if( !expanding ) {
+                addExp( node, VARIABLE, object( node.getVariable() ) );
+            }
+        }
+        public void visitReadNode( ExpNode.ReadNode node ) {
+            if( !expanding ) {
+                addExp( node, READ, 0 );
+            }
+        }
+        public void visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+            if( expanding ) {
+                push( node.getRight() );
+                push( node.getLeft() );
+            } else {
+                addExp( node, BINARY, object( node.getOp() ) );
+            }
+        }
+        public void visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+            if( expanding ) {
+                push( node.getSubExp() );
+            } else {
+                addExp( node, UNARY, object( node.getOp() ) );
+            }
+        }
+        public void visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+            if( expanding ) {
+                pushAll( node.getArgs() );
+            } else {
+                addExp( node, ARGUMENTS, count( node.getArgs() ) );
+            }
+        }
+        public void visitDereferenceNode( ExpNode.DereferenceNode node ) {
+            if( expanding ) {
+                push( node.getLeftValue() );
+            } else {
+                addExp( node, DEREFERENCE, 0 );
+            }
+        }
+        public void visitNarrowSubrangeNode(
+                ExpNode.NarrowSubrangeNode node ) {
+            if( expanding ) {
+                push( node.getExp() );
+            } else {
+                addExp( node, NARROW, 0 );
+            }
+        }
+        public void visitWidenSubrangeNode( ExpNode.WidenSubrangeNode node ) {
+            if( expanding ) {
+                push( node.getExp() );
+            } else {
+                addExp( node, WIDEN, 0 );
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package tree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+import source.Source;
+import syms.Scope;
+import syms.SymEntry;
+import syms.SymbolReader;
+import syms.SymbolTable;
+import syms.SymbolWriter;
+
+/**
+ * class TreeCache - a file holding the checked tree of a program, so a
+ * later compilation of the same source may read it instead of scanning,
+ * parsing and checking the source again.
+ * The file is binary: a header of a magic number, the version of the
+ * format and the SHA-256 digest of the source text, followed by the
+ * scopes, entries and types of the program (see SymbolWriter), written
+ * as the blocks refer to them, and the blocks themselves: for each, its
+ * scope, its procedures, each as its entry and block, and its body as
+ * packed by TreeArena. As nothing but the tree is kept, only the tree of
+ * a program without errors should be written.
+ * A file whose header does not match the version and source is not read,
+ * so a change to the source, or to this format, which must change
+ * VERSION, causes the program to be compiled in full.
+ */
+public class TreeCache {
+
+    /** "PL0T" */
+    private static final int MAGIC = 0x504c3054;
+    /** Version of the format */
+    private static final int VERSION = 1;
+
+    /** Write the checked tree of a program
+     * @param fileName file to write
+     * @param src source of the program
+     * @param program tree checked without errors
+     * @throws IOException if the file cannot be written
+     */
+    public static void write( String fileName, Source src,
+            Tree.ProgramNode program ) throws IOException {
+        BufferedOutputStream file =
+            new BufferedOutputStream( new FileOutputStream( fileName ) );
+        try {
+            DataOutputStream header = new DataOutputStream( file );
+            header.writeInt( MAGIC );
+            header.writeInt( VERSION );
+            byte[] digest = digest( src );
+            header.writeShort( digest.length );
+            header.write( digest );
+            SymbolWriter out = new SymbolWriter( file );
+            out.writeScope( program.getBaseSymbolTable().getCurrentScope() );
+            writeBlock( out, program.getBlock() );
+            out.flush();
+        } finally {
+            file.close();
+        }
+    }
+    private static void writeBlock( SymbolWriter out, Tree.BlockNode block )
+            throws IOException {
+        out.writeScope( block.getBlockLocals() );
+        List<DeclNode> procedures = block.getProcedures().getDeclarations();
+        out.writeInt( procedures.size() );
+        for( DeclNode decl : procedures ) {
+            DeclNode.ProcedureNode proc = (DeclNode.ProcedureNode)decl;
+            out.writeEntry( proc.getProcEntry() );
+            writeBlock( out, proc.getBlock() );
+        }
+        block.packedBody().write( out );
+    }
+
+    /** Read the checked tree of a program
+     * @param fileName file to read
+     * @param src source of the program
+     * @param packBodies hold the bodies of the blocks packed while not in
+     *     use (see Tree.BlockNode.pack)
+     * @return the tree, or null if the file does not hold the tree of
+     *     this source in this version of the format
+     * @throws IOException if the file cannot be read or is invalid
+     */
+    public static Tree.ProgramNode read( String fileName, Source src,
+            boolean packBodies ) throws IOException {
+        BufferedInputStream file =
+            new BufferedInputStream( new FileInputStream( fileName ) );
+        try {
+            DataInputStream header = new DataInputStream( file );
+            if( header.readInt() != MAGIC ) {
+                throw new IOException( fileName + " is not a tree cache" );
+            }
+            if( header.readInt() != VERSION ) {
+                return null;
+            }
+            byte[] digest = new byte[header.readUnsignedShort()];
+            header.readFully( digest );
+            if( !Arrays.equals( digest, digest( src ) ) ) {
+                return null;
+            }
+            SymbolReader in = new SymbolReader( file );
+            SymbolTable symtab = new SymbolTable();
+            symtab.reenterScope( in.readScope() );
+            return new Tree.ProgramNode( symtab, readBlock( in, packBodies ) );
+        } catch( EOFException e ) {
+            throw new IOException( fileName + " is incomplete" );
+        } catch( ClassCastException e ) {
+            throw new IOException( fileName + " is invalid: " + e );
+        } catch( IndexOutOfBoundsException e ) {
+            throw new IOException( fileName + " is invalid: " + e );
+        } finally {
+            file.close();
+        }
+    }
+    private static Tree.BlockNode readBlock( SymbolReader in,
+            boolean packBodies ) throws IOException {
+        Scope blockLocals = in.readScope();
+        int count = in.readInt();
+        DeclNode.DeclListNode procedures = new DeclNode.DeclListNode();
+        for( int i = 0; i < count; i++ ) {
+            SymEntry.ProcedureEntry entry =
+                (SymEntry.ProcedureEntry)in.readEntry();
+            procedures.addDeclaration(
+                    new DeclNode.ProcedureNode( entry,
+                            readBlock( in, packBodies ) ) );
+        }
+        Tree.BlockNode block = new Tree.BlockNode( procedures, null );
+        block.setBlockLocals( blockLocals );
+        block.setPackedBody( new TreeArena( in ), packBodies );
+        return block;
+    }
+
+    /** @return the SHA-256 digest of the text of the source */
+    private static byte[] digest( Source src ) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance( "SHA-256" );
+            /* An ASCII source is its own UTF-8 encoding */
+            ByteBuffer bytes = src.getBytes();
+            sha.update( bytes != null ? bytes : Charset.forName( "UTF-8" )
+                    .encode( CharBuffer.wrap( src.getText() ) ) );
+            return sha.digest();
+        } catch( NoSuchAlgorithmException e ) {
+            /* Every Java platform provides SHA-256 */
+            throw new Error( e );
+        }
+    }
+}
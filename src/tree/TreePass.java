@@ -0,0 +1,18 @@
+package tree;
+
+/**
+ * interface TreePass - an optimisation pass over the abstract syntax tree
+ * of a statically checked program, run by the pass manager.
+ * A pass may be run more than once; each run replaces the statistics
+ * of the previous one.
+ */
+public interface TreePass {
+    /** @return the name of the pass, as used in reports */
+    String getName();
+
+    /** Transform the tree of the program. */
+    void run( Tree.ProgramNode tree );
+
+    /** @return a one line summary of the changes made by the last run */
+    String getSummary();
+}
@@ -0,0 +1,238 @@
+package tree;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import machine.StackMachine;
+import source.Position;
+import syms.Scope;
+import syms.SymEntry;
+import syms.Type;
+import tree.Tree.*;
+
+/** class TreeVerifier - checks the consistency of the abstract syntax tree
+ * of a statically checked program, as it should be after each tree
+ * optimisation pass:
+ * - no error or (unresolved) identifier nodes remain;
+ * - every expression has a type, and conditions are boolean;
+ * - an assignment has as many expressions as variables;
+ * - every local variable referred to lies within the frame of its block,
+ *   and every variable is referred to from its own block or one nested
+ *   within it.
+ * It is used by the pass manager when verification is enabled.
+ */
+public class TreeVerifier implements TreeVisitor, StatementVisitor,
+ExpVisitor {
+
+	/** Problems found, each with its position */
+	private List<String> problems;
+	private List<Position> positions;
+	/** Scopes of the enclosing blocks, by static level */
+	private Map<Integer, Scope> scopes;
+
+	public TreeVerifier() {
+		super();
+	}
+
+	/** Check the tree of a program.
+	 * @return the problems found, empty if there are none */
+	public List<String> verify( ProgramNode node ) {
+		problems = new ArrayList<String>();
+		positions = new ArrayList<Position>();
+		scopes = new HashMap<Integer, Scope>();
+		visitProgramNode( node );
+		return problems;
+	}
+	/** @return the position of each problem found by the last verify */
+	public List<Position> getPositions() {
+		return positions;
+	}
+
+	private void problem( String message, Position pos ) {
+		problems.add( message );
+		positions.add( pos );
+	}
+
+	/*-------------------- Tree visit methods --------------------------*/
+
+	public void visitProgramNode( ProgramNode node ) {
+		node.getBlock().accept( this );
+	}
+
+	public void visitBlockNode( BlockNode node ) {
+		Scope locals = node.getBlockLocals();
+		scopes.put( locals.getLevel(), locals );
+		node.getBody().accept( this );
+		node.getProcedures().accept( this );
+		scopes.remove( locals.getLevel() );
+	}
+
+	public void visitDeclListNode( DeclNode.DeclListNode node ) {
+		for( DeclNode decl : node.getDeclarations() ) {
+			decl.accept( this );
+		}
+	}
+
+	public void visitProcedureNode( DeclNode.ProcedureNode node ) {
+		node.getBlock().accept( this );
+	}
+
+	/*-------------------- Statement visit methods ---------------------*/
+
+	public void visitStatementErrorNode( StatementNode.ErrorNode node ) {
+		problem( "error statement in checked tree", node.getPosition() );
+	}
+
+	public void visitStatementListNode( StatementNode.ListNode node ) {
+		for( StatementNode s : node.getStatements() ) {
+			s.accept( this );
+		}
+	}
+
+	public void visitAssignmentNode( StatementNode.AssignmentNode node ) {
+		if( node.getVariable().size() != node.getExp().size() ) {
+			problem( "assignment of " + node.getExp().size() +
+					" expressions to " + node.getVariable().size() +
+					" variables", node.getPosition() );
+		}
+		for( ExpNode exp : node.getExp() ) {
+			expression( exp );
+		}
+		for( ExpNode lval : node.getVariable() ) {
+			expression( lval );
+		}
+	}
+
+	public void visitWriteNode( StatementNode.WriteNode node ) {
+		expression( node.getExp() );
+	}
+
+	public void visitCallNode( StatementNode.CallNode node ) {
+		if( node.getEntry() == null ) {
+			problem( "call of unresolved procedure " + node.getId(),
+					node.getPosition() );
+		}
+	}
+
+	public void visitIfNode( StatementNode.IfNode node ) {
+		condition( node.getCondition() );
+		node.getThenStmt().accept( this );
+		node.getElseStmt().accept( this );
+	}
+
+	public void visitWhileNode( StatementNode.WhileNode node ) {
+		condition( node.getCondition() );
+		node.getLoopStmt().accept( this );
+	}
+
+	public void visitSkipNode( StatementNode.SkipNode node ) {
+	}
+
+	public void visitForNode( StatementNode.ForNode node ) {
+		variable( node.getEntry(), node.getPosition() );
+		variable( node.getBoundEntry(), node.getPosition() );
+		expression( node.getLowerBound() );
+		expression( node.getUpperBound() );
+		node.getdoStmt().accept( this );
+	}
+
+	private void condition( ExpNode cond ) {
+		expression( cond );
+		if( cond.getType() != null &&
+				!Type.BOOLEAN_TYPE.equals( cond.getType() ) ) {
+			problem( "condition of type " + cond.getType(),
+					cond.getPosition() );
+		}
+	}
+
+	/** Check that var lies within the frame of its block */
+	private void variable( SymEntry.VarEntry var, Position pos ) {
+		if( var == null ) {
+			problem( "missing variable", pos );
+			return;
+		}
+		Scope scope = scopes.get( var.getLevel() );
+		if( scope == null ) {
+			problem( "variable " + var.getIdent() +
+					" referred to outside its block", pos );
+			return;
+		}
+		int space = var.getType().getBaseType().getSpace();
+		if( var.getOffset() < StackMachine.LOCALS_BASE ||
+				var.getOffset() + space >
+					StackMachine.LOCALS_BASE + scope.getVariableSpace() ) {
+			problem( "variable " + var.getIdent() + " at offset " +
+					var.getOffset() + " lies outside its frame", pos );
+		}
+	}
+
+	/*-------------------- Expression visit methods --------------------*/
+
+	/** Check each node of exp. The visit methods check a node alone; the
+	 * expression is walked from an explicit stack (see
+	 * Expressions.pushOperands), as it may be nested too deeply to
+	 * recurse over. */
+	private void expression( ExpNode exp ) {
+		List<ExpNode> pending = new ArrayList<ExpNode>();
+		pending.add( exp );
+		while( !pending.isEmpty() ) {
+			ExpNode next = pending.remove( pending.size() - 1 );
+			next.accept( this );
+			Expressions.pushOperands( next, pending );
+		}
+	}
+
+	/** Check that exp has been given a type */
+	private void typed( ExpNode exp ) {
+		if( exp.getType() == null || exp.getType() == Type.ERROR_TYPE ) {
+			problem( "expression " + exp + " has no type",
+					exp.getPosition() );
+		}
+	}
+
+	public void visitErrorExpNode( ExpNode.ErrorNode node ) {
+		problem( "error expression in checked tree", node.getPosition() );
+	}
+
+	public void visitConstNode( ExpNode.ConstNode node ) {
+		typed( node );
+	}
+
+	public void visitIdentifierNode( ExpNode.IdentifierNode node ) {
+		problem( "unresolved identifier " + node.getId(), node.getPosition() );
+	}
+
+	public void visitVariableNode( ExpNode.VariableNode node ) {
+		typed( node );
+		variable( node.getVariable(), node.getPosition() );
+	}
+
+	public void visitReadNode( ExpNode.ReadNode node ) {
+		typed( node );
+	}
+
+	public void visitBinaryOpNode( ExpNode.BinaryOpNode node ) {
+		typed( node );
+	}
+
+	public void visitUnaryOpNode( ExpNode.UnaryOpNode node ) {
+		typed( node );
+	}
+
+	public void visitArgumentsNode( ExpNode.ArgumentsNode node ) {
+		typed( node );
+	}
+
+	public void visitDereferenceNode( ExpNode.DereferenceNode node ) {
+		typed( node );
+	}
+
+	public void visitNarrowSubrangeNode( ExpNode.NarrowSubrangeNode node ) {
+		typed( node );
+	}
+
+	public void visitWidenSubrangeNode( ExpNode.WidenSubrangeNode node ) {
+		typed( node );
+	}
+}
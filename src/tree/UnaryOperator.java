@@ -7,7 +7,8 @@ import syms.Type;
  */
 
 public enum UnaryOperator {
-    NEG_OP( "-", Type.ARITH_UNARY );
+    NEG_OP( "-", Type.ARITH_UNARY ),
+    NOT_OP( "!", Type.LOGICAL_UNARY );
 
     /** The name of the unary operator. */
     String name;